@@ -0,0 +1,91 @@
+package replicate.singularupdatequeue;
+
+import org.openjdk.jmh.annotations.*;
+import replicate.singularupdatequeue.example.SynchronizedAccount;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Credits an account from several threads, through each of the update queues,
+ * and with SynchronizedAccount, which takes a lock instead.
+ *
+ *  credit: every thread waits for the response before the next request,
+ *          so it is bound by the hand off latency of the queue.
+ *  creditPipelined: every thread submits PIPELINE_DEPTH requests before waiting,
+ *          so the ring buffer can handle them in batches.
+ *
+ * Run with ./gradlew jmh
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class UpdateQueueBenchmark {
+    static final int PIPELINE_DEPTH = 64;
+
+    @Param({"Synchronized", "SingularUpdateQueue", "ActorLikeSingularUpdateQueue",
+            "RingBufferBusySpin", "RingBufferYielding", "RingBufferParking"})
+    String queue;
+
+    //only updated on the thread of the update queue.
+    private int balance = 0;
+    private Function<Integer, CompletableFuture<Integer>> submit;
+    private Runnable shutdown = () -> {};
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Function<Integer, Integer> credit = amount -> balance += amount;
+        switch (queue) {
+            case "Synchronized" -> {
+                var account = new SynchronizedAccount(0);
+                submit = amount -> CompletableFuture.completedFuture(account.credit(amount));
+            }
+            case "SingularUpdateQueue" -> {
+                var updateQueue = new SingularUpdateQueue<>(credit);
+                updateQueue.start();
+                submit = updateQueue::submit;
+                shutdown = updateQueue::shutdown;
+            }
+            case "ActorLikeSingularUpdateQueue" -> {
+                var updateQueue = new ActorLikeSingularUpdateQueue<>(credit);
+                submit = updateQueue::submit;
+            }
+            case "RingBufferBusySpin" -> ringBuffer(credit, WaitStrategy.busySpin());
+            case "RingBufferYielding" -> ringBuffer(credit, WaitStrategy.yielding());
+            case "RingBufferParking" -> ringBuffer(credit, WaitStrategy.parking());
+            default -> throw new IllegalArgumentException("Unknown queue " + queue);
+        }
+    }
+
+    private void ringBuffer(Function<Integer, Integer> credit, WaitStrategy waitStrategy) {
+        var updateQueue = new RingBufferSingularUpdateQueue<>(credit, 1024, waitStrategy, 256);
+        updateQueue.start();
+        submit = updateQueue::submit;
+        shutdown = updateQueue::shutdown;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shutdown.run();
+    }
+
+    @Benchmark
+    public Integer credit() {
+        return submit.apply(1).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public Integer creditPipelined() {
+        CompletableFuture<Integer> last = null;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            last = submit.apply(1);
+        }
+        return last.join();
+    }
+}
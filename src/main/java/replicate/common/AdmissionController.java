@@ -0,0 +1,152 @@
+package replicate.common;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides if a new client request can be accepted by the replica.
+ * All the requests, from clients and peers, are executed on the singular update queue.
+ * Without a limit, the queue and the number of concurrent quorum rounds grow without bound
+ * under overload, and every request eventually times out.
+ * A client request is rejected if
+ *  - the number of tasks waiting in the update queue reaches the limit.
+ *  - the number of client requests in flight (queued or waiting for quorum responses) reaches the limit.
+ *  - the estimated queueing delay, the average time to execute a task multiplied by the
+ *    number of waiting tasks, is more than the limit.
+ *  - the memory budget of the replica is exhausted.
+ * Peer messages are never rejected, but are counted in the queue depth and service time.
+ * The bytes of admitted requests are reserved with the MemoryAccountant till they complete.
+ */
+public class AdmissionController {
+    //weight of the latest sample in the moving average of service time.
+    private static final double SERVICE_TIME_WEIGHT = 0.1;
+
+    private final int maxQueuedRequests;
+    private final int maxInFlightClientRequests;
+    private final long maxQueueingDelayNanos;
+    private final MemoryAccountant memoryAccountant;
+
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+    private final AtomicInteger inFlightClientRequests = new AtomicInteger();
+    private final AtomicLong avgServiceTimeNanos = new AtomicLong();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedForQueueDepth = new LongAdder();
+    private final LongAdder shedForInFlightRequests = new LongAdder();
+    private final LongAdder shedForQueueingDelay = new LongAdder();
+    private final LongAdder shedForMemory = new LongAdder();
+
+    public AdmissionController(Config config, MemoryAccountant memoryAccountant) {
+        this(config.getMaxQueuedRequests(), config.getMaxInFlightClientRequests(), config.getMaxQueueingDelayMs(), memoryAccountant);
+    }
+
+    public AdmissionController(int maxQueuedRequests, int maxInFlightClientRequests, long maxQueueingDelayMs) {
+        this(maxQueuedRequests, maxInFlightClientRequests, maxQueueingDelayMs, MemoryAccountant.unbounded());
+    }
+
+    public AdmissionController(int maxQueuedRequests, int maxInFlightClientRequests, long maxQueueingDelayMs, MemoryAccountant memoryAccountant) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.maxInFlightClientRequests = maxInFlightClientRequests;
+        this.maxQueueingDelayNanos = maxQueueingDelayMs == Long.MAX_VALUE ? Long.MAX_VALUE : Duration.ofMillis(maxQueueingDelayMs).toNanos();
+        this.memoryAccountant = memoryAccountant;
+    }
+
+    /**
+     * Admits a client request, or returns the reason it is rejected.
+     * An admitted request is counted as queued and in flight, till
+     * taskCompleted and clientRequestCompleted are called.
+     */
+    public Optional<String> admitClientRequest() {
+        return admitClientRequest(0);
+    }
+
+    //Does not wait for the memory budget, as it is called on the dispatcher threads shared by all the
+    //connections. The rejection is retriable, and the client backs off.
+    //A client sending faster than its frames are handled is slowed down by the dispatcher. @see OrderedDispatcher
+    public Optional<String> admitClientRequest(long requestBytes) {
+        if (memoryAccountant.isExhausted()) {
+            shedForMemory.increment();
+            return Optional.of("memory budget exhausted, " + memoryAccountant.getUsedBytes() + " of " + memoryAccountant.getBudgetBytes() + " bytes used");
+        }
+        int queued = queuedRequests.get();
+        if (queued >= maxQueuedRequests) {
+            shedForQueueDepth.increment();
+            return Optional.of("queue depth " + queued + " reached limit " + maxQueuedRequests);
+        }
+        long queueingDelayNanos = estimatedQueueingDelayNanos();
+        if (queueingDelayNanos > maxQueueingDelayNanos) {
+            shedForQueueingDelay.increment();
+            return Optional.of("estimated queueing delay " + Duration.ofNanos(queueingDelayNanos).toMillis() + "ms is more than " + Duration.ofNanos(maxQueueingDelayNanos).toMillis() + "ms");
+        }
+        if (inFlightClientRequests.incrementAndGet() > maxInFlightClientRequests) {
+            inFlightClientRequests.decrementAndGet();
+            shedForInFlightRequests.increment();
+            return Optional.of("in flight client requests reached limit " + maxInFlightClientRequests);
+        }
+        queuedRequests.incrementAndGet();
+        admitted.increment();
+        memoryAccountant.reserve(MemoryAccountant.Component.PENDING_REQUESTS, requestBytes);
+        return Optional.empty();
+    }
+
+    //Peer messages are always admitted.
+    public void taskQueued() {
+        queuedRequests.incrementAndGet();
+    }
+
+    //Called once the task is executed. The average is updated with a compare and set,
+    //so no sample is lost if tasks complete on more than one thread.
+    public void taskCompleted(long serviceTimeNanos) {
+        queuedRequests.decrementAndGet();
+        avgServiceTimeNanos.updateAndGet(avg -> avg == 0 ? serviceTimeNanos : (long) (avg + SERVICE_TIME_WEIGHT * (serviceTimeNanos - avg)));
+    }
+
+    //Called once the response is sent to the client.
+    public void clientRequestCompleted() {
+        clientRequestCompleted(0);
+    }
+
+    public void clientRequestCompleted(long requestBytes) {
+        inFlightClientRequests.decrementAndGet();
+        memoryAccountant.release(MemoryAccountant.Component.PENDING_REQUESTS, requestBytes);
+    }
+
+    public long estimatedQueueingDelayNanos() {
+        return avgServiceTimeNanos.get() * queuedRequests.get();
+    }
+
+    public int getQueuedRequests() {
+        return queuedRequests.get();
+    }
+
+    public int getInFlightClientRequests() {
+        return inFlightClientRequests.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getShedForQueueDepth() {
+        return shedForQueueDepth.sum();
+    }
+
+    public long getShedForInFlightRequests() {
+        return shedForInFlightRequests.sum();
+    }
+
+    public long getShedForQueueingDelay() {
+        return shedForQueueingDelay.sum();
+    }
+
+    public long getShedForMemory() {
+        return shedForMemory.sum();
+    }
+
+    public long getShed() {
+        return getShedForQueueDepth() + getShedForInFlightRequests() + getShedForQueueingDelay() + getShedForMemory();
+    }
+}
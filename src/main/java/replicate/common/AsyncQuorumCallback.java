@@ -19,6 +19,8 @@ public class AsyncQuorumCallback<T> implements RequestCallback<T> {
     Map<InetAddressAndPort, T> responses = new HashMap<>();
     CompletableFuture<Map<InetAddressAndPort, T>> quorumFuture = new CompletableFuture<>();
     private Predicate<T> successCondition;
+    //the trace of the request the quorum round is for, if it is traced.
+    private Trace trace;
 
     public AsyncQuorumCallback(int totalResponses) {
         //This is default implementation. it's good to provide a specific quorum condition.
@@ -41,12 +43,19 @@ public class AsyncQuorumCallback<T> implements RequestCallback<T> {
         tryCompletingFuture();
     }
 
+    //Marked before completing the future, so that it precedes the stages of the next phase.
+    void markQuorumIn(Trace trace) {
+        this.trace = trace;
+    }
+
     private void tryCompletingFuture() {
         if (quorumSucceeded(responses)) {
+            markQuorum();
             quorumFuture.complete(responses);
             return;
         }
         if (responses.size() + exceptions.size() == totalResponses) {
+            markQuorum();
             quorumFuture.completeExceptionally(new RuntimeException("Quorum condition not met after " + totalResponses + " responses"));
         }
     }
@@ -57,6 +66,12 @@ public class AsyncQuorumCallback<T> implements RequestCallback<T> {
                 .filter(successCondition).count() >= majorityQuorum();
     }
 
+    private void markQuorum() {
+        if (trace != null && !quorumFuture.isDone()) {
+            trace.markStage(Trace.Stage.QUORUM);
+        }
+    }
+
     @Override
     public void onError(Exception e) {
         exceptions.add(e);
@@ -0,0 +1,275 @@
+package replicate.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongFunction;
+
+/**
+ * Schedules the client requests of a replica fairly between clients, ahead of the singular update queue.
+ * Without it, requests are executed in the order they arrive, so a client sending many requests
+ * delays the requests of every other client.
+ *
+ * Requests are queued per client (the clientId in the request envelope), and handed over to the
+ * update queue with deficit round robin. Each client, in its turn, gets a quantum of bytes added
+ * to its deficit, and its requests are handed over while their size fits in the deficit.
+ * So every client with waiting requests gets an equal share of the bytes processed, irrespective
+ * of how many requests it sends.
+ *
+ *  client 1: [r1][r2][r3][r4] --\
+ *  client 2: [r1]             ---+--> DRR --> update queue (maxDispatched at a time)
+ *  client 3: [r1][r2]         --/
+ *
+ * Only maxDispatched requests are in the update queue at a time, so that the order is
+ * decided here, and not by the arrival order in the update queue.
+ *
+ * Clients can also be given a ClientQuota. Requests over the rate or the number of
+ * concurrent requests of the client are rejected, before they are queued.
+ * Requests without a clientId share a single queue and quota.
+ *
+ * The state of a client is dropped once it is idle: it has no queued or in flight requests,
+ * and its rate quota is refilled, so dropping it does not give the client more requests.
+ * Its stats are dropped with it.
+ */
+public class ClientFairQueue {
+    private static Logger logger = LogManager.getLogger(ClientFairQueue.class);
+    public static final long DEFAULT_QUANTUM_BYTES = 1024;
+    static final long IDLE_SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Executor updateQueue;
+    private final LongFunction<ClientQuota> quotas;
+    private final SystemClock clock;
+    private final long quantumBytes;
+    private final int maxDispatched;
+
+    //All the state is guarded by this.
+    private final Map<Long, ClientState> clients = new HashMap<>();
+    //clients with queued requests, in the order of their turns.
+    private final ArrayDeque<ClientState> activeClients = new ArrayDeque<>();
+    private int dispatched = 0;
+    private long lastIdleSweepNanos;
+
+    public ClientFairQueue(Executor updateQueue, LongFunction<ClientQuota> quotas, SystemClock clock) {
+        this(updateQueue, quotas, clock, DEFAULT_QUANTUM_BYTES, 1);
+    }
+
+    public ClientFairQueue(Executor updateQueue, LongFunction<ClientQuota> quotas, SystemClock clock, long quantumBytes, int maxDispatched) {
+        this.updateQueue = updateQueue;
+        this.quotas = quotas;
+        this.clock = clock;
+        this.quantumBytes = quantumBytes;
+        this.maxDispatched = maxDispatched;
+        this.lastIdleSweepNanos = clock.nanoTime();
+    }
+
+    /**
+     * Admits a request of the client, or returns the reason it is rejected.
+     * An admitted request is counted against the concurrency quota of the client till requestCompleted is called.
+     */
+    public synchronized Optional<String> admit(long clientId) {
+        ClientState client = clientState(clientId);
+        ClientQuota quota = client.quota;
+        if (client.inFlight >= quota.maxConcurrentRequests()) {
+            client.rejectedForConcurrency++;
+            return Optional.of("client " + clientId + " has " + client.inFlight + " requests in flight, quota is " + quota.maxConcurrentRequests());
+        }
+        if (quota.isRateLimited() && !client.tryTakeToken(clock.nanoTime())) {
+            client.rejectedForRate++;
+            return Optional.of("client " + clientId + " exceeded quota of " + quota.requestsPerSecond() + " requests per second");
+        }
+        client.inFlight++;
+        client.admitted++;
+        return Optional.empty();
+    }
+
+    public synchronized void requestCompleted(long clientId) {
+        ClientState client = clients.get(clientId);
+        if (client == null) {
+            return;
+        }
+        client.inFlight--;
+        if (client.isIdle(clock.nanoTime())) {
+            clients.remove(clientId);
+        }
+    }
+
+    //The task is executed on the update queue, in the turn of the client.
+    //onRejected is run instead, if the update queue is shut down before the turn comes.
+    public void enqueue(long clientId, long sizeInBytes, Runnable task, Runnable onRejected) {
+        synchronized (this) {
+            ClientState client = clientState(clientId);
+            if (client.queue.isEmpty()) {
+                activeClients.add(client);
+            }
+            client.queue.add(new QueuedRequest(task, onRejected, sizeInBytes));
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            QueuedRequest next;
+            synchronized (this) {
+                if (dispatched >= maxDispatched) {
+                    return;
+                }
+                next = nextRequest();
+                if (next == null) {
+                    return;
+                }
+                dispatched++;
+            }
+            try {
+                updateQueue.execute(() -> {
+                    try {
+                        next.task.run();
+                    } finally {
+                        dispatchedRequestExecuted();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //the rest of the queued requests are rejected in the next iterations.
+                logger.warn("Update queue is shutdown, rejecting client request");
+                synchronized (this) {
+                    dispatched--;
+                }
+                next.onRejected.run();
+            }
+        }
+    }
+
+    private void dispatchedRequestExecuted() {
+        synchronized (this) {
+            dispatched--;
+        }
+        dispatch();
+    }
+
+    //Deficit round robin.
+    //The quantum is added to the deficit of a client once at the start of its turn.
+    //The turn lasts till its next request does not fit in the deficit.
+    private QueuedRequest nextRequest() {
+        while (!activeClients.isEmpty()) {
+            ClientState client = activeClients.peek();
+            if (!client.inTurn) {
+                client.deficit += quantumBytes;
+                client.inTurn = true;
+            }
+            QueuedRequest head = client.queue.peek();
+            if (head.sizeInBytes <= client.deficit) {
+                client.queue.poll();
+                client.deficit -= head.sizeInBytes;
+                if (client.queue.isEmpty()) {
+                    //an idle client does not accumulate credit.
+                    client.deficit = 0;
+                    client.inTurn = false;
+                    activeClients.poll();
+                }
+                return head;
+            }
+            client.inTurn = false;
+            activeClients.add(activeClients.poll());
+        }
+        return null;
+    }
+
+    private ClientState clientState(long clientId) {
+        ClientState client = clients.get(clientId);
+        if (client == null) {
+            long now = clock.nanoTime();
+            removeIdleClients(now);
+            client = new ClientState(quotas.apply(clientId), now);
+            clients.put(clientId, client);
+        }
+        return client;
+    }
+
+    //Clients of a rate quota are not idle when their last request completes, till their tokens refill.
+    //They are removed when a new client is added, at most once every IDLE_SWEEP_INTERVAL_NANOS,
+    //so the clients are not all checked for every new client.
+    private void removeIdleClients(long nowNanos) {
+        if (nowNanos - lastIdleSweepNanos < IDLE_SWEEP_INTERVAL_NANOS) {
+            return;
+        }
+        lastIdleSweepNanos = nowNanos;
+        clients.values().removeIf(client -> client.isIdle(nowNanos));
+    }
+
+    synchronized int getTrackedClients() {
+        return clients.size();
+    }
+
+    public synchronized ClientStats getClientStats(long clientId) {
+        ClientState client = clients.get(clientId);
+        if (client == null) {
+            return new ClientStats(0, 0, 0, 0, 0);
+        }
+        return new ClientStats(client.admitted, client.rejectedForRate, client.rejectedForConcurrency, client.inFlight, client.queue.size());
+    }
+
+    public synchronized int getQueuedRequests() {
+        return activeClients.stream().mapToInt(client -> client.queue.size()).sum();
+    }
+
+    public record ClientStats(long admitted, long rejectedForRate, long rejectedForConcurrency, int inFlight, int queued) {
+    }
+
+    private record QueuedRequest(Runnable task, Runnable onRejected, long sizeInBytes) {
+    }
+
+    private static class ClientState {
+        final ClientQuota quota;
+        final ArrayDeque<QueuedRequest> queue = new ArrayDeque<>();
+        long deficit = 0;
+        boolean inTurn = false;
+        int inFlight = 0;
+        //token bucket for the rate quota, holding up to a second worth of requests.
+        double tokens;
+        long lastRefillNanos;
+        long admitted = 0;
+        long rejectedForRate = 0;
+        long rejectedForConcurrency = 0;
+
+        ClientState(ClientQuota quota, long nowNanos) {
+            this.quota = quota;
+            this.tokens = maxTokens();
+            this.lastRefillNanos = nowNanos;
+        }
+
+        private double maxTokens() {
+            return Math.max(1, quota.requestsPerSecond());
+        }
+
+        boolean isIdle(long nowNanos) {
+            if (!queue.isEmpty() || inFlight > 0) {
+                return false;
+            }
+            if (!quota.isRateLimited()) {
+                return true;
+            }
+            refill(nowNanos);
+            return tokens >= maxTokens();
+        }
+
+        private void refill(long nowNanos) {
+            double elapsedSeconds = (nowNanos - lastRefillNanos) / 1_000_000_000.0;
+            tokens = Math.min(maxTokens(), tokens + elapsedSeconds * quota.requestsPerSecond());
+            lastRefillNanos = nowNanos;
+        }
+
+        boolean tryTakeToken(long nowNanos) {
+            refill(nowNanos);
+            if (tokens >= 1) {
+                tokens = tokens - 1;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package replicate.common;
+
+/**
+ * Limits on the requests of a single client.
+ * requestsPerSecond is the sustained rate, with bursts of up to a second worth of requests.
+ * maxConcurrentRequests is the number of requests of the client in flight at a time.
+ */
+public record ClientQuota(double requestsPerSecond, int maxConcurrentRequests) {
+    public static final ClientQuota UNLIMITED = new ClientQuota(Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+
+    public boolean isRateLimited() {
+        return requestsPerSecond != Double.POSITIVE_INFINITY;
+    }
+}
@@ -3,7 +3,9 @@ package replicate.common;
 import java.io.File;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class Config {
@@ -18,6 +20,43 @@ public class Config {
     private long followerTimeoutMs = 5000l;
     private boolean supportLogGroup = false;
     private boolean doAsyncRepair = false;
+    //Admission control of client requests. Not limited by default.
+    private int maxQueuedRequests = Integer.MAX_VALUE;
+    private int maxInFlightClientRequests = Integer.MAX_VALUE;
+    private long maxQueueingDelayMs = Long.MAX_VALUE;
+    //Bounds of the timeouts for requests to peers, derived from round trip times.
+    //Until a peer has answered, requests to it wait for the earlier fixed timeout of a second.
+    //Once its round trip times are known, requests to it fail as fast as the floor.
+    private long minRequestTimeoutMs = 200;
+    private long maxRequestTimeoutMs = 5000;
+    //Exponential backoff for retrying consensus rounds.
+    private long retryBaseDelayMs = 50;
+    private long retryMaxDelayMs = 800;
+    //Token bucket limiting the rate of retries of a replica.
+    private double retriesPerSecond = 10;
+    private int maxRetryBurst = 50;
+    //Memory held by in-flight requests, buffers and in-memory logs of a replica.
+    //New client requests are rejected once the budget is exhausted.
+    private long maxMemoryBytes = 256 * 1024 * 1024;
+    //Quotas of client requests, by clientId. Clients are not limited by default.
+    private Map<Long, ClientQuota> clientQuotas = new HashMap<>();
+    private ClientQuota defaultClientQuota = ClientQuota.UNLIMITED;
+    //Bandwidth to each peer, shared by foreground and background traffic. Not limited by default.
+    private long peerBytesPerSecond = Long.MAX_VALUE;
+    private double backgroundBandwidthShare = 0.2;
+    private double traceSampleRate = 0;
+    private int traceBufferSize = 1024;
+    private long diagnosticsTimeoutMs = 500;
+    //Bounds and latency target of adaptive batching. @see replicate.singularupdatequeue.AdaptiveBatcher
+    private int maxBatchSize = 256;
+    private Duration maxBatchWaitTime = Duration.ofMillis(1);
+    private Duration batchTargetLatency = Duration.ofMillis(5);
+    //Group commit of WAL appends, each batch forced to the disk once. Off by default, every append is forced on its own.
+    private boolean walGroupCommit = false;
+    private long walGroupCommitMaxBatchBytes = 1024 * 1024;
+    private Duration walGroupCommitMaxWait = Duration.ZERO;
+    private boolean walAdaptiveGroupCommit = false;
+    private boolean mmapSegments = false;
 
     public Config(String walDir) {
         this.walDir = walDir;
@@ -139,9 +178,9 @@ public class Config {
         return 2000;
     }
 
+    //In nanoseconds.
     public long getMaxBatchWaitTime() {
-        return Duration.ofMillis(1).toNanos();
-
+        return maxBatchWaitTime.toNanos();
     }
 
     public void setAsyncReadRepair() {
@@ -155,4 +194,203 @@ public class Config {
     public void setServerId(Integer serverId) {
         this.serverId = serverId;
     }
+
+    public Config withMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public Config withMaxInFlightClientRequests(int maxInFlightClientRequests) {
+        this.maxInFlightClientRequests = maxInFlightClientRequests;
+        return this;
+    }
+
+    public int getMaxInFlightClientRequests() {
+        return maxInFlightClientRequests;
+    }
+
+    public Config withMaxQueueingDelayMs(long maxQueueingDelayMs) {
+        this.maxQueueingDelayMs = maxQueueingDelayMs;
+        return this;
+    }
+
+    public long getMaxQueueingDelayMs() {
+        return maxQueueingDelayMs;
+    }
+
+    public Config withRequestTimeoutBoundsMs(long minRequestTimeoutMs, long maxRequestTimeoutMs) {
+        if (minRequestTimeoutMs < 1 || maxRequestTimeoutMs < minRequestTimeoutMs) {
+            throw new IllegalArgumentException("Request timeout bounds should be at least 1ms, with the floor not above the ceiling, " +
+                    "but were " + minRequestTimeoutMs + "ms and " + maxRequestTimeoutMs + "ms");
+        }
+        this.minRequestTimeoutMs = minRequestTimeoutMs;
+        this.maxRequestTimeoutMs = maxRequestTimeoutMs;
+        return this;
+    }
+
+    public long getMinRequestTimeoutMs() {
+        return minRequestTimeoutMs;
+    }
+
+    public long getMaxRequestTimeoutMs() {
+        return maxRequestTimeoutMs;
+    }
+
+    public Config withRetryBackoffMs(long retryBaseDelayMs, long retryMaxDelayMs) {
+        this.retryBaseDelayMs = retryBaseDelayMs;
+        this.retryMaxDelayMs = retryMaxDelayMs;
+        return this;
+    }
+
+    public Duration getRetryBaseDelay() {
+        return Duration.ofMillis(retryBaseDelayMs);
+    }
+
+    public Duration getRetryMaxDelay() {
+        return Duration.ofMillis(retryMaxDelayMs);
+    }
+
+    public Config withRetryBudget(double retriesPerSecond, int maxRetryBurst) {
+        this.retriesPerSecond = retriesPerSecond;
+        this.maxRetryBurst = maxRetryBurst;
+        return this;
+    }
+
+    public double getRetriesPerSecond() {
+        return retriesPerSecond;
+    }
+
+    public int getMaxRetryBurst() {
+        return maxRetryBurst;
+    }
+
+    public Config withMemoryBudget(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        return this;
+    }
+
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public Config withClientQuota(long clientId, double requestsPerSecond, int maxConcurrentRequests) {
+        this.clientQuotas.put(clientId, new ClientQuota(requestsPerSecond, maxConcurrentRequests));
+        return this;
+    }
+
+    //quota of the clients without a quota of their own.
+    public Config withDefaultClientQuota(double requestsPerSecond, int maxConcurrentRequests) {
+        this.defaultClientQuota = new ClientQuota(requestsPerSecond, maxConcurrentRequests);
+        return this;
+    }
+
+    public ClientQuota getClientQuota(long clientId) {
+        return clientQuotas.getOrDefault(clientId, defaultClientQuota);
+    }
+
+    //backgroundShare is the fraction of the bandwidth background traffic is guaranteed under foreground load.
+    public Config withPeerBandwidth(long peerBytesPerSecond, double backgroundShare) {
+        this.peerBytesPerSecond = peerBytesPerSecond;
+        this.backgroundBandwidthShare = backgroundShare;
+        return this;
+    }
+
+    public long getPeerBytesPerSecond() {
+        return peerBytesPerSecond;
+    }
+
+    public double getBackgroundBandwidthShare() {
+        return backgroundBandwidthShare;
+    }
+
+    //sampleRate is the fraction of client requests traced, bufferSize the number of recent traces kept.
+    public Config withTracing(double sampleRate, int bufferSize) {
+        this.traceSampleRate = sampleRate;
+        this.traceBufferSize = bufferSize;
+        return this;
+    }
+
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public int getTraceBufferSize() {
+        return traceBufferSize;
+    }
+
+    //The time a diagnostics request waits for the update queue to describe the consensus state.
+    public Config withDiagnosticsTimeoutMs(long diagnosticsTimeoutMs) {
+        this.diagnosticsTimeoutMs = diagnosticsTimeoutMs;
+        return this;
+    }
+
+    public long getDiagnosticsTimeoutMs() {
+        return diagnosticsTimeoutMs;
+    }
+
+    //Batches grow up to maxBatchSize items, and wait up to maxBatchWaitTime to fill,
+    //while items are flushed within the targetLatency.
+    public Config withBatching(int maxBatchSize, Duration maxBatchWaitTime, Duration targetLatency) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchWaitTime = maxBatchWaitTime;
+        this.batchTargetLatency = targetLatency;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    //In nanoseconds.
+    public long getBatchTargetLatency() {
+        return batchTargetLatency.toNanos();
+    }
+
+    //A batch is forced once it holds maxBatchBytes, or maxWait after its first append.
+    //With no wait, the batch has the appends queued while the previous one was forced.
+    public Config withWalGroupCommit(long maxBatchBytes, Duration maxWait) {
+        this.walGroupCommit = true;
+        this.walGroupCommitMaxBatchBytes = maxBatchBytes;
+        this.walGroupCommitMaxWait = maxWait;
+        return this;
+    }
+
+    //Group commit with the batches collected by an AdaptiveBatcher, within the bounds set withBatching,
+    //instead of a fixed maxBatchBytes and wait.
+    public Config withAdaptiveWalGroupCommit() {
+        this.walGroupCommit = true;
+        this.walAdaptiveGroupCommit = true;
+        return this;
+    }
+
+    public boolean isWalGroupCommit() {
+        return walGroupCommit;
+    }
+
+    public boolean isWalAdaptiveGroupCommit() {
+        return walAdaptiveGroupCommit;
+    }
+
+    public long getWalGroupCommitMaxBatchBytes() {
+        return walGroupCommitMaxBatchBytes;
+    }
+
+    //In nanoseconds.
+    public long getWalGroupCommitMaxWait() {
+        return walGroupCommitMaxWait.toNanos();
+    }
+
+    //WAL segments are preallocated to the max log size, which must then be at most 2GB, and mapped in memory.
+    public Config withMmapSegments() {
+        this.mmapSegments = true;
+        return this;
+    }
+
+    public boolean isMmapSegments() {
+        return mmapSegments;
+    }
 }
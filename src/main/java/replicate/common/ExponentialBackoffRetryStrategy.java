@@ -0,0 +1,56 @@
+package replicate.common;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries with exponentially growing delays, with full jitter.
+ * The delay before the nth retry is a random duration between 0 and min(maxDelay, baseDelay * 2^n).
+ * Randomizing the whole delay spreads the retries of competing proposers,
+ * so they are less likely to keep pre-empting each other (duelling proposers).
+ */
+public class ExponentialBackoffRetryStrategy implements RetryStrategy {
+    private final int remainingRetries;
+    private final int attempt;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+
+    public ExponentialBackoffRetryStrategy(int remainingRetries, Duration baseDelay, Duration maxDelay) {
+        this(remainingRetries, 0, baseDelay, maxDelay);
+    }
+
+    private ExponentialBackoffRetryStrategy(int remainingRetries, int attempt, Duration baseDelay, Duration maxDelay) {
+        this.remainingRetries = remainingRetries;
+        this.attempt = attempt;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public int getNumRemainingRetries() {
+        return remainingRetries;
+    }
+
+    @Override
+    public Duration getRetryDelay() {
+        long maxDelayNanos = getMaxRetryDelay().toNanos();
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(maxDelayNanos + 1));
+    }
+
+    //upper bound of the random delay for this retry.
+    public Duration getMaxRetryDelay() {
+        long delayNanos = baseDelay.toNanos();
+        for (int i = 0; i < attempt && delayNanos < maxDelay.toNanos(); i++) {
+            delayNanos = delayNanos * 2;
+        }
+        return Duration.ofNanos(Math.min(delayNanos, maxDelay.toNanos()));
+    }
+
+    @Override
+    public RetryStrategy getNextRetryStrategy() {
+        if (remainingRetries <= 0) {
+            throw new IllegalStateException("No retries remaining");
+        }
+        return new ExponentialBackoffRetryStrategy(remainingRetries - 1, attempt + 1, baseDelay, maxDelay);
+    }
+}
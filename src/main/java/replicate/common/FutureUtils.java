@@ -89,6 +89,90 @@ public class FutureUtils {
         }
     }
 
+    /**
+     * Retry the given operation with the delays given by the retry strategy, as long as the
+     * retry budget allows.
+     *
+     * @param operation to retry
+     * @param retryStrategy number of retries and the delay before each of them
+     * @param retryBudget shared by the operations, limiting the rate of retries
+     * @param scheduledExecutor executor to be used for the retry operation
+     * @param <T> type of the result
+     * @return Future which retries the given operation till it succeeds, the retries
+     *     are exhausted or the retry budget is spent.
+     */
+    public static <T> CompletableFuture<T> retryWithDelay(
+            final Supplier<CompletableFuture<T>> operation,
+            final RetryStrategy retryStrategy,
+            final RetryBudget retryBudget,
+            final ScheduledExecutorService scheduledExecutor) {
+
+        final CompletableFuture<T> resultFuture = new CompletableFuture<>();
+
+        retryOperationWithDelay(resultFuture, operation, retryStrategy, retryBudget, scheduledExecutor);
+
+        return resultFuture;
+    }
+
+    private static <T> void retryOperationWithDelay(
+            final CompletableFuture<T> resultFuture,
+            final Supplier<CompletableFuture<T>> operation,
+            final RetryStrategy retryStrategy,
+            final RetryBudget retryBudget,
+            final ScheduledExecutorService scheduledExecutor) {
+        if (resultFuture.isDone()) {
+            return;
+        }
+        final CompletableFuture<T> operationResultFuture = operation.get();
+        operationResultFuture.whenComplete(
+                (t, throwable) -> {
+                    if (throwable == null) {
+                        resultFuture.complete(t);
+                        return;
+                    }
+                    logger.info("Attempt failed with " + throwable);
+                    if (unwrap(throwable) instanceof CancellationException) {
+                        resultFuture.completeExceptionally(
+                                new RetryException("Operation future was cancelled.", throwable));
+
+                    } else if (retryStrategy.getNumRemainingRetries() <= 0) {
+                        resultFuture.completeExceptionally(
+                                new RetryException("Could not complete the operation. Number of retries has been exhausted.", throwable));
+
+                    } else if (!retryBudget.tryAcquire()) {
+                        resultFuture.completeExceptionally(
+                                new RetryException("Could not complete the operation. Retry budget is exhausted.", throwable));
+
+                    } else {
+                        long retryDelayNanos = retryStrategy.getRetryDelay().toNanos();
+                        final ScheduledFuture<?> scheduledFuture =
+                                scheduledExecutor.schedule(
+                                        (Runnable) () -> retryOperationWithDelay(
+                                                resultFuture,
+                                                operation,
+                                                retryStrategy.getNextRetryStrategy(),
+                                                retryBudget,
+                                                scheduledExecutor),
+                                        retryDelayNanos,
+                                        TimeUnit.NANOSECONDS);
+
+                        resultFuture.whenComplete(
+                                (innerT, innerThrowable) -> scheduledFuture.cancel(false));
+                    }
+                });
+
+        resultFuture.whenComplete((t, throwable) -> operationResultFuture.cancel(false));
+    }
+
+    //A future composed from a cancelled one fails with the CancellationException wrapped in a CompletionException.
+    private static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
     public static class RetryException extends Exception {
 
         private static final long serialVersionUID = 3613470781274141862L;
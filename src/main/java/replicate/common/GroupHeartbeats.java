@@ -0,0 +1,16 @@
+package replicate.common;
+
+import java.util.List;
+
+/**
+ * Heartbeats of all the replication groups, sent to a peer node as a single message.
+ * @see ReplicaGroupHost
+ */
+public class GroupHeartbeats extends MessagePayload {
+    public final List<RequestOrResponse> heartbeats;
+
+    public GroupHeartbeats(List<RequestOrResponse> heartbeats) {
+        super(MessageId.GroupHeartbeats);
+        this.heartbeats = heartbeats;
+    }
+}
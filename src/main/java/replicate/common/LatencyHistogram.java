@@ -0,0 +1,105 @@
+package replicate.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, with log-linear buckets like HdrHistogram.
+ * Values below 16 have a bucket each. Every power of two above that is split in 16 linear
+ * sub-buckets, so a percentile is reported within 1/16th (~6%) of the recorded value,
+ * over the whole range of a long, with 976 buckets.
+ *
+ *  [0][1]..[15] | [16][17]..[31] | [32,33]..[62,63] | [64..67]..[124..127] | ...
+ *
+ * Recording is a couple of atomic increments, so it can be done on the hot path
+ * by many threads concurrently. Snapshots read the buckets without stopping
+ * the writers, so the counts in a snapshot might be off by the values recorded meanwhile.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long valueNanos) {
+        long value = Math.max(0, valueNanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    //Middle of the range of values counted in the bucket.
+    static long bucketValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        long minValue = min.get();
+        long maxValue = max.get();
+        return new Snapshot(total,
+                minValue,
+                sum.sum() / Math.max(1, count.sum()),
+                percentile(counts, total, 0.5, minValue, maxValue),
+                percentile(counts, total, 0.9, minValue, maxValue),
+                percentile(counts, total, 0.99, minValue, maxValue),
+                percentile(counts, total, 0.999, minValue, maxValue),
+                maxValue);
+    }
+
+    //Clamped to the recorded min and max, which are exact.
+    private static long percentile(long[] counts, long total, double percentile, long minValue, long maxValue) {
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(maxValue, Math.max(minValue, bucketValue(i)));
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Latencies in nanoseconds.
+     */
+    public record Snapshot(long count, long min, long mean, long p50, long p90, long p99, long p999, long max) {
+    }
+}
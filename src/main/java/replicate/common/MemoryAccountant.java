@@ -0,0 +1,85 @@
+package replicate.common;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the memory held by a replica, against a single budget for the replica.
+ * Components reserve the (estimated) bytes of the buffers and entries they hold,
+ * and release them once the memory is no longer needed.
+ *
+ *  - PENDING_REQUESTS: client requests in flight and the RequestWaitingList entries waiting for responses.
+ *  - OUTGOING_BUFFERS: responses waiting to be written to client connections.
+ *  - DELAYED_SENDS: messages held by the Network before they are sent.
+ *  - CONSENSUS_LOG: entries of the in-memory logs of the consensus implementations.
+ *
+ * Memory already held can not be refused, so reserve always succeeds, even over the budget.
+ * The budget is enforced at the edge instead. New client requests are rejected at once
+ * while the usage is at or over the budget, and are admitted again once memory is released.
+ * @see AdmissionController
+ */
+public class MemoryAccountant {
+    //Rough size of the objects holding an entry or a request, in addition to its payload.
+    public static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    public enum Component {
+        PENDING_REQUESTS, OUTGOING_BUFFERS, DELAYED_SENDS, CONSENSUS_LOG
+    }
+
+    private final long budgetBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final Map<Component, AtomicLong> usedBytesByComponent = new EnumMap<>(Component.class);
+
+    public MemoryAccountant(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        for (Component component : Component.values()) {
+            usedBytesByComponent.put(component, new AtomicLong());
+        }
+    }
+
+    public static MemoryAccountant unbounded() {
+        return new MemoryAccountant(Long.MAX_VALUE);
+    }
+
+    public void reserve(Component component, long bytes) {
+        usedBytesByComponent.get(component).addAndGet(bytes);
+        usedBytes.addAndGet(bytes);
+    }
+
+    public void release(Component component, long bytes) {
+        usedBytesByComponent.get(component).addAndGet(-bytes);
+        usedBytes.addAndGet(-bytes);
+    }
+
+    public boolean isExhausted() {
+        return usedBytes.get() >= budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getUsedBytes(Component component) {
+        return usedBytesByComponent.get(component).get();
+    }
+
+    public Map<Component, Long> getUsageByComponent() {
+        Map<Component, Long> usage = new EnumMap<>(Component.class);
+        usedBytesByComponent.forEach((component, used) -> usage.put(component, used.get()));
+        return usage;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryAccountant{" +
+                "usedBytes=" + getUsedBytes() +
+                ", budgetBytes=" + budgetBytes +
+                ", usage=" + getUsageByComponent() +
+                '}';
+    }
+}
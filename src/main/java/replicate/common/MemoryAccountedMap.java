@@ -0,0 +1,74 @@
+package replicate.common;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * Map holding the entries of an in-memory log, which reserves the estimated size
+ * of every entry put in the map with the MemoryAccountant, and releases it when the entry
+ * is replaced or removed.
+ * The entries can only be updated through put and remove, the views of the map are read only.
+ */
+public class MemoryAccountedMap<K, V> extends AbstractMap<K, V> {
+    private final Map<K, V> entries;
+    private final MemoryAccountant memoryAccountant;
+    private final MemoryAccountant.Component component;
+    private final ToLongFunction<V> sizeInBytes;
+
+    public MemoryAccountedMap(Map<K, V> entries, MemoryAccountant memoryAccountant, MemoryAccountant.Component component, ToLongFunction<V> sizeInBytes) {
+        this.entries = entries;
+        this.memoryAccountant = memoryAccountant;
+        this.component = component;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        memoryAccountant.reserve(component, sizeInBytes.applyAsLong(value));
+        V previous = entries.put(key, value);
+        if (previous != null) {
+            memoryAccountant.release(component, sizeInBytes.applyAsLong(previous));
+        }
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        V previous = entries.remove(key);
+        if (previous != null) {
+            memoryAccountant.release(component, sizeInBytes.applyAsLong(previous));
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (V value : entries.values()) {
+            memoryAccountant.release(component, sizeInBytes.applyAsLong(value));
+        }
+        entries.clear();
+    }
+
+    @Override
+    public V get(Object key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+}
@@ -56,7 +56,10 @@ public enum MessageId {
     ExcuteCommandResponse(49),
     SetValue(50),
     PrepareOK(51),
-    PrepareNAK(52), StartViewChange(53), DoViewChange(54), StartView(55);
+    PrepareNAK(52), StartViewChange(53), DoViewChange(54), StartView(55),
+    GroupHeartbeats(56),
+    DiagnosticsRequest(57),
+    DiagnosticsResponse(58);
 
     public static MessageId valueOf(Integer id) {
         return map.get(id);
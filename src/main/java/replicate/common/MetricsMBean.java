@@ -0,0 +1,86 @@
+package replicate.common;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes a MetricsRegistry over JMX. Metrics are created as they are first used,
+ * so the attributes are read from a fresh snapshot on every call.
+ * Every counter and gauge is a Long attribute. Every histogram is a set of Long attributes,
+ * [name].count, [name].p99 etc., with latencies in nanoseconds.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    private Map<String, Long> attributes() {
+        MetricsRegistry.Snapshot snapshot = registry.snapshot();
+        Map<String, Long> attributes = new LinkedHashMap<>();
+        attributes.putAll(snapshot.counters());
+        attributes.putAll(snapshot.gauges());
+        snapshot.histograms().forEach((name, histogram) -> {
+            attributes.put(name + ".count", histogram.count());
+            attributes.put(name + ".min", histogram.min());
+            attributes.put(name + ".mean", histogram.mean());
+            attributes.put(name + ".p50", histogram.p50());
+            attributes.put(name + ".p90", histogram.p90());
+            attributes.put(name + ".p99", histogram.p99());
+            attributes.put(name + ".p999", histogram.p999());
+            attributes.put(name + ".max", histogram.max());
+        });
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Long> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Long value = attributes.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (String name : attributes().keySet()) {
+            attributeInfos.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(MetricsRegistry.class.getName(), "Replica metrics",
+                attributeInfos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
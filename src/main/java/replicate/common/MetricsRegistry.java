@@ -0,0 +1,145 @@
+package replicate.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a replica.
+ *
+ * Metrics are created on first use, and are looked up by name and an optional tag,
+ * typically the MessageId or the peer address, so that e.g. the latency of quorum rounds
+ * is kept for each phase separately. Lookups and updates are lock free, so they
+ * can be done on the update queue and the network threads.
+ *
+ *  metrics.histogram("quorum.latency", MessageId.Prepare).recordSince(startNanos);
+ *  metrics.counter("network.bytesOut", peerAddress).add(bytes);
+ *  metrics.gauge("memory.usedBytes", memoryAccountant::getUsedBytes);
+ *
+ * Components which already keep their own counters are exposed as gauges, and
+ * components which keep their own histograms, like the WriteAheadLog, register them.
+ *
+ * The metrics can be read with snapshot(), or scraped over JMX once registerMBean is called.
+ * @see MetricsMBean
+ */
+public class MetricsRegistry {
+    private static Logger logger = LogManager.getLogger(MetricsRegistry.class);
+
+    private final Map<MetricName, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<MetricName, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<MetricName, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private volatile ObjectName registeredName;
+
+    public LongAdder counter(String name) {
+        return counter(name, null);
+    }
+
+    public LongAdder counter(String name, Object tag) {
+        return counters.computeIfAbsent(new MetricName(name, tag), n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauge(name, null, value);
+    }
+
+    public void gauge(String name, Object tag, LongSupplier value) {
+        gauges.put(new MetricName(name, tag), value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histogram(name, null);
+    }
+
+    public LatencyHistogram histogram(String name, Object tag) {
+        return histograms.computeIfAbsent(new MetricName(name, tag), n -> new LatencyHistogram());
+    }
+
+    //For histograms kept by the components themselves.
+    public void register(String name, Object tag, LatencyHistogram histogram) {
+        histograms.put(new MetricName(name, tag), histogram);
+    }
+
+    public Snapshot snapshot() {
+        SortedMap<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name.toString(), counter.sum()));
+        SortedMap<String, Long> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name.toString(), readGauge(name, gauge)));
+        SortedMap<String, LatencyHistogram.Snapshot> histogramValues = new TreeMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name.toString(), histogram.snapshot()));
+        return new Snapshot(counterValues, gaugeValues, histogramValues);
+    }
+
+    //A failing gauge should not fail the whole snapshot.
+    private static long readGauge(MetricName name, LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to read gauge " + name, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBeanServer, as replicate:type=Replica,name=[name].
+     * Replicas started again with the same name, as in tests, replace the earlier registration.
+     */
+    public synchronized void registerMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName("replicate:type=Replica,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new MetricsMBean(this), objectName);
+            registeredName = objectName;
+        } catch (JMException e) {
+            logger.error("Unable to register metrics of " + name + " with JMX", e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (InstanceNotFoundException e) {
+            //replaced by a replica with the same name.
+        } catch (JMException e) {
+            logger.error("Unable to unregister metrics " + registeredName, e);
+        }
+        registeredName = null;
+    }
+
+    public record Snapshot(SortedMap<String, Long> counters,
+                           SortedMap<String, Long> gauges,
+                           SortedMap<String, LatencyHistogram.Snapshot> histograms) {
+
+        public long counter(String name) {
+            return counters.getOrDefault(name, 0L);
+        }
+
+        public long gauge(String name) {
+            return gauges.getOrDefault(name, 0L);
+        }
+
+        public LatencyHistogram.Snapshot histogram(String name) {
+            return histograms.get(name);
+        }
+    }
+
+    private record MetricName(String name, Object tag) {
+        @Override
+        public String toString() {
+            return tag == null ? name : name + "." + tag;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package replicate.common;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import replicate.net.BandwidthScheduler;
+import replicate.net.BandwidthScheduler.TrafficClass;
 import replicate.net.InetAddressAndPort;
 import replicate.net.SocketClient;
+import replicate.jfr.MessageSentEvent;
 import replicate.quorum.QuorumKVStore;
 
 import java.io.IOException;
@@ -25,7 +28,29 @@ class Network {
             new HashMap<>();
 
     ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+    //delayed messages are held in memory till they are sent.
+    private final MemoryAccountant memoryAccountant;
+    //throttles background messages to each peer.
+    private final BandwidthScheduler bandwidthScheduler;
+
+    Network() {
+        this(MemoryAccountant.unbounded(), Long.MAX_VALUE, 0);
+    }
+
+    Network(MemoryAccountant memoryAccountant, long peerBytesPerSecond, double backgroundShare) {
+        this.memoryAccountant = memoryAccountant;
+        this.bandwidthScheduler = new BandwidthScheduler(peerBytesPerSecond, backgroundShare, this::sendMessage, executor, memoryAccountant);
+    }
+
+    Network(MemoryAccountant memoryAccountant, Config config) {
+        this(memoryAccountant, config.getPeerBytesPerSecond(), config.getBackgroundBandwidthShare());
+    }
+
     public void sendOneWay(InetAddressAndPort address, RequestOrResponse message) throws IOException {
+        sendOneWay(address, message, TrafficClass.FOREGROUND);
+    }
+
+    public void sendOneWay(InetAddressAndPort address, RequestOrResponse message, TrafficClass trafficClass) throws IOException {
         if (dropRequestsTo.contains(address) || noOfMessagesReachedLimit(address)) {
             removeExistingConnections(address);
             throw new IOException("Unable to connect to " + address);
@@ -42,7 +67,11 @@ class Network {
         }
         logger.info("Sending " + MessageId.valueOf(message.getRequestId()) +
                 " to " + address);
-        sendMessage(address, message);
+        bandwidthScheduler.send(address, message, trafficClass);
+    }
+
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
     }
 
     private boolean shouldDelayMessagesOfType(InetAddressAndPort address, MessageId messageId) {
@@ -51,7 +80,7 @@ class Network {
         return ids.contains(messageId);
     }
 
-    private void removeExistingConnections(InetAddressAndPort address) {
+    private synchronized void removeExistingConnections(InetAddressAndPort address) {
         SocketClient socketClient = connectionPool.remove(address);
         if (socketClient != null) {
             socketClient.close();
@@ -61,6 +90,8 @@ class Network {
     private void sendAfterDelay(InetAddressAndPort address,
                                 RequestOrResponse message,
                                 long delay) {
+        long messageBytes = MemoryAccountant.ENTRY_OVERHEAD_BYTES + message.getMessageBodyJson().length;
+        memoryAccountant.reserve(MemoryAccountant.Component.DELAYED_SENDS, messageBytes);
         executor.schedule(()->{
             try {
                 logger.info("Sending delayed message "
@@ -70,6 +101,8 @@ class Network {
                 sendMessage(address, message);
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                memoryAccountant.release(MemoryAccountant.Component.DELAYED_SENDS, messageBytes);
             }
         }, delay, TimeUnit.MILLISECONDS);
     }
@@ -85,9 +118,28 @@ class Network {
 
     Map<InetAddressAndPort, SocketClient> connectionPool = new HashMap<>();
 
+    //A single connection is kept to each peer, so that messages are received in the order they are sent.
+    //Writes are serialized per connection, so that frames sent from different threads do not interleave.
     private void sendMessage(InetAddressAndPort address, RequestOrResponse message) throws IOException {
         SocketClient socketClient = getOrCreateConnection(address);
-        socketClient.sendOneway(message);
+        var event = new MessageSentEvent();
+        event.begin();
+        try {
+            synchronized (socketClient) {
+                socketClient.sendOneway(message);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.messageId = String.valueOf(MessageId.valueOf(message.getRequestId()));
+                event.peer = address.toString();
+                event.size = message.getMessageBodyJson().length;
+                event.correlationId = message.getCorrelationId();
+                event.commit();
+            }
+        } catch (RuntimeException e) {
+            removeExistingConnections(address);
+            throw new IOException("Unable to send to " + address, e);
+        }
         Integer integer = noOfMessages.get(address);
         if (integer == null) {
             integer = 0;
@@ -108,7 +160,7 @@ class Network {
 
     private synchronized SocketClient getOrCreateConnection(InetAddressAndPort address) throws IOException {
         SocketClient socketClient = connectionPool.get(address);
-        if (socketClient == null || !socketClient.isClosed()) {
+        if (socketClient == null || socketClient.isClosed()) {
             socketClient = new SocketClient(address);
             connectionPool.put(address, socketClient);
         }
@@ -151,7 +203,7 @@ class Network {
         delayMessageTypes.put(peerConnectionAddress, messageIds);
     }
 
-    public void closeAllConnections() {
+    public synchronized void closeAllConnections() {
         Set<InetAddressAndPort> inetAddressAndPorts = connectionPool.keySet();
         for (InetAddressAndPort inetAddressAndPort : inetAddressAndPorts) {
             connectionPool.get(inetAddressAndPort).close();
@@ -2,11 +2,40 @@ package replicate.common;
 
 import replicate.net.InetAddressAndPort;
 import replicate.net.SocketClient;
+import replicate.wal.Command;
 
 import java.io.IOException;
 import java.util.Optional;
 
 public class NetworkClient {
+    //identifies the client to the replicas, for fair sharing and quotas.
+    private final long clientId;
+    //requests are traced on the replicas if set. @see Tracer
+    private long traceId = 0;
+    //the replicas stop working on the request once the client stops waiting for it.
+    private long timeoutMs = SocketClient.READ_TIMEOUT_MS;
+
+    public NetworkClient() {
+        this(Command.NO_CLIENT_ID);
+    }
+
+    public NetworkClient(long clientId) {
+        this.clientId = clientId;
+    }
+
+    //The requests sent after this are traced by the replicas with the traceId.
+    public NetworkClient withTraceId(long traceId) {
+        this.traceId = traceId;
+        return this;
+    }
+
+    //The requests sent after this are given up by the replicas after the timeout,
+    //while the client still waits for the response for the read timeout.
+    public NetworkClient withTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
     public static class Response<T> {
         T result;
         Optional<String> errorMessage = Optional.empty();
@@ -19,6 +48,11 @@ public class NetworkClient {
             return errorMessage.isPresent();
         }
 
+        //The request was rejected by an overloaded replica without executing it, so can be retried.
+        public boolean isRetriable() {
+            return errorMessage.map(ReplicaOverloadedException::isOverloaded).orElse(false);
+        }
+
         public T getResult() {
             return result;
         }
@@ -44,9 +78,18 @@ public class NetworkClient {
         }
     }
     public <Req extends MessagePayload, Res> Response<Res> sendAndReceive(Req request, InetAddressAndPort address, Class<Res> responseClass) throws IOException {
+        return sendAndReceive(request, address, responseClass, RequestOrResponse.DEFAULT_GROUP_ID);
+    }
+
+    //Sends the request to one of the replication groups hosted at the address.
+    //@see ReplicaGroupHost
+    public <Req extends MessagePayload, Res> Response<Res> sendAndReceive(Req request, InetAddressAndPort address, Class<Res> responseClass, int groupId) throws IOException {
         try(SocketClient<Object> client = new SocketClient<>(address)){
             RequestOrResponse getResponse = client.blockingSend(new RequestOrResponse(request.getMessageId().getId(),
-                    JsonSerDes.serialize(request)));
+                    JsonSerDes.serialize(request)).withGroupId(groupId)
+                    .withClientId(clientId)
+                    .withTraceId(traceId)
+                    .withTimeoutMs(timeoutMs));
             if (getResponse.isError()) {
                 return Response.error(JsonSerDes.deserialize(getResponse.getMessageBodyJson(), String.class));
             };
@@ -2,19 +2,31 @@ package replicate.common;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import replicate.diagnostics.ConsensusSection;
+import replicate.diagnostics.PeerDiagnostics;
+import replicate.diagnostics.ReplicaDiagnostics;
 import replicate.heartbeat.HeartBeatScheduler;
+import replicate.jfr.MessageReceivedEvent;
+import replicate.jfr.QuorumCompletedEvent;
 import replicate.net.ClientConnection;
 import replicate.net.InetAddressAndPort;
 import replicate.net.NIOSocketListener;
+import replicate.net.RequestConsumer;
 import replicate.net.requestwaitinglist.RequestCallback;
 import replicate.net.requestwaitinglist.RequestWaitingList;
+import replicate.net.requestwaitinglist.RttEstimator;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor.WorkClass;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 /*
@@ -36,14 +48,38 @@ public abstract class Replica {
     private final InetAddressAndPort clientConnectionAddress;
     private final InetAddressAndPort peerConnectionAddress;
     private final Network network;
-    protected final RequestWaitingList requestWaitingList;
+    //Requests to peers, by correlationId, and client requests waiting for their log entry, by log index.
+    //Correlation ids are negative, so the two never collide. @see newCorrelationId
+    //The callbacks expect responses of different types, so they are added with awaitResponse.
+    protected final RequestWaitingList<Object, Object> requestWaitingList;
+    //expires the pending requests. Shared by the replicas hosted in the same ReplicaGroupHost.
+    private final ScheduledExecutorService timerExecutor;
+    //round trip times of the requests to peers, used to derive request timeouts.
+    private final RttEstimator rttEstimator;
+    //shared by all the retried operations of this replica.
+    private final RetryBudget retryBudget;
     protected SystemClock clock;
     private List<InetAddressAndPort> peerAddresses;
     private volatile long heartbeatReceivedNs = 0;
+    //Set only when this replica is one of many replication groups hosted in the same process.
+    private final ReplicaGroupHost host;
+    private final int groupId;
+    private final AdmissionController admissionController;
+    //Memory held by the replica. Shared by the replicas hosted in the same ReplicaGroupHost.
+    private final MemoryAccountant memoryAccountant;
+    //contexts of the requests in progress on each client connection, cancelled when the connection closes.
+    private final Map<ClientConnection, Set<RequestContext>> clientRequestsInProgress = new ConcurrentHashMap<>();
+    private final LongAdder expiredRequestsSkipped = new LongAdder();
+    //client requests wait here for their turn on the update queue.
+    private final ClientFairQueue clientFairQueue;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    //samples client requests and records the time of their stages.
+    private final Tracer tracer;
 
     //SingleThreaded executor used to execute all the state manipulation methods of replica, so that
     //all the state updates happen in a single thread, without needing any synchronization.
-    protected ScheduledExecutorService singularUpdateQueueExecutor = Executors.newSingleThreadScheduledExecutor();
+    //Tasks are prioritized by their WorkClass, so that heartbeats and elections are not delayed by client requests.
+    protected PriorityUpdateQueueExecutor singularUpdateQueueExecutor;
 
     public Replica(String name, Config config,
                    SystemClock clock,
@@ -51,39 +87,143 @@ public abstract class Replica {
                    InetAddressAndPort peerConnectionAddress,
                    List<InetAddressAndPort> peerAddresses) throws IOException {
         this.name = name;
-        this.network = new Network();
+        this.memoryAccountant = new MemoryAccountant(config.getMaxMemoryBytes());
+        this.network = new Network(memoryAccountant, config);
         this.config = config;
-        this.requestWaitingList = new RequestWaitingList(clock);
+        this.admissionController = new AdmissionController(config, memoryAccountant);
+        this.host = null;
+        this.groupId = RequestOrResponse.DEFAULT_GROUP_ID;
         this.clock = clock;
+        this.rttEstimator = newRttEstimator(config, metrics);
+        this.retryBudget = new RetryBudget(config.getRetriesPerSecond(), config.getMaxRetryBurst(), clock);
+        this.timerExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.requestWaitingList = new RequestWaitingList<>(clock, DEFAULT_REQUEST_TIMEOUT, timerExecutor, rttEstimator, memoryAccountant);
         this.peerAddresses = peerAddresses;
         this.clientConnectionAddress = clientConnectionAddress;
         this.peerConnectionAddress = peerConnectionAddress;
-        this.peerListener = new NIOSocketListener(this::handlePeerMessage, peerConnectionAddress);
-        this.clientListener = new NIOSocketListener(this::handleClientRequest, clientConnectionAddress);
+        this.singularUpdateQueueExecutor = new PriorityUpdateQueueExecutor(name);
+        this.clientFairQueue = newClientFairQueue(config, clock);
+        this.tracer = new Tracer(name, config);
+        this.heartBeatInterval = Duration.ofMillis(config.getHeartBeatIntervalMs());
+        this.heartbeatTimeout = heartBeatInterval.multipliedBy(HEARTBEAT_TIMEOUT_INTERVALS);
+        this.heartBeatScheduler = new HeartBeatScheduler(this::sendHeartbeats, heartBeatInterval.toMillis());
+        this.heartbeatChecker = new HeartBeatScheduler(this::checkLeader, heartbeatTimeout.toMillis());
+        this.peerListener = new NIOSocketListener(this::handlePeerMessage, peerConnectionAddress, memoryAccountant);
+        this.clientListener = new NIOSocketListener(new RequestConsumer() {
+            @Override
+            public void accept(Message<RequestOrResponse> request) {
+                handleClientRequest(request);
+            }
+
+            @Override
+            public void close(ClientConnection connection) {
+                clientConnectionClosed(connection);
+            }
+        }, clientConnectionAddress, memoryAccountant);
+        this.registerMetrics();
         this.registerHandlers();
     }
 
+    /**
+     * A replica which is one of the many replication groups sharing the listeners, network connections
+     * and threads of the given host. Messages are tagged with the groupId, so that the
+     * host can dispatch them to the right group.
+     * @see ReplicaGroupHost
+     */
+    protected Replica(String name, Config config,
+                      SystemClock clock,
+                      ReplicaGroupHost host,
+                      int groupId) {
+        this.name = name;
+        this.memoryAccountant = host.memoryAccountant;
+        this.network = host.network;
+        this.config = config;
+        this.admissionController = new AdmissionController(config, memoryAccountant);
+        this.host = host;
+        this.groupId = groupId;
+        this.clock = clock;
+        this.rttEstimator = newRttEstimator(config, metrics);
+        this.retryBudget = new RetryBudget(config.getRetriesPerSecond(), config.getMaxRetryBurst(), clock);
+        this.timerExecutor = host.timerExecutor;
+        this.requestWaitingList = new RequestWaitingList<>(clock, DEFAULT_REQUEST_TIMEOUT, timerExecutor, rttEstimator, memoryAccountant);
+        this.peerAddresses = host.getPeerAddresses();
+        this.clientConnectionAddress = host.getClientConnectionAddress();
+        this.peerConnectionAddress = host.getPeerConnectionAddress();
+        this.singularUpdateQueueExecutor = host.updateQueueExecutorFor(groupId);
+        this.clientFairQueue = newClientFairQueue(config, clock);
+        this.tracer = new Tracer(name, config);
+        //the same interval at which the host flushes the coalesced heartbeats.
+        this.heartBeatInterval = Duration.ofMillis(config.getHeartBeatIntervalMs());
+        this.heartbeatTimeout = heartBeatInterval.multipliedBy(HEARTBEAT_TIMEOUT_INTERVALS);
+        this.heartBeatScheduler = new HeartBeatScheduler(() -> host.coalesceHeartbeats(this::sendHeartbeats), heartBeatInterval.toMillis(), host.heartbeatExecutor);
+        this.heartbeatChecker = new HeartBeatScheduler(this::checkLeader, heartbeatTimeout.toMillis(), host.heartbeatExecutor);
+        this.peerListener = null;
+        this.clientListener = null;
+        this.registerMetrics();
+        this.registerHandlers();
+    }
+
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofMillis(1000);
+
+    private ClientFairQueue newClientFairQueue(Config config, SystemClock clock) {
+        return new ClientFairQueue(task -> singularUpdateQueueExecutor.execute(WorkClass.CLIENT, task), config::getClientQuota, clock);
+    }
+
+    private static RttEstimator newRttEstimator(Config config, MetricsRegistry metrics) {
+        return new RttEstimator(DEFAULT_REQUEST_TIMEOUT,
+                Duration.ofMillis(config.getMinRequestTimeoutMs()),
+                Duration.ofMillis(config.getMaxRequestTimeoutMs()),
+                metrics);
+    }
+
+    //The components keep their own counters, which are exposed as gauges.
+    private void registerMetrics() {
+        for (WorkClass workClass : WorkClass.values()) {
+            metrics.gauge("updateQueue.depth", workClass, () -> singularUpdateQueueExecutor.queueSize(workClass));
+            metrics.register("updateQueue.waitTime", workClass, singularUpdateQueueExecutor.getQueueTimeStats(workClass).getQueueTimeHistogram());
+        }
+        metrics.gauge("admission.admitted", admissionController::getAdmitted);
+        metrics.gauge("admission.shed", admissionController::getShed);
+        metrics.gauge("admission.shedForMemory", admissionController::getShedForMemory);
+        metrics.gauge("admission.inFlightClientRequests", admissionController::getInFlightClientRequests);
+        metrics.gauge("memory.usedBytes", memoryAccountant::getUsedBytes);
+        metrics.gauge("memory.budgetBytes", memoryAccountant::getBudgetBytes);
+        for (MemoryAccountant.Component component : MemoryAccountant.Component.values()) {
+            metrics.gauge("memory.usedBytes", component, () -> memoryAccountant.getUsedBytes(component));
+        }
+        metrics.gauge("clientFairQueue.queued", clientFairQueue::getQueuedRequests);
+        metrics.gauge("retryBudget.rejected", retryBudget::getRetriesRejected);
+        metrics.gauge("requests.expiredSkipped", this::getExpiredRequestsSkipped);
+        metrics.gauge("requestWaitingList.expired", requestWaitingList::getExpiredRequests);
+        metrics.gauge("requestWaitingList.abandoned", requestWaitingList::getAbandonedRequests);
+        metrics.gauge("bandwidth.backgroundDelayed", network.getBandwidthScheduler()::getBackgroundMessagesDelayed);
+        tracer.registerMetrics(metrics);
+    }
+
+    //In-memory log of the consensus implementations, with the memory held by its entries accounted for.
+    protected <K, V> Map<K, V> newAccountedLog(Map<K, V> entries, ToLongFunction<V> sizeInBytes) {
+        return new MemoryAccountedMap<>(entries, memoryAccountant, MemoryAccountant.Component.CONSENSUS_LOG, sizeInBytes);
+    }
 
-    //TODO: Make heartbeat intervals configurable.
-    private final Duration heartBeatInterval = Duration.ofMillis(100l);
+
+    //The leader is suspected after this many heartbeat intervals without a heartbeat.
+    private static final int HEARTBEAT_TIMEOUT_INTERVALS = 5;
+    //From Config#getHeartBeatIntervalMs.
+    private final Duration heartBeatInterval;
 
     /**
      * Following schedulers support implementing basic heartbeat mechanism.
      */
-    protected HeartBeatScheduler heartBeatScheduler = new HeartBeatScheduler(()->{
-        sendHeartbeats();
-    }, heartBeatInterval.toMillis());
+    protected HeartBeatScheduler heartBeatScheduler;
 
     //no-op. implemented by subclass implementations.
     protected void sendHeartbeats() {
         logger.info(getName() + " sending heartbeat message");
     }
 
-    protected Duration heartbeatTimeout = Duration.ofMillis(heartBeatInterval.toMillis() * 5);
+    protected Duration heartbeatTimeout;
 
-    protected HeartBeatScheduler heartbeatChecker = new HeartBeatScheduler(()->{
-        checkLeader();
-    }, heartbeatTimeout.toMillis());
+    protected HeartBeatScheduler heartbeatChecker;
 
     protected void checkLeader() {
         //no-op. implemented by implementations.
@@ -91,11 +231,22 @@ public abstract class Replica {
 
 
     public final void start() {
-        peerListener.start();
-        clientListener.start();
+        if (!isHosted()) {
+            peerListener.start();
+            clientListener.start();
+        }
+        metrics.registerMBean(isHosted() ? name + "-group-" + groupId : name);
         onStart();
     }
 
+    private boolean isHosted() {
+        return host != null;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
     //subclasses can execute logic
     //at startup.
     // e.g. starting HeartBeat mechanism
@@ -107,7 +258,10 @@ public abstract class Replica {
     //@see sendRequestToReplicas which expects a message from the peer.
     protected <T extends MessagePayload> void sendOneway(InetAddressAndPort address, T request, int correlationId) {
         try {
-            network.sendOneWay(address, new RequestOrResponse(request.getMessageId().getId(), serialize(request), correlationId, getPeerConnectionAddress()));
+            var message = new RequestOrResponse(request.getMessageId().getId(), serialize(request), correlationId, getPeerConnectionAddress());
+            Trace.mark(Trace.Stage.SERIALIZED);
+            send(address, message);
+            Trace.mark(Trace.Stage.SENT);
         } catch (IOException e) {
             logger.error("Communication failure sending request to " + address + " from " + getName());
         }
@@ -117,21 +271,50 @@ public abstract class Replica {
     //Once the message is received, the callback is invoked.
     //The response message types are configured to invoke responseMessageHandler which invokes the callback
     //@see responseMessageHandler
-    public <T> void sendMessageToReplicas(RequestCallback callback, MessageId messageId, T requestToReplicas) {
+    //The latency of quorum rounds is recorded for each phase, i.e. the MessageId of the request.
+    public <T> void sendMessageToReplicas(RequestCallback<?> callback, MessageId messageId, T requestToReplicas) {
+        if (callback instanceof AsyncQuorumCallback<?> quorumCallback) {
+            Trace.current().ifPresent(quorumCallback::markQuorumIn);
+            long startNanos = System.nanoTime();
+            var event = new QuorumCompletedEvent();
+            event.begin();
+            quorumCallback.getQuorumFuture().whenComplete((responses, e) -> {
+                metrics.histogram("quorum.latency", messageId).recordSince(startNanos);
+                if (e != null) {
+                    metrics.counter("quorum.failed", messageId).increment();
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.replica = getName();
+                    event.messageId = messageId.name();
+                    event.succeeded = e == null;
+                    event.commit();
+                }
+            });
+        }
+        //the same request is sent to all the replicas, so is serialized once.
+        byte[] serializedRequest = serialize(requestToReplicas);
+        Trace.mark(Trace.Stage.SERIALIZED);
         for (InetAddressAndPort replica : peerAddresses) {
             int correlationId = newCorrelationId();
-            RequestOrResponse request = new RequestOrResponse(messageId.getId(), serialize(requestToReplicas), correlationId, getPeerConnectionAddress());
+            RequestOrResponse request = new RequestOrResponse(messageId.getId(), serializedRequest, correlationId, getPeerConnectionAddress());
             sendMessageToReplica(callback, replica, request);
         }
+        Trace.mark(Trace.Stage.SENT);
     }
 
     //Sends message to replica and expects that the replica will send back a message with the same correlationId.
     //The message is kept waiting in the RequestWaitingList and expired if the replica fails to send message back.
-    public void sendMessageToReplica(RequestCallback callback, InetAddressAndPort replicaAddress, RequestOrResponse request) {
+    //Messages sent while handling a client request carry the time left till its deadline.
+    //The deadline is checked before a round is started, not for every message, as the later phases
+    //of a started round should always be sent. @see runToCompletion
+    public void sendMessageToReplica(RequestCallback<?> callback, InetAddressAndPort replicaAddress, RequestOrResponse request) {
+        var context = RequestContext.current();
+        context.filter(RequestContext::hasDeadline).ifPresent(c -> request.withTimeoutMs(c.remainingMs()));
         try {
             logger.debug(getName() + " Sending " + MessageId.valueOf(request.getRequestId()) + " to " + replicaAddress + " with CorrelationId:" + request.getCorrelationId());
-            requestWaitingList.add(request.getCorrelationId(), callback);
-            network.sendOneWay(replicaAddress, request);
+            requestWaitingList.add(request.getCorrelationId(), waitingCallback(callback), replicaAddress, MessageId.valueOf(request.getRequestId()), request.getMessageBodyJson().length);
+            send(replicaAddress, request);
          } catch (IOException e) {
             logger.error("Communication failure sending request to " + replicaAddress + " from " + getName());
             //If communication fails, it should immidiately report it to the callback.
@@ -140,6 +323,49 @@ public abstract class Replica {
          }
     }
 
+    //Waits for the response with the key, e.g. the log index of a client request.
+    protected <T> void awaitResponse(Object key, RequestCallback<T> callback) {
+        requestWaitingList.add(key, waitingCallback(callback));
+    }
+
+    //A response is handed to the callback waiting with its key, which expects the type of that response.
+    @SuppressWarnings("unchecked")
+    private static RequestCallback<Object> waitingCallback(RequestCallback<?> callback) {
+        return (RequestCallback<Object>) callback;
+    }
+
+    //All the messages to peers are tagged with the groupId of this replica.
+    //Heartbeats of hosted replicas are handed over to the host, which coalesces
+    //them into a single message per peer node.
+    //Messages sent while handling a traced request carry its traceId.
+    private void send(InetAddressAndPort address, RequestOrResponse request) throws IOException {
+        request.withGroupId(groupId);
+        RequestContext context = RequestContext.currentOrNull();
+        if (context != null) {
+            context.getTrace().ifPresent(trace -> request.withTraceId(trace.getTraceId()));
+        }
+        if (isHosted() && host.isCoalescingHeartbeats()) {
+            host.addHeartbeat(address, request);
+            return;
+        }
+        metrics.counter("network.bytesOut", address).add(request.getMessageBodyJson().length);
+        network.sendOneWay(address, request, RequestContext.currentTrafficClass());
+    }
+
+    /**
+     * Runs work which no client is waiting for, like read repair or log recovery, as background work.
+     * Messages sent to peers, by the work and by the callbacks of their responses,
+     * are throttled to the background share of the bandwidth.
+     * @see replicate.net.BandwidthScheduler
+     */
+    public <T> T inBackground(Supplier<T> work) {
+        return RequestContext.callWithin(Optional.of(RequestContext.background(clock)), work);
+    }
+
+    public void runInBackground(Runnable work) {
+        RequestContext.runWithin(Optional.of(RequestContext.background(clock)), work);
+    }
+
     public <T extends MessagePayload> void sendOnewayMessageToReplicas(T requestToReplicas) {
         for (InetAddressAndPort replica : peerAddresses) {
             int correlationId = newCorrelationId();
@@ -158,41 +384,291 @@ public abstract class Replica {
         return peerAddresses.stream().filter(r -> !r.equals(peerConnectionAddress)).collect(Collectors.toList());
     }
 
-    final Map<MessageId, MessageHandler> handlers = new HashMap<>();
+    final Map<MessageId, MessageHandler<?, ?>> handlers = new HashMap<>();
 
     //handles messages sent by peers in the cluster in message passing style.
     //peer to peer communication happens on peerConnectionAddress
     public void handlePeerMessage(Message<RequestOrResponse> message)
     {
-        var messageHandler = handlers.get(message.getMessageId());
-        var deserializedRequest = deserialize(message.messagePayload(), messageHandler.requestClass);
-        singularUpdateQueueExecutor.submit(()->{
-            markHeartbeatReceived(); //TODO: Mark heartbeats in message handlings explcitily. As this can be user request as well.
-            RequestOrResponse request = message.messagePayload();
-            MessageId key = MessageId.valueOf(request.getRequestId());
-            messageHandler.handler.apply(new Message<>(deserializedRequest, message.header));
+        var handling = bind(handlers.get(message.getMessageId()), message);
+        long receivedNanos = System.nanoTime();
+        var trace = tracer.startPeerTrace(message.messagePayload(), message.getMessageId(), receivedNanos);
+        var context = newRequestContext(message.messagePayload(), trace);
+        metrics.counter("network.bytesIn", message.getFromAddress()).add(message.messagePayload().getMessageBodyJson().length);
+        var receivedEvent = new MessageReceivedEvent();
+        if (receivedEvent.shouldCommit()) {
+            receivedEvent.replica = getName();
+            receivedEvent.messageId = String.valueOf(message.getMessageId());
+            receivedEvent.peer = String.valueOf(message.getFromAddress());
+            receivedEvent.size = message.messagePayload().getMessageBodyJson().length;
+            receivedEvent.commit();
+        }
+        admissionController.taskQueued();
+        singularUpdateQueueExecutor.execute(classify(message.getMessageId()), ()->{
+            long startNanos = System.nanoTime();
+            try {
+                markHeartbeatReceived(); //TODO: Mark heartbeats in message handlings explcitily. As this can be user request as well.
+                if (isExpired(context)) {
+                    //the sender has stopped waiting for the response, while the message waited in the queue.
+                    logger.debug(getName() + " Skipping expired " + message.getMessageId() + " from " + message.getFromAddress());
+                    expiredRequestsSkipped.increment();
+                    return;
+                }
+                if (trace != null) {
+                    trace.markStage(Trace.Stage.QUEUED);
+                }
+                RequestContext.runWithin(context, handling::get);
+            } finally {
+                if (trace != null) {
+                    trace.finish(Trace.Stage.HANDLED);
+                }
+                admissionController.taskCompleted(System.nanoTime() - startNanos);
+            }
         });
     }
 
+    //The WorkClass of the messages from peers on the update queue.
+    //Messages which keep the leader alive or elect a new one are executed before other messages.
+    protected WorkClass classify(MessageId messageId) {
+        switch (messageId) {
+            case HeartBeatRequest:
+            case HeartBeatResponse:
+            case StartViewChange:
+            case DoViewChange:
+            case StartView:
+                return WorkClass.CONTROL;
+            default:
+                return WorkClass.REPLICATION;
+        }
+    }
+
     protected void markHeartbeatReceived() {
         heartbeatReceivedNs = clock.nanoTime();
     }
 
     //handles requests sent by clients of the cluster.
     //rpc requests are sent by clients on the clientConnectionAddress
+    //Requests are rejected with ReplicaOverloadedException without queuing them,
+    //if the client is over its quota, or the AdmissionController finds the replica overloaded.
+    //Admitted requests wait in the ClientFairQueue for the turn of their client.
     public void handleClientRequest(Message<RequestOrResponse> message) {
-        var messageHandler = handlers.get(message.getMessageId());
-        var deserializedRequest = deserialize(message.messagePayload(), messageHandler.requestClass);
-        singularUpdateQueueExecutor.submit(() -> {
+        if (message.getMessageId() == MessageId.DiagnosticsRequest) {
+            handleDiagnosticsRequest(message);
+            return;
+        }
+        var handling = bind(handlers.get(message.getMessageId()), message);
+        long clientId = message.messagePayload().getClientId();
+        long requestBytes = MemoryAccountant.ENTRY_OVERHEAD_BYTES + message.messagePayload().getMessageBodyJson().length;
+        var rejection = clientFairQueue.admit(clientId);
+        if (rejection.isEmpty()) {
+            rejection = admissionController.admitClientRequest(requestBytes);
+            if (rejection.isPresent()) {
+                clientFairQueue.requestCompleted(clientId);
+            }
+        }
+        if (rejection.isPresent()) {
+            logger.warn(getName() + " rejecting " + message.getMessageId() + " because " + rejection.get());
+            respondToClient(null, new ReplicaOverloadedException(rejection.get()), message.getCorrelationId(), message.getClientConnection(), message.messagePayload().getRequestId());
+            return;
+        }
+        long receivedNanos = System.nanoTime();
+        var trace = tracer.startClientTrace(message.messagePayload(), message.getMessageId(), receivedNanos);
+        var context = newRequestContext(message.messagePayload(), trace);
+        context.filter(RequestContext::isCancellable).ifPresent(c -> clientRequestStarted(message.getClientConnection(), c));
+        clientFairQueue.enqueue(clientId, requestBytes, () -> {
+            long startNanos = System.nanoTime();
             RequestOrResponse request = message.messagePayload();
-            Function<Object, CompletableFuture<?>> handler = messageHandler.handler;
-            handler.apply(deserializedRequest)
-                    .whenComplete((response , throwable)-> {
-                        respondToClient(response, throwable, message.getCorrelationId(), message.getClientConnection(), request.getRequestId());
-                    });
+            try {
+                if (isExpired(context)) {
+                    logger.debug(getName() + " Skipping expired " + message.getMessageId() + " from client");
+                    expiredRequestsSkipped.increment();
+                    clientRequestCompleted(message, context, requestBytes);
+                    respondToClient(null, context.get().toException(), message.getCorrelationId(), message.getClientConnection(), request.getRequestId());
+                    finishTrace(trace);
+                    return;
+                }
+                if (trace != null) {
+                    trace.markStage(Trace.Stage.QUEUED);
+                }
+                RequestContext.callWithin(context, () -> (CompletableFuture<?>) handling.get())
+                        .whenComplete((response, throwable) -> {
+                            metrics.histogram("client.latency", message.getMessageId()).recordSince(receivedNanos);
+                            clientRequestCompleted(message, context, requestBytes);
+                            respondToClient(response, throwable, message.getCorrelationId(), message.getClientConnection(), request.getRequestId());
+                            finishTrace(trace);
+                        });
+            } catch (RuntimeException e) {
+                clientRequestCompleted(message, context, requestBytes);
+                throw e;
+            } finally {
+                admissionController.taskCompleted(System.nanoTime() - startNanos);
+            }
+        }, () -> {
+            clientRequestCompleted(message, context, requestBytes);
+            respondToClient(null, new IllegalStateException(getName() + " is shut down"), message.getCorrelationId(), message.getClientConnection(), message.messagePayload().getRequestId());
+            finishTrace(trace);
         });
-        ;
+    }
+
+    //Requests without a deadline have a context only if they are traced, to carry the trace.
+    //It is not cancellable, so it is not cancelled when the client goes away, as the untraced requests are not.
+    private Optional<RequestContext> newRequestContext(RequestOrResponse request, Trace trace) {
+        if (!request.hasTimeout()) {
+            return trace == null ? Optional.empty() : Optional.of(RequestContext.traceOnly(clock, trace));
+        }
+        return Optional.of(RequestContext.withTimeout(clock, request.getTimeoutMs()).withTrace(trace));
+    }
+
+    private static void finishTrace(Trace trace) {
+        if (trace != null) {
+            trace.finish(Trace.Stage.RESPONDED);
+        }
+    }
+
+    private static boolean isExpired(Optional<RequestContext> context) {
+        return context.map(RequestContext::isExpired).orElse(false);
+    }
+
+    private void clientRequestStarted(ClientConnection connection, RequestContext context) {
+        clientRequestsInProgress.computeIfAbsent(connection, c -> ConcurrentHashMap.newKeySet()).add(context);
+    }
+
+    private void clientRequestCompleted(Message<RequestOrResponse> message, Optional<RequestContext> context, long requestBytes) {
+        admissionController.clientRequestCompleted(requestBytes);
+        clientFairQueue.requestCompleted(message.messagePayload().getClientId());
+        context.ifPresent(c -> {
+            Set<RequestContext> contexts = clientRequestsInProgress.get(message.getClientConnection());
+            if (contexts != null) {
+                contexts.remove(c);
+            }
+        });
+    }
+
+    //The client is gone, so the requests it was waiting for are cancelled.
+    //Their pending quorum callbacks then fail, when the RequestWaitingList next checks for expired requests.
+    void clientConnectionClosed(ClientConnection connection) {
+        Set<RequestContext> contexts = clientRequestsInProgress.remove(connection);
+        if (contexts == null || contexts.isEmpty()) {
+            return;
+        }
+        logger.info(getName() + " cancelling " + contexts.size() + " requests of closed client connection");
+        contexts.forEach(RequestContext::cancel);
+    }
+
+    //Diagnostics are answered even when the replica is overloaded, as that is when they are needed.
+    //Only the consensus section is built on the update queue, as a CONTROL task,
+    //and the response is sent without it if the update queue does not get to it in time.
+    private void handleDiagnosticsRequest(Message<RequestOrResponse> message) {
+        var diagnostics = new ReplicaDiagnostics(name, groupId, getClass().getSimpleName(), clock.now());
+        addReplicaDiagnostics(diagnostics);
+        CompletableFuture.supplyAsync(() -> {
+                    var consensus = new ConsensusSection();
+                    describe(consensus);
+                    return consensus;
+                }, task -> singularUpdateQueueExecutor.execute(WorkClass.CONTROL, task))
+                .orTimeout(config.getDiagnosticsTimeoutMs(), TimeUnit.MILLISECONDS)
+                .whenComplete((consensus, throwable) -> {
+                    if (throwable == null) {
+                        diagnostics.withConsensus(consensus);
+                    } else {
+                        diagnostics.consensusUnavailable(throwable instanceof TimeoutException ?
+                                "update queue did not respond in " + config.getDiagnosticsTimeoutMs() + "ms"
+                                : String.valueOf(throwable));
+                    }
+                    respondToClient(diagnostics, null, message.getCorrelationId(), message.getClientConnection(), message.messagePayload().getRequestId());
+                });
+    }
+
+    private void addReplicaDiagnostics(ReplicaDiagnostics diagnostics) {
+        diagnostics.msSinceLastHeartbeat(elapsedTimeSinceLastHeartbeat().toMillis());
+        for (WorkClass workClass : WorkClass.values()) {
+            diagnostics.queue("updateQueue." + workClass, singularUpdateQueueExecutor.queueSize(workClass));
+        }
+        diagnostics.queue("requestWaitingList.pending", requestWaitingList.getPendingRequests());
+        diagnostics.queue("clientFairQueue.queued", clientFairQueue.getQueuedRequests());
+        diagnostics.queue("admission.inFlightClientRequests", admissionController.getInFlightClientRequests());
+        diagnostics.queue("memory.usedBytes", memoryAccountant.getUsedBytes());
+        Map<InetAddressAndPort, Long> pendingByPeer = requestWaitingList.getPendingRequestsByPeer();
+        for (InetAddressAndPort peer : otherReplicas()) {
+            diagnostics.peer(peer.toString(), new PeerDiagnostics(pendingByPeer.getOrDefault(peer, 0L),
+                    rttEstimator.smoothedRtt(peer).toNanos() / 1000,
+                    rttEstimator.timeouts(peer)));
+        }
+    }
+
+    /**
+     * Describes the state of the consensus algorithm for diagnostics. Invoked on the update thread,
+     * so implementations can read their state directly, but should not do anything expensive.
+     * @see ConsensusSection
+     */
+    protected void describe(ConsensusSection consensus) {
+        //no-op. implemented by the consensus implementations.
+    }
+
+    public long getExpiredRequestsSkipped() {
+        return expiredRequestsSkipped.sum();
+    }
+
+    //Retries the operation, typically a consensus round, with exponential backoff
+    //on the update queue, within the retry budget of the replica.
+    //The retries are executed within the context of the request, and stop once it has expired.
+    protected <T> CompletableFuture<T> retryWithBackoff(Supplier<CompletableFuture<T>> operation, int maxAttempts) {
+        var context = RequestContext.current();
+        Supplier<CompletableFuture<T>> operationWithinContext = () -> {
+            if (isExpired(context)) {
+                return CompletableFuture.failedFuture(context.get().toException());
+            }
+            return RequestContext.callWithin(context, operation);
+        };
+        return FutureUtils.retryWithDelay(operationWithinContext, newRetryStrategy(maxAttempts), retryBudget, singularUpdateQueueExecutor);
+    }
+
+    //Runs the phases of a consensus round which propose and commit a value, if the request is still waited for.
+    //Once started, they run to completion, even if the request expires or is cancelled in the meanwhile,
+    //as a value accepted by the replicas but never committed leaves a gap in the log, which stalls it.
+    //Their messages carry no deadline, so the peers do not skip them either.
+    protected <T> CompletableFuture<T> runToCompletion(Supplier<CompletableFuture<T>> phases) {
+        var context = RequestContext.current();
+        if (context.isEmpty()) {
+            return phases.get();
+        }
+        if (context.get().isExpired()) {
+            expiredRequestsSkipped.increment();
+            return CompletableFuture.failedFuture(context.get().toException());
+        }
+        return RequestContext.callWithin(Optional.of(RequestContext.toCompletion(context.get())), phases);
+    }
+
+    protected RetryStrategy newRetryStrategy(int maxAttempts) {
+        return new ExponentialBackoffRetryStrategy(maxAttempts - 1, config.getRetryBaseDelay(), config.getRetryMaxDelay());
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public ClientFairQueue getClientFairQueue() {
+        return clientFairQueue;
+    }
 
+    public MemoryAccountant getMemoryAccountant() {
+        return memoryAccountant;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
     }
 
     private static void respondToClient(Object response, Throwable throwable, int correlationId, ClientConnection clientConnection, Integer requestId) {
@@ -255,15 +731,21 @@ public abstract class Replica {
      * */
 
     static class MessageHandler<Req extends MessagePayload, Res> {
-        Class requestClass;
+        Class<Req> requestClass;
         Function<Message<Req>, Res> handler;
 
-        public MessageHandler(Class requestClass, Function<Message<Req>, Res> handler) {
+        public MessageHandler(Class<Req> requestClass, Function<Message<Req>, Res> handler) {
             this.requestClass = requestClass;
             this.handler = handler;
         }
     }
 
+    //Deserializes the request when the message is received, and handles it when the result is asked for.
+    private <Req extends MessagePayload, Res> Supplier<Res> bind(MessageHandler<Req, Res> messageHandler, Message<RequestOrResponse> message) {
+        Req request = deserialize(message.messagePayload(), messageHandler.requestClass);
+        return () -> messageHandler.handler.apply(new Message<>(request, message.header));
+    }
+
 
 
     public <Req extends MessagePayload> void handlesMessage(MessageId messageId, Consumer<Message<Req>> handler, Class<Req> requestClass) {
@@ -271,7 +753,7 @@ public abstract class Replica {
            handler.accept(reqMessage);
            return null;
        };
-        handlers.put(messageId, new MessageHandler(requestClass, functionWrapper));
+        handlers.put(messageId, new MessageHandler<>(requestClass, functionWrapper));
     }
 
     //Configures a handler to process a given request.
@@ -279,7 +761,7 @@ public abstract class Replica {
     //This is request-response  communication or rpc.
     //The sender expects a response to the request on the same connection.
     public <T  extends MessagePayload, Res> Replica handlesRequestAsync(MessageId messageId, Function<T, CompletableFuture<Res>> handler, Class<T> requestClass) {
-        handlers.put(messageId, new MessageHandler(requestClass, handler));
+        handlers.put(messageId, new MessageHandler<>(requestClass, (Message<T> message) -> handler.apply(message.messagePayload())));
         return this;
     }
 
@@ -290,8 +772,10 @@ public abstract class Replica {
     public int getServerId() {
         return config.getServerId();
     }
+    //Negative, so that they do not collide with the log indexes the consensus implementations
+    //use as keys of client requests in the requestWaitingList.
     private int newCorrelationId() {
-        return new Random().nextInt();
+        return ThreadLocalRandom.current().nextInt(Integer.MIN_VALUE, 0);
     }
 
     public int getNoOfReplicas() {
@@ -345,10 +829,17 @@ public abstract class Replica {
     protected abstract void registerHandlers();
 
     public void shutdown() {
-        peerListener.shudown();
-        clientListener.shudown();
         heartbeatChecker.stop();
         heartBeatScheduler.stop();
+        metrics.unregisterMBean();
+        requestWaitingList.close();
+        if (isHosted()) {
+            host.removeGroup(groupId);
+            return;
+        }
+        timerExecutor.shutdownNow();
+        peerListener.shudown();
+        clientListener.shudown();
         network.closeAllConnections();
     }
 
@@ -0,0 +1,303 @@
+package replicate.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicate.net.InetAddressAndPort;
+import replicate.net.ClientConnection;
+import replicate.net.NIOSocketListener;
+import replicate.net.RequestConsumer;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hosts many replication groups (e.g. PaxosLog, MultiPaxos or ViewStampedReplication instances)
+ * in a single process, behind one pair of peer and client listeners.
+ *
+ * Every message carries the groupId of the replica which sent it, and the host dispatches
+ * the messages it receives to the replica of that group.
+ * The groups share
+ *  - the listeners and the network connections to the peer nodes.
+ *  - a fixed set of update queue threads. Each group is always executed on the same thread,
+ *    so the state of a group is still updated from a single thread.
+ *  - one thread for heartbeats and one for expiring pending requests.
+ *
+ * Heartbeats of all the groups are coalesced per peer node. Instead of each group
+ * sending its own heartbeat messages, they are collected and sent as a single
+ * GroupHeartbeats message to each peer every heartbeat interval.
+ *
+ * +-----------------------------------------+
+ * | ReplicaGroupHost                        |
+ * |  peerListener      clientListener       |
+ * |       |                  |              |
+ * |       +--- groupId ------+              |
+ * |       |        |         |              |
+ * |   [group 1] [group 2] [group n]         |
+ * |       \        |        /               |
+ * |        update queue threads             |
+ * +-----------------------------------------+
+ */
+public class ReplicaGroupHost {
+    private static Logger logger = LogManager.getLogger(ReplicaGroupHost.class);
+
+    private final String name;
+    private final Config config;
+    private final SystemClock clock;
+    private final InetAddressAndPort clientConnectionAddress;
+    private final InetAddressAndPort peerConnectionAddress;
+    private final List<InetAddressAndPort> peerAddresses;
+    private final NIOSocketListener peerListener;
+    private final NIOSocketListener clientListener;
+    private final Map<Integer, Replica> groups = new ConcurrentHashMap<>();
+    private volatile boolean started = false;
+
+    //one budget for all the groups, as they share the process.
+    final MemoryAccountant memoryAccountant;
+    final Network network;
+    //shared by the heartbeat schedulers and checkers of all the groups.
+    final ScheduledThreadPoolExecutor heartbeatExecutor = newSharedScheduler();
+    //shared by the RequestWaitingLists of all the groups to expire pending requests.
+    final ScheduledThreadPoolExecutor timerExecutor = newSharedScheduler();
+    //heartbeat flushes, and the heartbeats and messages sent to each peer, to check how well they are coalesced.
+    private final LongAdder heartbeatFlushes = new LongAdder();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final Map<InetAddressAndPort, LongAdder> heartbeatMessagesSent = new ConcurrentHashMap<>();
+    private final PriorityUpdateQueueExecutor[] updateQueueExecutors;
+
+    public ReplicaGroupHost(String name, Config config,
+                            SystemClock clock,
+                            InetAddressAndPort clientConnectionAddress,
+                            InetAddressAndPort peerConnectionAddress,
+                            List<InetAddressAndPort> peerAddresses) throws IOException {
+        this(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ReplicaGroupHost(String name, Config config,
+                            SystemClock clock,
+                            InetAddressAndPort clientConnectionAddress,
+                            InetAddressAndPort peerConnectionAddress,
+                            List<InetAddressAndPort> peerAddresses,
+                            int noOfUpdateQueueThreads) throws IOException {
+        this.name = name;
+        this.config = config;
+        this.clock = clock;
+        this.clientConnectionAddress = clientConnectionAddress;
+        this.peerConnectionAddress = peerConnectionAddress;
+        this.peerAddresses = peerAddresses;
+        this.memoryAccountant = new MemoryAccountant(config.getMaxMemoryBytes());
+        this.network = new Network(memoryAccountant, config);
+        this.updateQueueExecutors = new PriorityUpdateQueueExecutor[noOfUpdateQueueThreads];
+        for (int i = 0; i < noOfUpdateQueueThreads; i++) {
+            updateQueueExecutors[i] = new PriorityUpdateQueueExecutor(name + "-" + i);
+        }
+        this.peerListener = new NIOSocketListener(this::handlePeerMessage, peerConnectionAddress, memoryAccountant);
+        this.clientListener = new NIOSocketListener(new RequestConsumer() {
+            @Override
+            public void accept(Message<RequestOrResponse> request) {
+                handleClientRequest(request);
+            }
+
+            @Override
+            public void close(ClientConnection connection) {
+                //requests on the connection might have been for any of the groups.
+                for (Replica replica : groups.values()) {
+                    replica.clientConnectionClosed(connection);
+                }
+            }
+        }, clientConnectionAddress, memoryAccountant);
+    }
+
+    //The tasks of a removed group are cancelled, and are dropped from the queue, instead of waiting there for their delay.
+    private static ScheduledThreadPoolExecutor newSharedScheduler() {
+        var executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    @FunctionalInterface
+    public interface GroupFactory<T extends Replica> {
+        T create(String name, Config config, SystemClock clock, ReplicaGroupHost host, int groupId) throws IOException;
+    }
+
+    public <T extends Replica> T addGroup(int groupId, GroupFactory<T> factory) throws IOException {
+        if (groups.containsKey(groupId)) {
+            throw new IllegalArgumentException("Group " + groupId + " is already hosted on " + name);
+        }
+        T replica = factory.create(name + "-" + groupId, config, clock, this, groupId);
+        groups.put(groupId, replica);
+        if (started) {
+            replica.start();
+        }
+        return replica;
+    }
+
+    //Called by Replica::shutdown of the hosted replica.
+    void removeGroup(int groupId) {
+        groups.remove(groupId);
+    }
+
+    public Replica getGroup(int groupId) {
+        return groups.get(groupId);
+    }
+
+    public Collection<Replica> getGroups() {
+        return groups.values();
+    }
+
+    PriorityUpdateQueueExecutor updateQueueExecutorFor(int groupId) {
+        return updateQueueExecutors[Math.floorMod(groupId, updateQueueExecutors.length)];
+    }
+
+    public void start() {
+        peerListener.start();
+        clientListener.start();
+        started = true;
+        for (Replica replica : groups.values()) {
+            replica.start();
+        }
+        long heartBeatIntervalMs = config.getHeartBeatIntervalMs();
+        heartbeatExecutor.scheduleWithFixedDelay(this::flushHeartbeats, heartBeatIntervalMs, heartBeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        for (Replica replica : new ArrayList<>(groups.values())) {
+            replica.shutdown();
+        }
+        peerListener.shudown();
+        clientListener.shudown();
+        heartbeatExecutor.shutdownNow();
+        timerExecutor.shutdownNow();
+        for (PriorityUpdateQueueExecutor executor : updateQueueExecutors) {
+            executor.shutdownNow();
+        }
+        network.closeAllConnections();
+    }
+
+    //Heartbeats sent by the groups while the flag is set, are collected in the outbox,
+    //instead of being sent to the peers.
+    private final ThreadLocal<Boolean> coalescingHeartbeats = ThreadLocal.withInitial(() -> false);
+    private final Map<InetAddressAndPort, List<RequestOrResponse>> heartbeatOutbox = new HashMap<>();
+
+    void coalesceHeartbeats(Runnable sendHeartbeats) {
+        coalescingHeartbeats.set(true);
+        try {
+            sendHeartbeats.run();
+        } finally {
+            coalescingHeartbeats.set(false);
+        }
+    }
+
+    boolean isCoalescingHeartbeats() {
+        return coalescingHeartbeats.get();
+    }
+
+    synchronized void addHeartbeat(InetAddressAndPort address, RequestOrResponse heartbeat) {
+        heartbeatOutbox.computeIfAbsent(address, a -> new ArrayList<>()).add(heartbeat);
+    }
+
+    private synchronized Map<InetAddressAndPort, List<RequestOrResponse>> drainHeartbeats() {
+        var heartbeats = new HashMap<>(heartbeatOutbox);
+        heartbeatOutbox.clear();
+        return heartbeats;
+    }
+
+    //One message per peer node, irrespective of the number of groups hosted.
+    void flushHeartbeats() {
+        heartbeatFlushes.increment();
+        for (Map.Entry<InetAddressAndPort, List<RequestOrResponse>> entry : drainHeartbeats().entrySet()) {
+            InetAddressAndPort address = entry.getKey();
+            List<RequestOrResponse> heartbeats = entry.getValue();
+            heartbeatsSent.add(heartbeats.size());
+            heartbeatMessagesSent.computeIfAbsent(address, a -> new LongAdder()).increment();
+            try {
+                if (heartbeats.size() == 1) {
+                    network.sendOneWay(address, heartbeats.get(0));
+                    continue;
+                }
+                var groupHeartbeats = new GroupHeartbeats(heartbeats);
+                network.sendOneWay(address, new RequestOrResponse(MessageId.GroupHeartbeats.getId(),
+                        JsonSerDes.serialize(groupHeartbeats), 0, peerConnectionAddress));
+            } catch (IOException e) {
+                logger.error("Communication failure sending " + heartbeats.size() + " heartbeats to " + address + " from " + name);
+            }
+        }
+    }
+
+    void handlePeerMessage(Message<RequestOrResponse> message) {
+        if (message.getMessageId() == MessageId.GroupHeartbeats) {
+            var groupHeartbeats = JsonSerDes.deserialize(message.messagePayload().getMessageBodyJson(), GroupHeartbeats.class);
+            for (RequestOrResponse heartbeat : groupHeartbeats.heartbeats) {
+                dispatchToGroup(new Message<>(heartbeat,
+                        new Message.Header(heartbeat.getFromAddress(), heartbeat.getCorrelationId(), MessageId.valueOf(heartbeat.getRequestId()))));
+            }
+            return;
+        }
+        dispatchToGroup(message);
+    }
+
+    private void dispatchToGroup(Message<RequestOrResponse> message) {
+        Replica replica = groups.get(message.messagePayload().getGroupId());
+        if (replica == null) {
+            logger.warn(name + " dropping " + message.getMessageId() + " for unknown group " + message.messagePayload().getGroupId());
+            return;
+        }
+        replica.handlePeerMessage(message);
+    }
+
+    void handleClientRequest(Message<RequestOrResponse> message) {
+        RequestOrResponse request = message.messagePayload();
+        Replica replica = groups.get(request.getGroupId());
+        if (replica == null) {
+            message.getClientConnection().write(new RequestOrResponse(request.getRequestId(),
+                    JsonSerDes.serialize("Group " + request.getGroupId() + " is not hosted on " + name), message.getCorrelationId()).setError());
+            return;
+        }
+        replica.handleClientRequest(message);
+    }
+
+    public long getHeartbeatFlushes() {
+        return heartbeatFlushes.sum();
+    }
+
+    //Heartbeats of all the groups, sent in fewer messages.
+    public long getHeartbeatsSent() {
+        return heartbeatsSent.sum();
+    }
+
+    public long getHeartbeatMessagesSent(InetAddressAndPort peer) {
+        LongAdder sent = heartbeatMessagesSent.get(peer);
+        return sent == null ? 0 : sent.sum();
+    }
+
+    public long getHeartbeatMessagesSent() {
+        return heartbeatMessagesSent.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    //Tasks scheduled on the thread shared by the RequestWaitingLists of the groups.
+    int getScheduledTimerTasks() {
+        return timerExecutor.getQueue().size();
+    }
+
+    public MemoryAccountant getMemoryAccountant() {
+        return memoryAccountant;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InetAddressAndPort getClientConnectionAddress() {
+        return clientConnectionAddress;
+    }
+
+    public InetAddressAndPort getPeerConnectionAddress() {
+        return peerConnectionAddress;
+    }
+
+    public List<InetAddressAndPort> getPeerAddresses() {
+        return peerAddresses;
+    }
+}
@@ -0,0 +1,18 @@
+package replicate.common;
+
+/**
+ * Sent to clients when a request is rejected by the AdmissionController.
+ * The request was not executed, so clients can safely retry it later.
+ */
+public class ReplicaOverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public static final String ERROR_PREFIX = "Replica overloaded: ";
+
+    public ReplicaOverloadedException(String reason) {
+        super(ERROR_PREFIX + reason);
+    }
+
+    public static boolean isOverloaded(String errorMessage) {
+        return errorMessage != null && errorMessage.startsWith(ERROR_PREFIX);
+    }
+}
@@ -0,0 +1,154 @@
+package replicate.common;
+
+import replicate.net.BandwidthScheduler.TrafficClass;
+
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Deadline of the work done for a client request, which is cancelled if the client goes away.
+ *
+ * The client sends its timeout with the request. The replica handling the request
+ * sets the context as the current context, while it executes the request handler.
+ * Everything done on behalf of the request then carries the context along:
+ *  - Messages sent to peers carry the remaining time, so the peers can skip
+ *    messages which expired while waiting in their queues.
+ *  - Entries in the RequestWaitingList expire at the deadline,
+ *    and their callbacks run with the context as the current context, so that
+ *    the next phase of a quorum round (e.g. propose after prepare) also carries it.
+ *
+ * Expired or cancelled work is not started, so the capacity is not spent on
+ * work nobody is waiting for. Work which must not stop half way, once started, runs to completion
+ * within a context without the deadline.
+ *
+ * client --(timeoutMs=5000)--> coordinator --(timeoutMs=remaining)--> peers
+ *
+ * Work which is not on the path of a client response, like read repair or log recovery, runs within
+ * a background context. Messages sent within it are throttled by the BandwidthScheduler.
+ */
+public class RequestContext {
+    private static final ThreadLocal<RequestContext> current = new ThreadLocal<>();
+
+    private final SystemClock clock;
+    private final long deadlineNanos;
+    private final TrafficClass trafficClass;
+    //the context this background context is derived from, if any. Cancelling it cancels this context as well.
+    private final Optional<RequestContext> parent;
+    //false for the contexts which only carry a trace, so tracing a request does not change how it is handled.
+    private final boolean cancellable;
+    private volatile boolean cancelled = false;
+    //set if the request is sampled for tracing. Background contexts are not traced.
+    private Trace trace;
+
+    private RequestContext(SystemClock clock, long deadlineNanos, TrafficClass trafficClass, Optional<RequestContext> parent) {
+        this(clock, deadlineNanos, trafficClass, parent, true);
+    }
+
+    private RequestContext(SystemClock clock, long deadlineNanos, TrafficClass trafficClass, Optional<RequestContext> parent, boolean cancellable) {
+        this.clock = clock;
+        this.deadlineNanos = deadlineNanos;
+        this.trafficClass = trafficClass;
+        this.parent = parent;
+        this.cancellable = cancellable;
+    }
+
+    public static RequestContext withTimeout(SystemClock clock, long timeoutMs) {
+        return new RequestContext(clock, clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs), TrafficClass.FOREGROUND, Optional.empty());
+    }
+
+    //Requests without a deadline get a context only if they are traced, to carry the trace.
+    //It never expires and is not cancelled, like the requests without a context.
+    public static RequestContext traceOnly(SystemClock clock, Trace trace) {
+        return new RequestContext(clock, Long.MAX_VALUE, TrafficClass.FOREGROUND, Optional.empty(), false).withTrace(trace);
+    }
+
+    //Background work of the current request, if any, with the same deadline.
+    public static RequestContext background(SystemClock clock) {
+        return current()
+                .map(c -> new RequestContext(c.clock, c.deadlineNanos, TrafficClass.BACKGROUND, Optional.of(c)))
+                .orElseGet(() -> new RequestContext(clock, Long.MAX_VALUE, TrafficClass.BACKGROUND, Optional.empty()));
+    }
+
+    //Work of the current request which must complete once started, like the propose and commit phases
+    //of a consensus round. It has the traffic class and the trace of the request,
+    //but no deadline, and is not cancelled with the request.
+    public static RequestContext toCompletion(RequestContext context) {
+        return new RequestContext(context.clock, Long.MAX_VALUE, context.trafficClass, Optional.empty()).withTrace(context.trace);
+    }
+
+    public static TrafficClass currentTrafficClass() {
+        return current().map(c -> c.trafficClass).orElse(TrafficClass.FOREGROUND);
+    }
+
+    public static Optional<RequestContext> current() {
+        return Optional.ofNullable(current.get());
+    }
+
+    //Avoids allocating an Optional on the paths which check the context for every message.
+    static RequestContext currentOrNull() {
+        return current.get();
+    }
+
+    public static void runWithin(Optional<RequestContext> context, Runnable task) {
+        callWithin(context, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public static <T> T callWithin(Optional<RequestContext> context, Supplier<T> task) {
+        RequestContext previous = current.get();
+        current.set(context.orElse(null));
+        try {
+            return task.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    public boolean isExpired() {
+        return isCancelled() || (hasDeadline() && clock.nanoTime() >= deadlineNanos);
+    }
+
+    public boolean hasDeadline() {
+        return deadlineNanos != Long.MAX_VALUE;
+    }
+
+    //at least 1ms, as 0 means no deadline in the message envelope.
+    public long remainingMs() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - clock.nanoTime()));
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancellable && (cancelled || parent.map(RequestContext::isCancelled).orElse(false));
+    }
+
+    public boolean isCancellable() {
+        return cancellable;
+    }
+
+    public TrafficClass getTrafficClass() {
+        return trafficClass;
+    }
+
+    public RequestContext withTrace(Trace trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    public Optional<Trace> getTrace() {
+        return Optional.ofNullable(trace);
+    }
+
+    //A CancellationException, so that the retries of the request are also stopped.
+    //@see FutureUtils.retryWithDelay
+    public CancellationException toException() {
+        return new CancellationException(isCancelled() ? "Request cancelled" : "Request deadline exceeded");
+    }
+}
@@ -1,15 +1,33 @@
 package replicate.common;
 
 import replicate.net.InetAddressAndPort;
+import replicate.wal.Command;
 
 import java.util.Arrays;
 import java.util.Objects;
 
 public class RequestOrResponse {
+    //Messages for a process hosting a single replica are always sent to the default group.
+    public static final int DEFAULT_GROUP_ID = 0;
     private Integer requestId;
     private byte[] messageBodyJson;
     private Integer correlationId;
     private Integer generation = -1;
+    //Identifies the replication group, when many groups share the same listeners.
+    //@see ReplicaGroupHost
+    private Integer groupId = DEFAULT_GROUP_ID;
+    //Time left for the request to complete, relative to when it is received,
+    //so that it does not depend on the clocks of the nodes being in sync.
+    //0 if the sender does not have a deadline.
+    //@see RequestContext
+    private long timeoutMs = 0;
+    //Client sending the request, as in Command.clientId. Used to share the replica fairly between clients.
+    //@see ClientFairQueue
+    private long clientId = Command.NO_CLIENT_ID;
+    //Set on the requests sampled for tracing, and on the messages sent while handling them.
+    //0 if the request is not traced.
+    //@see Tracer
+    private long traceId = 0;
     InetAddressAndPort fromAddress;
     boolean isError;
 
@@ -69,17 +87,57 @@ public class RequestOrResponse {
         return generation;
     }
 
+    public Integer getGroupId() {
+        return groupId;
+    }
+
+    public RequestOrResponse withGroupId(int groupId) {
+        this.groupId = groupId;
+        return this;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public boolean hasTimeout() {
+        return timeoutMs > 0;
+    }
+
+    public RequestOrResponse withTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+    public RequestOrResponse withClientId(long clientId) {
+        this.clientId = clientId;
+        return this;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public RequestOrResponse withTraceId(long traceId) {
+        this.traceId = traceId;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         RequestOrResponse that = (RequestOrResponse) o;
-        return Objects.equals(requestId, that.requestId) && Arrays.equals(messageBodyJson, that.messageBodyJson) && Objects.equals(correlationId, that.correlationId) && Objects.equals(generation, that.generation) && Objects.equals(fromAddress, that.fromAddress);
+        return Objects.equals(requestId, that.requestId) && Arrays.equals(messageBodyJson, that.messageBodyJson) && Objects.equals(correlationId, that.correlationId) && Objects.equals(generation, that.generation) && Objects.equals(groupId, that.groupId) && timeoutMs == that.timeoutMs && clientId == that.clientId && traceId == that.traceId && Objects.equals(fromAddress, that.fromAddress);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(requestId, correlationId, generation, fromAddress);
+        int result = Objects.hash(requestId, correlationId, generation, groupId, timeoutMs, clientId, traceId, fromAddress);
         result = 31 * result + Arrays.hashCode(messageBodyJson);
         return result;
     }
@@ -91,6 +149,10 @@ public class RequestOrResponse {
                 ", messageBodyJson=" + Arrays.toString(messageBodyJson) +
                 ", correlationId=" + correlationId +
                 ", generation=" + generation +
+                ", groupId=" + groupId +
+                ", timeoutMs=" + timeoutMs +
+                ", clientId=" + clientId +
+                ", traceId=" + traceId +
                 ", fromAddress=" + fromAddress +
                 ", isError=" + isError +
                 '}';
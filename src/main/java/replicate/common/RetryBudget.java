@@ -0,0 +1,50 @@
+package replicate.common;
+
+/**
+ * Limits the rate of retries across all the operations of a replica, with a token bucket.
+ * Every retry takes a token. Tokens are added at retriesPerSecond, up to maxRetries.
+ * Under contention, failed operations are then not retried once the budget is spent,
+ * instead of each of them multiplying the load with its own retries.
+ */
+public class RetryBudget {
+    private final double retriesPerSecond;
+    private final double maxRetries;
+    private final SystemClock clock;
+    private double tokens;
+    private long lastRefillNanos;
+    private long retriesRejected = 0;
+
+    public RetryBudget(double retriesPerSecond, int maxRetries, SystemClock clock) {
+        this.retriesPerSecond = retriesPerSecond;
+        this.maxRetries = maxRetries;
+        this.clock = clock;
+        this.tokens = maxRetries;
+        this.lastRefillNanos = clock.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens = tokens - 1;
+            return true;
+        }
+        retriesRejected++;
+        return false;
+    }
+
+    private void refill() {
+        long now = clock.nanoTime();
+        double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+        tokens = Math.min(maxRetries, tokens + elapsedSeconds * retriesPerSecond);
+        lastRefillNanos = now;
+    }
+
+    public synchronized double availableRetries() {
+        refill();
+        return tokens;
+    }
+
+    public synchronized long getRetriesRejected() {
+        return retriesRejected;
+    }
+}
@@ -0,0 +1,144 @@
+package replicate.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stage timestamps of one sampled request on one replica.
+ * A client request traced on the coordinator has a CLIENT trace. Messages sent to peers
+ * while handling it carry its traceId, so the peers, and the coordinator handling their
+ * responses, record PEER traces with the same traceId.
+ *
+ * Each mark records the time taken by the stage since the previous mark, e.g.
+ *
+ *  received -> QUEUED -> SERIALIZED -> SENT -> QUORUM -> APPLIED -> RESPONDED
+ *
+ * so the time between receiving the request and marking QUEUED is the time spent waiting
+ * for the update queue. Stages repeated in a trace, like QUORUM for each phase of Paxos, add up.
+ *
+ * The trace is carried by the RequestContext, so code on the path of the request
+ * marks the stages with Trace.mark, which does nothing when the request is not traced.
+ * @see Tracer
+ */
+public class Trace {
+    public enum Stage {
+        QUEUED,     //waiting for the update queue, including the turn of the client in the ClientFairQueue.
+        SERIALIZED, //serializing messages to peers.
+        SENT,       //handing messages over to the network.
+        QUORUM,     //waiting for the responses of a quorum.
+        FSYNC,      //appending to the WriteAheadLog and forcing it to the disk.
+        APPLIED,    //applying committed entries to the state machine.
+        HANDLED,    //rest of the handling of a peer message.
+        RESPONDED   //completing the client request and writing the response.
+    }
+
+    public enum Kind {
+        CLIENT, PEER
+    }
+
+    private final Tracer tracer;
+    private final long traceId;
+    private final Kind kind;
+    private final MessageId messageId;
+    private final long startNanos;
+    private long lastMarkNanos;
+    private final List<StageTiming> stages = new ArrayList<>();
+    private boolean finished = false;
+
+    Trace(Tracer tracer, long traceId, Kind kind, MessageId messageId, long startNanos) {
+        this.tracer = tracer;
+        this.traceId = traceId;
+        this.kind = kind;
+        this.messageId = messageId;
+        this.startNanos = startNanos;
+        this.lastMarkNanos = startNanos;
+    }
+
+    public static Optional<Trace> current() {
+        return RequestContext.current().flatMap(RequestContext::getTrace);
+    }
+
+    //Marks the stage in the trace of the current request, if it is traced.
+    public static void mark(Stage stage) {
+        RequestContext context = RequestContext.currentOrNull();
+        if (context != null) {
+            context.getTrace().ifPresent(trace -> trace.markStage(stage));
+        }
+    }
+
+    //Marks can come from the update queue and the threads completing the quorum futures.
+    public synchronized void markStage(Stage stage) {
+        if (finished) {
+            return;
+        }
+        long now = System.nanoTime();
+        stages.add(new StageTiming(stage, now - lastMarkNanos));
+        lastMarkNanos = now;
+    }
+
+    //Marks the last stage, and records the trace with the Tracer.
+    public void finish(Stage stage) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            markStage(stage);
+            finished = true;
+        }
+        tracer.record(this);
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public MessageId getMessageId() {
+        return messageId;
+    }
+
+    public synchronized long getTotalNanos() {
+        return lastMarkNanos - startNanos;
+    }
+
+    public synchronized List<StageTiming> getStages() {
+        return Collections.unmodifiableList(new ArrayList<>(stages));
+    }
+
+    //Total time of each stage, adding up the stages marked more than once.
+    public synchronized Map<Stage, Long> getStageBreakdown() {
+        Map<Stage, Long> breakdown = new EnumMap<>(Stage.class);
+        for (StageTiming timing : stages) {
+            breakdown.merge(timing.stage(), timing.durationNanos(), Long::sum);
+        }
+        return breakdown;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("traceId=").append(Long.toHexString(traceId))
+                .append(" ").append(kind)
+                .append(" ").append(messageId)
+                .append(" total=").append(micros(getTotalNanos())).append("us");
+        for (StageTiming timing : getStages()) {
+            builder.append(" ").append(timing.stage()).append("=").append(micros(timing.durationNanos())).append("us");
+        }
+        return builder.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public record StageTiming(Stage stage, long durationNanos) {
+    }
+}
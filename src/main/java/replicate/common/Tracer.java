@@ -0,0 +1,145 @@
+package replicate.common;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+/**
+ * Samples client requests for tracing, and keeps the recent traces of a replica.
+ *
+ * A fraction of the client requests, sampleRate, is traced. Clients can also force tracing of
+ * a request by setting a traceId on it. Finished traces are written to a ring buffer of
+ * the last bufferSize traces, and the time of each stage is added to a histogram of the stage,
+ * so the percentiles cover all the traced requests, not only the ones in the buffer.
+ *
+ * Requests which are not sampled have no Trace, so the cost of tracing them is a
+ * check of the sample rate when they are received, and a thread local read at each mark.
+ * @see Trace
+ */
+public class Tracer {
+    private final String replicaName;
+    private final double sampleRate;
+    private final AtomicReferenceArray<Trace> recentTraces;
+    private final AtomicLong tracesRecorded = new AtomicLong();
+    private final Map<Trace.Stage, LatencyHistogram> stageLatencies = new EnumMap<>(Trace.Stage.class);
+    private final LatencyHistogram clientRequestLatency = new LatencyHistogram();
+
+    public Tracer(String replicaName, double sampleRate, int bufferSize) {
+        this.replicaName = replicaName;
+        this.sampleRate = sampleRate;
+        this.recentTraces = new AtomicReferenceArray<>(Math.max(1, bufferSize));
+        for (Trace.Stage stage : Trace.Stage.values()) {
+            stageLatencies.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public Tracer(String replicaName, Config config) {
+        this(replicaName, config.getTraceSampleRate(), config.getTraceBufferSize());
+    }
+
+    /**
+     * Starts a trace of the client request, if it is sampled or the client has set a traceId.
+     * @return null if the request is not traced.
+     */
+    public Trace startClientTrace(RequestOrResponse request, MessageId messageId, long receivedNanos) {
+        long traceId = request.getTraceId();
+        if (traceId == 0) {
+            if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                return null;
+            }
+            traceId = newTraceId();
+        }
+        return new Trace(this, traceId, Trace.Kind.CLIENT, messageId, receivedNanos);
+    }
+
+    //Messages from peers are traced if they were sent while handling a traced request.
+    public Trace startPeerTrace(RequestOrResponse message, MessageId messageId, long receivedNanos) {
+        if (message.getTraceId() == 0) {
+            return null;
+        }
+        return new Trace(this, message.getTraceId(), Trace.Kind.PEER, messageId, receivedNanos);
+    }
+
+    private static long newTraceId() {
+        long traceId;
+        do {
+            traceId = ThreadLocalRandom.current().nextLong();
+        } while (traceId == 0);
+        return traceId;
+    }
+
+    void record(Trace trace) {
+        long slot = tracesRecorded.getAndIncrement();
+        recentTraces.set((int) (slot % recentTraces.length()), trace);
+        trace.getStageBreakdown().forEach((stage, nanos) -> stageLatencies.get(stage).record(nanos));
+        if (trace.getKind() == Trace.Kind.CLIENT) {
+            clientRequestLatency.record(trace.getTotalNanos());
+        }
+    }
+
+    //Most recent first.
+    public List<Trace> getRecentTraces() {
+        List<Trace> traces = new ArrayList<>();
+        long recorded = tracesRecorded.get();
+        int length = recentTraces.length();
+        for (long i = recorded - 1; i >= Math.max(0, recorded - length); i--) {
+            Trace trace = recentTraces.get((int) (i % length));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    //The traces on this replica of a request, the client trace and the peer traces.
+    public List<Trace> getTraces(long traceId) {
+        return getRecentTraces().stream().filter(t -> t.getTraceId() == traceId).collect(Collectors.toList());
+    }
+
+    public Map<Trace.Stage, LatencyHistogram.Snapshot> getStagePercentiles() {
+        Map<Trace.Stage, LatencyHistogram.Snapshot> percentiles = new EnumMap<>(Trace.Stage.class);
+        stageLatencies.forEach((stage, histogram) -> percentiles.put(stage, histogram.snapshot()));
+        return percentiles;
+    }
+
+    public long getTracesRecorded() {
+        return tracesRecorded.get();
+    }
+
+    void registerMetrics(MetricsRegistry metrics) {
+        stageLatencies.forEach((stage, histogram) -> metrics.register("trace.stage", stage, histogram));
+        metrics.register("trace.clientRequest", null, clientRequestLatency);
+    }
+
+    /**
+     * Stage breakdown of the recent traces, grouped by the request, followed by the
+     * percentiles of each stage in microseconds.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Traces of ").append(replicaName).append("\n");
+        Map<Long, List<Trace>> byRequest = getRecentTraces().stream()
+                .collect(Collectors.groupingBy(Trace::getTraceId, LinkedHashMap::new, Collectors.toList()));
+        byRequest.values().forEach(traces -> traces.forEach(t -> builder.append("  ").append(t).append("\n")));
+        builder.append("Stage percentiles (us)\n");
+        getStagePercentiles().forEach((stage, snapshot) -> {
+            if (snapshot.count() == 0) {
+                return;
+            }
+            builder.append("  ").append(stage)
+                    .append(" count=").append(snapshot.count())
+                    .append(" p50=").append(snapshot.p50() / 1000)
+                    .append(" p90=").append(snapshot.p90() / 1000)
+                    .append(" p99=").append(snapshot.p99() / 1000)
+                    .append(" max=").append(snapshot.max() / 1000)
+                    .append("\n");
+        });
+        return builder.toString();
+    }
+}
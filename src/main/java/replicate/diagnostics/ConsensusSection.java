@@ -0,0 +1,126 @@
+package replicate.diagnostics;
+
+import replicate.common.MonotonicId;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The state of the consensus algorithm of a replica, filled in by the algorithm
+ * on its update thread. @see replicate.common.Replica#describe
+ * Indexes are the log indexes of the algorithm, -1 when not known or not applicable.
+ * Algorithm specific state, like the promised generation of Paxos, goes in details.
+ */
+public class ConsensusSection {
+    //uncommitted slots listed, the rest are only counted.
+    static final int MAX_UNCOMMITTED_SLOTS = 32;
+
+    String role = "";
+    //ballot, generation or view number.
+    String epoch = "";
+    long logLength = 0;
+    long commitIndex = -1;
+    long appliedIndex = -1;
+    long uncommittedCount = 0;
+    List<Integer> uncommittedSlots = new ArrayList<>();
+    Map<String, String> details = new TreeMap<>();
+
+    public ConsensusSection role(Object role) {
+        this.role = role == null ? "" : String.valueOf(role);
+        return this;
+    }
+
+    public ConsensusSection epoch(Object epoch) {
+        this.epoch = String.valueOf(epoch);
+        return this;
+    }
+
+    //Paxos ballots as requestId.serverId.
+    public ConsensusSection epoch(MonotonicId generation) {
+        return epoch(generation.requestId + "." + generation.serverId);
+    }
+
+    public ConsensusSection logLength(long logLength) {
+        this.logLength = logLength;
+        return this;
+    }
+
+    public ConsensusSection commitIndex(long commitIndex) {
+        this.commitIndex = commitIndex;
+        return this;
+    }
+
+    public ConsensusSection appliedIndex(long appliedIndex) {
+        this.appliedIndex = appliedIndex;
+        return this;
+    }
+
+    public ConsensusSection uncommitted(Collection<Integer> slots) {
+        this.uncommittedCount = slots.size();
+        this.uncommittedSlots = slots.stream().sorted().limit(MAX_UNCOMMITTED_SLOTS).toList();
+        return this;
+    }
+
+    public ConsensusSection detail(String name, Object value) {
+        details.put(name, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Fills in the log length, the uncommitted slots and the commit index of a log
+     * kept as a map from the index to the entry.
+     * The commit index is the last index up to which all the entries are committed,
+     * as the entries are committed in any order by Paxos.
+     */
+    public <E> ConsensusSection log(Map<Integer, E> log, Predicate<E> isCommitted) {
+        List<Integer> uncommitted = new ArrayList<>();
+        for (Map.Entry<Integer, E> entry : log.entrySet()) {
+            if (!isCommitted.test(entry.getValue())) {
+                uncommitted.add(entry.getKey());
+            }
+        }
+        logLength(log.size());
+        uncommitted(uncommitted);
+        if (log.isEmpty()) {
+            return this;
+        }
+        int firstIndex = Collections.min(log.keySet());
+        int index = firstIndex;
+        while (log.containsKey(index) && isCommitted.test(log.get(index))) {
+            index++;
+        }
+        return commitIndex(index - 1 < firstIndex ? -1 : index - 1);
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public long getLogLength() {
+        return logLength;
+    }
+
+    public long getCommitIndex() {
+        return commitIndex;
+    }
+
+    public long getAppliedIndex() {
+        return appliedIndex;
+    }
+
+    public long getUncommittedCount() {
+        return uncommittedCount;
+    }
+
+    public List<Integer> getUncommittedSlots() {
+        return uncommittedSlots;
+    }
+
+    public Map<String, String> getDetails() {
+        return details;
+    }
+}
@@ -0,0 +1,157 @@
+package replicate.diagnostics;
+
+import replicate.common.NetworkClient;
+import replicate.common.RequestOrResponse;
+import replicate.net.InetAddressAndPort;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Polls every replica of a cluster for its diagnostics and prints the lag tables.
+ *
+ *  DiagnosticsCli [--group id] [--interval-ms ms] [--count n] host:port host:port ...
+ *
+ * The addresses are the client addresses of the replicas.
+ * The lag of a replica is how far its log, commit and applied indexes are behind
+ * the most advanced replica which responded, so a replica falling behind the leader shows up
+ * even when the leader itself does not track the progress of its followers.
+ */
+public class DiagnosticsCli {
+    private final List<InetAddressAndPort> replicas;
+    private final int groupId;
+    private final NetworkClient client = new NetworkClient();
+
+    public DiagnosticsCli(List<InetAddressAndPort> replicas, int groupId) {
+        this.replicas = replicas;
+        this.groupId = groupId;
+    }
+
+    public DiagnosticsCli(List<InetAddressAndPort> replicas) {
+        this(replicas, RequestOrResponse.DEFAULT_GROUP_ID);
+    }
+
+    //The diagnostics of a replica, or the error if it could not be polled.
+    public record Poll(InetAddressAndPort address, Optional<ReplicaDiagnostics> diagnostics, String error) {
+        public String name() {
+            return diagnostics.map(ReplicaDiagnostics::getReplica).orElse(address.toString());
+        }
+    }
+
+    public List<Poll> poll() {
+        List<Poll> polls = new ArrayList<>();
+        for (InetAddressAndPort address : replicas) {
+            polls.add(poll(address));
+        }
+        return polls;
+    }
+
+    private Poll poll(InetAddressAndPort address) {
+        try {
+            var response = client.sendAndReceive(new DiagnosticsRequest(), address, ReplicaDiagnostics.class, groupId);
+            if (response.isError()) {
+                return new Poll(address, Optional.empty(), response.getErrorMessage().get());
+            }
+            return new Poll(address, Optional.of(response.getResult()), "");
+        } catch (IOException | RuntimeException e) {
+            return new Poll(address, Optional.empty(), String.valueOf(e.getMessage()));
+        }
+    }
+
+    public static String lagTable(List<Poll> polls) {
+        long maxLog = max(polls, ConsensusSection::getLogLength);
+        long maxCommit = max(polls, ConsensusSection::getCommitIndex);
+        long maxApplied = max(polls, ConsensusSection::getAppliedIndex);
+        StringBuilder table = new StringBuilder();
+        String format = "%-12s %-10s %-14s %8s %8s %8s %11s %9s %9s %8s %8s %8s%n";
+        table.append(String.format(format, "replica", "role", "epoch", "log", "commit", "applied",
+                "uncommitted", "logLag", "commitLag", "applyLag", "pending", "queued"));
+        for (Poll poll : polls) {
+            if (poll.diagnostics().isEmpty()) {
+                table.append(String.format("%-12s unreachable: %s%n", poll.name(), poll.error()));
+                continue;
+            }
+            ReplicaDiagnostics diagnostics = poll.diagnostics().get();
+            long pending = diagnostics.getQueue("requestWaitingList.pending");
+            long queued = diagnostics.getQueues().entrySet().stream()
+                    .filter(e -> e.getKey().startsWith("updateQueue.")).mapToLong(Map.Entry::getValue).sum();
+            Optional<ConsensusSection> section = diagnostics.getConsensus();
+            if (section.isEmpty()) {
+                table.append(String.format("%-12s %-10s %s, pending=%d queued=%d%n", poll.name(), "?",
+                        diagnostics.getConsensusUnavailable().orElse(""), pending, queued));
+                continue;
+            }
+            ConsensusSection consensus = section.get();
+            table.append(String.format(format, poll.name(), orDash(consensus.getRole()), orDash(consensus.getEpoch()),
+                    consensus.getLogLength(), consensus.getCommitIndex(), consensus.getAppliedIndex(),
+                    consensus.getUncommittedCount(),
+                    maxLog - consensus.getLogLength(),
+                    maxCommit - consensus.getCommitIndex(),
+                    maxApplied - consensus.getAppliedIndex(),
+                    pending, queued));
+        }
+        return table.toString();
+    }
+
+    //The view of each replica of its peers.
+    public static String peerTable(List<Poll> polls) {
+        StringBuilder table = new StringBuilder();
+        String format = "%-12s %-24s %8s %10s %9s%n";
+        table.append(String.format(format, "replica", "peer", "pending", "srttUs", "timeouts"));
+        for (Poll poll : polls) {
+            poll.diagnostics().ifPresent(diagnostics -> diagnostics.getPeers().forEach((peer, peerDiagnostics) ->
+                    table.append(String.format(format, poll.name(), peer,
+                            peerDiagnostics.getPendingRequests(),
+                            peerDiagnostics.getSmoothedRttMicros(),
+                            peerDiagnostics.getTimeouts()))));
+        }
+        return table.toString();
+    }
+
+    private static long max(List<Poll> polls, ToLongFunction<ConsensusSection> index) {
+        return polls.stream().flatMap(p -> p.diagnostics().flatMap(ReplicaDiagnostics::getConsensus).stream())
+                .mapToLong(index).max().orElse(0);
+    }
+
+    private static String orDash(String value) {
+        return value.isEmpty() ? "-" : value;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int groupId = RequestOrResponse.DEFAULT_GROUP_ID;
+        long intervalMs = 1000;
+        int count = 1;
+        List<InetAddressAndPort> replicas = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--group" -> groupId = Integer.parseInt(args[++i]);
+                case "--interval-ms" -> intervalMs = Long.parseLong(args[++i]);
+                case "--count" -> count = Integer.parseInt(args[++i]);
+                default -> replicas.add(parseAddress(args[i]));
+            }
+        }
+        if (replicas.isEmpty()) {
+            System.err.println("Usage: DiagnosticsCli [--group id] [--interval-ms ms] [--count n] host:port ...");
+            System.exit(1);
+        }
+        var cli = new DiagnosticsCli(replicas, groupId);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                Thread.sleep(intervalMs);
+            }
+            List<Poll> polls = cli.poll();
+            System.out.println(new Date());
+            System.out.println(lagTable(polls));
+            System.out.println(peerTable(polls));
+        }
+    }
+
+    static InetAddressAndPort parseAddress(String hostAndPort) {
+        int separator = hostAndPort.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected host:port but was " + hostAndPort);
+        }
+        return InetAddressAndPort.create(hostAndPort.substring(0, separator), Integer.valueOf(hostAndPort.substring(separator + 1)));
+    }
+}
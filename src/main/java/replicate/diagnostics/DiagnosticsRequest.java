@@ -0,0 +1,11 @@
+package replicate.diagnostics;
+
+import replicate.common.MessageId;
+import replicate.common.MessagePayload;
+
+//Asks a replica for a ReplicaDiagnostics snapshot. Handled on the client port of every Replica.
+public class DiagnosticsRequest extends MessagePayload {
+    public DiagnosticsRequest() {
+        super(MessageId.DiagnosticsRequest);
+    }
+}
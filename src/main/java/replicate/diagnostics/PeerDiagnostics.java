@@ -0,0 +1,31 @@
+package replicate.diagnostics;
+
+//What a replica knows about one of its peers.
+public class PeerDiagnostics {
+    //requests sent to the peer, waiting for its response.
+    long pendingRequests;
+    //highest smoothed round trip time across the message types sent to the peer.
+    long smoothedRttMicros;
+    long timeouts;
+
+    public PeerDiagnostics(long pendingRequests, long smoothedRttMicros, long timeouts) {
+        this.pendingRequests = pendingRequests;
+        this.smoothedRttMicros = smoothedRttMicros;
+        this.timeouts = timeouts;
+    }
+
+    private PeerDiagnostics() {
+    }
+
+    public long getPendingRequests() {
+        return pendingRequests;
+    }
+
+    public long getSmoothedRttMicros() {
+        return smoothedRttMicros;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+}
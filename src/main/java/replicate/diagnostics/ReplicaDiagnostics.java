@@ -0,0 +1,108 @@
+package replicate.diagnostics;
+
+import replicate.common.MessageId;
+import replicate.common.MessagePayload;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the state of a replica, returned for a DiagnosticsRequest.
+ *
+ * The queues and peers are read from the thread safe counters of the replica,
+ * on the network thread. The consensus section is filled in by the algorithm on the
+ * update thread, so it is missing if the update queue does not get to it in time.
+ * That way a replica with a stuck update thread still reports its queues.
+ */
+public class ReplicaDiagnostics extends MessagePayload {
+    String replica;
+    int groupId;
+    String algorithm;
+    long timestampMs;
+    long msSinceLastHeartbeat;
+    //update queue depths, pending requests, admitted client requests and memory.
+    Map<String, Long> queues = new TreeMap<>();
+    //by the peer address.
+    Map<String, PeerDiagnostics> peers = new TreeMap<>();
+    ConsensusSection consensus;
+    //why the consensus section is missing.
+    String consensusUnavailable;
+
+    public ReplicaDiagnostics(String replica, int groupId, String algorithm, long timestampMs) {
+        this();
+        this.replica = replica;
+        this.groupId = groupId;
+        this.algorithm = algorithm;
+        this.timestampMs = timestampMs;
+    }
+
+    private ReplicaDiagnostics() {
+        super(MessageId.DiagnosticsResponse);
+    }
+
+    public ReplicaDiagnostics queue(String name, long value) {
+        queues.put(name, value);
+        return this;
+    }
+
+    public ReplicaDiagnostics peer(String address, PeerDiagnostics peer) {
+        peers.put(address, peer);
+        return this;
+    }
+
+    public ReplicaDiagnostics msSinceLastHeartbeat(long msSinceLastHeartbeat) {
+        this.msSinceLastHeartbeat = msSinceLastHeartbeat;
+        return this;
+    }
+
+    public ReplicaDiagnostics withConsensus(ConsensusSection consensus) {
+        this.consensus = consensus;
+        return this;
+    }
+
+    public ReplicaDiagnostics consensusUnavailable(String reason) {
+        this.consensusUnavailable = reason;
+        return this;
+    }
+
+    public String getReplica() {
+        return replica;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    public long getMsSinceLastHeartbeat() {
+        return msSinceLastHeartbeat;
+    }
+
+    public Map<String, Long> getQueues() {
+        return queues;
+    }
+
+    public long getQueue(String name) {
+        return queues.getOrDefault(name, 0L);
+    }
+
+    public Map<String, PeerDiagnostics> getPeers() {
+        return peers;
+    }
+
+    public Optional<ConsensusSection> getConsensus() {
+        return Optional.ofNullable(consensus);
+    }
+
+    public Optional<String> getConsensusUnavailable() {
+        return Optional.ofNullable(consensusUnavailable);
+    }
+}
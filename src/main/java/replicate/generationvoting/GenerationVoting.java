@@ -38,6 +38,7 @@ public class GenerationVoting extends Replica {
     public GenerationVoting(String name, Config config, SystemClock clock, InetAddressAndPort clientConnectionAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peerAddresses) throws IOException {
         super(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses);
         ballotStore = new DurableKVStore(config);
+        ballotStore.registerMetrics(getMetrics(), "ballotStore");
     }
 
     @Override
@@ -58,7 +59,7 @@ public class GenerationVoting extends Replica {
     private CompletableFuture<Integer> proposeNumber(int proposedNumber) {
         int maxAttempts =   5;
         AtomicInteger proposal = new AtomicInteger(proposedNumber);
-        return FutureUtils.retryWithRandomDelay(() -> {
+        return retryWithBackoff(() -> {
             PrepareRequest nr = new PrepareRequest(proposal.incrementAndGet());
             var callback = new AsyncQuorumCallback<PrepareResponse>(getNoOfReplicas(), p -> p.promised);
 
@@ -69,7 +70,7 @@ public class GenerationVoting extends Replica {
                     .exceptionally(ex -> {
                         throw new RuntimeException("Exception occurred while processing the request.", ex);
                     });
-        }, maxAttempts, singularUpdateQueueExecutor);
+        }, maxAttempts);
     }
 
     private void handlePrepareRequest(Message<PrepareRequest> message) {
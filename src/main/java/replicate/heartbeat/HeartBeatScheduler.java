@@ -3,21 +3,29 @@ package replicate.heartbeat;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class HeartBeatScheduler {
     private static final Logger logger = LogManager.getLogger(HeartBeatScheduler.class);
-    private ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final ScheduledExecutorService executor;
 
     private Runnable action;
     private Long heartBeatInterval;
 
     public HeartBeatScheduler(Runnable action, Long heartBeatIntervalMs) {
+        this(action, heartBeatIntervalMs, new ScheduledThreadPoolExecutor(1));
+    }
+
+    //Schedulers for many replication groups hosted in the same process
+    //share a single executor, instead of creating a thread each.
+    //@see replicate.common.ReplicaGroupHost
+    public HeartBeatScheduler(Runnable action, Long heartBeatIntervalMs, ScheduledExecutorService executor) {
         this.action = action;
         this.heartBeatInterval = heartBeatIntervalMs;
+        this.executor = executor;
     }
 
     private ScheduledFuture<?> scheduledTask;
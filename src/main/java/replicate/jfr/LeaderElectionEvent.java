@@ -0,0 +1,21 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Election run by a replica, till it becomes the leader or the election fails.
+ */
+@Name("replicate.LeaderElection")
+@Label("Leader Election")
+@Category({"Replicate", "Consensus"})
+@StackTrace(false)
+public class LeaderElectionEvent extends Event {
+    @Label("Replica")
+    public String replica;
+
+    @Label("Generation")
+    public String generation;
+
+    @Label("Elected")
+    public boolean elected;
+}
@@ -0,0 +1,25 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Message received by a replica from a peer, before it is queued on the singular update queue.
+ */
+@Name("replicate.MessageReceived")
+@Label("Message Received")
+@Category({"Replicate", "Network"})
+@StackTrace(false)
+public class MessageReceivedEvent extends Event {
+    @Label("Replica")
+    public String replica;
+
+    @Label("Message Id")
+    public String messageId;
+
+    @Label("Peer")
+    public String peer;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
@@ -0,0 +1,25 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Write of a message to the connection to a peer. The duration is the time taken by the write.
+ */
+@Name("replicate.MessageSent")
+@Label("Message Sent")
+@Category({"Replicate", "Network"})
+@StackTrace(false)
+public class MessageSentEvent extends Event {
+    @Label("Message Id")
+    public String messageId;
+
+    @Label("Peer")
+    public String peer;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Correlation Id")
+    public int correlationId;
+}
@@ -0,0 +1,22 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A quorum round, from sending the requests to the replicas till the quorum callback completes.
+ */
+@Name("replicate.QuorumCompleted")
+@Label("Quorum Completed")
+@Category({"Replicate", "Consensus"})
+@StackTrace(false)
+public class QuorumCompletedEvent extends Event {
+    @Label("Replica")
+    public String replica;
+
+    @Label("Message Id")
+    @Description("The phase of the round, e.g. Prepare or Propose")
+    public String messageId;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,22 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * View change of a ViewStampedReplication replica, till it is back to the Normal status.
+ * A view change which is superseded by the next one is committed as not completed.
+ */
+@Name("replicate.ViewChange")
+@Label("View Change")
+@Category({"Replicate", "Consensus"})
+@StackTrace(false)
+public class ViewChangeEvent extends Event {
+    @Label("Replica")
+    public String replica;
+
+    @Label("View Number")
+    public int viewNumber;
+
+    @Label("Completed")
+    public boolean completed;
+}
@@ -0,0 +1,22 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Append of an entry to the WriteAheadLog, including the force of the segment.
+ */
+@Name("replicate.WalAppend")
+@Label("WAL Append")
+@Category({"Replicate", "WAL"})
+@StackTrace(false)
+public class WalAppendEvent extends Event {
+    @Label("WAL Directory")
+    public String walDir;
+
+    @Label("Entry Index")
+    public long entryIndex;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
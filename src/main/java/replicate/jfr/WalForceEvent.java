@@ -0,0 +1,15 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * FileChannel.force of a WAL segment.
+ */
+@Name("replicate.WalForce")
+@Label("WAL Force")
+@Category({"Replicate", "WAL"})
+@StackTrace(false)
+public class WalForceEvent extends Event {
+    @Label("Segment")
+    public String segment;
+}
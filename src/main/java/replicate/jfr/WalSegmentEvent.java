@@ -0,0 +1,28 @@
+package replicate.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A WAL segment rolled over, or deleted by the log cleaner.
+ */
+@Name("replicate.WalSegment")
+@Label("WAL Segment")
+@Category({"Replicate", "WAL"})
+@StackTrace(false)
+public class WalSegmentEvent extends Event {
+    public static final String ROLLED = "Rolled";
+    public static final String DELETED = "Deleted";
+
+    @Label("Action")
+    public String action;
+
+    @Label("Segment")
+    public String segment;
+
+    @Label("Base Offset")
+    public long baseOffset;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
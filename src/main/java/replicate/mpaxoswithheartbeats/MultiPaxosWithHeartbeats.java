@@ -3,10 +3,11 @@ package replicate.mpaxoswithheartbeats;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import replicate.common.*;
+import replicate.diagnostics.ConsensusSection;
+import replicate.jfr.LeaderElectionEvent;
 import replicate.multipaxos.PaxosState;
 import replicate.multipaxos.messages.FullLogPrepareResponse;
 import replicate.net.InetAddressAndPort;
-import replicate.net.requestwaitinglist.RequestWaitingList;
 import replicate.paxos.messages.CommitResponse;
 import replicate.paxos.messages.GetValueResponse;
 import replicate.paxos.messages.ProposalResponse;
@@ -15,6 +16,7 @@ import replicate.paxoslog.messages.CommitRequest;
 import replicate.paxoslog.messages.PrepareRequest;
 import replicate.paxoslog.messages.ProposalRequest;
 import replicate.quorum.messages.GetValueRequest;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor.WorkClass;
 import replicate.twophaseexecution.messages.ExecuteCommandRequest;
 import replicate.twophaseexecution.messages.ExecuteCommandResponse;
 import replicate.vsr.CompletionCallback;
@@ -40,10 +42,12 @@ public class MultiPaxosWithHeartbeats extends Replica {
     //Paxos State
     MonotonicId promisedGeneration = MonotonicId.empty();
     //make this durable. Possibly use DurableKVStore.
-    Map<Integer, PaxosState> paxosLog = new HashMap<>();
+    Map<Integer, PaxosState> paxosLog = newAccountedLog(new HashMap<>(), PaxosState::sizeInBytes);
     Map<String, String> kv = new HashMap<>();
     final int serverId;
     ServerRole role;
+    //highest log index applied to the kv.
+    int appliedIndex = -1;
 
     //prepare response will send a oldLeaderRemainingDuration
     //New Leader waits for max Old leader remaining duration.
@@ -51,7 +55,15 @@ public class MultiPaxosWithHeartbeats extends Replica {
     public MultiPaxosWithHeartbeats(String name, SystemClock clock, Config config, InetAddressAndPort clientAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peers) throws IOException {
         super(name, config, clock, clientAddress, peerConnectionAddress, peers);
         this.serverId = config.getServerId();
-        requestWaitingList = new RequestWaitingList(clock);
+        becomeFollower(promisedGeneration);
+        super.markHeartbeatReceived(); //
+        setRandomElectionTimeout();
+    }
+
+    //one of the many replication groups hosted by the ReplicaGroupHost.
+    public MultiPaxosWithHeartbeats(String name, Config config, SystemClock clock, ReplicaGroupHost host, int groupId) {
+        super(name, config, clock, host, groupId);
+        this.serverId = config.getServerId();
         becomeFollower(promisedGeneration);
         super.markHeartbeatReceived(); //
         setRandomElectionTimeout();
@@ -134,7 +146,7 @@ public class MultiPaxosWithHeartbeats extends Replica {
             if (role == ServerRole.Leader) {
                 System.out.println("Should not be triggering election in leader role");
             }
-            singularUpdateQueueExecutor.submit(()-> {
+            singularUpdateQueueExecutor.submit(WorkClass.CONTROL, ()-> {
                 leaderElection();
             });
         }
@@ -156,24 +168,27 @@ public class MultiPaxosWithHeartbeats extends Replica {
                 .thenApplyAsync(r -> new GetValueResponse(Optional.ofNullable(kv.get(request.getKey()))), singularUpdateQueueExecutor);
     }
 
-    RequestWaitingList requestWaitingList;
 
     AtomicInteger logIndex = new AtomicInteger(0);
 
     public CompletableFuture<PaxosResult> append(byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
+        var context = RequestContext.current();
         CompletableFuture<PaxosResult> appendFuture = doPaxos(initialValue, callback);
         return appendFuture.thenCompose((result) -> {
             if (result.value.stream().allMatch(v -> v != initialValue)) {
                 logger.info("Could not append proposed value to " + logIndex + ". Trying next index");
-                return append(initialValue, callback);
+                //a new round, only if the request is still waited for.
+                return RequestContext.callWithin(context, () -> append(initialValue, callback));
             }
             return CompletableFuture.completedFuture(result);
         });
     }
 
 
+    //Once the index is taken, the value is proposed and committed at it,
+    //as followers apply entries only after all the entries before them are committed.
     private CompletableFuture<PaxosResult> doPaxos(byte[] value, CompletionCallback<ExecuteCommandResponse> callback) {
-        return doPaxos(promisedGeneration, logIndex.getAndIncrement(), value, callback);
+        return runToCompletion(() -> doPaxos(promisedGeneration, logIndex.getAndIncrement(), value, callback));
     }
 
     private CompletableFuture<PaxosResult> doPaxos(MonotonicId monotonicId, int index, byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
@@ -181,7 +196,7 @@ public class MultiPaxosWithHeartbeats extends Replica {
                 .thenCompose(proposedValue -> {
                     //Once the index at which the command is committed reaches 'high-watermark', return the result.
                     if (proposedValue == initialValue) {
-                        requestWaitingList.add(index, callback);
+                        awaitResponse(index, callback);
                     }
                     return sendCommitRequest(index, proposedValue, monotonicId)
                             .thenApply(r -> new PaxosResult(Optional.of(proposedValue), true));
@@ -213,21 +228,36 @@ public class MultiPaxosWithHeartbeats extends Replica {
     public void leaderElection() {
         logger.info(getName() + " triggering election");
         becomeCandidate();
+        var event = new LeaderElectionEvent();
+        event.begin();
         //if future completes successfully, phase1 is complete and this node can be the leader.
         runElection().whenCompleteAsync((winningBallot, throwable) -> {
             if (throwable != null) {
                 logger.error(getName() + " could not complete election");
                 logger.error(throwable);
+                electionCompleted(event, false);
                 becomeFollower(this.promisedGeneration); //become follower and expect leader to send heartbeats.
                 return;
 
             }
-            if (role.equals(ServerRole.LookingForLeader) && this.promisedGeneration.equals(winningBallot)) {
+            boolean elected = role.equals(ServerRole.LookingForLeader) && this.promisedGeneration.equals(winningBallot);
+            electionCompleted(event, elected);
+            if (elected) {
                 becomeLeader(winningBallot);
             }
         }, singularUpdateQueueExecutor);
     }
 
+    private void electionCompleted(LeaderElectionEvent event, boolean elected) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.replica = getName();
+            event.generation = String.valueOf(promisedGeneration);
+            event.elected = elected;
+            event.commit();
+        }
+    }
+
     private void becomeLeader(MonotonicId result) {
         this.isLeader = true;
         this.promisedGeneration = result;
@@ -246,7 +276,8 @@ public class MultiPaxosWithHeartbeats extends Replica {
             for (FullLogPrepareResponse promise : promises) {
                 mergeLog(promise);
             }
-            return sendProposalRequestsForUnCommittedEntries(newGeneration);
+            //catching up the followers is background work, as no client is waiting for it.
+            return inBackground(() -> sendProposalRequestsForUnCommittedEntries(newGeneration));
         }, singularUpdateQueueExecutor);
     }
 
@@ -339,9 +370,11 @@ public class MultiPaxosWithHeartbeats extends Replica {
 
     private void addAndApply(int index, byte[] walEnty) {
         Command command = Command.deserialize(walEnty);
+        appliedIndex = Math.max(appliedIndex, index);
         if (command instanceof SetValueCommand) {
             SetValueCommand setValueCommand = (SetValueCommand) command;
             kv.put(setValueCommand.getKey(), setValueCommand.getValue());
+            Trace.mark(Trace.Stage.APPLIED);
             requestWaitingList.handleResponse(index, new ExecuteCommandResponse(Optional.of(setValueCommand.getValue()), true));
         }
     }
@@ -422,4 +455,14 @@ public class MultiPaxosWithHeartbeats extends Replica {
     public boolean isFollower() {
         return role == ServerRole.Follower;
     }
+
+    @Override
+    protected void describe(ConsensusSection consensus) {
+        consensus.role(role)
+                .epoch(promisedGeneration)
+                .log(paxosLog, paxosState -> paxosState.committedValue().isPresent())
+                .appliedIndex(appliedIndex)
+                .detail("nextLogIndex", logIndex.get())
+                .detail("pendingClientRequests", requestWaitingList.getPendingLocalRequests());
+    }
 }
@@ -3,9 +3,10 @@ package replicate.multipaxos;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import replicate.common.*;
+import replicate.diagnostics.ConsensusSection;
+import replicate.jfr.LeaderElectionEvent;
 import replicate.multipaxos.messages.FullLogPrepareResponse;
 import replicate.net.InetAddressAndPort;
-import replicate.net.requestwaitinglist.RequestWaitingList;
 import replicate.paxos.messages.CommitResponse;
 import replicate.paxos.messages.GetValueResponse;
 import replicate.paxos.messages.ProposalResponse;
@@ -50,13 +51,14 @@ public class MultiPaxos extends Replica {
     // will always choose the highest generation value
     //if it receives different accepted values from
     //different cluster nodes for a particular log entry.
-    Map<Integer, PaxosState> paxosLog = new HashMap<>();
+    Map<Integer, PaxosState> paxosLog = newAccountedLog(new HashMap<>(), PaxosState::sizeInBytes);
     AtomicInteger logIndex = new AtomicInteger(0);
 
-    RequestWaitingList requestWaitingList;
     AtomicInteger maxKnownPaxosRoundId = new AtomicInteger(1);
     final int serverId;
     ServerRole role;
+    //highest log index applied to the kv.
+    int appliedIndex = -1;
 
     //State exposed to clients. Committed after successful paxos rounds.
     Map<String, String> kv = new HashMap<>();
@@ -64,7 +66,12 @@ public class MultiPaxos extends Replica {
     public MultiPaxos(String name, SystemClock clock, Config config, InetAddressAndPort clientAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peers) throws IOException {
         super(name, config, clock, clientAddress, peerConnectionAddress, peers);
         this.serverId = config.getServerId();
-        requestWaitingList = new RequestWaitingList(clock);
+    }
+
+    //one of the many replication groups hosted by the ReplicaGroupHost.
+    public MultiPaxos(String name, Config config, SystemClock clock, ReplicaGroupHost host, int groupId) {
+        super(name, config, clock, host, groupId);
+        this.serverId = config.getServerId();
     }
 
     @Override
@@ -140,19 +147,23 @@ public class MultiPaxos extends Replica {
 
 
     public CompletableFuture<PaxosResult> append(byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
+        var context = RequestContext.current();
         CompletableFuture<PaxosResult> appendFuture = doPaxos(initialValue, callback);
         return appendFuture.thenCompose((result) -> {
             if (result.value.stream().allMatch(v -> v != initialValue)) {
                 logger.info("Could not append proposed value to " + logIndex + ". Trying next index");
-                return append(initialValue, callback);
+                //a new round, only if the request is still waited for.
+                return RequestContext.callWithin(context, () -> append(initialValue, callback));
             }
             return CompletableFuture.completedFuture(result);
         });
     }
 
 
+    //Once the index is taken, the value is proposed and committed at it,
+    //as followers apply entries only after all the entries before them are committed.
     private CompletableFuture<PaxosResult> doPaxos(byte[] value, CompletionCallback<ExecuteCommandResponse> callback) {
-        return doPaxos(promisedGeneration, logIndex.getAndIncrement(), value, callback);
+        return runToCompletion(() -> doPaxos(promisedGeneration, logIndex.getAndIncrement(), value, callback));
     }
 
     private CompletableFuture<PaxosResult> doPaxos(MonotonicId monotonicId, int index, byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
@@ -161,7 +172,7 @@ public class MultiPaxos extends Replica {
                 .thenCompose(proposedValue -> {
                     //Once the index at which the command is committed reaches 'high-watermark', return the result.
                     if (proposedValue == initialValue) {
-                        requestWaitingList.add(index, callback);
+                        awaitResponse(index, callback);
                     }
                     return sendCommitRequest(index, proposedValue, monotonicId)
                             .thenApply(r -> new PaxosResult(Optional.of(proposedValue), true));
@@ -186,8 +197,11 @@ public class MultiPaxos extends Replica {
     public void leaderElection() {
         logger.info(getName() + " triggering election");
         heartbeatChecker.stop();
+        var event = new LeaderElectionEvent();
+        event.begin();
         //if future completes successfully, phase1 is complete and this node can be the leader.
         runElection().whenCompleteAsync((result, throwable) -> {
+            electionCompleted(event, throwable == null);
             if (throwable == null) {
                 logger.info(getName() + " is leader for " + promisedGeneration);
                 this.isLeader = true;
@@ -198,6 +212,16 @@ public class MultiPaxos extends Replica {
         }, singularUpdateQueueExecutor);
     }
 
+    private void electionCompleted(LeaderElectionEvent event, boolean elected) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.replica = getName();
+            event.generation = String.valueOf(promisedGeneration);
+            event.elected = elected;
+            event.commit();
+        }
+    }
+
     public CompletableFuture<Void> runElection() {
         logger.info(getName() + " triggering election.");
 
@@ -209,7 +233,8 @@ public class MultiPaxos extends Replica {
             for (FullLogPrepareResponse promise : promises) {
                 mergeLog(promise);
             }
-            return sendProposalRequestsForUnCommittedEntries();
+            //catching up the followers is background work, as no client is waiting for it.
+            return inBackground(() -> sendProposalRequestsForUnCommittedEntries());
         });
     }
 
@@ -307,9 +332,11 @@ public class MultiPaxos extends Replica {
 
     private void addAndApply(int index, byte[] walEnty) {
         Command command = Command.deserialize(walEnty);
+        appliedIndex = Math.max(appliedIndex, index);
         if (command instanceof SetValueCommand) {
             SetValueCommand setValueCommand = (SetValueCommand) command;
             kv.put(setValueCommand.getKey(), setValueCommand.getValue());
+            Trace.mark(Trace.Stage.APPLIED);
             requestWaitingList.handleResponse(index, new ExecuteCommandResponse(Optional.of(setValueCommand.getValue()), true));
 
         }
@@ -378,4 +405,14 @@ public class MultiPaxos extends Replica {
     public boolean isLeader() {
         return role == ServerRole.Leader;
     }
+
+    @Override
+    protected void describe(ConsensusSection consensus) {
+        consensus.role(role)
+                .epoch(promisedGeneration)
+                .log(paxosLog, paxosState -> paxosState.committedValue().isPresent())
+                .appliedIndex(appliedIndex)
+                .detail("nextLogIndex", logIndex.get())
+                .detail("pendingClientRequests", requestWaitingList.getPendingLocalRequests());
+    }
 }
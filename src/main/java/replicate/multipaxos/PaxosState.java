@@ -1,5 +1,6 @@
 package replicate.multipaxos;
 
+import replicate.common.MemoryAccountant;
 import replicate.common.MonotonicId;
 
 import java.util.Optional;
@@ -23,4 +24,9 @@ public record PaxosState(Optional<MonotonicId> acceptedGeneration,
     public PaxosState commit(MonotonicId generation, Optional<byte[]> value) {
         return new PaxosState(Optional.of(generation), value, value, Optional.of(generation));
     }
-}
\ No newline at end of file
+
+    //estimated memory held by the log entry. The accepted and committed values are usually the same array.
+    public long sizeInBytes() {
+        return MemoryAccountant.ENTRY_OVERHEAD_BYTES + Math.max(acceptedValue.map(v -> v.length).orElse(0), committedValue.map(v -> v.length).orElse(0));
+    }
+}
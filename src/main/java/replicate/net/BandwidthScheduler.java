@@ -0,0 +1,206 @@
+package replicate.net;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicate.common.MemoryAccountant;
+import replicate.common.RequestOrResponse;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the bandwidth to each peer between foreground traffic, which clients are waiting for,
+ * and background traffic, like read repair, log recovery or state transfer after a view change.
+ *
+ * Each peer has two token buckets, both measured in bytes.
+ *  - The link bucket, refilled at bytesPerSecond, which is the bandwidth to the peer.
+ *  - The background bucket, refilled at backgroundShare * bytesPerSecond.
+ * Foreground messages are always sent immediately, and take their bytes from the link bucket.
+ * Background messages are sent if the link bucket has tokens, which means the link is idle, or
+ * else if the background bucket has tokens, which is their guaranteed share.
+ * Otherwise they wait in a queue per peer, till one of the buckets is refilled.
+ *
+ * So background traffic uses the idle capacity of the link, but under foreground load is limited
+ * to its share, and does not delay foreground messages on the same connection.
+ * A message can take more bytes than a bucket has, leaving it in debt, so that large messages
+ * (e.g. a whole log) are not held back for ever.
+ *
+ * Background messages can reach the peer after foreground messages sent later,
+ * so only messages which do not depend on the order of delivery should be sent as background.
+ */
+public class BandwidthScheduler {
+    private static Logger logger = LogManager.getLogger(BandwidthScheduler.class);
+    //size of the bursts allowed, in the time to refill the buckets.
+    private static final double BURST_SECONDS = 0.1;
+
+    public enum TrafficClass {
+        FOREGROUND, BACKGROUND
+    }
+
+    @FunctionalInterface
+    public interface Sender {
+        void send(InetAddressAndPort address, RequestOrResponse message) throws IOException;
+    }
+
+    private final long bytesPerSecond;
+    private final double backgroundShare;
+    private final Sender sender;
+    private final ScheduledExecutorService executor;
+    private final MemoryAccountant memoryAccountant;
+    private final Map<InetAddressAndPort, PeerBandwidth> peers = new ConcurrentHashMap<>();
+    private final LongAdder backgroundMessagesDelayed = new LongAdder();
+
+    public BandwidthScheduler(long bytesPerSecond, double backgroundShare, Sender sender, ScheduledExecutorService executor, MemoryAccountant memoryAccountant) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.backgroundShare = backgroundShare;
+        this.sender = sender;
+        this.executor = executor;
+        this.memoryAccountant = memoryAccountant;
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSecond == Long.MAX_VALUE;
+    }
+
+    public void send(InetAddressAndPort address, RequestOrResponse message, TrafficClass trafficClass) throws IOException {
+        if (isUnlimited()) {
+            sender.send(address, message);
+            return;
+        }
+        PeerBandwidth peer = peers.computeIfAbsent(address, PeerBandwidth::new);
+        long messageBytes = sizeOf(message);
+        if (trafficClass == TrafficClass.FOREGROUND) {
+            peer.foregroundSent(messageBytes);
+            sender.send(address, message);
+            return;
+        }
+        if (peer.tryBackground(messageBytes)) {
+            sender.send(address, message);
+            return;
+        }
+        peer.queue(message, messageBytes);
+    }
+
+    private static long sizeOf(RequestOrResponse message) {
+        return MemoryAccountant.ENTRY_OVERHEAD_BYTES + message.getMessageBodyJson().length;
+    }
+
+    public int getQueuedBackgroundMessages(InetAddressAndPort address) {
+        PeerBandwidth peer = peers.get(address);
+        return peer == null ? 0 : peer.queuedMessages();
+    }
+
+    public long getBackgroundMessagesDelayed() {
+        return backgroundMessagesDelayed.sum();
+    }
+
+    private class PeerBandwidth {
+        private final InetAddressAndPort address;
+        private final double linkCapacity = bytesPerSecond * BURST_SECONDS;
+        private final double backgroundCapacity = linkCapacity * backgroundShare;
+        private double linkTokens = linkCapacity;
+        private double backgroundTokens = backgroundCapacity;
+        private long lastRefillNanos = System.nanoTime();
+        private final ArrayDeque<QueuedMessage> backgroundQueue = new ArrayDeque<>();
+        private boolean drainScheduled = false;
+
+        PeerBandwidth(InetAddressAndPort address) {
+            this.address = address;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+            linkTokens = Math.min(linkCapacity, linkTokens + elapsedSeconds * bytesPerSecond);
+            backgroundTokens = Math.min(backgroundCapacity, backgroundTokens + elapsedSeconds * bytesPerSecond * backgroundShare);
+            lastRefillNanos = now;
+        }
+
+        //The debt is bounded, so that a burst of foreground traffic does not hold background traffic
+        //to its share for longer than a burst.
+        synchronized void foregroundSent(long messageBytes) {
+            refill();
+            linkTokens = Math.max(-linkCapacity, linkTokens - messageBytes);
+        }
+
+        //Messages queued earlier go first.
+        synchronized boolean tryBackground(long messageBytes) {
+            return backgroundQueue.isEmpty() && takeBackgroundTokens(messageBytes);
+        }
+
+        private boolean takeBackgroundTokens(long messageBytes) {
+            refill();
+            if (linkTokens > 0) {
+                linkTokens -= messageBytes;
+                return true;
+            }
+            if (backgroundTokens > 0) {
+                backgroundTokens -= messageBytes;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void queue(RequestOrResponse message, long messageBytes) {
+            backgroundMessagesDelayed.increment();
+            memoryAccountant.reserve(MemoryAccountant.Component.DELAYED_SENDS, messageBytes);
+            backgroundQueue.add(new QueuedMessage(message, messageBytes));
+            scheduleDrain();
+        }
+
+        //Called with the lock held.
+        private void scheduleDrain() {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+            executor.schedule(this::drain, nanosTillTokens(), TimeUnit.NANOSECONDS);
+        }
+
+        //Time till either of the buckets is out of debt.
+        private long nanosTillTokens() {
+            double linkSeconds = -linkTokens / bytesPerSecond;
+            double backgroundSeconds = backgroundShare > 0 ? -backgroundTokens / (bytesPerSecond * backgroundShare) : linkSeconds;
+            double seconds = Math.max(0, Math.min(linkSeconds, backgroundSeconds));
+            return (long) (seconds * 1_000_000_000) + 1;
+        }
+
+        private void drain() {
+            while (true) {
+                QueuedMessage next;
+                synchronized (this) {
+                    drainScheduled = false;
+                    next = backgroundQueue.peek();
+                    if (next == null) {
+                        return;
+                    }
+                    if (!takeBackgroundTokens(next.messageBytes)) {
+                        scheduleDrain();
+                        return;
+                    }
+                    backgroundQueue.poll();
+                    drainScheduled = true; //sending outside the lock, no other drain till done.
+                }
+                memoryAccountant.release(MemoryAccountant.Component.DELAYED_SENDS, next.messageBytes);
+                try {
+                    sender.send(address, next.message);
+                } catch (IOException | RuntimeException e) {
+                    //the rest of the queue is still sent, so a failing send does not stall the peer.
+                    logger.error("Communication failure sending background message to " + address, e);
+                }
+            }
+        }
+
+        synchronized int queuedMessages() {
+            return backgroundQueue.size();
+        }
+    }
+
+    private record QueuedMessage(RequestOrResponse message, long messageBytes) {
+    }
+}
@@ -10,24 +10,58 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
-public class NIOConnection implements ClientConnection, Logging {
+public class NIOConnection implements ClientConnection, OrderedDispatcher.FlowControl, Logging {
     private static final Logger LOG = LogManager.getLogger(NIOConnection.class);
 
     private SocketChannel sock;
     private SelectionKey sk;
     private NIOSocketListener server;
-    private boolean closed;
+    private volatile boolean closed;
     private BoundedByteBufferReceive receive = null;
     LinkedBlockingQueue<ByteBuffer> outgoingBuffers = new LinkedBlockingQueue<ByteBuffer>();
     private RequestConsumer requestConsumer;
-    public NIOConnection(SocketChannel sock, SelectionKey sk, NIOSocketListener server, RequestConsumer consumer) {
+    //Frames of this connection are decoded and handed over to the consumer in the order they are received.
+    private final Executor executor;
+    private final MemoryAccountant memoryAccountant;
+    //Set by the dispatcher threads. Applied to the interest ops on the selector thread.
+    private volatile boolean readPaused = false;
+
+    public NIOConnection(SocketChannel sock, SelectionKey sk, NIOSocketListener server, RequestConsumer consumer, OrderedDispatcher dispatcher, MemoryAccountant memoryAccountant) {
+        this.memoryAccountant = memoryAccountant;
         this.sock = sock;
         this.sk = sk;
         this.server = server;
         this.requestConsumer = consumer;
+        this.executor = dispatcher.newSerialExecutor(this);
+    }
+
+    //Stops reading frames while too many are waiting to be dispatched.
+    @Override
+    public void pause() {
+        readPaused = true;
+        server.requestInterestOpsChange(this);
+    }
+
+    @Override
+    public void resume() {
+        readPaused = false;
+        server.requestInterestOpsChange(this);
+    }
+
+    //Only called on the selector thread. Reads unless paused, and writes while responses are waiting.
+    void updateInterestOps() {
+        if (closed || !sk.isValid()) {
+            return;
+        }
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ)
+                | (outgoingBuffers.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        try {
+            sk.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            //closed.
+        }
     }
 
     void doIO(SelectionKey selectionKey) throws InterruptedException {
@@ -43,12 +77,13 @@ public class NIOConnection implements ClientConnection, Logging {
                 if (outgoingBuffers.size() > 0) {
                     long bytesSent = sock.write(outgoingBuffers.toArray(ByteBuffer[]::new));
                     for (ByteBuffer outgoingBuffer : outgoingBuffers) {
-                        if (!outgoingBuffer.hasRemaining()) {
-                            outgoingBuffers.remove(outgoingBuffer);
+                        if (!outgoingBuffer.hasRemaining() && outgoingBuffers.remove(outgoingBuffer)) {
+                            memoryAccountant.release(MemoryAccountant.Component.OUTGOING_BUFFERS, outgoingBuffer.capacity());
                         }
                     }
+                    //a response added after this check requests OP_WRITE again.
                     if (outgoingBuffers.isEmpty()) {
-                        selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_WRITE));
+                        updateInterestOps();
                     }
                 }
             }
@@ -61,8 +96,6 @@ public class NIOConnection implements ClientConnection, Logging {
         }
     }
 
-    Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
     private void read(SelectionKey key) throws Exception {
         var socketChannel = (SocketChannel)key.channel();
         if (receive == null) {
@@ -72,23 +105,24 @@ public class NIOConnection implements ClientConnection, Logging {
         if (bytesRead < 0) {
             close();
         } else if (receive.complete) {
-            RequestOrResponse deserialize = JsonSerDes.deserialize(receive.contentBuffer.flip().array(), RequestOrResponse.class);
-            RequestOrResponse request = deserialize;
-
-            //TODO:submit request
-            //requestChannel.sendRequest(new RequestWrapper(id, request, key));
-            MessageId messageId = MessageId.valueOf(request.getRequestId());
-            //submit for execution.
-            var header = new Message.Header(request.getFromAddress(), request.getCorrelationId(), messageId);
-            executor.execute(()-> requestConsumer.accept(new Message<RequestOrResponse>(request, header, this)));
+            byte[] frame = receive.contentBuffer.flip().array();
+            //decoded off the selector thread, but in the order the frames are received.
+            executor.execute(() -> dispatch(frame));
             receive = null; //ready to read next request.
         } else {
             // more reading to be done
-            getLogger().trace("Did not finish reading, registering for read again on connection " + socketChannel.getRemoteAddress());
-            key.interestOps(SelectionKey.OP_READ);
+            //the key stays registered for reads, unless the connection is paused.
+            getLogger().trace("Did not finish reading on connection " + socketChannel.getRemoteAddress());
         }
     }
 
+    private void dispatch(byte[] frame) {
+        RequestOrResponse request = JsonSerDes.deserialize(frame, RequestOrResponse.class);
+        MessageId messageId = MessageId.valueOf(request.getRequestId());
+        var header = new Message.Header(request.getFromAddress(), request.getCorrelationId(), messageId);
+        requestConsumer.accept(new Message<RequestOrResponse>(request, header, this));
+    }
+
     @Override
     public void close() {
         if (closed) {
@@ -101,6 +135,7 @@ public class NIOConnection implements ClientConnection, Logging {
         if (requestConsumer != null) {
             requestConsumer.close(this);
         }
+        releaseOutgoingBuffers();
 
 
         try {
@@ -147,11 +182,24 @@ public class NIOConnection implements ClientConnection, Logging {
     //<codeFragment name="nioClientConnectionWrite">
     @Override
     public void write(RequestOrResponse response) {
+        if (closed) {
+            return; //nobody to read the response.
+        }
         ByteBuffer responseBuffer = serializeResponse(response);
+        memoryAccountant.reserve(MemoryAccountant.Component.OUTGOING_BUFFERS, responseBuffer.capacity());
         outgoingBuffers.add(responseBuffer);
-        sk.selector().wakeup();
-        if (sk.isValid()) {
-            sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
+        if (closed) {
+            releaseOutgoingBuffers(); //closed while the response was being added.
+            return;
+        }
+        server.requestInterestOpsChange(this);
+    }
+
+    //Responses which could not be written before the connection closed.
+    private void releaseOutgoingBuffers() {
+        ByteBuffer outgoingBuffer;
+        while ((outgoingBuffer = outgoingBuffers.poll()) != null) {
+            memoryAccountant.release(MemoryAccountant.Component.OUTGOING_BUFFERS, outgoingBuffer.capacity());
         }
     }
 
@@ -1,6 +1,7 @@
 package replicate.net;
 
 import replicate.common.Logging;
+import replicate.common.MemoryAccountant;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -9,14 +10,28 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class NIOSocketListener extends Thread implements Logging {
     private final ServerSocketChannel ss;
     private final Selector selector;
     private final RequestConsumer requestConsumer;
+    //shared by all the connections accepted by this listener.
+    private final OrderedDispatcher dispatcher;
+    //accounts for the responses buffered in the connections.
+    private final MemoryAccountant memoryAccountant;
+    //Connections whose interest ops are to be changed. The interest ops of a key are changed
+    //only on the selector thread, so changes made by other threads do not overwrite each other.
+    private final Queue<NIOConnection> interestOpsChanges = new ConcurrentLinkedQueue<>();
 
     public NIOSocketListener(RequestConsumer requestConsumer, InetAddressAndPort listenAddress) throws IOException {
+        this(requestConsumer, listenAddress, MemoryAccountant.unbounded());
+    }
+
+    public NIOSocketListener(RequestConsumer requestConsumer, InetAddressAndPort listenAddress, MemoryAccountant memoryAccountant) throws IOException {
         this.requestConsumer = requestConsumer;
+        this.memoryAccountant = memoryAccountant;
+        this.dispatcher = new OrderedDispatcher("listener-" + listenAddress.getPort());
         this.selector = Selector.open();
         this.ss = ServerSocketChannel.open();
         ss.socket().bind(new InetSocketAddress(listenAddress.getAddress(), listenAddress.getPort()));
@@ -29,6 +44,7 @@ public class NIOSocketListener extends Thread implements Logging {
         while (!ss.socket().isClosed()) {
             try {
                 selector.select(1000);
+                applyInterestOpsChanges();
                 Set<SelectionKey> selected;
                 synchronized (this) {
                     selected = selector.selectedKeys();
@@ -58,13 +74,26 @@ public class NIOSocketListener extends Thread implements Logging {
         }
     }
 
+    //Called by any thread, e.g. a dispatcher thread pausing a connection, or a thread writing a response.
+    void requestInterestOpsChange(NIOConnection cnxn) {
+        interestOpsChanges.add(cnxn);
+        selector.wakeup();
+    }
+
+    private void applyInterestOpsChanges() {
+        NIOConnection cnxn;
+        while ((cnxn = interestOpsChanges.poll()) != null) {
+            cnxn.updateInterestOps();
+        }
+    }
+
     private void addCnxn(NIOConnection cnxn) {
         this.cnxns.add(cnxn);
     }
 
     protected NIOConnection createConnection(SocketChannel sock,
                                              SelectionKey sk) throws IOException {
-        return new NIOConnection(sock, sk, this, requestConsumer);
+        return new NIOConnection(sock, sk, this, requestConsumer, dispatcher, memoryAccountant);
     }
 
 
@@ -75,6 +104,7 @@ public class NIOSocketListener extends Thread implements Logging {
             clear();
             this.interrupt();
             this.join();
+            dispatcher.shutdown();
         } catch (InterruptedException e) {
             getLogger().warn("Interrupted",e);
         } catch (Exception e) {
@@ -0,0 +1,149 @@
+package replicate.net;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches the frames received on connections to a fixed pool of threads shared
+ * by all the connections of a listener.
+ * Each connection gets a serial executor. The tasks of a connection are executed one at a time,
+ * in the order they were submitted, while tasks of different connections run in parallel.
+ *
+ * connection1: [f1][f2][f3] ---\
+ *                               +--> pool threads (bounded)
+ * connection2: [f1][f2]     ---/
+ *
+ * A serial executor runs at most maxTasksPerRun tasks before giving the thread to
+ * other connections, so a busy connection can not starve others.
+ *
+ * The queue of a connection is bounded by back pressure. Once maxQueuedTasks tasks are waiting,
+ * the connection is asked to pause, i.e. to stop reading from its socket, and it is resumed
+ * once half of them are executed. A peer sending faster than its frames are handled
+ * is then slowed down by TCP flow control, instead of its frames piling up in memory.
+ */
+public class OrderedDispatcher {
+    private static final Logger logger = LogManager.getLogger(OrderedDispatcher.class);
+    private static final int maxTasksPerRun = 64;
+    static final int maxQueuedTasks = 1024;
+
+    //Implemented by the connections to stop and restart reading frames.
+    public interface FlowControl {
+        FlowControl NONE = new FlowControl() {
+            @Override
+            public void pause() {
+            }
+
+            @Override
+            public void resume() {
+            }
+        };
+
+        void pause();
+
+        void resume();
+    }
+
+    private final ExecutorService pool;
+
+    public OrderedDispatcher(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    public OrderedDispatcher(String name, int noOfThreads) {
+        AtomicInteger threadNo = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(noOfThreads, r -> {
+            Thread thread = new Thread(r, name + "-dispatcher-" + threadNo.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Executor newSerialExecutor() {
+        return newSerialExecutor(FlowControl.NONE);
+    }
+
+    public Executor newSerialExecutor(FlowControl flowControl) {
+        return new SerialExecutor(flowControl);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private class SerialExecutor implements Executor, Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicInteger queued = new AtomicInteger();
+        private final FlowControl flowControl;
+        private boolean paused = false; //guarded by the lock.
+
+        SerialExecutor(FlowControl flowControl) {
+            this.flowControl = flowControl;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (queued.incrementAndGet() >= maxQueuedTasks) {
+                pause();
+            }
+            scheduleIfNeeded();
+        }
+
+        //pause and resume both check the queued tasks and the paused flag under the lock.
+        //A task executed while a pause is in progress then either sees it paused, and resumes it,
+        //or decrements the count before the pause checks it, and the connection is not paused.
+        private synchronized void pause() {
+            if (!paused && queued.get() >= maxQueuedTasks) {
+                paused = true;
+                flowControl.pause();
+            }
+        }
+
+        private synchronized void resume() {
+            if (paused && queued.get() <= maxQueuedTasks / 2) {
+                paused = false;
+                flowControl.resume();
+            }
+        }
+
+        private void scheduleIfNeeded() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false); //dispatcher is shutdown.
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < maxTasksPerRun; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        logger.error("Failed to dispatch frame", t);
+                    }
+                    if (queued.decrementAndGet() <= maxQueuedTasks / 2) {
+                        resume();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                //tasks added while running, or left after maxTasksPerRun.
+                scheduleIfNeeded();
+            }
+        }
+    }
+}
@@ -13,7 +13,8 @@ import java.net.Socket;
 
 public class SocketClient<T> implements Closeable {
     private static Logger logger = LogManager.getLogger(SocketClient.class.getName());
-    private final int readTimeoutMs = 5000;
+    public static final int READ_TIMEOUT_MS = 5000;
+    private final int readTimeoutMs = READ_TIMEOUT_MS;
 
     Socket clientSocket;
 
@@ -35,7 +36,7 @@ public class SocketClient<T> implements Closeable {
             dataStream.write(messageBytes);
             dataStream.flush();
         } catch (IOException e) {
-            new RuntimeException(e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -1,17 +1,51 @@
 package replicate.net.requestwaitinglist;
 
+import replicate.common.MessageId;
+import replicate.common.RequestContext;
+import replicate.net.InetAddressAndPort;
+
 import java.time.Duration;
+import java.util.Optional;
 
-class CallbackDetails {
-    RequestCallback requestCallback;
+class CallbackDetails<T> {
+    RequestCallback<T> requestCallback;
     long createTimeNanos;
+    //Set only for requests sent to a peer, for which the timeout is derived from the round trip times.
+    Duration timeout;
+    InetAddressAndPort peer;
+    MessageId messageId;
+    //context of the request on whose behalf the response is awaited, if any.
+    Optional<RequestContext> context = Optional.empty();
+    //memory reserved for the entry with the MemoryAccountant.
+    long reservedBytes;
 
-    public CallbackDetails(RequestCallback requestCallback, long createTimeNanos) {
+    public CallbackDetails(RequestCallback<T> requestCallback, long createTimeNanos) {
         this.requestCallback = requestCallback;
         this.createTimeNanos = createTimeNanos;
     }
 
-    public RequestCallback getRequestCallback() {
+    CallbackDetails<T> withContext(Optional<RequestContext> context) {
+        this.context = context;
+        return this;
+    }
+
+    //Nobody is waiting for the response once the request has expired or is cancelled.
+    boolean isAbandoned() {
+        return context.map(RequestContext::isExpired).orElse(false);
+    }
+
+    public CallbackDetails(RequestCallback<T> requestCallback, long createTimeNanos, Duration timeout, InetAddressAndPort peer, MessageId messageId) {
+        this(requestCallback, createTimeNanos);
+        this.timeout = timeout;
+        this.peer = peer;
+        this.messageId = messageId;
+    }
+
+    boolean isSentToPeer() {
+        return peer != null;
+    }
+
+    public RequestCallback<T> getRequestCallback() {
         return requestCallback;
     }
 
@@ -22,4 +56,17 @@ class CallbackDetails {
     boolean isExpired(Duration timeout, long nowNanos) {
         return elapsedTimeNanos(nowNanos) >= timeout.toNanos();
     }
+
+    //requests without a timeout of their own use the default timeout of the waiting list.
+    boolean isExpired(long nowNanos, Duration defaultTimeout) {
+        return isExpired(timeout == null ? defaultTimeout : timeout, nowNanos) || isAbandoned();
+    }
+
+    void onResponse(T response, InetAddressAndPort fromNode) {
+        RequestContext.runWithin(context, () -> requestCallback.onResponse(response, fromNode));
+    }
+
+    void onError(Exception e) {
+        RequestContext.runWithin(context, () -> requestCallback.onError(e));
+    }
 }
@@ -2,6 +2,9 @@ package replicate.net.requestwaitinglist;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import replicate.common.MemoryAccountant;
+import replicate.common.MessageId;
+import replicate.common.RequestContext;
 import replicate.common.SystemClock;
 import replicate.net.InetAddressAndPort;
 
@@ -11,7 +14,9 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -70,26 +75,93 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 public class RequestWaitingList<Key, Response> {
     private static Logger logger = LogManager.getLogger(RequestWaitingList.class);
 
-    private Map<Key, CallbackDetails> pendingRequests = new ConcurrentHashMap<>();
+    private Map<Key, CallbackDetails<Response>> pendingRequests = new ConcurrentHashMap<>();
     private InetAddressAndPort NONE;
 
+    //Entries added while handling a request, expire at the deadline of the request
+    //or when it is cancelled, and their callbacks are invoked within its context.
+    //@see RequestContext
     public void add(Key key, RequestCallback<Response> callback) {
         long now = clock.nanoTime();
         logger.debug("RequestWaitingList adding " + key + " at " + now);
-        pendingRequests.put(key, new CallbackDetails(callback, now));
+        addPending(key, new CallbackDetails<>(callback, now).withContext(RequestContext.current()), 0);
+    }
+
+    //The request sent to the peer expires after the timeout derived from the
+    //round trip times of earlier requests of the same type to the peer.
+    //@see RttEstimator
+    public void add(Key key, RequestCallback<Response> callback, InetAddressAndPort peer, MessageId messageId) {
+        add(key, callback, peer, messageId, 0);
+    }
+
+    //The bytes of the request are accounted for, as the callback typically holds on to the request state.
+    public void add(Key key, RequestCallback<Response> callback, InetAddressAndPort peer, MessageId messageId, long requestBytes) {
+        long now = clock.nanoTime();
+        Duration timeout = rttEstimator.timeoutFor(peer, messageId);
+        logger.debug("RequestWaitingList adding " + key + " at " + now + " with timeout " + timeout.toMillis() + "ms");
+        addPending(key, new CallbackDetails<>(callback, now, timeout, peer, messageId).withContext(RequestContext.current()), requestBytes);
+    }
+
+    private void addPending(Key key, CallbackDetails<Response> callbackDetails, long requestBytes) {
+        callbackDetails.reservedBytes = MemoryAccountant.ENTRY_OVERHEAD_BYTES + requestBytes;
+        memoryAccountant.reserve(MemoryAccountant.Component.PENDING_REQUESTS, callbackDetails.reservedBytes);
+        released(pendingRequests.put(key, callbackDetails));
+    }
+
+    //Every entry removed from the pending requests releases its memory.
+    private CallbackDetails<Response> released(CallbackDetails<Response> callbackDetails) {
+        if (callbackDetails != null) {
+            memoryAccountant.release(MemoryAccountant.Component.PENDING_REQUESTS, callbackDetails.reservedBytes);
+        }
+        return callbackDetails;
     }
 
     private SystemClock clock;
-    private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledExecutorService executor;
+    //cancelled on close, as the executor can be shared with other waiting lists.
+    private final ScheduledFuture<?> expiryTask;
     private Duration expirationDuration; //do not expire for now.
+    private final RttEstimator rttEstimator;
+    private final MemoryAccountant memoryAccountant;
+    private final LongAdder expiredRequests = new LongAdder();
+    private final LongAdder abandonedRequests = new LongAdder();
+
     public RequestWaitingList(SystemClock clock) {
         this(clock, Duration.ofMillis(1000)); //TODO: Keeping this as 1
         // second occasionally expires some get requests and fails read-repair tests
     }
     public RequestWaitingList(SystemClock clock, Duration duration) {
+        this(clock, duration, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    //Waiting lists of replication groups hosted in the same process share the expiry executor.
+    public RequestWaitingList(SystemClock clock, Duration duration, ScheduledExecutorService executor) {
+        this(clock, duration, executor, MemoryAccountant.unbounded());
+    }
+
+    public RequestWaitingList(SystemClock clock, Duration duration, ScheduledExecutorService executor, MemoryAccountant memoryAccountant) {
+        this(clock, duration, executor, new RttEstimator(duration, duration, duration), memoryAccountant);
+    }
+
+    public RequestWaitingList(SystemClock clock, Duration duration, ScheduledExecutorService executor, RttEstimator rttEstimator) {
+        this(clock, duration, executor, rttEstimator, MemoryAccountant.unbounded());
+    }
+
+    public RequestWaitingList(SystemClock clock, Duration duration, ScheduledExecutorService executor, RttEstimator rttEstimator, MemoryAccountant memoryAccountant) {
         this.expirationDuration = duration;
+        this.memoryAccountant = memoryAccountant;
         this.clock = clock;
-        executor.scheduleWithFixedDelay(this::expire, expirationDuration.toMillis(), expirationDuration.toMillis(), MILLISECONDS);
+        this.executor = executor;
+        this.rttEstimator = rttEstimator;
+        //checked often enough to expire requests with the smallest timeout in time,
+        //but not more often than every millisecond, e.g. for a sub-millisecond floor.
+        long checkIntervalMs = Math.max(1, Math.min(expirationDuration.toMillis(), rttEstimator.getMinTimeout().toMillis()));
+        this.expiryTask = executor.scheduleWithFixedDelay(this::expire, checkIntervalMs, checkIntervalMs, MILLISECONDS);
+    }
+
+    //Stops expiring the pending requests. The executor is not shut down, as it may be shared.
+    public void close() {
+        expiryTask.cancel(false);
     }
 
     private void expire() {
@@ -99,13 +171,25 @@ public class RequestWaitingList<Key, Response> {
         }
         logger.info("Expiring " + expiredRequestKeys);
         expiredRequestKeys.stream().forEach(expiredRequestKey -> {
-            CallbackDetails cb = pendingRequests.remove(expiredRequestKey);
-            cb.requestCallback.onError(new TimeoutException("Request expired"));
+            CallbackDetails<Response> cb = released(pendingRequests.remove(expiredRequestKey));
+            if (cb == null) {
+                return; //response received in the meanwhile.
+            }
+            if (cb.isAbandoned()) {
+                abandonedRequests.increment();
+                cb.onError(cb.context.get().toException());
+                return;
+            }
+            expiredRequests.increment();
+            if (cb.isSentToPeer()) {
+                rttEstimator.onTimeout(cb.peer, cb.messageId);
+            }
+            cb.onError(new TimeoutException("Request expired"));
         });
     }
 
     private List<Key> getExpiredRequestKeys() {
-        return pendingRequests.entrySet().stream().filter(entry -> entry.getValue().isExpired(this.expirationDuration, clock.nanoTime())).map(e -> e.getKey()).collect(Collectors.toList());
+        return pendingRequests.entrySet().stream().filter(entry -> entry.getValue().isExpired(clock.nanoTime(), this.expirationDuration)).map(e -> e.getKey()).collect(Collectors.toList());
     }
 
     public void handleResponse(Key key, Response response) {
@@ -113,8 +197,11 @@ public class RequestWaitingList<Key, Response> {
             return;
         }
         logger.debug("RequestWaitingList received response for " + key + " at " + clock.nanoTime());
-        CallbackDetails callbackDetails = pendingRequests.remove(key);
-        callbackDetails.getRequestCallback().onResponse(response, NONE);//TODO:Possibly use Optional
+        CallbackDetails<Response> callbackDetails = released(pendingRequests.remove(key));
+        if (callbackDetails == null) {
+            return;
+        }
+        callbackDetails.onResponse(response, NONE);//TODO:Possibly use Optional
 
     }
 
@@ -124,14 +211,49 @@ public class RequestWaitingList<Key, Response> {
         if (!pendingRequests.containsKey(key)) {
             return;
         }
-        CallbackDetails callbackDetails = pendingRequests.remove(key);
-        callbackDetails.getRequestCallback().onResponse(response, fromNode);
+        CallbackDetails<Response> callbackDetails = released(pendingRequests.remove(key));
+        if (callbackDetails == null) {
+            return;
+        }
+        if (callbackDetails.isSentToPeer()) {
+            rttEstimator.onResponse(callbackDetails.peer, callbackDetails.messageId, callbackDetails.elapsedTimeNanos(clock.nanoTime()));
+        }
+        callbackDetails.onResponse(response, fromNode);
+
+    }
 
+    //Requests which timed out waiting for the response.
+    public long getExpiredRequests() {
+        return expiredRequests.sum();
+    }
+
+    //Requests which were no longer waited for, as the client request had expired or was cancelled.
+    public long getAbandonedRequests() {
+        return abandonedRequests.sum();
+    }
+
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    //Requests not sent to a peer, e.g. client requests waiting for their log entry to be committed.
+    public long getPendingLocalRequests() {
+        return pendingRequests.values().stream().filter(c -> !c.isSentToPeer()).count();
+    }
+
+    //Requests waiting for a response from each peer. Requests not sent to a peer are not counted.
+    public Map<InetAddressAndPort, Long> getPendingRequestsByPeer() {
+        return pendingRequests.values().stream()
+                .filter(CallbackDetails::isSentToPeer)
+                .collect(Collectors.groupingBy(c -> c.peer, Collectors.counting()));
     }
 
     public void handleError(int requestId, Exception e) {
-        CallbackDetails callbackDetails = pendingRequests.remove(requestId);
-        callbackDetails.getRequestCallback().onError(e);
+        CallbackDetails<Response> callbackDetails = released(pendingRequests.remove(requestId));
+        if (callbackDetails == null) {
+            return; //expired in the meanwhile.
+        }
+        callbackDetails.onError(e);
     }
 
 }
@@ -0,0 +1,117 @@
+package replicate.net.requestwaitinglist;
+
+import replicate.common.MessageId;
+import replicate.common.MetricsRegistry;
+import replicate.net.InetAddressAndPort;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks round trip times of requests to each peer, per message type,
+ * and derives the timeout for the next request, as TCP does for retransmission timeouts (RFC 6298).
+ *
+ *  first sample R:  SRTT = R, RTTVAR = R/2
+ *  next samples R:  RTTVAR = 3/4 * RTTVAR + 1/4 * |SRTT - R|
+ *                   SRTT = 7/8 * SRTT + 1/8 * R
+ *  timeout = SRTT + 4 * RTTVAR, bounded by the floor and the ceiling.
+ *
+ * Until there is a sample, the initial timeout is used.
+ * Unlike TCP, the timeout is not doubled when a request times out. A quorum round waiting
+ * for a dead peer would then wait longer on every retry. Timed out requests are
+ * not used as samples either (Karn's algorithm), they are only counted.
+ * So requests to dead peers fail fast, while slow but healthy peers are given more time.
+ */
+public class RttEstimator {
+    private final Duration initialTimeout;
+    private final Duration minTimeout;
+    private final Duration maxTimeout;
+    private final Map<RttKey, Rtt> rtts = new ConcurrentHashMap<>();
+    //round trip times and timeouts of each message type, across all the peers.
+    private final MetricsRegistry metrics;
+
+    public RttEstimator(Duration initialTimeout, Duration minTimeout, Duration maxTimeout) {
+        this(initialTimeout, minTimeout, maxTimeout, new MetricsRegistry());
+    }
+
+    public RttEstimator(Duration initialTimeout, Duration minTimeout, Duration maxTimeout, MetricsRegistry metrics) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.metrics = metrics;
+    }
+
+    public Duration timeoutFor(InetAddressAndPort peer, MessageId messageId) {
+        Rtt rtt = rtts.get(new RttKey(peer, messageId));
+        if (rtt == null) {
+            return initialTimeout;
+        }
+        return Duration.ofNanos(rtt.timeoutNanos());
+    }
+
+    public void onResponse(InetAddressAndPort peer, MessageId messageId, long rttNanos) {
+        rtts.computeIfAbsent(new RttKey(peer, messageId), k -> new Rtt()).addSample(rttNanos);
+        metrics.histogram("peer.rtt", messageId).record(rttNanos);
+    }
+
+    public void onTimeout(InetAddressAndPort peer, MessageId messageId) {
+        rtts.computeIfAbsent(new RttKey(peer, messageId), k -> new Rtt()).timedOut();
+        metrics.counter("peer.timeouts", messageId).increment();
+    }
+
+    public Duration smoothedRtt(InetAddressAndPort peer, MessageId messageId) {
+        Rtt rtt = rtts.get(new RttKey(peer, messageId));
+        return rtt == null ? Duration.ZERO : Duration.ofNanos(rtt.srttNanos);
+    }
+
+    public long timeouts(InetAddressAndPort peer, MessageId messageId) {
+        Rtt rtt = rtts.get(new RttKey(peer, messageId));
+        return rtt == null ? 0 : rtt.timeouts;
+    }
+
+    //The slowest of the message types sent to the peer.
+    public Duration smoothedRtt(InetAddressAndPort peer) {
+        long srttNanos = rtts.entrySet().stream()
+                .filter(e -> e.getKey().peer().equals(peer))
+                .mapToLong(e -> e.getValue().srttNanos).max().orElse(0);
+        return Duration.ofNanos(srttNanos);
+    }
+
+    public long timeouts(InetAddressAndPort peer) {
+        return rtts.entrySet().stream()
+                .filter(e -> e.getKey().peer().equals(peer))
+                .mapToLong(e -> e.getValue().timeouts).sum();
+    }
+
+    public Duration getMinTimeout() {
+        return minTimeout;
+    }
+
+    private record RttKey(InetAddressAndPort peer, MessageId messageId) {}
+
+    private class Rtt {
+        long srttNanos = 0;
+        long rttVarNanos = 0;
+        long timeouts = 0;
+
+        synchronized void addSample(long rttNanos) {
+            if (srttNanos == 0) {
+                srttNanos = rttNanos;
+                rttVarNanos = rttNanos / 2;
+            } else {
+                rttVarNanos = (3 * rttVarNanos + Math.abs(srttNanos - rttNanos)) / 4;
+                srttNanos = (7 * srttNanos + rttNanos) / 8;
+            }
+        }
+
+        synchronized void timedOut() {
+            timeouts++;
+        }
+
+        synchronized long timeoutNanos() {
+            long timeout = srttNanos == 0 ? initialTimeout.toNanos() : srttNanos + 4 * rttVarNanos;
+            return Math.min(Math.max(timeout, minTimeout.toNanos()), maxTimeout.toNanos());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package replicate.paxos;
 
+import replicate.common.MemoryAccountant;
 import replicate.common.MonotonicId;
 
 import java.util.Optional;
@@ -53,4 +54,9 @@ public record PaxosState(
     public boolean canPromise(MonotonicId generation) {
         return generation.isAfter(this.promisedGeneration);
     }
-}
\ No newline at end of file
+
+    //estimated memory held by the log entry. The accepted and committed values are usually the same array.
+    public long sizeInBytes() {
+        return MemoryAccountant.ENTRY_OVERHEAD_BYTES + Math.max(acceptedValue.map(v -> v.length).orElse(0), committedValue.map(v -> v.length).orElse(0));
+    }
+}
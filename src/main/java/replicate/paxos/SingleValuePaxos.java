@@ -121,12 +121,12 @@ public class SingleValuePaxos extends Replica {
 
     private CompletableFuture<Optional<String>> doPaxos(byte[] value) {
         int maxAttempts = 2;
-        return FutureUtils.retryWithRandomDelay(() -> {
+        return retryWithBackoff(() -> {
             //Each retry with higher generation/epoch
             MonotonicId newGeneration = new MonotonicId(lastKnownGeneration.incrementAndGet(),
                     serverId);
             return doPaxos(newGeneration, value);
-        }, maxAttempts, singularUpdateQueueExecutor).thenApply(result -> result.value);
+        }, maxAttempts).thenApply(result -> result.value);
 
     }
 
@@ -147,10 +147,10 @@ public class SingleValuePaxos extends Replica {
     private CompletableFuture<PaxosResult> doPaxos(MonotonicId newGeneration, byte[] value) {
         logger.info(getName() + ": Sending Prepare with " + newGeneration);
         return prepare(newGeneration)
-                .thenCompose((result) ->
-                        proposeValue(newGeneration, value, result))
-                .thenCompose(acceptedValue ->
-                        commitValue(newGeneration, acceptedValue));
+                .thenCompose((result) -> runToCompletion(() ->
+                        proposeValue(newGeneration, value, result)
+                                .thenCompose(acceptedValue ->
+                                        commitValue(newGeneration, acceptedValue))));
     }
 
     private CompletableFuture<PaxosResult> commitValue(MonotonicId monotonicId, byte[] acceptedValue) {
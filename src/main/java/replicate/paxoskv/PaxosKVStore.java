@@ -78,26 +78,24 @@ public class PaxosKVStore extends Replica {
     int serverId = 1;
     private CompletableFuture<SingleValuePaxos.PaxosResult> doPaxos(String key, String value) {
         int maxAttempts = 5;
-        return FutureUtils.retryWithRandomDelay(() -> {
+        return retryWithBackoff(() -> {
             //Each retry with higher generation/epoch
             MonotonicId monotonicId = new MonotonicId(maxKnownPaxosRoundId++, serverId);
             return doPaxos(monotonicId, key, new SetValueCommand(key, value == null?"":value).serialize());
-        }, maxAttempts, singularUpdateQueueExecutor);
+        }, maxAttempts);
     }
 
     private CompletableFuture<SingleValuePaxos.PaxosResult> doPaxos(MonotonicId monotonicId, String key, byte[] initialValue) {
         return sendPrepareRequest(key, monotonicId).
-                thenCompose((result) -> {
+                thenCompose((result) -> runToCompletion(() -> {
                     byte[] proposedValue = getProposalValue(initialValue, result.values());
-                    return sendProposeRequest(key, proposedValue, monotonicId);
-
-                }).thenCompose(proposedValue -> {
-                    return sendCommitRequest(key, proposedValue, monotonicId)
+                    return sendProposeRequest(key, proposedValue, monotonicId)
+                            .thenCompose(v -> sendCommitRequest(key, proposedValue, monotonicId))
                             .thenApply(r -> {
-                                String result = execute(proposedValue);
-                                return new SingleValuePaxos.PaxosResult(Optional.ofNullable(result), true);
+                                String value = execute(proposedValue);
+                                return new SingleValuePaxos.PaxosResult(Optional.ofNullable(value), true);
                             });
-                });
+                }));
     }
 
     private String execute(byte[] proposedValue) {
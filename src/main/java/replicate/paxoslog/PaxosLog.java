@@ -3,8 +3,8 @@ package replicate.paxoslog;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import replicate.common.*;
+import replicate.diagnostics.ConsensusSection;
 import replicate.net.InetAddressAndPort;
-import replicate.net.requestwaitinglist.RequestWaitingList;
 import replicate.paxos.PaxosState;
 import replicate.paxos.messages.CommitResponse;
 import replicate.paxos.messages.GetValueResponse;
@@ -33,17 +33,23 @@ public class PaxosLog extends Replica {
     //Paxos State
     //THIS HAS TO BE DURABLE.. Homework. Make paxosLog durable.
     //Solution: Use DurableKVStore instead of a TreeMap
-    Map<Integer, PaxosState> paxosLog = new TreeMap<>();
+    Map<Integer, PaxosState> paxosLog = newAccountedLog(new TreeMap<>(), PaxosState::sizeInBytes);
 
     Map<String, String> kv = new HashMap<>();
 
     private final SetValueCommand NO_OP_COMMAND = new SetValueCommand("", "");
     int serverId;
-    RequestWaitingList requestWaitingList;
+    //highest log index applied to the kv.
+    int appliedIndex = -1;
     public PaxosLog(String name, SystemClock clock, Config config, InetAddressAndPort clientAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peers) throws IOException {
         super(name, config, clock, clientAddress, peerConnectionAddress, peers);
         this.serverId = config.getServerId();
-        requestWaitingList = new RequestWaitingList(clock);
+    }
+
+    //one of the many replication groups hosted by the ReplicaGroupHost.
+    public PaxosLog(String name, Config config, SystemClock clock, ReplicaGroupHost host, int groupId) {
+        super(name, config, clock, host, groupId);
+        this.serverId = config.getServerId();
     }
 
 
@@ -106,11 +112,13 @@ public class PaxosLog extends Replica {
     AtomicInteger logIndex = new AtomicInteger(0);
 
     public CompletableFuture<PaxosResult> append(int index, byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
+        var context = RequestContext.current();
         CompletableFuture<PaxosResult> appendFuture = doPaxos(index, initialValue, callback);
         return appendFuture.thenCompose((result)->{
            if (result.value.stream().allMatch(v -> v != initialValue)) {
                logger.info("Could not append proposed value to " + logIndex + ". Trying next index");
-               return append(logIndex.incrementAndGet(), initialValue, callback);
+               //a new round, only if the request is still waited for.
+               return RequestContext.callWithin(context, () -> append(logIndex.incrementAndGet(), initialValue, callback));
            }
            return CompletableFuture.completedFuture(result);
         });
@@ -118,32 +126,32 @@ public class PaxosLog extends Replica {
 
     private CompletableFuture<PaxosResult> doPaxos(int index, byte[] value, CompletionCallback<ExecuteCommandResponse> callback) {
         int maxAttempts = 2;
-        return FutureUtils.retryWithRandomDelay(() -> {
+        return retryWithBackoff(() -> {
             //Each retry with higher generation/epoch
             MonotonicId newGeneration = new MonotonicId(maxKnownPaxosRoundId.incrementAndGet(),
                     serverId);
             CompletableFuture<PaxosResult> result = doPaxos(newGeneration,
                     index, value, callback);
             return result;
-        }, maxAttempts, singularUpdateQueueExecutor);
+        }, maxAttempts);
     }
 
     private CompletableFuture<PaxosResult> doPaxos(MonotonicId monotonicId, int index, byte[] initialValue, CompletionCallback<ExecuteCommandResponse> callback) {
         return sendPrepareRequest(index, monotonicId).
-                thenCompose((result) -> {
+                thenCompose((result) -> runToCompletion(() -> {
                     byte[] proposedValue = getProposalValue(index, initialValue, result.values());
                     logger.debug(getName() + " proposing " + Command.deserialize(proposedValue) + " for index " + index + " Initial value is " + Command.deserialize(initialValue));
-                    return sendProposeRequest(index, proposedValue, monotonicId);
-
-                }).thenCompose(proposedValue -> {
-                    //Once the index at which the command is committed
-                    // reaches 'high-watermark', return the result.
-                    if (proposedValue == initialValue) {
-                        requestWaitingList.add(index, callback);
-                    }
-                    return sendCommitRequest(index, proposedValue, monotonicId)
-                            .thenApply(r -> new PaxosResult(Optional.of(proposedValue), true));
-                });
+                    return sendProposeRequest(index, proposedValue, monotonicId)
+                            .thenCompose(v -> {
+                                //Once the index at which the command is committed
+                                // reaches 'high-watermark', return the result.
+                                if (proposedValue == initialValue) {
+                                    awaitResponse(index, callback);
+                                }
+                                return sendCommitRequest(index, proposedValue, monotonicId)
+                                        .thenApply(r -> new PaxosResult(Optional.of(proposedValue), true));
+                            });
+                }));
     }
 
 
@@ -224,6 +232,7 @@ public class PaxosLog extends Replica {
 
     private void addAndApply(int index, byte[] logEntry) {
         var command = Command.deserialize(logEntry);
+        appliedIndex = Math.max(appliedIndex, index);
         if (command instanceof SetValueCommand) {
             SetValueCommand setValueCommand = (SetValueCommand)command;
             kv.put(setValueCommand.getKey(), setValueCommand.getValue());
@@ -280,4 +289,14 @@ public class PaxosLog extends Replica {
     public String getValue(String title) {
         return kv.get(title);
     }
+
+    //There is no leader, every log index is agreed on by a separate Paxos round.
+    @Override
+    protected void describe(ConsensusSection consensus) {
+        consensus.epoch(maxKnownPaxosRoundId.get())
+                .log(paxosLog, paxosState -> paxosState.committedValue().isPresent())
+                .appliedIndex(appliedIndex)
+                .detail("nextLogIndex", logIndex.get())
+                .detail("pendingClientRequests", requestWaitingList.getPendingLocalRequests());
+    }
 }
@@ -0,0 +1,133 @@
+package replicate.pipeline;
+
+import replicate.common.MetricsRegistry;
+import replicate.singularupdatequeue.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Staged event-driven pipeline (SEDA). A request goes through a chain of stages,
+ * each with its own thread and bounded queue, e.g.
+ *
+ *   decode -> sequence -> persist -> replicate -> apply -> respond
+ *
+ * Every stage handles one request at a time, in the order the requests were submitted,
+ * so the order of the requests is kept end to end. But different stages work on
+ * different requests at the same time. While the persist stage forces request n+1
+ * to the WAL, request n can be waiting for the quorum and request n-1 applied.
+ * With a single update thread, as in Replica, all of these are done one request after the other.
+ *
+ * Asynchronous stages return a future, and the stage moves on to the next request
+ * while it is pending. @see PipelineStage
+ * The futures of an async stage must complete, e.g. with a timeout, because the later
+ * requests are forwarded only after them.
+ *
+ * A request failing in a stage is not passed on to the later stages, and the future returned
+ * from submit completes with the failure. Metrics of each stage are registered as
+ * pipeline.[metric].[pipeline].[stage].
+ */
+public class Pipeline<In, Out> {
+    private final String name;
+    private final List<PipelineStage> stages;
+
+    private Pipeline(String name, List<PipelineStage> stages) {
+        this.name = name;
+        this.stages = stages;
+    }
+
+    public static <T> Builder<T, T> builder(String name, MetricsRegistry metrics) {
+        return new Builder<>(name, metrics, new ArrayList<>());
+    }
+
+    //Waits if the queue of the first stage is full.
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Out> submit(In request) {
+        var item = new PipelineItem(request);
+        stages.get(0).submit(item);
+        return (CompletableFuture<Out>) (CompletableFuture<?>) item.result;
+    }
+
+    //Requests queued or in flight fail with IllegalStateException, as do the requests submitted after.
+    public void shutdown() {
+        stages.forEach(PipelineStage::shutdown);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<PipelineStage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    public static class Builder<In, Out> {
+        private static final int DEFAULT_CAPACITY = 1024;
+        private static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+        private final String name;
+        private final MetricsRegistry metrics;
+        private final List<StageSpec> stageSpecs;
+        private int capacity = DEFAULT_CAPACITY;
+        private WaitStrategy waitStrategy = WaitStrategy.parking();
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+        private Builder(String name, MetricsRegistry metrics, List<StageSpec> stageSpecs) {
+            this.name = name;
+            this.metrics = metrics;
+            this.stageSpecs = stageSpecs;
+        }
+
+        private record StageSpec(String name, Function<Object, Object> handler, boolean async) {
+        }
+
+        @SuppressWarnings("unchecked")
+        public <Next> Builder<In, Next> stage(String stageName, Function<Out, Next> handler) {
+            stageSpecs.add(new StageSpec(stageName, (Function<Object, Object>) handler, false));
+            return (Builder<In, Next>) this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <Next> Builder<In, Next> asyncStage(String stageName, Function<Out, CompletableFuture<Next>> handler) {
+            stageSpecs.add(new StageSpec(stageName, (Function<Object, Object>) (Function<?, ?>) handler, true));
+            return (Builder<In, Next>) this;
+        }
+
+        //Queue capacity of every stage.
+        public Builder<In, Out> withCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder<In, Out> withWaitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        //Requests handled by a stage before it checks for new ones.
+        public Builder<In, Out> withMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Pipeline<In, Out> build() {
+            if (stageSpecs.isEmpty()) {
+                throw new IllegalStateException("Pipeline " + name + " has no stages");
+            }
+            List<PipelineStage> stages = new ArrayList<>();
+            for (StageSpec spec : stageSpecs) {
+                var stage = new PipelineStage(name, spec.name(), spec.handler(), spec.async(), capacity, waitStrategy, maxBatchSize);
+                stage.registerMetrics(metrics, name + "." + spec.name());
+                if (!stages.isEmpty()) {
+                    stages.get(stages.size() - 1).setNext(stage);
+                }
+                stages.add(stage);
+            }
+            stages.forEach(PipelineStage::start);
+            return new Pipeline<>(name, stages);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package replicate.pipeline;
+
+import java.util.concurrent.CompletableFuture;
+
+//A request moving through the stages of a Pipeline. value is the output of the last stage it went through.
+class PipelineItem {
+    Object value;
+    final CompletableFuture<Object> result = new CompletableFuture<>();
+    long enqueuedNanos;
+
+    PipelineItem(Object value) {
+        this.value = value;
+    }
+
+    void fail(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+}
@@ -0,0 +1,228 @@
+package replicate.pipeline;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicate.common.LatencyHistogram;
+import replicate.common.MetricsRegistry;
+import replicate.singularupdatequeue.MpscRingBuffer;
+import replicate.singularupdatequeue.WaitStrategy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * One stage of a Pipeline, with its own thread and bounded queue.
+ *
+ * The handler of a synchronous stage runs on the thread of the stage, and its output
+ * is passed to the next stage. The handler of an asynchronous stage only starts the work,
+ * e.g. sending a message to the peers, and returns a future. The thread moves on to the
+ * next item, while the future is pending. The pending futures are kept in the order of the items,
+ * and the thread of the stage forwards the outputs at the head once they complete, so the outputs
+ * are still passed to the next stage in the order of the items.
+ * The thread completing a future only wakes up the stage.
+ *
+ * Passing an item to the next stage waits while its queue is full, so a slow stage
+ * slows down the stages before it, instead of its queue growing without a bound.
+ * Only the threads of the stages wait, never the threads completing the futures.
+ *
+ * Items queued or in flight when the stage is shut down fail with IllegalStateException.
+ */
+public class PipelineStage {
+    private static final Logger logger = LogManager.getLogger(PipelineStage.class);
+    //an async item which failed, and is not forwarded.
+    private static final Object FAILED = new Object();
+    //queued when an async item completes, to wake up the thread of the stage.
+    private static final PipelineItem WAKE_UP = new PipelineItem(null);
+
+    private final String name;
+    private final Function<Object, Object> handler;
+    private final boolean async;
+    private final MpscRingBuffer<PipelineItem> queue;
+    private final int maxBatchSize;
+    private final Thread thread;
+    private volatile boolean running = true;
+    //set by the thread of the stage once it stops, before it fails the items left in the queue.
+    private volatile boolean terminated = false;
+    private PipelineStage next;
+    //async items, in the order they were processed. Only used on the thread of the stage.
+    private final ArrayDeque<InFlightItem> inFlight = new ArrayDeque<>();
+
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    PipelineStage(String pipelineName, String name, Function<Object, Object> handler, boolean async,
+                  int capacity, WaitStrategy waitStrategy, int maxBatchSize) {
+        this.name = name;
+        this.handler = handler;
+        this.async = async;
+        this.queue = new MpscRingBuffer<>(capacity, waitStrategy);
+        this.maxBatchSize = maxBatchSize;
+        this.thread = new Thread(this::run, pipelineName + "-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void setNext(PipelineStage next) {
+        this.next = next;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+    }
+
+    void submit(PipelineItem item) {
+        if (!running) {
+            item.fail(shutdownException());
+            return;
+        }
+        item.enqueuedNanos = System.nanoTime();
+        queue.put(item);
+        if (terminated) {
+            //the thread might have failed the queued items before this one was published.
+            item.fail(shutdownException());
+        }
+    }
+
+    private void run() {
+        while (running) {
+            forwardCompleted();
+            queue.drain(this::process, maxBatchSize, () -> running);
+        }
+        terminated = true;
+        inFlight.forEach(inFlightItem -> inFlightItem.item().fail(shutdownException()));
+        inFlight.clear();
+        queue.drainClaimed(this::process);
+    }
+
+    private void process(PipelineItem item) {
+        if (item == WAKE_UP || item.result.isDone()) {
+            return; //failed or cancelled in an earlier stage.
+        }
+        if (!running) {
+            item.fail(shutdownException());
+            return;
+        }
+        long startNanos = System.nanoTime();
+        waitTime.record(startNanos - item.enqueuedNanos);
+        if (async) {
+            processAsync(item, startNanos);
+            return;
+        }
+        Object output;
+        try {
+            output = handler.apply(item.value);
+        } catch (RuntimeException e) {
+            serviceTime.recordSince(startNanos);
+            failed(item, e);
+            return;
+        }
+        serviceTime.recordSince(startNanos);
+        processed.increment();
+        forward(item, output);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processAsync(PipelineItem item, long startNanos) {
+        CompletableFuture<Object> future;
+        try {
+            future = (CompletableFuture<Object>) handler.apply(item.value);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<Object> output = future.handle((result, throwable) -> {
+            serviceTime.recordSince(startNanos);
+            if (throwable != null) {
+                failed(item, throwable instanceof CompletionException ? throwable.getCause() : throwable);
+                return FAILED;
+            }
+            processed.increment();
+            return result;
+        });
+        inFlight.add(new InFlightItem(item, output));
+        output.thenRun(() -> {
+            //if the queue is full, the thread forwards the completed items after draining it anyway.
+            if (Thread.currentThread() != thread) {
+                queue.offer(WAKE_UP);
+            }
+        });
+    }
+
+    //Forwards the outputs of the async items at the head, which have completed.
+    private void forwardCompleted() {
+        while (!inFlight.isEmpty() && inFlight.peek().output().isDone()) {
+            InFlightItem head = inFlight.poll();
+            Object result = head.output().join();
+            if (result != FAILED) {
+                forward(head.item(), result);
+            }
+        }
+    }
+
+    private record InFlightItem(PipelineItem item, CompletableFuture<Object> output) {
+    }
+
+    private IllegalStateException shutdownException() {
+        return new IllegalStateException("Pipeline stage " + name + " is shut down");
+    }
+
+    private void failed(PipelineItem item, Throwable throwable) {
+        failed.increment();
+        logger.debug("Stage " + name + " failed for " + item.value, throwable);
+        item.fail(throwable);
+    }
+
+    private void forward(PipelineItem item, Object output) {
+        item.value = output;
+        if (next == null) {
+            item.result.complete(output);
+        } else {
+            next.submit(item);
+        }
+    }
+
+    void registerMetrics(MetricsRegistry metrics, String tag) {
+        metrics.gauge("pipeline.queueDepth", tag, queue::size);
+        metrics.register("pipeline.waitTime", tag, waitTime);
+        metrics.register("pipeline.serviceTime", tag, serviceTime);
+        metrics.gauge("pipeline.processed", tag, processed::sum);
+        metrics.gauge("pipeline.failed", tag, failed::sum);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    //time the items waited in the queue of the stage.
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    //time taken by the handler, or for async stages, till the future completed.
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+}
@@ -62,6 +62,8 @@ public class QuorumKVStore extends Replica {
         Config configWithSystemWalDir = makeNewConfigWithSystemWalDir(config);
         this.systemStorage = new DurableKVStore(configWithSystemWalDir);
         this.durableStore = new DurableKVStore(config);
+        this.systemStorage.registerMetrics(getMetrics(), "systemStorage");
+        this.durableStore.registerMetrics(getMetrics(), "durableStore");
         this.generation = incrementAndGetGeneration();
         this.clientState = new ClientState(clock);
     }
@@ -42,7 +42,8 @@ class ReadRepairer {
             var requestCallback = new CompletionCallback();
             logger.info("Sending read repair request to " + nodesHavingStaleValue + ":" + latestStoredValue.value);
             responseFutures.add(requestCallback.getFuture());
-            replica.sendMessageToReplica(requestCallback, nodesHavingStaleValue, writeRequest);
+            //repair writes are throttled to the background share of the bandwidth to the node.
+            replica.runInBackground(() -> replica.sendMessageToReplica(requestCallback, nodesHavingStaleValue, writeRequest));
         }
         if (isAsyncRepair) {
             return CompletableFuture.completedFuture(latestStoredValue); //complete immidiately.
@@ -23,6 +23,7 @@ public class QuorumConsensus extends Replica {
     public QuorumConsensus(String name, Config config, SystemClock clock, InetAddressAndPort clientConnectionAddress, InetAddressAndPort peerConnectionAddress, boolean doSyncReadRepair, List<InetAddressAndPort> peers) throws IOException {
         super(name, config, clock,clientConnectionAddress, peerConnectionAddress, peers);
         this.durableStore = new DurableKVStore(config);
+        this.durableStore.registerMetrics(getMetrics(), "durableStore");
     }
 
     @Override
@@ -37,7 +37,8 @@ class ReadRepairer {
         var requestCallback = new AsyncQuorumCallback<String>(nodesHavingStaleValues.size());
         for (InetAddressAndPort nodesHavingStaleValue : nodesHavingStaleValues) {
             logger.info("Sending read repair request to " + nodesHavingStaleValue + ":" + latestStoredValue.getValue());
-            replica.sendMessageToReplica(requestCallback, nodesHavingStaleValue, writeRequest);
+            //repair writes are throttled to the background share of the bandwidth to the node.
+            replica.runInBackground(() -> replica.sendMessageToReplica(requestCallback, nodesHavingStaleValue, writeRequest));
         }
         return requestCallback.getQuorumFuture()
                 .thenApply((result) -> latestStoredValue);
@@ -2,43 +2,86 @@ package replicate.singularupdatequeue;
 
 import replicate.common.Logging;
 
-import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
+/**
+ * Singular update queue as an actor. Requests go to the mailbox of the actor,
+ * and the actor is scheduled on a thread pool shared by all the actors, only while
+ * there are requests in its mailbox. So there can be many more actors than threads,
+ * e.g. an actor for every account, as in SingleThreadedAccount, with each account
+ * still updated by one request at a time.
+ *
+ * An activation handles up to throughput requests, and then the actor schedules itself again,
+ * behind the actors already waiting for the pool. So a busy actor does not keep others
+ * from running, and the pool threads never block waiting for requests.
+ * A higher throughput has fewer activations, but makes other actors wait longer.
+ *
+ * Requests are rejected with MailboxFullException when the mailbox is full.
+ */
 //<codeFragment name = "queue">
 public class ActorLikeSingularUpdateQueue<Req, Res> implements Runnable, Logging {
-    private ArrayBlockingQueue<RequestWrapper<Req, Res>> workQueue
-            = new ArrayBlockingQueue<RequestWrapper<Req, Res>>(100);
-    private Function<Req, Res> handler;
-    private volatile boolean isRunning = false;
+    private final Queue<RequestWrapper<Req, Res>> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mailboxSize = new AtomicInteger();
+    private final Function<Req, Res> handler;
+    private volatile boolean isRunning = true;
     //</codeFragment>
 
-    static Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_THROUGHPUT = 16;
+    public static final int DEFAULT_MAILBOX_CAPACITY = 10_000;
+
+    //Shared by all the actors, unless they are given their own executor. A FIFO queue,
+    //so the actors are scheduled in the order they got requests.
+    static final Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "actor-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Executor dispatcher;
+    private final int throughput;
+    private final int mailboxCapacity;
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder activations = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
 
     public ActorLikeSingularUpdateQueue(Function<Req, Res> handler) {
+        this(handler, executor, DEFAULT_THROUGHPUT, DEFAULT_MAILBOX_CAPACITY);
+    }
+
+    public ActorLikeSingularUpdateQueue(Function<Req, Res> handler, Executor dispatcher, int throughput, int mailboxCapacity) {
         this.handler = handler;
+        this.dispatcher = dispatcher;
+        this.throughput = throughput;
+        this.mailboxCapacity = mailboxCapacity;
     }
-    volatile AtomicBoolean isScheduled = new AtomicBoolean(false);
 
     //<codeFragment name = "submit">
     public CompletableFuture<Res> submit(Req request) {
-        try {
-            var requestWrapper = new RequestWrapper<Req, Res>(request);
-            workQueue.put(requestWrapper);
-            registerForExecution();
-            return requestWrapper.getFuture();
+        if (!isRunning) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Actor is shut down"));
         }
-        catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        if (mailboxSize.incrementAndGet() > mailboxCapacity) {
+            mailboxSize.decrementAndGet();
+            rejected.increment();
+            return CompletableFuture.failedFuture(new MailboxFullException(mailboxCapacity));
         }
+        var requestWrapper = new RequestWrapper<Req, Res>(request);
+        mailbox.offer(requestWrapper);
+        registerForExecution();
+        return requestWrapper.getFuture();
     }
 
     private void registerForExecution() {
-        if (!workQueue.isEmpty()) {
+        if (!mailbox.isEmpty()) {
             if (setAsScheduled()) {
-                executor.execute(this);
+                dispatcher.execute(this);
             }
         }
     }
@@ -51,49 +94,60 @@ public class ActorLikeSingularUpdateQueue<Req, Res> implements Runnable, Logging
     //<codeFragment name = "run">
     @Override
     public void run() {
+        activations.increment();
         try {
-            Optional<RequestWrapper<Req, Res>> item = take();
-            item.ifPresent(requestWrapper -> {
-                try {
-                    Res response = handler.apply(requestWrapper.getRequest());
-                    requestWrapper.complete(response);
-
-                } catch (Exception e) {
-                    requestWrapper.completeExceptionally(e);
+            for (int i = 0; i < throughput; i++) {
+                RequestWrapper<Req, Res> requestWrapper = mailbox.poll();
+                if (requestWrapper == null) {
+                    break;
                 }
-            });
+                mailboxSize.decrementAndGet();
+                processed.increment(); //before completing the request, so the stats include it.
+                handle(requestWrapper);
+            }
         } finally {
           isScheduled.set(false);
           registerForExecution();
         }
     }
     //</codeFragment>
-    //<codeFragment name = "take">
-    private Optional<RequestWrapper<Req, Res>> take() {
+
+    private void handle(RequestWrapper<Req, Res> requestWrapper) {
         try {
-            return Optional.ofNullable(workQueue.poll(300, TimeUnit.MILLISECONDS));
+            Res response = handler.apply(requestWrapper.getRequest());
+            requestWrapper.complete(response);
 
-        } catch (InterruptedException e) {
-            return Optional.empty();
+        } catch (Exception e) {
+            requestWrapper.completeExceptionally(e);
         }
     }
 
-
+    //Requests already in the mailbox are still handled.
     public void shutdown() {
         this.isRunning = false;
     }
 
-    //</codeFragment>
-
     public int taskCount() {
-        return workQueue.size();
+        return mailboxSize.get();
     }
 
     public boolean isRunning() {
         return isRunning;
     }
 
+    //Requests are handled once submitted, there is no thread to start.
     public void start() {
 
     }
+
+    public ActorStats getStats() {
+        return new ActorStats(processed.sum(), activations.sum(), rejected.sum(), mailboxSize.get());
+    }
+
+    public record ActorStats(long processed, long activations, long rejected, int mailboxSize) {
+        //Close to the throughput when the actor is busy, close to 1 when its requests trickle in.
+        public double processedPerActivation() {
+            return activations == 0 ? 0 : (double) processed / activations;
+        }
+    }
 }
@@ -0,0 +1,175 @@
+package replicate.singularupdatequeue;
+
+import replicate.common.Config;
+import replicate.common.LatencyHistogram;
+import replicate.common.Logging;
+import replicate.common.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Micro-batching of items, e.g. log entries to be forced to the WAL, or to be sent to the followers
+ * in a single message. Submitted items are collected by a single thread, and passed to the flusher
+ * as a batch, once the batch is full or once its oldest item has waited for the wait time.
+ *
+ * Fixed batch size and wait time are a trade off. A long wait collects big batches under heavy load,
+ * but delays every item when the load is light. Here the AimdBatchController adjusts both after every
+ * flush, from the observed batch latency: the batches grow while the latency is within the target,
+ * and shrink once it is not. When the items trickle in, the wait time drops to zero,
+ * and every item is flushed as soon as it is taken from the queue.
+ *
+ * The future returned from submit completes once the batch with the item is flushed,
+ * or with the failure of the flusher.
+ */
+public class AdaptiveBatcher<T> implements Logging {
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final MpscRingBuffer<Pending<T>> queue;
+    private final Consumer<List<T>> flusher;
+    private final AimdBatchController controller;
+    private final Thread thread;
+    private volatile boolean isRunning = false;
+    //set by the thread once it stops collecting batches, before it flushes the items left in the queue.
+    private volatile boolean isTerminated = false;
+
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedItems = new LongAdder();
+
+    private record Pending<T>(T item, long submittedNanos, CompletableFuture<Void> flushed) {
+    }
+
+    //Batch size, maximum wait time and target latency from the config.
+    public AdaptiveBatcher(String name, Config config, Consumer<List<T>> flusher) {
+        this(name, flusher, DEFAULT_CAPACITY,
+                new AimdBatchController(1, config.getMaxBatchSize(), config.getMaxBatchWaitTime(), config.getBatchTargetLatency()));
+    }
+
+    public AdaptiveBatcher(String name, Consumer<List<T>> flusher, int capacity, AimdBatchController controller) {
+        this.queue = new MpscRingBuffer<>(capacity, WaitStrategy.parking());
+        this.flusher = flusher;
+        this.controller = controller;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        isRunning = true;
+        thread.start();
+    }
+
+    //Items already submitted are flushed before it returns.
+    public void shutdown() {
+        isRunning = false;
+        if (Thread.currentThread() == thread) {
+            return; //called by the flusher.
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Waits for a free slot, if the queue is full.
+    public CompletableFuture<Void> submit(T item) {
+        if (!isRunning) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Batcher is not running"));
+        }
+        var pending = new Pending<>(item, System.nanoTime(), new CompletableFuture<>());
+        queue.put(pending);
+        if (isTerminated) {
+            //the thread might have flushed the last items before this one was published.
+            pending.flushed().completeExceptionally(new IllegalStateException("Batcher is not running"));
+        }
+        return pending.flushed();
+    }
+
+    private void run() {
+        List<Pending<T>> batch = new ArrayList<>();
+        while (isRunning) {
+            int batchSize = controller.getBatchSize();
+            queue.drain(batch::add, batchSize, () -> isRunning);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            long batchStart = System.nanoTime();
+            //An item which already waited in the queue for longer is flushed without waiting any more.
+            long deadline = batch.get(0).submittedNanos() + controller.getWaitNanos();
+            while (batch.size() < batchSize) {
+                if (queue.drainUntil(batch::add, batchSize - batch.size(), deadline) == 0) {
+                    break;
+                }
+            }
+            flush(batch, batchStart);
+        }
+        isTerminated = true;
+        queue.drainClaimed(batch::add);
+        if (!batch.isEmpty()) {
+            flush(batch, System.nanoTime());
+        }
+    }
+
+    //The latency is of the batching alone, the wait for the batch to fill and the flush.
+    //The time items were queued behind earlier batches is left out: it grows with the backlog,
+    //and smaller batches would only make the backlog longer.
+    private void flush(List<Pending<T>> batch, long batchStart) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item());
+        }
+        Exception failure = null;
+        try {
+            flusher.accept(items);
+        } catch (Exception e) {
+            getLogger().error("Flushing batch of " + items.size() + " failed", e);
+            failure = e;
+        }
+        long latency = System.nanoTime() - batchStart;
+        controller.onFlush(batch.size(), latency);
+        batchLatency.record(latency);
+        flushes.increment();
+        flushedItems.add(batch.size());
+        for (Pending<T> pending : batch) {
+            if (failure == null) {
+                pending.flushed().complete(null);
+            } else {
+                pending.flushed().completeExceptionally(failure);
+            }
+        }
+        batch.clear();
+    }
+
+    public void registerMetrics(MetricsRegistry metrics, String tag) {
+        metrics.gauge("batcher.queueDepth", tag, queue::size);
+        metrics.gauge("batcher.batchSize", tag, controller::getBatchSize);
+        metrics.gauge("batcher.waitNanos", tag, controller::getWaitNanos);
+        metrics.gauge("batcher.flushes", tag, flushes::sum);
+        metrics.gauge("batcher.flushedItems", tag, flushedItems::sum);
+        metrics.register("batcher.batchLatency", tag, batchLatency);
+    }
+
+    public AimdBatchController getController() {
+        return controller;
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getFlushedItems() {
+        return flushedItems.sum();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+}
@@ -0,0 +1,70 @@
+package replicate.singularupdatequeue;
+
+/**
+ * Additive increase, multiplicative decrease (AIMD) of the batch size and the batch wait time,
+ * as TCP does for its congestion window. The batch latency, from a batch being started
+ * to it being flushed, is compared against the target after every flush.
+ *
+ *  - Latency above the target: the batches are halved, and so is the wait time.
+ *  - A full batch within the target: items arrive faster than they are flushed,
+ *    so the batch size and the wait time grow by a step.
+ *  - A batch flushed partly full, when the wait time ran out: waiting does not collect
+ *    enough items to be worth it, so the wait time is halved. With light load it
+ *    quickly goes to zero, and items are flushed as soon as they arrive.
+ *
+ * Only the thread flushing the batches updates the controller.
+ */
+public class AimdBatchController {
+    private static final double DECREASE_FACTOR = 0.5;
+    //steps of the additive increase, as a fraction of the maximum.
+    private static final int INCREASE_STEPS = 16;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final long targetLatencyNanos;
+    private final int batchSizeStep;
+    private final long waitStepNanos;
+
+    private volatile int batchSize;
+    private volatile long waitNanos = 0;
+
+    public AimdBatchController(int minBatchSize, int maxBatchSize, long maxWaitNanos, long targetLatencyNanos) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize) {
+            throw new IllegalArgumentException("Invalid batch size bounds " + minBatchSize + ".." + maxBatchSize);
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWaitNanos;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.batchSizeStep = Math.max(1, maxBatchSize / INCREASE_STEPS);
+        this.waitStepNanos = Math.max(1, maxWaitNanos / INCREASE_STEPS);
+        this.batchSize = minBatchSize;
+    }
+
+    public void onFlush(int flushedItems, long latencyNanos) {
+        if (latencyNanos > targetLatencyNanos) {
+            batchSize = Math.max(minBatchSize, (int) (batchSize * DECREASE_FACTOR));
+            waitNanos = (long) (waitNanos * DECREASE_FACTOR);
+
+        } else if (flushedItems >= batchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+            waitNanos = Math.min(maxWaitNanos, waitNanos + waitStepNanos);
+
+        } else {
+            waitNanos = (long) (waitNanos * DECREASE_FACTOR);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getTargetLatencyNanos() {
+        return targetLatencyNanos;
+    }
+}
@@ -0,0 +1,14 @@
+package replicate.singularupdatequeue;
+
+/**
+ * A request to an actor whose mailbox is full. The request was not handled,
+ * so it can be retried once the actor has caught up.
+ * @see ActorLikeSingularUpdateQueue
+ */
+public class MailboxFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public MailboxFullException(int mailboxCapacity) {
+        super("Mailbox full with " + mailboxCapacity + " requests");
+    }
+}
@@ -0,0 +1,226 @@
+package replicate.singularupdatequeue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-producer single-consumer queue on a preallocated array, as in the LMAX Disruptor.
+ *
+ * Producers claim a sequence number with an atomic increment, and publish the item in the slot
+ * at (sequence % capacity) by writing the sequence to the published array.
+ * The consumer reads the slots in order, for as long as they are published, so it takes
+ * all the available items in one pass, without a lock and without allocating queue nodes.
+ * Unlike ArrayBlockingQueue, producers never contend with the consumer on a lock.
+ * The consumer moves its sequence past each item before handing it over, with a lazySet,
+ * so the slot is free while the item is handled, e.g. for the handler to put a follow up item.
+ *
+ *   consumerSequence        producerSequence
+ *          |                        |
+ *   ... [consumed] [published] [claimed, not yet published] [free] ...
+ *
+ * A claimed slot is free once the consumer has moved past the item held in it a lap earlier.
+ * Only one thread must consume from the buffer. It can not put to the buffer when it is full,
+ * as nobody else frees the slots it would wait for.
+ */
+public class MpscRingBuffer<E> {
+    private final Object[] entries;
+    //sequence of the item last published in each slot.
+    private final AtomicLongArray published;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    //last claimed by the producers.
+    private final PaddedSequence producerSequence = new PaddedSequence();
+    //last consumed.
+    private final PaddedSequence consumerSequence = new PaddedSequence();
+    //set by drain, which every consumer wait starts with.
+    private volatile Thread consumerThread;
+    private volatile boolean consumerWaiting = false;
+
+    public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive " + capacity);
+        }
+        int size = roundUpToPowerOfTwo(capacity);
+        this.entries = new Object[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    private static int roundUpToPowerOfTwo(int capacity) {
+        return capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    //Adds the item, if there is a free slot.
+    public boolean offer(E item) {
+        long current;
+        long next;
+        do {
+            current = producerSequence.get();
+            next = current + 1;
+            if (next - entries.length > consumerSequence.get()) {
+                return false;
+            }
+        } while (!producerSequence.compareAndSet(current, next));
+        publish(next, item);
+        return true;
+    }
+
+    //Adds the item, waiting for a free slot if the buffer is full.
+    //Throws if the consumer would wait for a slot only it can free.
+    public void put(E item) {
+        if (Thread.currentThread() == consumerThread) {
+            if (!offer(item)) {
+                throw new IllegalStateException("Consumer can not wait for a free slot in its own full buffer");
+            }
+            return;
+        }
+        long sequence = producerSequence.incrementAndGet();
+        int attempt = 0;
+        while (sequence - entries.length > consumerSequence.get()) {
+            waitStrategy.idle(attempt++);
+        }
+        publish(sequence, item);
+    }
+
+    private void publish(long sequence, E item) {
+        int index = (int) (sequence & mask);
+        entries[index] = item; //made visible to the consumer by the volatile write of the sequence.
+        published.set(index, sequence);
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Passes up to maxBatch available items to the handler, without waiting.
+     * If the handler throws, the items up to the failed one are consumed.
+     * @return the number of items consumed.
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<E> handler, int maxBatch) {
+        Thread current = Thread.currentThread();
+        if (consumerThread != current) {
+            consumerThread = current;
+        }
+        long consumed = consumerSequence.get(); //only written by the consumer.
+        int count = 0;
+        while (count < maxBatch) {
+            long next = consumed + 1;
+            int index = (int) (next & mask);
+            if (published.get(index) != next) {
+                break;
+            }
+            E item = (E) entries[index];
+            entries[index] = null;
+            consumed = next;
+            consumerSequence.lazySet(consumed); //frees the slot for the producers.
+            count++;
+            handler.accept(item);
+        }
+        return count;
+    }
+
+    /**
+     * Waits, with the WaitStrategy, until there are items to consume,
+     * then passes up to maxBatch of them to the handler.
+     * Returns 0 without consuming anything, once keepWaiting is false.
+     */
+    public int drain(Consumer<E> handler, int maxBatch, BooleanSupplier keepWaiting) {
+        int attempt = 0;
+        while (true) {
+            int drained = drain(handler, maxBatch);
+            if (drained > 0 || !keepWaiting.getAsBoolean()) {
+                return drained;
+            }
+            idle(attempt++);
+        }
+    }
+
+    /**
+     * Waits until there are items to consume, or until deadlineNanos (of System.nanoTime),
+     * then passes up to maxBatch of them to the handler.
+     * The consumer parks for the rest of the wait, whatever the WaitStrategy, and producers wake it up.
+     */
+    public int drainUntil(Consumer<E> handler, int maxBatch, long deadlineNanos) {
+        while (true) {
+            int drained = drain(handler, maxBatch);
+            long remaining = deadlineNanos - System.nanoTime();
+            if (drained > 0 || remaining <= 0) {
+                return drained;
+            }
+            consumerWaiting = true;
+            try {
+                if (isEmpty()) {
+                    LockSupport.parkNanos(remaining);
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Passes every claimed item to the handler, waiting for the producers to publish
+     * the items they have claimed but not yet published.
+     * For a consumer which stops, once no new items are put: drain stops at the first
+     * slot not yet published, and would leave the items published after it in the buffer.
+     */
+    public void drainClaimed(Consumer<E> handler) {
+        int attempt = 0;
+        while (size() > 0) {
+            if (drain(handler, Integer.MAX_VALUE) == 0) {
+                idle(attempt++);
+            }
+        }
+    }
+
+    //The consumer announces that it might park, before checking again for published items,
+    //so a producer publishing in between sees the flag and unparks it.
+    private void idle(int attempt) {
+        if (!waitStrategy.parksConsumer()) {
+            waitStrategy.idle(attempt);
+            return;
+        }
+        consumerWaiting = true;
+        try {
+            if (isEmpty()) {
+                waitStrategy.idle(attempt);
+            }
+        } finally {
+            consumerWaiting = false;
+        }
+    }
+
+    public boolean isEmpty() {
+        long next = consumerSequence.get() + 1;
+        return published.get((int) (next & mask)) != next;
+    }
+
+    //Includes the items claimed but not yet published.
+    public int size() {
+        return (int) (producerSequence.get() - consumerSequence.get());
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    //Keeps the producer and the consumer sequences on separate cache lines, so that
+    //claiming a slot does not invalidate the cache line the consumer reads, and the other way round.
+    @SuppressWarnings("unused")
+    private static class PaddedSequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        PaddedSequence() {
+            super(-1);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package replicate.singularupdatequeue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicate.common.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single threaded executor, like Executors.newSingleThreadScheduledExecutor, used as the singular update queue
+ * of a Replica. All the tasks are still executed one at a time on the same thread,
+ * but instead of a single FIFO queue, tasks are queued by their WorkClass.
+ *
+ *  - CONTROL tasks (heartbeats, election and view change messages) are executed first,
+ *    so that a burst of client requests does not delay them and trigger spurious elections.
+ *  - REPLICATION and CLIENT tasks share the thread in the ratio of their weights.
+ *
+ * Starvation protection:
+ *  - After maxConsecutiveControlTasks CONTROL tasks, one waiting task of the other classes is executed.
+ *  - A REPLICATION or CLIENT task waiting for more than maxQueueTime is executed before the other
+ *    of the two classes, irrespective of the weights.
+ *
+ * Tasks submitted through the plain ExecutorService methods (e.g. CompletableFuture continuations) are
+ * REPLICATION tasks. Scheduled tasks are queued in their WorkClass when their delay expires.
+ */
+public class PriorityUpdateQueueExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+    private static final Logger logger = LogManager.getLogger(PriorityUpdateQueueExecutor.class);
+
+    public enum WorkClass {
+        CONTROL, REPLICATION, CLIENT
+    }
+
+    //Only queues delayed tasks in the executors, so one thread is shared by all of them.
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "update-queue-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<WorkClass, ArrayDeque<QueuedTask>> queues = new EnumMap<>(WorkClass.class);
+    private final Map<WorkClass, QueueTimeStats> stats = new EnumMap<>(WorkClass.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Thread worker;
+
+    private final int replicationWeight;
+    private final int clientWeight;
+    private final long maxQueueTimeNanos;
+    private final int maxConsecutiveControlTasks;
+
+    //state of the weighted round robin. Only accessed with the lock held.
+    private int consecutiveControlTasks = 0;
+    private int replicationTasksInRound = 0;
+    private int clientTasksInRound = 0;
+
+    private volatile boolean shutdown = false;
+
+    public PriorityUpdateQueueExecutor(String name) {
+        this(name, 4, 1, 100, 64);
+    }
+
+    public PriorityUpdateQueueExecutor(String name, int replicationWeight, int clientWeight, long maxQueueTimeMs, int maxConsecutiveControlTasks) {
+        this.replicationWeight = replicationWeight;
+        this.clientWeight = clientWeight;
+        this.maxQueueTimeNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueTimeMs);
+        this.maxConsecutiveControlTasks = maxConsecutiveControlTasks;
+        for (WorkClass workClass : WorkClass.values()) {
+            queues.put(workClass, new ArrayDeque<>());
+            stats.put(workClass, new QueueTimeStats());
+        }
+        this.worker = new Thread(this::runTasks, "update-queue-" + name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void execute(WorkClass workClass, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Update queue is shutdown");
+            }
+            queues.get(workClass).add(new QueuedTask(task, System.nanoTime()));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public <T> Future<T> submit(WorkClass workClass, Callable<T> task) {
+        var futureTask = new FutureTask<>(task);
+        execute(workClass, futureTask);
+        return futureTask;
+    }
+
+    public Future<?> submit(WorkClass workClass, Runnable task) {
+        return submit(workClass, Executors.callable(task));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(WorkClass.REPLICATION, command);
+    }
+
+    private void runTasks() {
+        while (true) {
+            QueuedTask task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                if (shutdown) {
+                    return;
+                }
+                continue;
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                task.runnable.run();
+            } catch (Throwable t) {
+                logger.error("Task failed on " + worker.getName(), t);
+            }
+        }
+    }
+
+    //Returns null once the executor is shutdown and all the queued tasks are executed.
+    private QueuedTask take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                WorkClass next = nextWorkClass(System.nanoTime());
+                if (next != null) {
+                    QueuedTask task = queues.get(next).poll();
+                    stats.get(next).record(System.nanoTime() - task.queuedAtNanos);
+                    return task;
+                }
+                if (shutdown) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    WorkClass nextWorkClass(long nowNanos) {
+        boolean hasControl = !queues.get(WorkClass.CONTROL).isEmpty();
+        boolean hasReplication = !queues.get(WorkClass.REPLICATION).isEmpty();
+        boolean hasClient = !queues.get(WorkClass.CLIENT).isEmpty();
+        if (hasControl && (consecutiveControlTasks < maxConsecutiveControlTasks || (!hasReplication && !hasClient))) {
+            consecutiveControlTasks++;
+            return WorkClass.CONTROL;
+        }
+        consecutiveControlTasks = 0;
+        if (hasReplication && hasClient) {
+            return weightedChoice(nowNanos);
+        }
+        if (hasReplication) {
+            return WorkClass.REPLICATION;
+        }
+        if (hasClient) {
+            return WorkClass.CLIENT;
+        }
+        return null;
+    }
+
+    private WorkClass weightedChoice(long nowNanos) {
+        //starvation protection: the task waiting for too long goes first.
+        long replicationWait = nowNanos - queues.get(WorkClass.REPLICATION).peek().queuedAtNanos;
+        long clientWait = nowNanos - queues.get(WorkClass.CLIENT).peek().queuedAtNanos;
+        if (replicationWait > maxQueueTimeNanos || clientWait > maxQueueTimeNanos) {
+            return replicationWait >= clientWait ? WorkClass.REPLICATION : WorkClass.CLIENT;
+        }
+        if (replicationTasksInRound >= replicationWeight && clientTasksInRound >= clientWeight) {
+            replicationTasksInRound = 0;
+            clientTasksInRound = 0;
+        }
+        if (replicationTasksInRound < replicationWeight) {
+            replicationTasksInRound++;
+            return WorkClass.REPLICATION;
+        }
+        clientTasksInRound++;
+        return WorkClass.CLIENT;
+    }
+
+    public int queueSize(WorkClass workClass) {
+        lock.lock();
+        try {
+            return queues.get(workClass).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public QueueTimeStats getQueueTimeStats(WorkClass workClass) {
+        return stats.get(workClass);
+    }
+
+    /**
+     * Time spent by the tasks of a WorkClass in the queue, before being executed.
+     */
+    public static class QueueTimeStats {
+        private final LongAdder executed = new LongAdder();
+        private final LongAdder totalQueueTimeNanos = new LongAdder();
+        private final AtomicLong maxQueueTimeNanos = new AtomicLong();
+        private final LatencyHistogram queueTimeHistogram = new LatencyHistogram();
+
+        void record(long queueTimeNanos) {
+            executed.increment();
+            totalQueueTimeNanos.add(queueTimeNanos);
+            maxQueueTimeNanos.accumulateAndGet(queueTimeNanos, Math::max);
+            queueTimeHistogram.record(queueTimeNanos);
+        }
+
+        public long getExecuted() {
+            return executed.sum();
+        }
+
+        public long getAverageQueueTimeNanos() {
+            long count = executed.sum();
+            return count == 0 ? 0 : totalQueueTimeNanos.sum() / count;
+        }
+
+        public long getMaxQueueTimeNanos() {
+            return maxQueueTimeNanos.get();
+        }
+
+        public LatencyHistogram getQueueTimeHistogram() {
+            return queueTimeHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return "QueueTimeStats{" +
+                    "executed=" + getExecuted() +
+                    ", avgQueueTimeNanos=" + getAverageQueueTimeNanos() +
+                    ", maxQueueTimeNanos=" + getMaxQueueTimeNanos() +
+                    '}';
+        }
+    }
+
+    public ScheduledFuture<?> schedule(WorkClass workClass, Runnable command, long delay, TimeUnit unit) {
+        return schedule(workClass, Executors.callable(command), delay, unit);
+    }
+
+    public <V> ScheduledFuture<V> schedule(WorkClass workClass, Callable<V> callable, long delay, TimeUnit unit) {
+        var task = new FutureTask<>(callable);
+        var timerFuture = timer.schedule(() -> execute(workClass, task), delay, unit);
+        return new DelayedTask<>(task, timerFuture);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(WorkClass.REPLICATION, command, delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return schedule(WorkClass.REPLICATION, callable, delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return timer.scheduleAtFixedRate(() -> execute(WorkClass.REPLICATION, command), initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return timer.scheduleWithFixedDelay(() -> execute(WorkClass.REPLICATION, command), initialDelay, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (ArrayDeque<QueuedTask> queue : queues.values()) {
+                queue.forEach(t -> pending.add(t.runnable));
+                queue.clear();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        worker.interrupt();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && !worker.isAlive();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        worker.join(unit.toMillis(timeout));
+        return !worker.isAlive();
+    }
+
+    private static class QueuedTask {
+        final Runnable runnable;
+        final long queuedAtNanos;
+
+        QueuedTask(Runnable runnable, long queuedAtNanos) {
+            this.runnable = runnable;
+            this.queuedAtNanos = queuedAtNanos;
+        }
+    }
+
+    //Completes when the task is executed on the update queue, not when the delay expires.
+    private static class DelayedTask<V> implements ScheduledFuture<V> {
+        private final FutureTask<V> task;
+        private final ScheduledFuture<?> timerFuture;
+
+        DelayedTask(FutureTask<V> task, ScheduledFuture<?> timerFuture) {
+            this.task = task;
+            this.timerFuture = timerFuture;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return timerFuture.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return timerFuture.compareTo(o);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            timerFuture.cancel(false);
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package replicate.singularupdatequeue;
+
+import replicate.common.Logging;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * SingularUpdateQueue on an MpscRingBuffer.
+ * SingularUpdateQueue polls an ArrayBlockingQueue with a timeout, taking the queue lock
+ * for every request. Here the producers publish to the ring buffer without a lock, and the
+ * thread handles all the requests available on each wake up, up to maxBatchSize,
+ * before it waits again with the WaitStrategy.
+ * @see SingularUpdateQueue
+ */
+public class RingBufferSingularUpdateQueue<Req, Res> extends Thread implements Logging {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    private final MpscRingBuffer<RequestWrapper<Req, Res>> workQueue;
+    private final Function<Req, Res> handler;
+    private final int maxBatchSize;
+    private volatile boolean isRunning = false;
+    private volatile boolean isShutdown = false;
+    //set by the thread once it stops handling requests, before it fails the requests left in the queue.
+    private volatile boolean isTerminated = false;
+
+    public RingBufferSingularUpdateQueue(Function<Req, Res> handler) {
+        this(handler, DEFAULT_CAPACITY, WaitStrategy.parking(), DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public RingBufferSingularUpdateQueue(Function<Req, Res> handler, int capacity, WaitStrategy waitStrategy, int maxBatchSize) {
+        this.handler = handler;
+        this.workQueue = new MpscRingBuffer<>(capacity, waitStrategy);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    //Waits for a free slot, if the queue is full.
+    //Requests submitted after shutdown, or left in the queue by it, fail with IllegalStateException.
+    public CompletableFuture<Res> submit(Req request) {
+        if (isShutdown) {
+            return CompletableFuture.failedFuture(shutdownException());
+        }
+        var requestWrapper = new RequestWrapper<Req, Res>(request);
+        workQueue.put(requestWrapper);
+        if (isTerminated) {
+            //the thread might have failed the queued requests before this one was published.
+            requestWrapper.completeExceptionally(shutdownException());
+        }
+        return requestWrapper.getFuture();
+    }
+
+    @Override
+    public synchronized void start() {
+        isRunning = true;
+        super.start();
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            workQueue.drain(this::handle, maxBatchSize, () -> isRunning);
+        }
+        isTerminated = true;
+        workQueue.drainClaimed(this::handle);
+    }
+
+    private static IllegalStateException shutdownException() {
+        return new IllegalStateException("Update queue is shut down");
+    }
+
+    private void handle(RequestWrapper<Req, Res> requestWrapper) {
+        if (isShutdown) { //rest of the batch drained before the shutdown.
+            requestWrapper.completeExceptionally(shutdownException());
+            return;
+        }
+        try {
+            Res response = handler.apply(requestWrapper.getRequest());
+            requestWrapper.complete(response);
+
+        } catch (Exception e) {
+            requestWrapper.completeExceptionally(e);
+        }
+    }
+
+    //Requests in the queue which are not handled yet fail.
+    public void shutdown() {
+        this.isShutdown = true;
+        this.isRunning = false;
+    }
+
+    public int taskCount() {
+        return workQueue.size();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+}
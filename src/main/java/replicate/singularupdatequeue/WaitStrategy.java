@@ -0,0 +1,63 @@
+package replicate.singularupdatequeue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on an MpscRingBuffer, the consumer for the next item when the buffer
+ * is empty, and the producers for a free slot when it is full.
+ * The wait is retried with an increasing attempt count, until the condition is met.
+ *
+ *  - busySpin: lowest latency, but keeps a core busy even when there is no work.
+ *  - yielding: spins for a while, then yields the core to other threads.
+ *  - parking: spins briefly, then parks. Producers unpark a parked consumer,
+ *    so an idle queue uses no CPU, at the cost of the wake up latency.
+ */
+public interface WaitStrategy {
+    int SPIN_TRIES = 100;
+
+    void idle(int attempt);
+
+    //Whether producers need to wake up the consumer after publishing.
+    default boolean parksConsumer() {
+        return false;
+    }
+
+    static WaitStrategy busySpin() {
+        return attempt -> Thread.onSpinWait();
+    }
+
+    static WaitStrategy yielding() {
+        return attempt -> {
+            if (attempt < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        };
+    }
+
+    //Parked threads also wake up after maxParkTime, so a missed unpark only delays the consumer.
+    static WaitStrategy parking(long maxParkTime, TimeUnit unit) {
+        long maxParkNanos = unit.toNanos(maxParkTime);
+        return new WaitStrategy() {
+            @Override
+            public void idle(int attempt) {
+                if (attempt < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(maxParkNanos);
+                }
+            }
+
+            @Override
+            public boolean parksConsumer() {
+                return true;
+            }
+        };
+    }
+
+    static WaitStrategy parking() {
+        return parking(1, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,44 @@
+package replicate.singularupdatequeue.example;
+
+import replicate.singularupdatequeue.ActorLikeSingularUpdateQueue;
+
+import java.util.concurrent.CompletableFuture;
+
+//An account as an actor. Unlike SingleThreadedAccount, there is no thread per account,
+//so every account of a bank can be an actor, sharing the threads of the actor dispatcher.
+public class ActorAccount {
+    private final ActorLikeSingularUpdateQueue<Request, Response> actor;
+    private int balance = 0;
+
+    public ActorAccount(int balance) {
+        this.balance = balance;
+        this.actor = new ActorLikeSingularUpdateQueue<>(this::handleMessage);
+    }
+
+    private Response handleMessage(Request request) {
+        if (request.requestType == RequestType.CREDIT) {
+            balance += request.amount;
+            return Response.succecss(balance);
+
+        } else if (request.requestType == RequestType.DEBIT) {
+            if (balance < request.amount) {
+                return Response.failure("Not enough balance");
+            }
+            balance -= request.amount;
+            return Response.succecss(balance);
+        }
+        throw new IllegalArgumentException("Unknown request type " + request.requestType);
+    }
+
+    public CompletableFuture<Response> credit(int amount) {
+        return actor.submit(new Request(amount, RequestType.CREDIT));
+    }
+
+    public CompletableFuture<Response> debit(int amount) {
+        return actor.submit(new Request(amount, RequestType.DEBIT));
+    }
+
+    public ActorLikeSingularUpdateQueue.ActorStats getStats() {
+        return actor.getStats();
+    }
+}
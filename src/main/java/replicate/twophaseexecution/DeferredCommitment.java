@@ -74,6 +74,7 @@ public class DeferredCommitment extends Replica {
     public DeferredCommitment(String name, Config config, SystemClock clock, InetAddressAndPort clientConnectionAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peerAddresses) throws IOException {
         super(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses);
         this.kvStore = new DurableKVStore(config);
+        this.kvStore.registerMetrics(getMetrics(), "kvStore");
     }
 
     @Override
@@ -124,15 +125,16 @@ public class DeferredCommitment extends Replica {
 
     CompletableFuture<ExecuteCommandResponse> handleExecute(ExecuteCommandRequest t) {
         byte[] command = getCommand(t.command).serialize();
-        CompletionCallback<ExecuteCommandResponse> completionCallback = new CompletionCallback();
-        requestWaitingList.add(requestIdentifier(command), completionCallback);
+        CompletionCallback<ExecuteCommandResponse> completionCallback = new CompletionCallback<>();
+        awaitResponse(requestIdentifier(command), completionCallback);
         executeTwoPhases(command);
         return completionCallback.getFuture();
     }
 
+    //A command accepted by the replicas is committed, even if the client stops waiting for it.
     private CompletableFuture<Map<InetAddressAndPort, CommitCommandResponse>> executeTwoPhases(byte[] command) {
-        return proposePhase(command)
-                .thenCompose(commitPhase(command));
+        return runToCompletion(() -> proposePhase(command)
+                .thenCompose(commitPhase(command)));
     }
 
     private Function<Map<InetAddressAndPort, ProposeResponse>, CompletionStage<Map<InetAddressAndPort, CommitCommandResponse>>> commitPhase(byte[] command) {
@@ -8,6 +8,7 @@ import replicate.twophaseexecution.messages.*;
 import replicate.vsr.CompletionCallback;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -75,16 +76,16 @@ public class RecoverableDeferredCommitment extends DeferredCommitment {
 
     @Override
     CompletableFuture<ExecuteCommandResponse> handleExecute(ExecuteCommandRequest newCommand) {
-        CompletionCallback<ExecuteCommandResponse> callback = new CompletionCallback();
-        requestWaitingList.add(requestIdentifier(newCommand.command), callback);
+        CompletionCallback<ExecuteCommandResponse> callback = new CompletionCallback<>();
+        awaitResponse(requestIdentifier(newCommand.command), callback);
         //phase 1
         prepare().
                 thenCompose(r -> {
                 //phase 2
-                byte[] command = pickCommandToExecute(r.values().stream().toList(), newCommand.command);
-                return propose(command)
+                byte[] command = pickCommandToExecute(promisesWithOwnAcceptedCommand(r), newCommand.command);
+                return runToCompletion(() -> propose(command)
                         //phase 3
-                        .thenCompose(a -> commit(command));
+                        .thenCompose(a -> commit(command)));
         });
         return callback.getFuture();
     }
@@ -114,6 +115,17 @@ public class RecoverableDeferredCommitment extends DeferredCommitment {
         return quorumFuture1;
     }
 
+    //The quorum can complete with the Promises of the other nodes before this node's own Promise
+    //is received. The command accepted by this node is known without waiting for it, so is always considered.
+    private List<PrepareResponse> promisesWithOwnAcceptedCommand(Map<InetAddressAndPort, PrepareResponse> promises) {
+        List<PrepareResponse> responses = new ArrayList<>();
+        if (acceptedCommand != null) {
+            responses.add(new PrepareResponse(acceptedCommand.serialize()));
+        }
+        responses.addAll(promises.values());
+        return responses;
+    }
+
     private byte[] pickCommandToExecute(List<PrepareResponse> prepareResponses, byte[] newCommand) {
         List<PrepareResponse> previouslyAcceptedCommands = prepareResponses.stream().filter(p -> p.command != null).collect(Collectors.toList());
         //TODO: If there are multiple commands, which command to pick?
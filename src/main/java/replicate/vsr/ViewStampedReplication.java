@@ -3,8 +3,10 @@ package replicate.vsr;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import replicate.common.*;
+import replicate.diagnostics.ConsensusSection;
+import replicate.jfr.ViewChangeEvent;
 import replicate.net.InetAddressAndPort;
-import replicate.net.requestwaitinglist.RequestWaitingList;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor.WorkClass;
 import replicate.twophaseexecution.CompareAndSwap;
 import replicate.twophaseexecution.messages.ExecuteCommandRequest;
 import replicate.twophaseexecution.messages.ExecuteCommandResponse;
@@ -36,7 +38,7 @@ public class ViewStampedReplication extends Replica {
         logger.info(getName() + " checking heartbeat status at " + clock.nanoTime());
         Duration timeSinceLastHeartbeat = elapsedTimeSinceLastHeartbeat();
         if (timeSinceLastHeartbeat.compareTo(heartbeatTimeout) > 0) {
-            singularUpdateQueueExecutor.submit(()-> {
+            singularUpdateQueueExecutor.submit(WorkClass.CONTROL, ()-> {
                 logger.info(getName() + " heartbeat timedOut after " + timeSinceLastHeartbeat.toMillis() + "ms");
                 resetMessageCounters();
                 transitionToViewChange();
@@ -53,10 +55,28 @@ public class ViewStampedReplication extends Replica {
         logger.info(getName() + " Triggering view change from view " + viewNumber + " to " + (viewNumber + 1));
         heartBeatScheduler.stop();
         this.status = Status.ViewChange;
+        viewChangeCompleted(false); //superseded by this view change.
+        tracedOperations.clear(); //operations not committed are not completed in the new view.
         viewNumber = viewNumber + 1;
+        viewChangeEvent = new ViewChangeEvent();
+        viewChangeEvent.begin();
         sendOnewayMessageToReplicas(new StartViewChange(MessageId.StartViewChange, viewNumber, getReplicaIndex()));
     }
 
+    private void viewChangeCompleted(boolean completed) {
+        if (viewChangeEvent == null) {
+            return;
+        }
+        viewChangeEvent.end();
+        if (viewChangeEvent.shouldCommit()) {
+            viewChangeEvent.replica = getName();
+            viewChangeEvent.viewNumber = viewNumber;
+            viewChangeEvent.completed = completed;
+            viewChangeEvent.commit();
+        }
+        viewChangeEvent = null;
+    }
+
     public InetAddressAndPort getPrimaryAddress() {
         return configuration.getPrimaryForView(viewNumber);
     }
@@ -65,28 +85,43 @@ public class ViewStampedReplication extends Replica {
         return viewNumber;
     }
 
+    Status getStatus() {
+        return status;
+    }
+
     static enum Status {
         Normal,ViewChange,Recovering
     }
 
-    private Map<Integer, LogEntry> log = new HashMap<>();
+    private final Map<Integer, LogEntry> log = newAccountedLog(new HashMap<>(), LogEntry::sizeInBytes);
 
     private int viewNumber = 0;
     private Status status = Status.Normal; //Change based on the stored state on disk.
     private final Configuration configuration;
     private int opNumber = 0;
     private int commitNumber = 0;
+    //the last op applied to the kv. Ops are applied in order, so it lags the commitNumber
+    //while the Prepare of a committed op has not been received.
+    private int appliedOpNumber = 0;
     private int startViewChangeCounter;
     private int doViewChangeCounter;
+    //the view change in progress, if any.
+    private ViewChangeEvent viewChangeEvent;
 
     private int normalStatusViewNumber = viewNumber;
 
-    private RequestWaitingList pendingRquests;
+    //traces of the client requests waiting for the PrepareOK messages, by opNumber.
+    private final Map<Integer, Trace> tracedOperations = new HashMap<>();
 
     public ViewStampedReplication(String name, Config config, SystemClock clock, InetAddressAndPort clientConnectionAddress, InetAddressAndPort peerConnectionAddress, List<InetAddressAndPort> peerAddresses) throws IOException {
         super(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses);
         this.configuration = new Configuration(peerAddresses);
-        pendingRquests = new RequestWaitingList(clock, Duration.ofMillis(1000));
+    }
+
+    //one of the many replication groups hosted by the ReplicaGroupHost.
+    public ViewStampedReplication(String name, Config config, SystemClock clock, ReplicaGroupHost host, int groupId) {
+        super(name, config, clock, host, groupId);
+        this.configuration = new Configuration(host.getPeerAddresses());
     }
 
     @Override
@@ -115,11 +150,13 @@ public class ViewStampedReplication extends Replica {
     private void handleStartView(Message<StartView> message) {
         var startView = message.messagePayload();
         logger.info(getName()  + " starting view " + this.viewNumber);
-        this.log = startView.log;
+        replaceLog(startView.log);
         this.opNumber = startView.opNumber;
         this.commitNumber = startView.commitNumber;
         this.status = Status.Normal;
         this.normalStatusViewNumber = viewNumber;
+        applyCommittedEntries();
+        viewChangeCompleted(true);
         this.heartBeatScheduler.stop();
         this.heartbeatChecker.start();
     }
@@ -137,20 +174,34 @@ public class ViewStampedReplication extends Replica {
         if (doViewChangeCounter == quorum()) {
             logger.info("");
             DoViewChange selectedViewChange = pickViewChangeMessageWithHighestNormalViewnumber(doViewChangeMessages);
-            this.log = selectedViewChange.log;
+            replaceLog(selectedViewChange.log);
             this.opNumber = selectedViewChange.opNumber;
             this.commitNumber = maxCommitNumber(doViewChangeMessages);
             this.status = Status.Normal;
             this.viewNumber = doViewChange.viewNumber;
             this.normalStatusViewNumber = doViewChange.viewNumber;
+            applyCommittedEntries();
+            viewChangeCompleted(true);
             heartbeatChecker.stop();
             heartBeatScheduler.start();
             logger.info(getName() + " DoViewChange quorum reached. Starting view " + this.viewNumber);
 
+            //sent as foreground traffic, ahead of the Prepare messages of the new view,
+            //which the backups accept only once they have started the view.
             sendOnewayMessageToOtherReplicas(new StartView(this.log, this.opNumber, this.commitNumber));
         }
     }
 
+    //The log is replaced with the log of the new view through the accounted map,
+    //so the memory of the entries of the old log is released, and the new entries are accounted for.
+    private void replaceLog(Map<Integer, LogEntry> newLog) {
+        if (newLog == log) {
+            return;
+        }
+        log.clear();
+        log.putAll(newLog);
+    }
+
     private int maxCommitNumber(List<DoViewChange> doViewChangeMessages) {
         return doViewChangeMessages.stream().map(d -> d.commitNumber).max(Comparator.comparingInt(c -> c)).orElse(0);
     }
@@ -180,7 +231,7 @@ public class ViewStampedReplication extends Replica {
         //TODO: if missing log entries upto commitNumber, initiate state change
         if (commit.viewNumber == this.viewNumber && this.commitNumber < commit.commitNumber) {
             this.commitNumber = commit.commitNumber;
-            applyEntryAt(commitNumber);
+            applyCommittedEntries();
         }
     }
 
@@ -201,33 +252,59 @@ public class ViewStampedReplication extends Replica {
                 break;
             }
             commitNumber = i;
-            applyEntryAt(commitNumber);
+            Trace clientTrace = tracedOperations.get(i);
+            if (clientTrace != null) {
+                clientTrace.markStage(Trace.Stage.QUORUM);
+            }
+        }
+        applyCommittedEntries();
+    }
+
+    //Applies the ops up to the commitNumber, in order. A Commit can be received before the Prepare
+    //of the op it commits, e.g. when the Prepare is delayed. The op is then applied once its Prepare is received.
+    private void applyCommittedEntries() {
+        while (appliedOpNumber < commitNumber) {
+            LogEntry logEntry = log.get(appliedOpNumber + 1);
+            if (logEntry == null) {
+                return;
+            }
+            appliedOpNumber++;
+            applyEntryAt(appliedOpNumber, tracedOperations.remove(appliedOpNumber));
         }
     }
 
     Map<String, String> kv = new HashMap<>();
-    private void applyEntryAt(int commitNumber) {
+    private void applyEntryAt(int commitNumber, Trace clientTrace) {
         logger.info(getName() + " Handling commit " + commitNumber);
         LogEntry logEntry = log.get(commitNumber);
         if (logEntry == null) {
             return;
         }
+        Optional<ExecuteCommandResponse> response = applyCommand(logEntry);
+        Trace.mark(Trace.Stage.APPLIED);
+        if (clientTrace != null) {
+            clientTrace.markStage(Trace.Stage.APPLIED);
+        }
+        //complete pending client requests;
+        response.ifPresent(r -> requestWaitingList.handleResponse(commitNumber, r));
+    }
+
+    private Optional<ExecuteCommandResponse> applyCommand(LogEntry logEntry) {
         ExecuteCommandRequest request = logEntry.request;
         Command command = Command.deserialize(new ByteArrayInputStream(request.command));
         if (command instanceof SetValueCommand setValueCommand) {
             kv.put(setValueCommand.getKey(), setValueCommand.getValue());
-            //complete pending client requests;
-            pendingRquests.handleResponse(commitNumber, new ExecuteCommandResponse(Optional.of(setValueCommand.getValue()), true));
+            return Optional.of(new ExecuteCommandResponse(Optional.of(setValueCommand.getValue()), true));
         } else if (command instanceof CompareAndSwap casCommand) {
             String existingValue = kv.get(casCommand.getKey());
             if (casCommand.getExistingValue().equals(existingValue)) {
                 kv.put(casCommand.getKey(), casCommand.getNewValue());
-                pendingRquests.handleResponse(commitNumber, new ExecuteCommandResponse(Optional.of("Success"), true));
-                return;
+                return Optional.of(new ExecuteCommandResponse(Optional.of("Success"), true));
             }
             //
-            pendingRquests.handleResponse(commitNumber, new ExecuteCommandResponse(Optional.of("Can not execute CAS because existingValue " + existingValue + " does not match " + casCommand.getExistingValue()), false));
+            return Optional.of(new ExecuteCommandResponse(Optional.of("Can not execute CAS because existingValue " + existingValue + " does not match " + casCommand.getExistingValue()), false));
         }
+        return Optional.empty();
     }
 
 
@@ -244,6 +321,10 @@ public class ViewStampedReplication extends Replica {
         public boolean isQuorumAccepted(int quorum) {
             return acks == quorum;
         }
+
+        long sizeInBytes() {
+            return MemoryAccountant.ENTRY_OVERHEAD_BYTES + request.command.length;
+        }
     }
 
     public CompletableFuture<ExecuteCommandResponse> handleClientRequest(ExecuteCommandRequest request) {
@@ -253,9 +334,10 @@ public class ViewStampedReplication extends Replica {
 
         opNumber = opNumber + 1;
         log.put(opNumber, new LogEntry(request));
+        Trace.current().ifPresent(trace -> tracedOperations.put(opNumber, trace));
 
         CompletionCallback<ExecuteCommandResponse> callback = new CompletionCallback();
-        pendingRquests.add(opNumber, callback);
+        awaitResponse(opNumber, callback);
 
         sendOnewayMessageToOtherReplicas(new Prepare(viewNumber, request, opNumber, commitNumber));
         return callback.getFuture();
@@ -263,10 +345,14 @@ public class ViewStampedReplication extends Replica {
 
     public void handlePrepare(Message<Prepare> message) {
         Prepare prepare = message.messagePayload();
-        if (this.viewNumber == prepare.viewNumber) {
+        //Till the StartView message is received, the log might be replaced by the log of the new primary.
+        //The new primary sends StartView before any Prepare of the new view, on the same connection.
+        if (this.viewNumber == prepare.viewNumber && status == Status.Normal) {
             this.opNumber = this.opNumber + 1;
             this.log.put(opNumber, new LogEntry(prepare.request));
             sendOneway(message.getFromAddress(), new PrepareOK(this.viewNumber, this.opNumber, getReplicaIndex(), true), message.getCorrelationId());
+            this.commitNumber = Math.max(this.commitNumber, prepare.commitNumber);
+            applyCommittedEntries();
         }
     }
 
@@ -282,6 +368,21 @@ public class ViewStampedReplication extends Replica {
         return peerConnectionAddress.equals(configuration.getPrimaryForView(viewNumber));
     }
 
+    @Override
+    protected void describe(ConsensusSection consensus) {
+        List<Integer> uncommitted = log.keySet().stream().filter(op -> op > commitNumber).toList();
+        consensus.role(isPrimary() ? "Primary" : "Backup")
+                .epoch(viewNumber)
+                .logLength(log.size())
+                .commitIndex(commitNumber)
+                .appliedIndex(appliedOpNumber)
+                .uncommitted(uncommitted)
+                .detail("status", status)
+                .detail("opNumber", opNumber)
+                .detail("normalStatusViewNumber", normalStatusViewNumber)
+                .detail("pendingClientRequests", requestWaitingList.getPendingLocalRequests());
+    }
+
     public void shutdown() {
         logger.info(getName() + " shuting down");
         super.shutdown();
@@ -0,0 +1,117 @@
+package replicate.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Segment file growing with every append. Appends and reads are system calls on its FileChannel.
+ * Positions are of the bytes after the SegmentHeader.
+ */
+class ChannelSegmentStorage implements SegmentStorage {
+    private final FileChannel fileChannel;
+    //End of the appended bytes. Moved only once an append is complete,
+    //so a concurrent force or read never sees part of an entry.
+    private volatile long end;
+
+    ChannelSegmentStorage(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+        this.end = fileSize() - SegmentHeader.SIZE;
+    }
+
+    @Override
+    public long size() {
+        return end;
+    }
+
+    private long fileSize() {
+        try {
+            return fileChannel.size();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasRoomFor(int bytes) {
+        return true;
+    }
+
+    @Override
+    public synchronized void append(ByteBuffer buffer) {
+        try {
+            long filePosition = SegmentHeader.SIZE + end;
+            while (buffer.hasRemaining()) {
+                filePosition += fileChannel.write(buffer, filePosition);
+            }
+            end = filePosition - SegmentHeader.SIZE;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readInto(position, buffer);
+        return buffer.flip();
+    }
+
+    @Override
+    public void readInto(long position, ByteBuffer buffer) {
+        try {
+            long filePosition = SegmentHeader.SIZE + position;
+            while (buffer.hasRemaining()) {
+                int bytesRead = fileChannel.read(buffer, filePosition);
+                if (bytesRead == -1) {
+                    throw new IOException("End of file reading " + buffer.remaining() + " bytes at " + filePosition);
+                }
+                filePosition += bytesRead;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void force() {
+        try {
+            fileChannel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long size) {
+        try {
+            fileChannel.truncate(SegmentHeader.SIZE + size);
+            end = Math.min(end, size);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Drops the bytes after the entries, e.g. a torn entry, or the zeroes of a file preallocated by MappedSegmentStorage.
+    @Override
+    public synchronized void recoveredTo(long size) {
+        if (fileSize() > SegmentHeader.SIZE + size) {
+            truncate(size);
+        }
+        end = size;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+}
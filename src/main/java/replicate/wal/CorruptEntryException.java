@@ -0,0 +1,19 @@
+package replicate.wal;
+
+/**
+ * An entry of a WALSegment which can not be read back as it was written,
+ * e.g. the tail of the segment torn by a crash in the middle of a write.
+ */
+public class CorruptEntryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final long position;
+
+    public CorruptEntryException(long position, String message) {
+        super("Corrupt WAL entry at position " + position + ": " + message);
+        this.position = position;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
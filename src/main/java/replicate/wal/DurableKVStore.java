@@ -1,11 +1,11 @@
 package replicate.wal;
 
 import replicate.common.Config;
+import replicate.common.MetricsRegistry;
 
 import java.io.ByteArrayInputStream;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class DurableKVStore {
@@ -48,22 +48,30 @@ public class DurableKVStore {
         //Assignment 1: applyLog at startup.
     }
 
-    public void applyLog() {
-        List<WALEntry> walEntries = wal.readAll();
-        applyEntries(walEntries);
+    //WAL latencies are tagged with the name of the store, as a replica can have more than one.
+    public void registerMetrics(MetricsRegistry metrics, String name) {
+        metrics.register("wal.appendLatency", name, wal.getAppendLatency());
+        metrics.register("wal.fsyncLatency", name, wal.getFsyncLatency());
     }
 
-    private void applyEntries(List<WALEntry> walEntries) {
-        for (WALEntry walEntry : walEntries) {
-            Command command = deserialize(walEntry);
-            if (command instanceof SetValueCommand) {
-                SetValueCommand setValueCommand = (SetValueCommand) command;
-                kv.put(setValueCommand.key, setValueCommand.value);
+    //Streams the log through a cursor, so the entries are not all in memory at once.
+    public void applyLog() {
+        try (WALCursor cursor = wal.openCursor(0)) {
+            while (cursor.hasNext()) {
+                applyEntry(cursor.next());
             }
         }
     }
 
-    private Command deserialize(WALEntry walEntry) {
+    private void applyEntry(WALEntryView walEntry) {
+        Command command = deserialize(walEntry);
+        if (command instanceof SetValueCommand) {
+            SetValueCommand setValueCommand = (SetValueCommand) command;
+            kv.put(setValueCommand.key, setValueCommand.value);
+        }
+    }
+
+    private Command deserialize(WALEntryView walEntry) {
         return Command.deserialize(new ByteArrayInputStream(walEntry.getData()));
     }
 
@@ -0,0 +1,86 @@
+package replicate.wal;
+
+import java.util.Arrays;
+
+/**
+ * Positions of the entries of an open WALSegment, in a dense array keyed by (index - baseOffset),
+ * so an entry is found without a lookup, and a range of entries is a walk over the array.
+ * Entries of a segment have consecutive indexes, so the array has a slot, of 8 bytes, for every entry.
+ * Slots of indexes which were never appended are NO_POSITION.
+ */
+class EntryOffsets {
+    static final long NO_POSITION = -1;
+    private final long baseOffset;
+    private long[] positions = new long[16];
+    //number of slots in use, up to the last appended entry.
+    private int count = 0;
+    private int entryCount = 0;
+
+    EntryOffsets(long baseOffset) {
+        this.baseOffset = baseOffset;
+    }
+
+    void put(long index, long position) {
+        int slot = slotOf(index);
+        if (slot >= positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(slot + 1, positions.length * 2));
+        }
+        if (slot >= count) {
+            Arrays.fill(positions, count, slot, NO_POSITION);
+            count = slot + 1;
+        } else if (positions[slot] != NO_POSITION) {
+            entryCount--;
+        }
+        positions[slot] = position;
+        entryCount++;
+    }
+
+    //NO_POSITION if there is no entry with the index.
+    long get(long index) {
+        long slot = index - baseOffset;
+        return slot < 0 || slot >= count ? NO_POSITION : positions[(int) slot];
+    }
+
+    //Drops the entries from the index on.
+    void truncateFrom(long index) {
+        long slot = Math.max(0, index - baseOffset);
+        while (count > slot) {
+            if (positions[--count] != NO_POSITION) {
+                entryCount--;
+            }
+        }
+        while (count > 0 && positions[count - 1] == NO_POSITION) {
+            count--;
+        }
+    }
+
+    boolean isEmpty() {
+        return entryCount == 0;
+    }
+
+    //First index at or after the index with an entry. Past lastIndex if there is none.
+    long nextIndex(long index) {
+        long slot = Math.max(0, index - baseOffset);
+        while (slot < count && positions[(int) slot] == NO_POSITION) {
+            slot++;
+        }
+        return baseOffset + slot;
+    }
+
+    long firstIndex() {
+        return nextIndex(baseOffset);
+    }
+
+    //Only valid if there are entries.
+    long lastIndex() {
+        return baseOffset + count - 1;
+    }
+
+    private int slotOf(long index) {
+        long slot = index - baseOffset;
+        if (slot < 0 || slot >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Entry index " + index + " can not be stored in segment with base offset " + baseOffset);
+        }
+        return (int) slot;
+    }
+}
@@ -0,0 +1,161 @@
+package replicate.wal;
+
+import replicate.common.Config;
+import replicate.common.Logging;
+import replicate.singularupdatequeue.AdaptiveBatcher;
+import replicate.singularupdatequeue.MpscRingBuffer;
+import replicate.singularupdatequeue.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit of WAL entries. Appenders write their entries to the open segment, without forcing it,
+ * and queue them here. A single thread forces the segment once for a whole batch of queued entries,
+ * and completes their futures. While a batch is forced, appenders keep writing, and the next batch
+ * collects their entries, so under load many appends share every fsync, instead of each paying
+ * a full fsync in turn.
+ *
+ * A batch is forced once it holds maxBatchBytes, or once maxWaitNanos have passed since
+ * its first entry was taken. With no wait, the batch is whatever was queued during the last force.
+ *
+ * With adaptive group commit, the batches are collected by an AdaptiveBatcher instead, which sizes them
+ * from the fsync latency: they grow under load, and are forced without waiting when the load is light.
+ * @see Config#withAdaptiveWalGroupCommit
+ */
+class GroupCommitter implements Logging {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long SHUTDOWN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final WriteAheadLog wal;
+    private final long maxBatchBytes;
+    private final long maxWaitNanos;
+    private final MpscRingBuffer<Written> queue = new MpscRingBuffer<>(QUEUE_CAPACITY, WaitStrategy.parking());
+    private final Thread thread;
+    //Set for adaptive group commit, which then collects and forces the batches, instead of the thread.
+    private final AdaptiveBatcher<Written> adaptiveBatcher;
+    private volatile boolean isRunning = true;
+    //set by the thread once it stops collecting batches, before it forces the entries left in the queue.
+    private volatile boolean isTerminated = false;
+
+    private final LongAdder batches = new LongAdder();
+
+    //an entry written to the segment, waiting for the force.
+    private record Written(long index, int size, CompletableFuture<Long> durable) {
+    }
+
+    GroupCommitter(WriteAheadLog wal, long maxBatchBytes, long maxWaitNanos) {
+        this.wal = wal;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxWaitNanos = maxWaitNanos;
+        this.adaptiveBatcher = null;
+        this.thread = new Thread(this::run, "wal-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    //Batch bounds and target latency from the batching config.
+    GroupCommitter(WriteAheadLog wal, Config config) {
+        this.wal = wal;
+        this.maxBatchBytes = 0; //bounds of the fixed batches, not used.
+        this.maxWaitNanos = 0;
+        this.thread = null;
+        this.adaptiveBatcher = new AdaptiveBatcher<>("wal-group-commit", config, this::forceAdaptiveBatch);
+        this.adaptiveBatcher.start();
+    }
+
+    //The entry must already be written to the segment.
+    CompletableFuture<Long> awaitForce(WALEntry entry) {
+        if (!isRunning) {
+            return CompletableFuture.failedFuture(closedException());
+        }
+        var written = new Written(entry.getEntryIndex(), entry.logEntrySize(), new CompletableFuture<>());
+        if (adaptiveBatcher != null) {
+            return adaptiveBatcher.submit(written).thenApply(flushed -> written.index());
+        }
+        queue.put(written);
+        if (isTerminated) {
+            //the thread might have forced the last batch before this entry was published.
+            written.durable().completeExceptionally(closedException());
+        }
+        return written.durable();
+    }
+
+    private void run() {
+        List<Written> batch = new ArrayList<>();
+        while (isRunning) {
+            if (queue.drain(batch::add, 1, () -> isRunning) > 0) {
+                fillBatch(batch);
+                commit(batch);
+            }
+        }
+        isTerminated = true;
+        queue.drainClaimed(batch::add);
+        if (!batch.isEmpty()) {
+            commit(batch);
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("WAL is closed");
+    }
+
+    private void fillBatch(List<Written> batch) {
+        long batchBytes = batch.get(0).size();
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batchBytes < maxBatchBytes) {
+            //waits in slices, so that a shutdown does not wait for the rest of a long wait.
+            long sliceDeadline = isRunning ? Math.min(deadline, System.nanoTime() + SHUTDOWN_CHECK_NANOS) : System.nanoTime();
+            if (queue.drainUntil(batch::add, 1, sliceDeadline) > 0) {
+                batchBytes += batch.get(batch.size() - 1).size();
+            } else if (!isRunning || System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+    }
+
+    //Segments are forced when they are rolled, so forcing the open segment
+    //makes every entry written before it durable.
+    private void commit(List<Written> batch) {
+        try {
+            wal.forceOpenSegment();
+            batches.increment();
+            for (Written written : batch) {
+                written.durable().complete(written.index());
+            }
+        } catch (Exception e) {
+            getLogger().error("Group commit of " + batch.size() + " entries failed", e);
+            for (Written written : batch) {
+                written.durable().completeExceptionally(e);
+            }
+        }
+        batch.clear();
+    }
+
+    //The AdaptiveBatcher completes the futures of the batch, and fails them if the force throws.
+    private void forceAdaptiveBatch(List<Written> batch) {
+        wal.forceOpenSegment();
+        batches.increment();
+    }
+
+    //Entries already queued are forced before the thread stops.
+    void shutdown() {
+        isRunning = false;
+        if (adaptiveBatcher != null) {
+            adaptiveBatcher.shutdown();
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getBatches() {
+        return batches.sum();
+    }
+}
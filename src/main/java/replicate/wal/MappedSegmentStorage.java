@@ -0,0 +1,168 @@
+package replicate.wal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Segment file preallocated to its full capacity, and mapped in memory.
+ * An append is a copy into the mapped buffer, and a read is a slice of it, without a system call.
+ * The file size does not change with appends, so forcing the segment does not update file metadata,
+ * and only the range appended since the last force is written back.
+ *
+ * Positions are of the bytes after the SegmentHeader, which is left out of the mapping.
+ *
+ * The unwritten part of the file is zeroes, so the end of the entries is found when the segment
+ * is opened, at the first entry with a length of zero.
+ *
+ * The zeroes are written when the segment is created, so its blocks are allocated up front.
+ * Only setting the length would leave a sparse file, whose blocks are allocated as the pages are
+ * written back, updating file metadata on forces, and failing a write back, with SIGBUS, when the disk is full.
+ */
+class MappedSegmentStorage implements SegmentStorage {
+    private static final int ZEROES_CHUNK = 64 * 1024;
+
+    private final FileChannel fileChannel;
+    //dropped when the segment is deleted.
+    private volatile MappedByteBuffer mapped;
+    private volatile int writePosition;
+    //Forces are not synchronized with appends, so appends go on while the mapping is forced.
+    private final Object forceLock = new Object();
+    private int forcedPosition;
+
+    MappedSegmentStorage(RandomAccessFile file, long capacity) {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped segments can not be larger than " + Integer.MAX_VALUE + " bytes, was " + capacity);
+        }
+        try {
+            this.fileChannel = file.getChannel();
+            if (file.length() < capacity) {
+                preallocate(fileChannel, file.length(), capacity);
+            }
+            this.mapped = fileChannel.map(FileChannel.MapMode.READ_WRITE, SegmentHeader.SIZE, file.length() - SegmentHeader.SIZE);
+            //until the end of the entries is recovered, the whole mapping can be read.
+            this.writePosition = mapped.capacity();
+            this.forcedPosition = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void preallocate(FileChannel channel, long from, long capacity) throws IOException {
+        ByteBuffer zeroes = ByteBuffer.allocateDirect(ZEROES_CHUNK);
+        long position = from;
+        while (position < capacity) {
+            zeroes.clear().limit((int) Math.min(ZEROES_CHUNK, capacity - position));
+            position += channel.write(zeroes, position);
+        }
+        channel.force(true);
+    }
+
+    private MappedByteBuffer mapping() {
+        MappedByteBuffer mapping = mapped;
+        if (mapping == null) {
+            throw new IllegalStateException("Segment is deleted");
+        }
+        return mapping;
+    }
+
+    @Override
+    public long size() {
+        return writePosition;
+    }
+
+    @Override
+    public boolean hasRoomFor(int bytes) {
+        return (long) writePosition + bytes <= mapping().capacity();
+    }
+
+    @Override
+    public synchronized void append(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (!hasRoomFor(length)) {
+            throw new IllegalStateException("No room for " + length + " bytes in segment of " + mapping().capacity() + " bytes");
+        }
+        mapping().put(writePosition, buffer, buffer.position(), length);
+        buffer.position(buffer.limit());
+        writePosition += length;
+    }
+
+    //A view of the mapped bytes, valid until the range is truncated.
+    @Override
+    public ByteBuffer read(long position, int length) {
+        if (position + length > writePosition) {
+            throw new IllegalArgumentException("Reading " + length + " bytes at " + position + " past the end " + writePosition);
+        }
+        return mapping().slice((int) position, length);
+    }
+
+    @Override
+    public void readInto(long position, ByteBuffer buffer) {
+        buffer.put(read(position, buffer.remaining()));
+    }
+
+    @Override
+    public void force() {
+        synchronized (forceLock) {
+            int end = writePosition;
+            if (end > forcedPosition) {
+                mapping().force(forcedPosition, end - forcedPosition);
+                forcedPosition = end;
+            }
+        }
+    }
+
+    //Zeroes the truncated bytes, so that they are not read as entries when the segment is opened again.
+    @Override
+    public synchronized void truncate(long size) {
+        synchronized (forceLock) {
+            int from = (int) size;
+            int end = writePosition;
+            if (from >= end) {
+                return;
+            }
+            MappedByteBuffer mapping = mapping();
+            for (int i = from; i < end; i++) {
+                mapping.put(i, (byte) 0);
+            }
+            mapping.force(from, end - from);
+            writePosition = from;
+            forcedPosition = Math.min(forcedPosition, from);
+        }
+    }
+
+    @Override
+    public synchronized void recoveredTo(long size) {
+        synchronized (forceLock) {
+            writePosition = (int) size;
+            forcedPosition = writePosition;
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //The mapping is not unmapped here: a reader might still hold a slice of it, and reading an unmapped
+    //slice crashes the JVM. It is unmapped by the garbage collector once the slices are unreachable,
+    //and the blocks of the deleted file are freed then.
+    @Override
+    public synchronized void release() {
+        synchronized (forceLock) {
+            mapped = null;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
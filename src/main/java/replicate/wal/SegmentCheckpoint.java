@@ -0,0 +1,73 @@
+package replicate.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Position in a WALSegment up to which its entries are known to be forced to the disk,
+ * kept in a sidecar file next to the segment, e.g. wal_100.checkpoint for wal_100.log.
+ *
+ * When the segment is opened, the entries before the checkpoint are only walked through by their sizes,
+ * and only the entries after it are read and checked against their CRC, to find a torn tail.
+ * The checkpoint is written after a force of the segment, but it is not forced itself,
+ * so a checkpoint lost in a crash only means more of the segment is checked.
+ *
+ *   [position checksum]
+ */
+class SegmentCheckpoint {
+    //Checkpoints are written once this many bytes are forced after the last one.
+    static final long CHECKPOINT_INTERVAL_BYTES = 1024 * 1024;
+    private static final int SIZE = 2 * WriteAheadLog.sizeOfLong;
+
+    private SegmentCheckpoint() {
+    }
+
+    //Overwritten in place. A partly written checkpoint does not match its checksum, and is ignored.
+    static void write(File checkpointFile, long position, boolean force) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putLong(position);
+        buffer.putLong(checksum(position));
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(checkpointFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            if (force) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //0 if there is no checkpoint file, or it is not complete.
+    static long read(File checkpointFile) {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(checkpointFile.toPath());
+            if (bytes.length != SIZE) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = buffer.getLong();
+            return buffer.getLong() == checksum(position) && position >= 0 ? position : 0;
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long checksum(long position) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(WriteAheadLog.sizeOfLong).putLong(0, position));
+        return crc.getValue();
+    }
+}
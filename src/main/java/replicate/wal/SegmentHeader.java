@@ -0,0 +1,67 @@
+package replicate.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Format of a WALSegment, written at the start of its file when it is created.
+ *
+ *   [MAGIC version] [entries...]
+ *
+ * The positions of the entries, in the offsets, checkpoints and sparse indexes, start after the header.
+ * A segment with an unknown format is not opened. Its first bytes would be read as a corrupt entry,
+ * and recovery would truncate the whole segment as a torn tail, e.g. a segment written before the entries
+ * had a CRC, a type and a generation.
+ */
+class SegmentHeader {
+    static final int MAGIC = 0x57414C53; //"WALS"
+    static final int VERSION = 1;
+    static final int SIZE = 2 * WriteAheadLog.sizeOfInt;
+
+    private SegmentHeader() {
+    }
+
+    //Writes the header to a new segment, or checks the header of an existing one.
+    //A header of zeroes is of a segment created, and preallocated, but not yet written.
+    static void writeOrCheck(FileChannel channel, File file) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SIZE);
+            if (channel.size() >= SIZE) {
+                while (header.hasRemaining()) {
+                    channel.read(header, header.position());
+                }
+                header.flip();
+                int magic = header.getInt();
+                int version = header.getInt();
+                if (magic == 0 && version == 0) {
+                    write(channel);
+                } else if (magic != MAGIC || version != VERSION) {
+                    throw new IllegalStateException("Segment " + file.getPath() + " has an unknown format, magic "
+                            + Integer.toHexString(magic) + " version " + version
+                            + ". Segments without a header were written by an earlier version, and must be migrated.");
+                }
+            } else if (channel.size() == 0) {
+                write(channel);
+            } else {
+                throw new IllegalStateException("Segment " + file.getPath() + " of " + channel.size()
+                        + " bytes is too short for its header");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Forced with the segment, so that a new segment is never found without its header.
+    private static void write(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+}
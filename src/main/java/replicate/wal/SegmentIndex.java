@@ -0,0 +1,180 @@
+package replicate.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * Sparse offset index and footer of a sealed WALSegment, kept in a sidecar file next to the segment,
+ * e.g. wal_100.index for wal_100.log. Sealed segments are opened from it, without reading their entries.
+ *
+ * The index has the position of an entry every INDEX_INTERVAL_BYTES of the segment,
+ * so an entry is read by scanning forward, from the closest indexed entry before it.
+ * The footer at the end of the file has the summary of the segment, used by the log cleaners,
+ * and a CRC32C of the whole index file, so a partly written index is not trusted.
+ *
+ *   [index, position] * count  [baseOffset lastIndex firstTimestamp lastTimestamp entryCount dataSize count checksum MAGIC]
+ *
+ * The footer is in the sidecar file, not in the segment, so the segment format stays the same,
+ * and a preallocated segment does not reserve room for it.
+ */
+class SegmentIndex {
+    static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final long MAGIC = 0x57414c494e444558L; //WALINDEX
+    private static final int ENTRY_SIZE = 2 * WriteAheadLog.sizeOfLong;
+    //including the checksum and the magic number.
+    private static final int FOOTER_SIZE = 8 * WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfInt;
+
+    private final long[] indexes;
+    private final long[] positions;
+    private final Footer footer;
+
+    record Footer(long baseOffset, long lastIndex, long firstTimestamp, long lastTimestamp, long entryCount, long dataSize) {
+    }
+
+    SegmentIndex(long[] indexes, long[] positions, Footer footer) {
+        this.indexes = indexes;
+        this.positions = positions;
+        this.footer = footer;
+    }
+
+    Footer getFooter() {
+        return footer;
+    }
+
+    //Position of the closest indexed entry at or before the index, to scan forward from.
+    long floorPosition(long index) {
+        int i = Arrays.binarySearch(indexes, index);
+        if (i >= 0) {
+            return positions[i];
+        }
+        int insertionPoint = -i - 1;
+        return insertionPoint == 0 ? 0 : positions[insertionPoint - 1];
+    }
+
+    //Position of the last indexed entry.
+    long lastIndexedPosition() {
+        return positions.length == 0 ? 0 : positions[positions.length - 1];
+    }
+
+    //Written to a temporary file first, so a crash does not leave a partly written index behind.
+    void writeTo(File indexFile) {
+        ByteBuffer buffer = ByteBuffer.allocate(indexes.length * ENTRY_SIZE + FOOTER_SIZE);
+        for (int i = 0; i < indexes.length; i++) {
+            buffer.putLong(indexes[i]);
+            buffer.putLong(positions[i]);
+        }
+        buffer.putLong(footer.baseOffset());
+        buffer.putLong(footer.lastIndex());
+        buffer.putLong(footer.firstTimestamp());
+        buffer.putLong(footer.lastTimestamp());
+        buffer.putLong(footer.entryCount());
+        buffer.putLong(footer.dataSize());
+        buffer.putInt(indexes.length);
+        buffer.putLong(checksum(buffer.array(), buffer.position()));
+        buffer.putLong(MAGIC);
+        buffer.flip();
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Empty if there is no index file, or it is not complete.
+    static Optional<SegmentIndex> readFrom(File indexFile) {
+        if (!indexFile.exists()) {
+            return Optional.empty();
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(indexFile.toPath());
+            if (bytes.length < FOOTER_SIZE) {
+                return Optional.empty();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int footerStart = bytes.length - FOOTER_SIZE;
+            int checksumPosition = bytes.length - 2 * WriteAheadLog.sizeOfLong;
+            if (buffer.getLong(bytes.length - WriteAheadLog.sizeOfLong) != MAGIC
+                    || buffer.getLong(checksumPosition) != checksum(bytes, checksumPosition)) {
+                return Optional.empty();
+            }
+            buffer.position(footerStart);
+            var footer = new Footer(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+            int count = buffer.getInt();
+            if (count * ENTRY_SIZE != footerStart) {
+                return Optional.empty();
+            }
+            long[] indexes = new long[count];
+            long[] positions = new long[count];
+            buffer.position(0);
+            for (int i = 0; i < count; i++) {
+                indexes[i] = buffer.getLong();
+                positions[i] = buffer.getLong();
+            }
+            return Optional.of(new SegmentIndex(indexes, positions, footer));
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Collects the entries of a segment, in the order of their positions, to index them.
+     */
+    static class Builder {
+        private final long baseOffset;
+        private long[] indexes = new long[16];
+        private long[] positions = new long[16];
+        private int count = 0;
+        private long nextIndexedPosition = 0;
+        private long entryCount = 0;
+
+        Builder(long baseOffset) {
+            this.baseOffset = baseOffset;
+        }
+
+        void add(long index, long position) {
+            entryCount++;
+            if (position < nextIndexedPosition) {
+                return;
+            }
+            if (count == indexes.length) {
+                indexes = Arrays.copyOf(indexes, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            indexes[count] = index;
+            positions[count] = position;
+            count++;
+            nextIndexedPosition = position + INDEX_INTERVAL_BYTES;
+        }
+
+        SegmentIndex build(long lastIndex, long firstTimestamp, long lastTimestamp, long dataSize) {
+            var footer = new Footer(baseOffset, lastIndex, firstTimestamp, lastTimestamp, entryCount, dataSize);
+            return new SegmentIndex(Arrays.copyOf(indexes, count), Arrays.copyOf(positions, count), footer);
+        }
+    }
+}
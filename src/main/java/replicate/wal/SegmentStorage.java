@@ -0,0 +1,39 @@
+package replicate.wal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The bytes of a WALSegment. Entries are appended at the end, and read from any position.
+ * @see ChannelSegmentStorage for a file growing with every append, written through its FileChannel.
+ * @see MappedSegmentStorage for a preallocated file, mapped in memory.
+ */
+interface SegmentStorage {
+    //Bytes appended so far.
+    long size();
+
+    //Whether the bytes fit after the end. A growing file has room for any entry.
+    boolean hasRoomFor(int bytes);
+
+    //Appends the remaining bytes of the buffer.
+    void append(ByteBuffer buffer);
+
+    //The bytes at the position, ready to be read.
+    ByteBuffer read(long position, int length);
+
+    //Fills the remaining bytes of the buffer with the bytes at the position, e.g. a reusable read-ahead buffer.
+    void readInto(long position, ByteBuffer buffer);
+
+    //Makes the appended bytes durable.
+    void force();
+
+    //Discards the bytes from the position on.
+    void truncate(long size);
+
+    //Called once the end of the existing entries is found, when the segment is opened.
+    void recoveredTo(long size);
+
+    void close();
+
+    //Closes the storage of a segment being deleted, without forcing it.
+    void release();
+}
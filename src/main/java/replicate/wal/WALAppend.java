@@ -0,0 +1,10 @@
+package replicate.wal;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An entry appended with WriteAheadLog.appendAsync, with the index assigned to it.
+ * The future completes with the index once the entry is forced to the disk.
+ */
+public record WALAppend(long index, CompletableFuture<Long> durable) {
+}
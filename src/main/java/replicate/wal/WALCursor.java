@@ -0,0 +1,148 @@
+package replicate.wal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads the entries of a WriteAheadLog forward, from an index, across its segments.
+ * The bytes of the segments are read ahead into one reusable buffer, readAheadBytes at a time,
+ * and the entries are given out as views over the buffer, so reading the whole log takes
+ * the memory of the buffer, and not of the entries.
+ *
+ * Each entry is checked against its CRC before it is given out.
+ * Once the cursor is at the end of the log, hasNext is true again after more entries are appended,
+ * so a follower can be sent the entries as they are written.
+ * A segment deleted by the log cleaner while the cursor reads it can not be read.
+ */
+public class WALCursor implements Iterator<WALEntryView>, AutoCloseable {
+    static final int DEFAULT_READ_AHEAD_BYTES = 1024 * 1024;
+
+    private final WriteAheadLog wal;
+    private final long fromIndex;
+    private final Deque<WALSegment> segments;
+    private final WALEntryView view = new WALEntryView();
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer buffer;
+    private WALSegment segment;
+    //position of the next entry in the segment, and the position of the bytes in the buffer.
+    private long position;
+    private long bufferStart;
+    private boolean hasNextEntry;
+    private boolean closed;
+
+    WALCursor(WriteAheadLog wal, long fromIndex, List<WALSegment> segments, int readAheadBytes) {
+        this.wal = wal;
+        this.fromIndex = fromIndex;
+        this.segments = new ArrayDeque<>(segments);
+        this.buffer = ByteBuffer.allocate(readAheadBytes).limit(0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        while (!hasNextEntry) {
+            if (!readNextEntry()) {
+                if (!hasLaterSegment()) {
+                    return false;
+                }
+                //appends to a segment complete before the log rolls to the next one,
+                //so the entries appended since the end of the segment was read are read first.
+                if (!readNextEntry()) {
+                    nextSegment();
+                    continue;
+                }
+            }
+            hasNextEntry = view.getEntryIndex() >= fromIndex;
+        }
+        return true;
+    }
+
+    //The view is valid until the next call to next.
+    @Override
+    public WALEntryView next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNextEntry = false;
+        return view;
+    }
+
+    private boolean hasLaterSegment() {
+        if (segments.isEmpty()) {
+            //the log rolled to new segments since the cursor was opened.
+            segments.addAll(wal.segmentsAfter(segment == null ? Long.MIN_VALUE : segment.getBaseOffset()));
+        }
+        return !segments.isEmpty();
+    }
+
+    private void nextSegment() {
+        segment = segments.pollFirst();
+        position = segment.scanPositionFor(fromIndex);
+        buffer.limit(0);
+    }
+
+    //Moves the view to the entry at the position, reading it into the buffer if it is not there.
+    private boolean readNextEntry() {
+        if (segment == null) {
+            return false;
+        }
+        long end = segment.storage.size();
+        if (end - position < WriteAheadLog.sizeOfInt) {
+            return false;
+        }
+        fill(position, WriteAheadLog.sizeOfInt, end);
+        int offset = (int) (position - bufferStart);
+        int entrySize = buffer.getInt(offset);
+        if (entrySize == 0) {
+            return false; //the preallocated space after the entries.
+        }
+        if (!WALEntryDeserializer.isValidSize(position, entrySize, end)) {
+            throw new CorruptEntryException(position, "invalid size " + entrySize);
+        }
+        int length = WriteAheadLog.sizeOfInt + entrySize;
+        fill(position, length, end);
+        offset = (int) (position - bufferStart);
+        checkCrc(offset, length);
+        view.moveTo(buffer, offset, length);
+        position += length;
+        return true;
+    }
+
+    //Reads ahead from the position, unless the bytes are in the buffer already.
+    private void fill(long from, int length, long end) {
+        if (from >= bufferStart && from + length <= bufferStart + buffer.limit()) {
+            return;
+        }
+        if (length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - from));
+        segment.storage.readInto(from, buffer);
+        buffer.flip();
+        bufferStart = from;
+    }
+
+    private void checkCrc(int offset, int length) {
+        int checksummedStart = offset + WriteAheadLog.sizeOfInt + WALEntryDeserializer.CRC_SIZE;
+        crc.reset();
+        crc.update(buffer.slice(checksummedStart, offset + length - checksummedStart));
+        if ((int) crc.getValue() != buffer.getInt(offset + WriteAheadLog.sizeOfInt)) {
+            throw new CorruptEntryException(position, "crc mismatch");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        segments.clear();
+        segment = null;
+    }
+}
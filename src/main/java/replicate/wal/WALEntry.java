@@ -2,6 +2,7 @@ package replicate.wal;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 public class WALEntry {
 //<codeFragment name="walEntry">
@@ -17,11 +18,16 @@ public class WALEntry {
     };
 
     public WALEntry(Long entryIndex, byte[] data, EntryType entryType, long generation) {
+        this(entryIndex, data, entryType, generation, System.currentTimeMillis());
+    }
+
+    //An entry read from the log, with the time it was written.
+    WALEntry(Long entryIndex, byte[] data, EntryType entryType, long generation, long timeStamp) {
         this.entryIndex = entryIndex;
         this.data = data;
         this.entryType = entryType;
         this.generation = generation;
-        this.timeStamp = System.currentTimeMillis();
+        this.timeStamp = timeStamp;
     }
 
     public Long getEntryIndex() {
@@ -40,20 +46,31 @@ public class WALEntry {
         return timeStamp;
     }
 
+    //The CRC32C, after the record length, covers all the fields after it.
+    //So a torn or corrupted entry is detected when it is read.
     public ByteBuffer serialize() {
         Integer entrySize = serializedSize();
         var bufferSize = logEntrySize(); //4 bytes for record length + walEntry size
         var buffer = ByteBuffer.allocate(bufferSize);
         buffer.clear();
         buffer.putInt(entrySize);
+        buffer.putInt(0); //crc, set once the fields are written.
         buffer.putInt(entryType.getValue());
         buffer.putLong(generation);
         buffer.putLong(entryIndex);
         buffer.putLong(timeStamp);
         buffer.put(data);
+        int checksummedStart = WriteAheadLog.sizeOfInt + sizeOfCrc();
+        buffer.putInt(WriteAheadLog.sizeOfInt, checksum(buffer.array(), checksummedStart, bufferSize - checksummedStart));
         return buffer;
     }
 
+    static int checksum(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
     public Long getGeneration() {
         return generation;
     }
@@ -63,7 +80,11 @@ public class WALEntry {
     }
 
     private Integer serializedSize() {
-        return sizeOfData() + sizeOfIndex() + sizeOfGeneration() + sizeOfEntryType() + sizeOfTimestamp(); //size of all the fields
+        return sizeOfCrc() + sizeOfData() + sizeOfIndex() + sizeOfGeneration() + sizeOfEntryType() + sizeOfTimestamp(); //size of all the fields
+    }
+
+    private int sizeOfCrc() {
+        return WriteAheadLog.sizeOfInt;
     }
 
     private int sizeOfData() {
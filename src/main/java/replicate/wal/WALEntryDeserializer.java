@@ -1,99 +1,61 @@
 package replicate.wal;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
 
 class WALEntryDeserializer {
-    final ByteBuffer intBuffer = ByteBuffer.allocate(WriteAheadLog.sizeOfInt);
-    final ByteBuffer longBuffer = ByteBuffer.allocate(WriteAheadLog.sizeOfLong);
-    private FileChannel logChannel;
+    static final int CRC_SIZE = WriteAheadLog.sizeOfInt;
+    //entry type, generation, entry index and timestamp.
+    static final int HEADER_SIZE = WriteAheadLog.sizeOfInt + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfLong;
+    //position of the entry index, from the start of the entry.
+    private static final int INDEX_OFFSET = WriteAheadLog.sizeOfInt + CRC_SIZE + WriteAheadLog.sizeOfInt + WriteAheadLog.sizeOfLong;
 
-    public WALEntryDeserializer(FileChannel logChannel) {
-        this.logChannel = logChannel;
-    }
-
-    WALEntry readEntry() {
-        try {
-            return readEntry(logChannel.position());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    class Header {
-        long headerStartOffset;
-
-        public Header(long headerStartOffset) {
-            this.headerStartOffset = headerStartOffset;
-        }
-
-        Integer readEntryType() {
-            return readInteger(headerStartOffset);
-        }
-        Long readGeneration() {
-            return readLong(headerStartOffset + WriteAheadLog.sizeOfInt);
-        }
-
-        Long readEntryId() {
-            return readLong(headerStartOffset + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfInt);
-        }
-
-        Long readEntryTimestamp() {
-            return readLong(headerStartOffset + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfInt);
-        }
+    private final SegmentStorage storage;
 
-        public int getSize() {
-            return WriteAheadLog.sizeOfInt + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfLong + WriteAheadLog.sizeOfLong;
-        }
+    public WALEntryDeserializer(SegmentStorage storage) {
+        this.storage = storage;
     }
 
-    WALEntry readEntry(long startPosition) {
-        Integer entrySize = readInteger(startPosition);
-        //read header
-        Header header = new Header(startPosition + WriteAheadLog.sizeOfInt);
-        Integer entryType = header.readEntryType();
-        Long generation = header.readGeneration();
-        Long entryId = header.readEntryId();
-        Long entryTimestamp = header.readEntryTimestamp();
-
-        int headerSize = header.getSize();
-        var dataSize = (entrySize - headerSize);
-        //read data
-        ByteBuffer buffer = ByteBuffer.allocate(dataSize);
-        var position = readFromChannel(logChannel, buffer, startPosition + headerSize + WriteAheadLog.sizeOfInt);
-        var bytesRead = entrySize + WriteAheadLog.sizeOfInt;
-        return new WALEntry(entryId, buffer.array(), EntryType.valueOf(entryType), generation);
+    //Size of the entry at the position, 0 in the preallocated space past the last entry.
+    int readEntrySize(long startPosition) {
+        return storage.read(startPosition, WriteAheadLog.sizeOfInt).getInt(0);
     }
 
-    public Long readLong(long position1) {
-        long position = readFromChannel(logChannel, longBuffer, position1);
-        return longBuffer.getLong();
+    //Reads only the index of the entry, without its data or checking its crc.
+    long readEntryIndex(long startPosition) {
+        return storage.read(startPosition + INDEX_OFFSET, WriteAheadLog.sizeOfLong).getLong(0);
     }
 
-    public Integer readInteger(long position) {
-        readFromChannel(logChannel, intBuffer, position);
-        return intBuffer.getInt();
+    //Whether an entry of this size at the position fits in the end.
+    static boolean isValidSize(long startPosition, int entrySize, long end) {
+        return entrySize >= CRC_SIZE + HEADER_SIZE
+                && startPosition + WriteAheadLog.sizeOfInt + entrySize <= end;
     }
 
-    private long readFromChannel(FileChannel channel, ByteBuffer buffer, long filePosition) {
-
-        try {
-            buffer.clear();//clear to start reading.
-
-            int bytesRead;
-            do {
-                bytesRead = channel.read(buffer, filePosition);
-                filePosition += bytesRead;
-            } while (bytesRead != -1 && buffer.hasRemaining());
-
-            buffer.flip(); //read to be read
-
-            return channel.position();
-
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    WALEntry readEntry(long startPosition) {
+        int entrySize = readEntrySize(startPosition);
+        if (!isValidSize(startPosition, entrySize, storage.size())) {
+            throw new CorruptEntryException(startPosition, "invalid size " + entrySize);
         }
+        ByteBuffer header = storage.read(startPosition + WriteAheadLog.sizeOfInt, CRC_SIZE + HEADER_SIZE);
+        var dataSize = (entrySize - CRC_SIZE - HEADER_SIZE);
+        //read data
+        ByteBuffer data = storage.read(startPosition + WriteAheadLog.sizeOfInt + CRC_SIZE + HEADER_SIZE, dataSize);
+
+        int crc = header.getInt();
+        CRC32C expectedCrc = new CRC32C();
+        expectedCrc.update(header.duplicate());
+        expectedCrc.update(data.duplicate());
+        if ((int) expectedCrc.getValue() != crc) {
+            throw new CorruptEntryException(startPosition, "crc mismatch");
+        }
+        int entryType = header.getInt();
+        long generation = header.getLong();
+        long entryId = header.getLong();
+        long entryTimestamp = header.getLong();
+
+        byte[] bytes = new byte[dataSize];
+        data.get(bytes);
+        return new WALEntry(entryId, bytes, EntryType.valueOf(entryType), generation, entryTimestamp);
     }
-
 }
@@ -0,0 +1,68 @@
+package replicate.wal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An entry read by a WALCursor, over the bytes of the entry in the buffer of the cursor.
+ * Its fields are decoded only when they are asked for, and its data is only copied by getData.
+ *
+ * A cursor has one view, which moves to the next entry on every WALCursor.next,
+ * so an entry which is needed after that is copied with toEntry.
+ */
+public final class WALEntryView {
+    private static final int TYPE_OFFSET = WriteAheadLog.sizeOfInt + WALEntryDeserializer.CRC_SIZE;
+    private static final int GENERATION_OFFSET = TYPE_OFFSET + WriteAheadLog.sizeOfInt;
+    private static final int INDEX_OFFSET = GENERATION_OFFSET + WriteAheadLog.sizeOfLong;
+    private static final int TIMESTAMP_OFFSET = INDEX_OFFSET + WriteAheadLog.sizeOfLong;
+    private static final int DATA_OFFSET = TIMESTAMP_OFFSET + WriteAheadLog.sizeOfLong;
+
+    private ByteBuffer buffer;
+    //offset of the entry in the buffer, and its size, including the size field.
+    private int offset;
+    private int length;
+
+    WALEntryView() {
+    }
+
+    void moveTo(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getEntryIndex() {
+        return buffer.getLong(offset + INDEX_OFFSET);
+    }
+
+    public long getGeneration() {
+        return buffer.getLong(offset + GENERATION_OFFSET);
+    }
+
+    public EntryType getEntryType() {
+        return EntryType.valueOf(buffer.getInt(offset + TYPE_OFFSET));
+    }
+
+    public long getTimeStamp() {
+        return buffer.getLong(offset + TIMESTAMP_OFFSET);
+    }
+
+    public int getDataSize() {
+        return length - DATA_OFFSET;
+    }
+
+    //A copy of the data.
+    public byte[] getData() {
+        byte[] data = new byte[getDataSize()];
+        buffer.get(offset + DATA_OFFSET, data);
+        return data;
+    }
+
+    //Size of the entry in the segment.
+    int logEntrySize() {
+        return length;
+    }
+
+    public WALEntry toEntry() {
+        return new WALEntry(getEntryIndex(), getData(), getEntryType(), getGeneration(), getTimeStamp());
+    }
+}
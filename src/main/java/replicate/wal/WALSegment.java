@@ -1,33 +1,54 @@
 package replicate.wal;
 
+import replicate.common.LatencyHistogram;
+import replicate.common.Logging;
+import replicate.jfr.WalForceEvent;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Optional;
 
-public class WALSegment {
+public class WALSegment implements Logging {
     private static String logSuffix = ".log";
     private static String logPrefix = "wal";
+    private static String indexSuffix = ".index";
+    private static String checkpointSuffix = ".checkpoint";
     final RandomAccessFile randomAccessFile;
     final FileChannel fileChannel;
-    Map<Long, Long> entryOffsets = new HashMap<Long, Long>();
+    final SegmentStorage storage;
+    EntryOffsets entryOffsets;
+    //Set once the segment is sealed, when the WAL rolls to the next segment.
+    //The offsets of its entries are then dropped, and entries are found with the sparse index.
+    private volatile SegmentIndex sealedIndex;
     private File file;
+    //set by the WriteAheadLog, so that fsyncs of all its segments are recorded together.
+    private LatencyHistogram fsyncLatency = new LatencyHistogram();
+    //Forces are not synchronized with truncations, so the checkpoint is moved under its own lock.
+    private final Object checkpointLock = new Object();
+    private long checkpointPosition;
+    private long truncations;
 
-    private WALSegment(Long startIndex, File file) {
+    //Segments are mapped in memory, preallocated to mappedCapacity bytes, if it is not 0.
+    private WALSegment(Long startIndex, File file, long mappedCapacity) {
         try {
             this.file = file;
+            this.entryOffsets = new EntryOffsets(startIndex);
             this.randomAccessFile = new RandomAccessFile(file, "rw");
             this.fileChannel = randomAccessFile.getChannel();
-            //build index;
-            buildOffsetIndex();
+            SegmentHeader.writeOrCheck(fileChannel, file);
+            this.storage = mappedCapacity > 0
+                    ? new MappedSegmentStorage(randomAccessFile, mappedCapacity)
+                    : new ChannelSegmentStorage(fileChannel);
+            //build index, unless it is sealed;
+            if (!openSealed()) {
+                buildOffsetIndex();
+            }
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
@@ -42,19 +63,34 @@ public class WALSegment {
     }
 
     public static WALSegment open(Long startIndex, File walDir) {
-        var file = new File(walDir, createFileName(startIndex));
-        return new WALSegment(startIndex, file);
+        return open(startIndex, walDir, 0);
     }
 
     public static WALSegment open(File file) {
-        return new WALSegment(getBaseOffsetFromFileName(file.getName()), file);
+        return open(file, 0);
+    }
+
+    public static WALSegment open(Long startIndex, File walDir, long mappedCapacity) {
+        var file = new File(walDir, createFileName(startIndex));
+        return new WALSegment(startIndex, file, mappedCapacity);
+    }
+
+    public static WALSegment open(File file, long mappedCapacity) {
+        return new WALSegment(getBaseOffsetFromFileName(file.getName()), file, mappedCapacity);
     }
 
     public synchronized List<WALEntry> readFrom(Long starIndex) {
+            SegmentIndex sparseIndex = sealedIndex;
+            if (sparseIndex != null) {
+                return scanFrom(sparseIndex.floorPosition(starIndex), starIndex, Long.MAX_VALUE);
+            }
             var entries = new ArrayList<WALEntry>();
-            var deserializer = new WALEntryDeserializer(fileChannel);
-            List<Long> indexes = entryOffsets.keySet().stream().filter(index -> index >= starIndex).collect(Collectors.toList());
-            for (Long index : indexes) {
+            if (entryOffsets.isEmpty()) {
+                return entries;
+            }
+            var deserializer = new WALEntryDeserializer(storage);
+            long lastIndex = entryOffsets.lastIndex();
+            for (long index = entryOffsets.nextIndex(starIndex); index <= lastIndex; index = entryOffsets.nextIndex(index + 1)) {
                 var entryOffset = entryOffsets.get(index);
                 try {
                     WALEntry entry = deserializer.readEntry(entryOffset);
@@ -67,39 +103,79 @@ public class WALSegment {
             return entries;
     }
 
+    //Entries end at the end of the file, or at an entry size of zero, in a preallocated file.
+    //The entries up to the checkpoint were forced, so only their sizes are read to find them.
+    //The entries after it are checked against their CRC, and the segment is truncated
+    //at the first one which is not complete, e.g. the last entry torn by a crash in the middle of a write.
     public synchronized void buildOffsetIndex() {
-        try {
-            entryOffsets = new HashMap<>();
-            var totalBytesRead = 0L;
-            var deserializer = new WALEntryDeserializer(fileChannel);
-            while (totalBytesRead < fileChannel.size()) {
-                WALEntry entry = deserializer.readEntry(totalBytesRead);
-                entryOffsets.put(entry.getEntryIndex(), totalBytesRead);
-                totalBytesRead += entry.logEntrySize(); //size of entry + size of int which stores length
+        long size = storage.size();
+        long checkpoint = SegmentCheckpoint.read(checkpointFile());
+        long position = checkpoint <= size ? skipToCheckpoint(checkpoint) : -1;
+        if (position < 0) {
+            //the checkpoint does not fall on an entry, so none of the entries are trusted.
+            position = 0;
+        }
+        if (position == 0) {
+            entryOffsets = new EntryOffsets(getBaseOffset());
+        }
+        var deserializer = new WALEntryDeserializer(storage);
+        while (size - position >= WriteAheadLog.sizeOfInt
+                && deserializer.readEntrySize(position) != 0) {
+            try {
+                WALEntry entry = deserializer.readEntry(position);
+                entryOffsets.put(entry.getEntryIndex(), position);
+                position += entry.logEntrySize(); //size of entry + size of int which stores length
+
+            } catch (CorruptEntryException e) {
+                getLogger().warn("Truncating torn tail of " + file.getPath() + " from position " + position + " of " + size, e);
+                storage.truncate(position);
+                break;
             }
+        }
+        storage.recoveredTo(position);
+        synchronized (checkpointLock) {
+            checkpointPosition = Math.min(checkpoint, position);
+        }
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    //Position of the checkpoint, walking the entries before it by their sizes. -1 if it is not after an entry.
+    private long skipToCheckpoint(long checkpoint) {
+        entryOffsets = new EntryOffsets(getBaseOffset());
+        var deserializer = new WALEntryDeserializer(storage);
+        long position = 0;
+        long previousIndex = Long.MIN_VALUE;
+        while (position < checkpoint) {
+            int entrySize = deserializer.readEntrySize(position);
+            if (!WALEntryDeserializer.isValidSize(position, entrySize, checkpoint)) {
+                return -1;
+            }
+            long index = deserializer.readEntryIndex(position);
+            if (index <= previousIndex) {
+                return -1;
+            }
+            entryOffsets.put(index, position);
+            previousIndex = index;
+            position += WriteAheadLog.sizeOfInt + entrySize;
         }
+        return position;
     }
 
     public synchronized List<WALEntry> readAll() {
-        try {
-            var totalBytesRead = 0L;
-            var entries = new ArrayList<WALEntry>();
-            var deserializer = new WALEntryDeserializer(fileChannel);
-            while (totalBytesRead < fileChannel.size()) {
-                WALEntry entry = deserializer.readEntry(totalBytesRead);
-                totalBytesRead += entry.logEntrySize(); //size of entry + size of int which stores length
-                entries.add(entry);
-            }
-            return entries;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        var totalBytesRead = 0L;
+        var entries = new ArrayList<WALEntry>();
+        var deserializer = new WALEntryDeserializer(storage);
+        while (totalBytesRead < storage.size()) {
+            WALEntry entry = deserializer.readEntry(totalBytesRead);
+            totalBytesRead += entry.logEntrySize(); //size of entry + size of int which stores length
+            entries.add(entry);
         }
+        return entries;
     }
 
     public synchronized Long getLastLogEntryTimestamp() {
+        if (sealedIndex != null) {
+            return sealedIndex.getFooter().lastTimestamp();
+        }
         if (entryOffsets.isEmpty()) {
             return 0l;
         }
@@ -107,64 +183,104 @@ public class WALSegment {
     }
 
     public synchronized Long getLastLogEntryIndex() {
-        return entryOffsets.keySet().stream().max(Long::compareTo).orElse(0l);
+        if (sealedIndex != null) {
+            return sealedIndex.getFooter().lastIndex();
+        }
+        return entryOffsets.isEmpty() ? 0l : entryOffsets.lastIndex();
     }
 
     public synchronized Long writeEntry(WALEntry logEntry) {
-        try {
-            long entryOffset = fileChannel.size();
-            writeToChannel(logEntry.serialize());
-            entryOffsets.put(logEntry.getEntryIndex(), entryOffset);
-            return logEntry.getEntryIndex();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        Long entryIndex = append(logEntry);
+        flush();
+        return entryIndex;
     }
 
-    private Long writeToChannel(ByteBuffer buffer) {
-        try {
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                fileChannel.write(buffer);
-            }
-            flush();
-            return fileChannel.position();
+    //Writes the entry without forcing it to the disk. It can be read at once.
+    synchronized Long append(WALEntry logEntry) {
+        checkNotSealed();
+        long entryOffset = storage.size();
+        storage.append(logEntry.serialize().flip());
+        entryOffsets.put(logEntry.getEntryIndex(), entryOffset);
+        return logEntry.getEntryIndex();
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    //A preallocated segment is full once the entry does not fit in the rest of the file.
+    synchronized boolean hasRoomFor(WALEntry logEntry) {
+        return storage.hasRoomFor(logEntry.logEntrySize());
+    }
+
+    synchronized void recordFsyncLatencyIn(LatencyHistogram fsyncLatency) {
+        this.fsyncLatency = fsyncLatency;
     }
 
     public synchronized void flush() {
-        try {
-            fileChannel.force(true);
+        force();
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    //Not synchronized, so entries can be appended while the segment is forced.
+    void force() {
+        long startNanos = System.nanoTime();
+        long truncationsBefore;
+        synchronized (checkpointLock) {
+            truncationsBefore = truncations;
+        }
+        //entries are appended whole, so the size is the end of an entry.
+        long forcedEnd = storage.size();
+        var event = new WalForceEvent();
+        event.begin();
+        storage.force();
+        event.end();
+        fsyncLatency.recordSince(startNanos);
+        if (event.shouldCommit()) {
+            event.segment = file.getPath();
+            event.commit();
+        }
+        maybeCheckpoint(forcedEnd, truncationsBefore);
+    }
+
+    private void maybeCheckpoint(long forcedEnd, long truncationsBefore) {
+        synchronized (checkpointLock) {
+            //sealed segments have no checkpoint, and a truncation during the force may have removed the forced entries.
+            if (sealedIndex != null || truncations != truncationsBefore
+                    || forcedEnd - checkpointPosition < SegmentCheckpoint.CHECKPOINT_INTERVAL_BYTES) {
+                return;
+            }
+            SegmentCheckpoint.write(checkpointFile(), forcedEnd, false);
+            checkpointPosition = forcedEnd;
         }
     }
 
     public synchronized void close() {
         flush();
-
-        try {
-            fileChannel.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (sealedIndex == null) {
+            synchronized (checkpointLock) {
+                checkpointPosition = storage.size();
+                SegmentCheckpoint.write(checkpointFile(), checkpointPosition, false);
+            }
         }
+        storage.close();
     }
 
     //<codeFragment name="logTruncation">
     public synchronized  void truncate(Long logIndex) throws IOException {
+        checkNotSealed();
         var filePosition = entryOffsets.get(logIndex);
-        if (filePosition == null) throw new IllegalArgumentException("No file position available for logIndex=" + logIndex);
+        if (filePosition == EntryOffsets.NO_POSITION) throw new IllegalArgumentException("No file position available for logIndex=" + logIndex);
 
-        fileChannel.truncate(filePosition);
+        synchronized (checkpointLock) {
+            truncations++;
+            //forced before the entries are removed, so that the checkpoint never points past a truncated entry.
+            if (checkpointPosition > filePosition) {
+                checkpointPosition = filePosition;
+                SegmentCheckpoint.write(checkpointFile(), checkpointPosition, true);
+            }
+            storage.truncate(filePosition);
+        }
         truncateIndex(logIndex);
     }
 
     private void truncateIndex(Long logIndex) {
-        entryOffsets.entrySet().removeIf(entry -> entry.getKey() >= logIndex);
+        entryOffsets.truncateFrom(logIndex);
     }
     //</codeFragment>
 
@@ -182,19 +298,18 @@ public class WALSegment {
         return -1l;
     }
     //</codeFragment>
+    //Bytes of the entries, less than the file size of a preallocated segment.
     public synchronized long size() {
-        try {
-            return fileChannel.size();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return storage.size();
     }
 
     public synchronized void delete() {
         try {
-            fileChannel.close();
+            storage.release();
             randomAccessFile.close();
             Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(indexFile().toPath());
+            Files.deleteIfExists(checkpointFile().toPath());
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -202,11 +317,165 @@ public class WALSegment {
     }
 
     public WALEntry readAt(Long index) {
+        SegmentIndex sparseIndex = sealedIndex;
+        if (sparseIndex != null) {
+            List<WALEntry> entries = scanFrom(sparseIndex.floorPosition(index), index, index);
+            if (entries.isEmpty()) {
+                throw new IllegalArgumentException("No entry available for logIndex=" + index);
+            }
+            return entries.get(0);
+        }
         var filePosition = entryOffsets.get(index);
-        if (filePosition == null) {
+        if (filePosition == EntryOffsets.NO_POSITION) {
             throw new IllegalArgumentException("No file position available for logIndex=" + index);
         }
-        var deserializer = new WALEntryDeserializer(fileChannel);
+        var deserializer = new WALEntryDeserializer(storage);
         return deserializer.readEntry(filePosition);
     }
+
+    //<codeFragment name="segmentSealing">
+    //Called when the WAL rolls to the next segment. Writes the sparse index and footer to the index file,
+    //and drops the offsets of all the entries from memory.
+    synchronized void seal() {
+        flush();
+        if (sealedIndex != null || entryOffsets.isEmpty()) {
+            return;
+        }
+        var builder = new SegmentIndex.Builder(getBaseOffset());
+        long firstIndex = entryOffsets.firstIndex();
+        long lastIndex = entryOffsets.lastIndex();
+        for (long index = firstIndex; index <= lastIndex; index = entryOffsets.nextIndex(index + 1)) {
+            builder.add(index, entryOffsets.get(index));
+        }
+        var index = builder.build(lastIndex, readAt(firstIndex).getTimeStamp(), readAt(lastIndex).getTimeStamp(), storage.size());
+        index.writeTo(indexFile());
+        sealedIndex = index;
+        entryOffsets = new EntryOffsets(getBaseOffset());
+        deleteCheckpoint();
+    }
+
+    //A sealed segment is opened from its index file, without reading all its entries.
+    //Only the entries after the last indexed one are read, to check that they end where the footer says.
+    private boolean openSealed() {
+        Optional<SegmentIndex> index = SegmentIndex.readFrom(indexFile());
+        if (index.isEmpty() || !matchesEntries(index.get())) {
+            return false;
+        }
+        storage.recoveredTo(index.get().getFooter().dataSize());
+        sealedIndex = index.get();
+        return true;
+    }
+
+    private boolean matchesEntries(SegmentIndex index) {
+        SegmentIndex.Footer footer = index.getFooter();
+        if (storage.size() < footer.dataSize()) {
+            return false;
+        }
+        try {
+            var deserializer = new WALEntryDeserializer(storage);
+            long position = index.lastIndexedPosition();
+            long lastIndex = -1;
+            while (position < footer.dataSize()) {
+                WALEntry entry = deserializer.readEntry(position);
+                lastIndex = entry.getEntryIndex();
+                position += entry.logEntrySize();
+            }
+            return position == footer.dataSize() && lastIndex == footer.lastIndex();
+
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    //The WAL appends to its last segment, when it is opened again. So it can not stay sealed.
+    synchronized void unseal() {
+        if (sealedIndex == null) {
+            return;
+        }
+        SegmentIndex index = sealedIndex;
+        sealedIndex = null;
+        //the entries of a sealed segment were all forced, so none of them need to be checked again.
+        SegmentCheckpoint.write(checkpointFile(), index.getFooter().dataSize(), true);
+        try {
+            Files.deleteIfExists(indexFile().toPath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buildOffsetIndex();
+    }
+    //</codeFragment>
+
+    //Position to read forward from, to find the entries from the index on.
+    synchronized long scanPositionFor(long index) {
+        if (sealedIndex != null) {
+            return sealedIndex.floorPosition(index);
+        }
+        if (entryOffsets.isEmpty() || index <= entryOffsets.firstIndex()) {
+            return 0;
+        }
+        if (index > entryOffsets.lastIndex()) {
+            return storage.size();
+        }
+        return entryOffsets.get(entryOffsets.nextIndex(index));
+    }
+
+    boolean isSealed() {
+        return sealedIndex != null;
+    }
+
+    //Entries from fromIndex to toIndex, scanning forward from the position of an entry.
+    private List<WALEntry> scanFrom(long position, long fromIndex, long toIndex) {
+        var entries = new ArrayList<WALEntry>();
+        var deserializer = new WALEntryDeserializer(storage);
+        long end = storage.size();
+        while (position < end) {
+            WALEntry entry = deserializer.readEntry(position);
+            position += entry.logEntrySize();
+            if (entry.getEntryIndex() > toIndex) {
+                break;
+            }
+            if (entry.getEntryIndex() >= fromIndex) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private void checkNotSealed() {
+        if (sealedIndex != null) {
+            throw new IllegalStateException("Segment " + file.getPath() + " is sealed");
+        }
+    }
+
+    private File indexFile() {
+        return new File(file.getParentFile(), createIndexFileName(getBaseOffset()));
+    }
+
+    public static String createIndexFileName(Long startIndex) {
+        return logPrefix + "_" + startIndex + indexSuffix;
+    }
+
+    private File checkpointFile() {
+        return new File(file.getParentFile(), createCheckpointFileName(getBaseOffset()));
+    }
+
+    public static String createCheckpointFileName(Long startIndex) {
+        return logPrefix + "_" + startIndex + checkpointSuffix;
+    }
+
+    //The index file of a sealed segment replaces its checkpoint.
+    private void deleteCheckpoint() {
+        synchronized (checkpointLock) {
+            checkpointPosition = 0;
+            try {
+                Files.deleteIfExists(checkpointFile().toPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static boolean isSegmentFile(String fileName) {
+        return fileName.startsWith(logPrefix + "_") && fileName.endsWith(logSuffix);
+    }
 }
@@ -1,6 +1,10 @@
 package replicate.wal;
 
 import replicate.common.Config;
+import replicate.common.LatencyHistogram;
+import replicate.common.Trace;
+import replicate.jfr.WalAppendEvent;
+import replicate.jfr.WalSegmentEvent;
 
 import java.io.File;
 import java.io.IOException;
@@ -8,6 +12,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 
 public class WriteAheadLog {
@@ -20,21 +27,34 @@ public class WriteAheadLog {
     //So that it easier to traverse them to find specific entry.
     //#see getAllSegmentsContainingLogGreaterThan
     List<WALSegment> sortedSavedSegments;
+    //time to write an entry, including the fsync.
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+    //Forces appended entries in batches. Started with the WAL in group commit mode,
+    //else on the first appendAsync.
+    private GroupCommitter groupCommitter;
 
     public static WriteAheadLog openWAL(Config config) {
-        return new WriteAheadLog(openAllSegments(config.getWalDir()), config);
+        return new WriteAheadLog(openAllSegments(config.getWalDir(), mappedCapacity(config)), config);
     }
 
-    private static List<WALSegment> openAllSegments(File walDir) {
+    //Segments are preallocated to the max log size, when mapped in memory.
+    private static long mappedCapacity(Config config) {
+        return config.isMmapSegments() ? config.getMaxLogSize() : 0;
+    }
+
+    private static List<WALSegment> openAllSegments(File walDir, long mappedCapacity) {
         List<WALSegment> segments = new ArrayList<>();
         File[] walFiles = walDir.listFiles();
         for (File walFile : walFiles) {
             String name = walFile.getName();
-            Long baseOffset = WALSegment.getBaseOffsetFromFileName(name);
-            segments.add(WALSegment.open(walFile));
+            if (!WALSegment.isSegmentFile(name)) {
+                continue; //e.g. the index files of sealed segments.
+            }
+            segments.add(WALSegment.open(walFile, mappedCapacity));
         }
         if (segments.size() == 0) {
-            segments.add(WALSegment.open(0l, walDir));
+            segments.add(WALSegment.open(0l, walDir, mappedCapacity));
         }
 
         //compare ascending for baseoffsets
@@ -45,7 +65,12 @@ public class WriteAheadLog {
     public WriteAheadLog(List<WALSegment> segmentsSortedByIndex, Config config) {
         sortedSavedSegments = segmentsSortedByIndex;
         this.openSegment = lastOpenSegment(segmentsSortedByIndex, lastIndex());
+        this.openSegment.unseal();
+        this.openSegment.recordFsyncLatencyIn(fsyncLatency);
         this.config = config;
+        if (config.isWalGroupCommit()) {
+            this.groupCommitter = newGroupCommitter(config);
+        }
        //<codeFragment name="logCleanerInit">
         this.logCleaner = newLogCleaner(config);
         this.logCleaner.startup();
@@ -64,30 +89,138 @@ public class WriteAheadLog {
         return new TimeBasedLogCleaner(config, this);
     }
 
+    private GroupCommitter newGroupCommitter(Config config) {
+        if (config.isWalAdaptiveGroupCommit()) {
+            return new GroupCommitter(this, config);
+        }
+        return new GroupCommitter(this, config.getWalGroupCommitMaxBatchBytes(), config.getWalGroupCommitMaxWait());
+    }
+
+    private synchronized GroupCommitter groupCommitter() {
+        if (groupCommitter == null) {
+            groupCommitter = newGroupCommitter(config);
+        }
+        return groupCommitter;
+    }
+
+    //In group commit mode, waits for the batch with the entry to be forced.
+    public Long writeEntry(WALEntry entry) {
+        if (!config.isWalGroupCommit()) {
+            return writeAndForce(entry);
+        }
+        return recordAppend(entry, () -> awaitDurable(appendAsync(entry).durable()));
+    }
+
+    /**
+     * Appends the entry, and returns without waiting for it to be forced to the disk.
+     * The entry can be read from the log at once, and is durable once the returned future completes.
+     * Forces are shared by the entries appended while the previous force was in progress. @see GroupCommitter
+     * An entry without an index, as created with WALEntry(byte[]), is given the next index.
+     */
+    public WALAppend appendAsync(WALEntry entry) {
+        WALEntry appended = append(entry);
+        return new WALAppend(appended.getEntryIndex(), groupCommitter().awaitForce(appended));
+    }
+
+    private synchronized WALEntry append(WALEntry entry) {
+        if (entry.getEntryIndex() < 0) {
+            entry = new WALEntry(getLastLogIndex() + 1, entry.getData(), entry.getEntryType(), entry.getGeneration());
+        }
+        maybeRoll(entry);
+        openSegment.append(entry);
+        return entry;
+    }
+
+    private static Long awaitDurable(CompletableFuture<Long> durable) {
+        try {
+            return durable.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    //Segments are forced when rolled, so this makes all the appended entries durable.
+    //The WAL is not locked during the force, so appends can go on.
+    void forceOpenSegment() {
+        WALSegment segment;
+        synchronized (this) {
+            segment = openSegment;
+        }
+        segment.force();
+    }
+
     //<codeFragment name="rollSegment">
-    public synchronized Long writeEntry(WALEntry entry) {
-        maybeRoll();
-        return openSegment.writeEntry(entry);
+    private synchronized Long writeAndForce(WALEntry entry) {
+        return recordAppend(entry, () -> {
+            maybeRoll(entry);
+            return openSegment.writeEntry(entry);
+        });
+    }
+
+    private Long recordAppend(WALEntry entry, Supplier<Long> append) {
+        long startNanos = System.nanoTime();
+        var event = new WalAppendEvent();
+        event.begin();
+        Long entryIndex = append.get();
+        event.end();
+        appendLatency.recordSince(startNanos);
+        Trace.mark(Trace.Stage.FSYNC);
+        if (event.shouldCommit()) {
+            event.walDir = config.getWalDir().getPath();
+            event.entryIndex = entryIndex;
+            event.size = entry.logEntrySize();
+            event.commit();
+        }
+        return entryIndex;
     }
 
-    private void maybeRoll() {
+    private void maybeRoll(WALEntry entry) {
+        if (openSegment.size() == 0 && !openSegment.hasRoomFor(entry)) {
+            throw new IllegalArgumentException("Entry of " + entry.logEntrySize() + " bytes is larger than a segment");
+        }
         if (openSegment.
-                size() >= config.getMaxLogSize()) {
-            openSegment.flush();
+                size() >= config.getMaxLogSize() || !openSegment.hasRoomFor(entry)) {
+            openSegment.seal();
+            segmentEvent(WalSegmentEvent.ROLLED, openSegment);
             sortedSavedSegments.add(openSegment);
             long lastId = openSegment.getLastLogEntryIndex();
-            openSegment = WALSegment.open(lastId, config.getWalDir());
+            openSegment = WALSegment.open(lastId, config.getWalDir(), mappedCapacity(config));
+            openSegment.recordFsyncLatencyIn(fsyncLatency);
         }
     }
     //</codeFragment>
 
     public synchronized List<WALEntry> readAll() {
-        List<WALEntry> walEntries = new ArrayList<>();
-        for (WALSegment sortedSavedSegment : sortedSavedSegments) {
-            walEntries.addAll(sortedSavedSegment.readAll());
+        return readFrom(0l);
+    }
+
+    /**
+     * A cursor over the entries from the index on, read through a buffer of readAheadBytes.
+     * Unlike readFrom, the entries are not all in memory at once, so the whole log can be replayed with it.
+     */
+    public synchronized WALCursor openCursor(long fromIndex, int readAheadBytes) {
+        return new WALCursor(this, fromIndex, getAllSegmentsContainingLogGreaterThan(fromIndex), readAheadBytes);
+    }
+
+    public WALCursor openCursor(long fromIndex) {
+        return openCursor(fromIndex, WALCursor.DEFAULT_READ_AHEAD_BYTES);
+    }
+
+    //Segments with a base offset after the given one, including the open segment, in the order of their entries.
+    synchronized List<WALSegment> segmentsAfter(long baseOffset) {
+        List<WALSegment> segments = new ArrayList<>();
+        for (WALSegment segment : sortedSavedSegments) {
+            if (segment.getBaseOffset() > baseOffset) {
+                segments.add(segment);
+            }
+        }
+        if (openSegment.getBaseOffset() > baseOffset) {
+            segments.add(openSegment);
         }
-        walEntries.addAll(openSegment.readAll());
-        return walEntries;
+        return segments;
     }
 
 
@@ -96,6 +229,13 @@ public class WriteAheadLog {
     }
 
     public void close() {
+        GroupCommitter committer;
+        synchronized (this) {
+            committer = groupCommitter;
+        }
+        if (committer != null) {
+            committer.shutdown();
+        }
         openSegment.close();
     }
 
@@ -115,38 +255,33 @@ public class WriteAheadLog {
 
     //<codeFragment name="segmentRead">
     public synchronized List<WALEntry> readFrom(Long startIndex) {
-        List<WALSegment> segments = getAllSegmentsContainingLogGreaterThan(startIndex);
-        return readWalEntriesFrom(startIndex, segments);
-    }
-    //</codeFragment>
-
-    private List<WALEntry> readWalEntriesFrom(Long startIndex, List<WALSegment> segments) {
         List<WALEntry> allEntries = new ArrayList<>();
-        for (WALSegment segment : segments) {
-            List<WALEntry> walEntries = segment.readFrom(startIndex);
-            allEntries.addAll(walEntries);
+        try (WALCursor cursor = openCursor(startIndex)) {
+            while (cursor.hasNext()) {
+                allEntries.add(cursor.next().toEntry());
+            }
         }
         return allEntries;
     }
+    //</codeFragment>
 
     //<codeFragment name="segmentSelection">
     private List<WALSegment> getAllSegmentsContainingLogGreaterThan(Long startIndex) {
         List<WALSegment> segments = new ArrayList<>();
         //Start from the last segment to the first segment with starting offset less than startIndex
-        //This will get all the segments which have log entries more than the startIndex
+        //This will get all the segments which have log entries more than the startIndex.
+        //A segment starts after its base offset, so the entry at the base offset is in the segment before it.
         for (int i = sortedSavedSegments.size() - 1; i >= 0; i--) {
             WALSegment walSegment = sortedSavedSegments.get(i);
             segments.add(walSegment);
 
-            if (walSegment.getBaseOffset() <= startIndex) {
+            if (walSegment.getBaseOffset() < startIndex) {
                 break; // break for the first segment with baseoffset less than startIndex
             }
         }
-
-        if (openSegment.getBaseOffset() <= startIndex) {
-            segments.add(openSegment);
-        }
-
+        Collections.reverse(segments);
+        //the open segment has the last entries, so it always has entries after startIndex, if there are any.
+        segments.add(openSegment);
         return segments;
     }
     //</codeFragment>
@@ -154,9 +289,21 @@ public class WriteAheadLog {
     public synchronized void removeAndDeleteSegment(WALSegment walSegment) {
         int index = indexOf(walSegment);
         sortedSavedSegments.remove(index);
+        segmentEvent(WalSegmentEvent.DELETED, walSegment);
         walSegment.delete();
     }
 
+    private static void segmentEvent(String action, WALSegment segment) {
+        var event = new WalSegmentEvent();
+        if (event.shouldCommit()) {
+            event.action = action;
+            event.segment = segment.getFileName();
+            event.baseOffset = segment.getBaseOffset();
+            event.size = segment.size();
+            event.commit();
+        }
+    }
+
     private int indexOf(WALSegment walSegment) {
         for (int i = 0; i < sortedSavedSegments.size(); i++) {
             WALSegment segment = sortedSavedSegments.get(i);
@@ -178,16 +325,29 @@ public class WriteAheadLog {
         return openSegment.size() == 0;
     }
 
-    public synchronized Long writeEntry(byte[] data) {
+    public Long writeEntry(byte[] data) {
         return writeEntry(data, 0);
     }
 
-    public synchronized Long writeEntry(byte[] data, long generation) {
+    public Long writeEntry(byte[] data, long generation) {
+        if (config.isWalGroupCommit()) {
+            //the index is assigned on append, without holding the lock while the force is awaited.
+            return writeEntry(new WALEntry(-1L, data, EntryType.DATA, generation));
+        }
+        return writeNextEntry(data, generation);
+    }
+
+    private synchronized Long writeNextEntry(byte[] data, long generation) {
         var logEntryId = getLastLogIndex() + 1;
         var logEntry = new WALEntry(logEntryId, data, EntryType.DATA, generation);
         return writeEntry(logEntry);
     }
 
+    //Number of forces of group commit batches.
+    public synchronized long getGroupCommits() {
+        return groupCommitter == null ? 0 : groupCommitter.getBatches();
+    }
+
     public synchronized Long getLastLogEntryGeneration() {
         if (isEmpty()) {
             return 0l;
@@ -199,6 +359,14 @@ public class WriteAheadLog {
         return getLastLogIndex() >= entry.getEntryIndex();
     }
 
+    public LatencyHistogram getAppendLatency() {
+        return appendLatency;
+    }
+
+    public LatencyHistogram getFsyncLatency() {
+        return fsyncLatency;
+    }
+
     public synchronized long getLogStartIndex() {
         return isEmpty()? 0:readAt(1l).getEntryIndex();
     }
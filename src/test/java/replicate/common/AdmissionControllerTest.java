@@ -0,0 +1,49 @@
+package replicate.common;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void rejectsClientRequestsOnceQueueDepthIsReached() {
+        var controller = new AdmissionController(2, Integer.MAX_VALUE, Long.MAX_VALUE);
+        assertTrue(controller.admitClientRequest().isEmpty());
+        controller.taskQueued(); //peer messages are always queued.
+        assertTrue(controller.admitClientRequest().isPresent());
+        assertEquals(1, controller.getShedForQueueDepth());
+
+        controller.taskCompleted(0);
+        assertTrue(controller.admitClientRequest().isEmpty());
+    }
+
+    @Test
+    public void rejectsClientRequestsOnceInFlightLimitIsReached() {
+        var controller = new AdmissionController(Integer.MAX_VALUE, 1, Long.MAX_VALUE);
+        assertTrue(controller.admitClientRequest().isEmpty());
+        controller.taskCompleted(0); //waiting for quorum responses, no longer in the queue.
+        assertTrue(controller.admitClientRequest().isPresent());
+        assertEquals(1, controller.getShedForInFlightRequests());
+
+        controller.clientRequestCompleted();
+        assertTrue(controller.admitClientRequest().isEmpty());
+        assertEquals(2, controller.getAdmitted());
+    }
+
+    @Test
+    public void rejectsClientRequestsIfEstimatedQueueingDelayIsTooHigh() {
+        var controller = new AdmissionController(Integer.MAX_VALUE, Integer.MAX_VALUE, 100);
+        controller.taskQueued();
+        controller.taskCompleted(Duration.ofMillis(40).toNanos());
+        for (int i = 0; i < 3; i++) {
+            controller.taskQueued();
+        }
+        assertEquals(Duration.ofMillis(120).toNanos(), controller.estimatedQueueingDelayNanos());
+        assertTrue(controller.admitClientRequest().isPresent());
+        assertEquals(1, controller.getShedForQueueingDelay());
+        assertEquals(1, controller.getShed());
+    }
+}
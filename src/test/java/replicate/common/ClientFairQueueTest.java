@@ -0,0 +1,126 @@
+package replicate.common;
+
+import org.junit.Test;
+import replicate.net.requestwaitinglist.TestClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClientFairQueueTest {
+    //update queue, executing tasks only when the test runs them.
+    ArrayDeque<Runnable> updateQueue = new ArrayDeque<>();
+    List<String> executed = new ArrayList<>();
+
+    @Test
+    public void alternatesBetweenClientsIrrespectiveOfArrivalOrder() {
+        var fairQueue = new ClientFairQueue(updateQueue::add, clientId -> ClientQuota.UNLIMITED, new SystemClock(), 100, 1);
+        enqueue(fairQueue, 1, "c1-1", 100);
+        enqueue(fairQueue, 1, "c1-2", 100);
+        enqueue(fairQueue, 1, "c1-3", 100);
+        enqueue(fairQueue, 2, "c2-1", 100);
+        enqueue(fairQueue, 2, "c2-2", 100);
+
+        runUpdateQueue();
+
+        assertEquals(Arrays.asList("c1-1", "c1-2", "c2-1", "c1-3", "c2-2"), executed);
+    }
+
+    @Test
+    public void sharesBytesNotRequestsBetweenClients() {
+        var fairQueue = new ClientFairQueue(updateQueue::add, clientId -> ClientQuota.UNLIMITED, new SystemClock(), 100, 1);
+        enqueue(fairQueue, 0, "blocker", 100);
+        enqueue(fairQueue, 1, "large-1", 300);
+        enqueue(fairQueue, 1, "large-2", 300);
+        for (int i = 1; i <= 4; i++) {
+            enqueue(fairQueue, 2, "small-" + i, 100);
+        }
+
+        runUpdateQueue();
+
+        //the client with large requests needs three turns for each of them.
+        assertEquals(Arrays.asList("blocker", "small-1", "small-2", "large-1", "small-3", "small-4", "large-2"), executed);
+    }
+
+    @Test
+    public void rejectsRequestsOverTheConcurrencyQuota() {
+        var fairQueue = new ClientFairQueue(updateQueue::add, clientId -> clientId == 1 ? new ClientQuota(Double.POSITIVE_INFINITY, 2) : ClientQuota.UNLIMITED, new SystemClock());
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertTrue(fairQueue.admit(1).isPresent());
+        assertTrue(fairQueue.admit(2).isEmpty()); //other clients are not affected.
+
+        fairQueue.requestCompleted(1);
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertEquals(new ClientFairQueue.ClientStats(3, 0, 1, 2, 0), fairQueue.getClientStats(1));
+    }
+
+    @Test
+    public void rejectsRequestsOverTheRateQuota() {
+        var clock = new TestClock(0);
+        var fairQueue = new ClientFairQueue(updateQueue::add, clientId -> new ClientQuota(2, Integer.MAX_VALUE), clock);
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertTrue(fairQueue.admit(1).isPresent());
+
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(500)); //one more request allowed.
+        assertTrue(fairQueue.admit(1).isEmpty());
+        assertTrue(fairQueue.admit(1).isPresent());
+        assertEquals(2, fairQueue.getClientStats(1).rejectedForRate());
+    }
+
+    @Test
+    public void dropsTheStateOfIdleClients() {
+        var clock = new TestClock(0);
+        var fairQueue = new ClientFairQueue(updateQueue::add, clientId -> clientId == 2 ? new ClientQuota(2, Integer.MAX_VALUE) : ClientQuota.UNLIMITED, clock);
+        for (long clientId = 1; clientId <= 2; clientId++) {
+            assertTrue(fairQueue.admit(clientId).isEmpty());
+            assertTrue(fairQueue.admit(clientId).isEmpty());
+            enqueue(fairQueue, clientId, "c" + clientId, 100);
+        }
+        runUpdateQueue();
+        fairQueue.requestCompleted(1);
+        assertEquals(2, fairQueue.getTrackedClients());
+        fairQueue.requestCompleted(1);
+        fairQueue.requestCompleted(2);
+        fairQueue.requestCompleted(2);
+        //client 2 used its tokens, so it is kept till they are refilled.
+        assertEquals(1, fairQueue.getTrackedClients());
+        assertTrue(fairQueue.admit(2).isPresent());
+
+        clock.advance(ClientFairQueue.IDLE_SWEEP_INTERVAL_NANOS);
+        assertTrue(fairQueue.admit(3).isEmpty());
+        fairQueue.requestCompleted(3);
+        assertEquals(0, fairQueue.getTrackedClients());
+    }
+
+    @Test
+    public void rejectsTheQueuedRequestsOnceTheUpdateQueueIsShutdown() {
+        var fairQueue = new ClientFairQueue(task -> {
+            throw new RejectedExecutionException("shutdown");
+        }, clientId -> ClientQuota.UNLIMITED, new SystemClock());
+        List<String> rejected = new ArrayList<>();
+        fairQueue.enqueue(1, 100, () -> executed.add("c1-1"), () -> rejected.add("c1-1"));
+        fairQueue.enqueue(2, 100, () -> executed.add("c2-1"), () -> rejected.add("c2-1"));
+
+        assertEquals(Arrays.asList("c1-1", "c2-1"), rejected);
+        assertTrue(executed.isEmpty());
+        assertEquals(0, fairQueue.getQueuedRequests());
+    }
+
+    private void enqueue(ClientFairQueue fairQueue, long clientId, String request, long sizeInBytes) {
+        fairQueue.enqueue(clientId, sizeInBytes, () -> executed.add(request), () -> fail(request + " rejected"));
+    }
+
+    private void runUpdateQueue() {
+        Runnable task;
+        while ((task = updateQueue.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -2,13 +2,14 @@ package replicate.common;
 
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class FutureUtilsTest {
     ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
@@ -37,4 +38,72 @@ public class FutureUtilsTest {
         future.get();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldRetryWithBackoffWithinBudget() throws ExecutionException, InterruptedException {
+        final AtomicInteger attempt = new AtomicInteger(0);
+        RetryBudget budget = new RetryBudget(0, 10, new SystemClock());
+        CompletableFuture<Integer> future = FutureUtils.retryWithDelay(() -> {
+            if (attempt.incrementAndGet() == 3) {
+                return CompletableFuture.completedFuture(3);
+            }
+            return CompletableFuture.failedFuture(new RuntimeException("Exception while execution"));
+        }, new ExponentialBackoffRetryStrategy(4, Duration.ofMillis(1), Duration.ofMillis(10)), budget, executor);
+
+        assertEquals(3, future.get().intValue());
+        assertEquals(8, budget.availableRetries(), 0.001); //two retries taken from the budget.
+    }
+
+    @Test
+    public void shouldStopRetryingOnceBudgetIsSpent() throws InterruptedException {
+        final AtomicInteger attempt = new AtomicInteger(0);
+        RetryBudget budget = new RetryBudget(0, 1, new SystemClock());
+        CompletableFuture<Integer> future = FutureUtils.retryWithDelay(() -> {
+            attempt.incrementAndGet();
+            return CompletableFuture.failedFuture(new RuntimeException("Exception while execution"));
+        }, new ExponentialBackoffRetryStrategy(4, Duration.ofMillis(1), Duration.ofMillis(10)), budget, executor);
+
+        try {
+            future.get();
+            fail("Expected the retries to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Retry budget is exhausted"));
+        }
+        assertEquals(2, attempt.get()); //first attempt and the only retry in the budget.
+        assertEquals(1, budget.getRetriesRejected());
+    }
+
+    @Test
+    public void shouldNotRetryAnOperationFailingWithAWrappedCancellation() throws InterruptedException {
+        final AtomicInteger attempt = new AtomicInteger(0);
+        RetryBudget budget = new RetryBudget(0, 10, new SystemClock());
+        CompletableFuture<Integer> future = FutureUtils.retryWithDelay(() -> {
+            attempt.incrementAndGet();
+            CompletableFuture<Integer> cancelled = new CompletableFuture<>();
+            cancelled.cancel(false);
+            //fails with a CompletionException, with the CancellationException as its cause.
+            return cancelled.thenApply(value -> value);
+        }, new ExponentialBackoffRetryStrategy(4, Duration.ofMillis(1), Duration.ofMillis(10)), budget, executor);
+
+        try {
+            future.get();
+            fail("Expected the operation to be cancelled");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("cancelled"));
+        }
+        assertEquals(1, attempt.get());
+        assertEquals(10, budget.availableRetries(), 0.001);
+    }
+
+    @Test
+    public void backoffDelayGrowsExponentiallyUpToMaxDelay() {
+        RetryStrategy strategy = new ExponentialBackoffRetryStrategy(5, Duration.ofMillis(50), Duration.ofMillis(300));
+        long[] expectedMaxDelays = {50, 100, 200, 300, 300};
+        for (long expectedMaxDelay : expectedMaxDelays) {
+            ExponentialBackoffRetryStrategy backoff = (ExponentialBackoffRetryStrategy) strategy;
+            assertEquals(Duration.ofMillis(expectedMaxDelay), backoff.getMaxRetryDelay());
+            assertTrue(backoff.getRetryDelay().compareTo(backoff.getMaxRetryDelay()) <= 0);
+            strategy = strategy.getNextRetryStrategy();
+        }
+        assertEquals(0, strategy.getNumRemainingRetries());
+    }
+}
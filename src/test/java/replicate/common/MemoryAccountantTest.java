@@ -0,0 +1,66 @@
+package replicate.common;
+
+import org.junit.Test;
+import replicate.common.MemoryAccountant.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MemoryAccountantTest {
+
+    @Test
+    public void reportsUsagePerComponent() {
+        var accountant = new MemoryAccountant(1000);
+        accountant.reserve(Component.PENDING_REQUESTS, 100);
+        accountant.reserve(Component.OUTGOING_BUFFERS, 200);
+        accountant.release(Component.PENDING_REQUESTS, 40);
+
+        assertEquals(260, accountant.getUsedBytes());
+        assertEquals(60, accountant.getUsedBytes(Component.PENDING_REQUESTS));
+        assertEquals(200, accountant.getUsageByComponent().get(Component.OUTGOING_BUFFERS).longValue());
+        assertEquals(0, accountant.getUsedBytes(Component.CONSENSUS_LOG));
+    }
+
+    @Test
+    public void reservesEvenOverTheBudget() {
+        var accountant = new MemoryAccountant(100);
+        accountant.reserve(Component.PENDING_REQUESTS, 80);
+        assertFalse(accountant.isExhausted());
+
+        accountant.reserve(Component.CONSENSUS_LOG, 30); //memory already held is always accounted.
+        assertEquals(110, accountant.getUsedBytes());
+        assertTrue(accountant.isExhausted());
+
+        accountant.release(Component.CONSENSUS_LOG, 30);
+        assertFalse(accountant.isExhausted());
+    }
+
+    @Test
+    public void admissionControllerRejectsClientRequestsOnceBudgetIsExhausted() {
+        var accountant = new MemoryAccountant(1000);
+        var controller = new AdmissionController(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, accountant);
+        assertTrue(controller.admitClientRequest(1000).isEmpty()); //reserved till the request completes.
+        assertTrue(controller.admitClientRequest(100).isPresent());
+        assertEquals(1, controller.getShedForMemory());
+
+        controller.clientRequestCompleted(1000);
+        assertEquals(0, accountant.getUsedBytes());
+        assertTrue(controller.admitClientRequest(100).isEmpty());
+    }
+
+    @Test
+    public void accountsForEntriesOfInMemoryLogs() {
+        var accountant = new MemoryAccountant(1000);
+        Map<Integer, byte[]> log = new MemoryAccountedMap<>(new HashMap<>(), accountant, Component.CONSENSUS_LOG, value -> value.length);
+        log.put(1, new byte[10]);
+        log.put(2, new byte[20]);
+        log.put(1, new byte[30]); //replaces the earlier entry.
+        assertEquals(50, accountant.getUsedBytes(Component.CONSENSUS_LOG));
+
+        log.remove(2);
+        assertEquals(30, accountant.getUsedBytes(Component.CONSENSUS_LOG));
+        assertEquals(1, log.size());
+    }
+}
@@ -0,0 +1,77 @@
+package replicate.common;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void reportsPercentilesWithinTheBucketPrecision() {
+        var histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000); //1 microsecond to 10 milliseconds.
+        }
+        var snapshot = histogram.snapshot();
+        assertEquals(10_000, snapshot.count());
+        assertEquals(1000, snapshot.min());
+        assertEquals(10_000_000, snapshot.max());
+        assertEquals(5_000_500, snapshot.mean());
+        assertWithinPrecision(5_000_000, snapshot.p50());
+        assertWithinPrecision(9_900_000, snapshot.p99());
+        assertWithinPrecision(9_990_000, snapshot.p999());
+    }
+
+    @Test
+    public void mapsEveryValueToABucketHoldingIt() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertWithinPrecision(value, LatencyHistogram.bucketValue(index));
+        }
+    }
+
+    @Test
+    public void snapshotHasMetricsNamedByTheirTags() {
+        var metrics = new MetricsRegistry();
+        metrics.counter("quorum.failed", MessageId.Prepare).increment();
+        metrics.counter("quorum.failed", MessageId.Prepare).add(2);
+        metrics.histogram("quorum.latency", MessageId.Commit).record(100);
+        AtomicLong depth = new AtomicLong(5);
+        metrics.gauge("updateQueue.depth", depth::get);
+
+        var snapshot = metrics.snapshot();
+        assertEquals(3, snapshot.counter("quorum.failed.Prepare"));
+        assertEquals(1, snapshot.histogram("quorum.latency.Commit").count());
+        assertEquals(5, snapshot.gauge("updateQueue.depth"));
+
+        depth.set(7);
+        assertEquals(7, metrics.snapshot().gauge("updateQueue.depth"));
+    }
+
+    @Test
+    public void exportsMetricsOverJmx() throws Exception {
+        var metrics = new MetricsRegistry();
+        metrics.counter("network.bytesOut").add(42);
+        metrics.histogram("client.latency", MessageId.SetValueRequest).record(1000);
+        metrics.registerMBean("metrics-test");
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName("replicate:type=Replica,name=\"metrics-test\"");
+            assertEquals(42L, server.getAttribute(name, "network.bytesOut"));
+            assertEquals(1L, server.getAttribute(name, "client.latency.SetValueRequest.count"));
+            assertEquals(1000L, server.getAttribute(name, "client.latency.SetValueRequest.p99"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("replicate:type=Replica,name=\"metrics-test\"")));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 16 + 1);
+    }
+}
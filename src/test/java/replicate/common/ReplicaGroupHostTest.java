@@ -0,0 +1,155 @@
+package replicate.common;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.net.InetAddressAndPort;
+import replicate.paxos.messages.GetValueResponse;
+import replicate.paxoslog.PaxosLog;
+import replicate.quorum.messages.GetValueRequest;
+import replicate.twophaseexecution.messages.ExecuteCommandRequest;
+import replicate.twophaseexecution.messages.ExecuteCommandResponse;
+import replicate.vsr.ViewStampedReplication;
+import replicate.wal.SetValueCommand;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicaGroupHostTest {
+    List<ReplicaGroupHost> hosts = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        hosts.forEach(ReplicaGroupHost::shutdown);
+    }
+
+    @Test
+    public void hostsIndependentGroupsBehindSameListeners() throws IOException {
+        startHosts(3);
+        for (int groupId = 1; groupId <= 4; groupId++) {
+            for (ReplicaGroupHost host : hosts) {
+                host.addGroup(groupId, PaxosLog::new);
+            }
+        }
+
+        var client = new NetworkClient();
+        InetAddressAndPort athens = hosts.get(0).getClientConnectionAddress();
+        for (int groupId = 1; groupId <= 4; groupId++) {
+            byte[] command = new SetValueCommand("title", "Microservices-" + groupId).serialize();
+            var response = client.sendAndReceive(new ExecuteCommandRequest(command), athens, ExecuteCommandResponse.class, groupId).getResult();
+            assertEquals(Optional.of("Microservices-" + groupId), response.getResponse());
+        }
+
+        for (int groupId = 1; groupId <= 4; groupId++) {
+            var response = client.sendAndReceive(new GetValueRequest("title"), athens, GetValueResponse.class, groupId).getResult();
+            assertEquals(Optional.of("Microservices-" + groupId), response.value);
+        }
+    }
+
+    @Test
+    public void rejectsRequestsForGroupsNotHosted() throws IOException {
+        startHosts(3);
+        hosts.forEach(h -> addGroup(h, 1));
+
+        var client = new NetworkClient();
+        var response = client.sendAndReceive(new GetValueRequest("title"), hosts.get(0).getClientConnectionAddress(), GetValueResponse.class, 2);
+        assertTrue(response.isError());
+    }
+
+    @Test
+    public void coalescedHeartbeatsKeepPrimariesOfAllGroups() throws IOException, InterruptedException {
+        startHosts(3);
+        List<ViewStampedReplication> groups = new ArrayList<>();
+        for (int groupId = 1; groupId <= 8; groupId++) {
+            for (ReplicaGroupHost host : hosts) {
+                groups.add(host.addGroup(groupId, ViewStampedReplication::new));
+            }
+        }
+
+        //backups start a view change if they do not get heartbeats from the primary for 500ms.
+        Thread.sleep(1500);
+
+        for (ViewStampedReplication group : groups) {
+            assertEquals(0, group.getViewNumber());
+        }
+        //the primaries of all the groups are on the same host, which sends at most one message per peer every tick,
+        //with the heartbeats of many groups in it.
+        long hostsSendingHeartbeats = 0;
+        for (ReplicaGroupHost host : hosts) {
+            for (InetAddressAndPort peer : host.getPeerAddresses()) {
+                long messages = host.getHeartbeatMessagesSent(peer);
+                assertTrue(messages + " messages in " + host.getHeartbeatFlushes() + " ticks", messages <= host.getHeartbeatFlushes());
+            }
+            if (host.getHeartbeatMessagesSent() > 0) {
+                hostsSendingHeartbeats++;
+                assertTrue(host.getHeartbeatsSent() > host.getHeartbeatMessagesSent());
+            }
+        }
+        assertEquals(1, hostsSendingHeartbeats);
+    }
+
+    @Test
+    public void groupsTakeTheirHeartbeatIntervalFromTheHostConfig() throws IOException, InterruptedException {
+        startHosts(3, config -> config.withHeartBeatIntervalMs(500));
+        List<ViewStampedReplication> groups = new ArrayList<>();
+        for (int groupId = 1; groupId <= 2; groupId++) {
+            for (ReplicaGroupHost host : hosts) {
+                groups.add(host.addGroup(groupId, ViewStampedReplication::new));
+            }
+        }
+        for (ViewStampedReplication group : groups) {
+            assertEquals(Duration.ofMillis(2500), group.heartbeatTimeout);
+        }
+
+        //heartbeats are flushed every 500ms, which would time out backups waiting only 500ms for them.
+        Thread.sleep(3000);
+
+        for (ViewStampedReplication group : groups) {
+            assertEquals(0, group.getViewNumber());
+        }
+    }
+
+    @Test
+    public void shutdownOfAGroupCancelsItsTimerTasks() throws IOException {
+        startHosts(3);
+        ReplicaGroupHost host = hosts.get(0);
+        int tasksBefore = host.getScheduledTimerTasks();
+        PaxosLog group = host.addGroup(1, PaxosLog::new);
+        assertEquals(tasksBefore + 1, host.getScheduledTimerTasks());
+
+        group.shutdown();
+        assertEquals(tasksBefore, host.getScheduledTimerTasks());
+    }
+
+    private void addGroup(ReplicaGroupHost host, int groupId) {
+        try {
+            host.addGroup(groupId, PaxosLog::new);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void startHosts(int noOfHosts) throws IOException {
+        startHosts(noOfHosts, config -> {});
+    }
+
+    private void startHosts(int noOfHosts, Consumer<Config> configure) throws IOException {
+        List<InetAddressAndPort> peerAddresses = TestUtils.createNAddresses(noOfHosts);
+        List<InetAddressAndPort> clientAddresses = TestUtils.createNAddresses(noOfHosts);
+        SystemClock clock = new SystemClock();
+        for (int i = 0; i < noOfHosts; i++) {
+            Config config = new Config(TestUtils.tempDir("grouphost_" + i).getAbsolutePath());
+            configure.accept(config);
+            config.setServerId(i);
+            var host = new ReplicaGroupHost("host" + i, config, clock, clientAddresses.get(i), peerAddresses.get(i), peerAddresses);
+            host.start();
+            hosts.add(host);
+        }
+    }
+}
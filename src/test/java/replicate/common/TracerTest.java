@@ -0,0 +1,78 @@
+package replicate.common;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @Test
+    public void tracesOnlySampledRequestsOrRequestsWithTraceId() {
+        var tracer = new Tracer("athens", 0, 16);
+        var request = new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]);
+        assertNull(tracer.startClientTrace(request, MessageId.SetValueRequest, System.nanoTime()));
+        assertNull(tracer.startPeerTrace(request, MessageId.Prepare, System.nanoTime()));
+
+        request.withTraceId(7);
+        assertEquals(7, tracer.startClientTrace(request, MessageId.SetValueRequest, System.nanoTime()).getTraceId());
+        assertEquals(Trace.Kind.PEER, tracer.startPeerTrace(request, MessageId.Prepare, System.nanoTime()).getKind());
+
+        var alwaysSampling = new Tracer("athens", 1, 16);
+        assertNotNull(alwaysSampling.startClientTrace(new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]), MessageId.SetValueRequest, System.nanoTime()));
+    }
+
+    @Test
+    public void addsUpRepeatedStagesAndRecordsPercentiles() {
+        var tracer = new Tracer("athens", 0, 16);
+        var trace = tracer.startClientTrace(new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]).withTraceId(1), MessageId.SetValueRequest, System.nanoTime());
+        trace.markStage(Trace.Stage.QUEUED);
+        trace.markStage(Trace.Stage.QUORUM);
+        trace.markStage(Trace.Stage.QUORUM);
+        trace.finish(Trace.Stage.RESPONDED);
+        trace.markStage(Trace.Stage.APPLIED); //ignored once finished.
+
+        assertEquals(4, trace.getStages().size());
+        assertEquals(List.of(Trace.Stage.QUEUED, Trace.Stage.QUORUM, Trace.Stage.RESPONDED), List.copyOf(trace.getStageBreakdown().keySet()));
+        long stagesTotal = trace.getStageBreakdown().values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(trace.getTotalNanos(), stagesTotal);
+
+        assertEquals(1, tracer.getStagePercentiles().get(Trace.Stage.QUORUM).count());
+        assertEquals(0, tracer.getStagePercentiles().get(Trace.Stage.FSYNC).count());
+    }
+
+    @Test
+    public void keepsTheMostRecentTracesInTheRingBuffer() {
+        var tracer = new Tracer("athens", 0, 4);
+        for (long traceId = 1; traceId <= 10; traceId++) {
+            var request = new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]).withTraceId(traceId);
+            tracer.startClientTrace(request, MessageId.SetValueRequest, System.nanoTime()).finish(Trace.Stage.RESPONDED);
+        }
+        assertEquals(10, tracer.getTracesRecorded());
+        assertEquals(List.of(10L, 9L, 8L, 7L), tracer.getRecentTraces().stream().map(Trace::getTraceId).toList());
+        assertTrue(tracer.getTraces(3).isEmpty());
+        assertEquals(10, tracer.getStagePercentiles().get(Trace.Stage.RESPONDED).count());
+    }
+
+    @Test
+    public void marksTheTraceOfTheCurrentRequest() {
+        var tracer = new Tracer("athens", 0, 4);
+        var trace = tracer.startClientTrace(new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]).withTraceId(1), MessageId.SetValueRequest, System.nanoTime());
+        var context = RequestContext.traceOnly(new SystemClock(), trace);
+        RequestContext.runWithin(java.util.Optional.of(context), () -> Trace.mark(Trace.Stage.FSYNC));
+        Trace.mark(Trace.Stage.APPLIED); //no request being handled.
+        assertEquals(List.of(Trace.Stage.FSYNC), trace.getStages().stream().map(Trace.StageTiming::stage).toList());
+    }
+
+    @Test
+    public void contextCarryingOnlyTheTraceIsNeverCancelled() {
+        var tracer = new Tracer("athens", 0, 4);
+        var trace = tracer.startClientTrace(new RequestOrResponse(MessageId.SetValueRequest.getId(), new byte[0]).withTraceId(1), MessageId.SetValueRequest, System.nanoTime());
+        var context = RequestContext.traceOnly(new SystemClock(), trace);
+        context.cancel();
+        assertFalse(context.isCancellable());
+        assertFalse(context.isExpired());
+        assertFalse(RequestContext.callWithin(java.util.Optional.of(context), () -> RequestContext.background(new SystemClock())).isExpired());
+    }
+}
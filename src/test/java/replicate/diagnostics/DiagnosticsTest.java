@@ -0,0 +1,81 @@
+package replicate.diagnostics;
+
+import org.junit.Test;
+import replicate.common.ClusterTest;
+import replicate.common.NetworkClient;
+import replicate.common.TestUtils;
+import replicate.multipaxos.MultiPaxos;
+import replicate.twophaseexecution.messages.ExecuteCommandRequest;
+import replicate.twophaseexecution.messages.ExecuteCommandResponse;
+import replicate.wal.SetValueCommand;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class DiagnosticsTest extends ClusterTest<MultiPaxos> {
+
+    @Test
+    public void reportsConsensusStateAndLagOfEveryReplica() throws IOException {
+        super.nodes = TestUtils.startCluster(Arrays.asList("athens", "byzantium", "cyrene"),
+                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peers) -> new MultiPaxos(name, clock, config, clientConnectionAddress, peerConnectionAddress, peers));
+        var athens = nodes.get("athens");
+        athens.leaderElection();
+        TestUtils.waitUntilTrue(athens::isLeader, "Waiting for leader election", Duration.ofSeconds(2));
+
+        byte[] command = new SetValueCommand("title", "Microservices").serialize();
+        var response = new NetworkClient().sendAndReceive(new ExecuteCommandRequest(command), athens.getClientConnectionAddress(), ExecuteCommandResponse.class).getResult();
+        assertEquals(Optional.of("Microservices"), response.getResponse());
+
+        var cli = new DiagnosticsCli(List.of(athens.getClientConnectionAddress(),
+                nodes.get("byzantium").getClientConnectionAddress(),
+                nodes.get("cyrene").getClientConnectionAddress()));
+        TestUtils.waitUntilTrue(() -> cli.poll().stream().allMatch(p -> committedIndex(p) == 0),
+                "Waiting for all the replicas to commit", Duration.ofSeconds(2));
+
+        List<DiagnosticsCli.Poll> polls = cli.poll();
+        ReplicaDiagnostics leader = polls.get(0).diagnostics().get();
+        assertEquals("athens", leader.getReplica());
+        assertEquals("MultiPaxos", leader.getAlgorithm());
+        ConsensusSection consensus = leader.getConsensus().get();
+        assertEquals("Leader", consensus.getRole());
+        assertEquals(1, consensus.getLogLength());
+        assertEquals(0, consensus.getAppliedIndex());
+        assertEquals(0, consensus.getUncommittedCount());
+        assertEquals("Follower", polls.get(1).diagnostics().get().getConsensus().get().getRole());
+        assertEquals(2, leader.getPeers().size());
+        assertTrue(leader.getQueues().containsKey("updateQueue.CLIENT"));
+
+        String lagTable = DiagnosticsCli.lagTable(polls);
+        assertTrue(lagTable, lagTable.contains("byzantium"));
+        assertTrue(DiagnosticsCli.peerTable(polls).contains("athens"));
+    }
+
+    @Test
+    public void reportsUnreachableReplicas() throws IOException {
+        var cli = new DiagnosticsCli(List.of(DiagnosticsCli.parseAddress("127.0.0.1:" + TestUtils.getRandomPort())));
+        List<DiagnosticsCli.Poll> polls = cli.poll();
+        assertTrue(polls.get(0).diagnostics().isEmpty());
+        assertTrue(DiagnosticsCli.lagTable(polls).contains("unreachable"));
+    }
+
+    @Test
+    public void commitIndexIsTheEndOfTheCommittedPrefix() {
+        Map<Integer, Boolean> log = Map.of(0, true, 1, true, 2, false, 3, true);
+        ConsensusSection consensus = new ConsensusSection().log(log, committed -> committed);
+        assertEquals(4, consensus.getLogLength());
+        assertEquals(1, consensus.getCommitIndex());
+        assertEquals(List.of(2), consensus.getUncommittedSlots());
+
+        assertEquals(-1, new ConsensusSection().log(Map.of(0, false), committed -> committed).getCommitIndex());
+    }
+
+    private static long committedIndex(DiagnosticsCli.Poll poll) {
+        return poll.diagnostics().flatMap(ReplicaDiagnostics::getConsensus).map(ConsensusSection::getCommitIndex).orElse(-1L);
+    }
+}
@@ -0,0 +1,55 @@
+package replicate.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import replicate.common.Config;
+import replicate.common.TestUtils;
+import replicate.wal.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WalEventsTest {
+
+    @Test
+    public void recordsAppendForceAndRollOfTheWal() throws IOException {
+        File walDir = TestUtils.tempDir("jfr/wal");
+        WriteAheadLog wal = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()).withMaxLogSize(100L));
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(WalAppendEvent.class).withoutThreshold();
+            recording.enable(WalForceEvent.class).withoutThreshold();
+            recording.enable(WalSegmentEvent.class);
+            recording.start();
+            for (int i = 0; i < 5; i++) {
+                wal.writeEntry(new byte[50]);
+            }
+            recording.stop();
+            Path file = new File(TestUtils.tempDir("jfr/recording"), "wal-events.jfr").toPath();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            wal.close();
+        }
+
+        List<RecordedEvent> appends = ofType(events, "replicate.WalAppend");
+        assertEquals(5, appends.size());
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), appends.stream().map(e -> e.getLong("entryIndex")).sorted().toList());
+        assertEquals(walDir.getPath(), appends.get(0).getString("walDir"));
+        assertTrue(ofType(events, "replicate.WalForce").size() >= 5);
+        List<RecordedEvent> segmentEvents = ofType(events, "replicate.WalSegment");
+        assertTrue(segmentEvents.size() >= 1);
+        assertEquals(WalSegmentEvent.ROLLED, segmentEvents.get(0).getString("action"));
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).toList();
+    }
+}
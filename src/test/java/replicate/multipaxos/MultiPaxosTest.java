@@ -3,6 +3,7 @@ package replicate.multipaxos;
 import org.junit.Before;
 import org.junit.Test;
 import replicate.common.ClusterTest;
+import replicate.common.MessageId;
 import replicate.common.NetworkClient;
 import replicate.common.TestUtils;
 import replicate.paxos.messages.GetValueResponse;
@@ -23,7 +24,10 @@ public class MultiPaxosTest extends ClusterTest<MultiPaxos> {
     @Before
     public void setUp() throws IOException {
         super.nodes = TestUtils.startCluster(nodeNames("athens", "byzantium", "cyrene"),
-                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peers) -> new MultiPaxos(name, clock, config, clientConnectionAddress, peerConnectionAddress, peers));
+                //messages are delayed by the tests for a second, and should be late, not lost.
+                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peers) -> new MultiPaxos(name, clock,
+                        config.withRequestTimeoutBoundsMs(2000, config.getMaxRequestTimeoutMs()),
+                        clientConnectionAddress, peerConnectionAddress, peers));
 
     }
 
@@ -131,4 +135,36 @@ public class MultiPaxosTest extends ClusterTest<MultiPaxos> {
         assertEquals("Martin", byzantium.getValue("author"));
         assertEquals("Martin", cyrene.getValue("author"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void commitsValuesProposedForAClientWhichTimedOut() throws Exception {
+        MultiPaxos athens = nodes.get("athens");
+        MultiPaxos byzantium = nodes.get("byzantium");
+        MultiPaxos cyrene = nodes.get("cyrene");
+        athens.leaderElection();
+        TestUtils.waitUntilTrue(() -> {
+            return athens.isLeader();
+        }, "Waiting for leader election", Duration.ofSeconds(2));
+
+        var networkClient = new NetworkClient();
+        byte[] command = new SetValueCommand("title", "Microservices").serialize();
+        networkClient.sendAndReceive(new ExecuteCommandRequest(command), athens.getClientConnectionAddress(), ExecuteCommandResponse.class);
+
+        //the client stops waiting while the proposal is on its way to the followers.
+        athens.addDelayForMessagesOfType(byzantium, MessageId.ProposeRequest);
+        athens.addDelayForMessagesOfType(cyrene, MessageId.ProposeRequest);
+        command = new SetValueCommand("author", "Martin").serialize();
+        new NetworkClient().withTimeoutMs(200).sendAndReceive(new ExecuteCommandRequest(command), athens.getClientConnectionAddress(), ExecuteCommandResponse.class);
+
+        command = new SetValueCommand("title", "Patterns of Distributed Systems").serialize();
+        networkClient.sendAndReceive(new ExecuteCommandRequest(command), athens.getClientConnectionAddress(), ExecuteCommandResponse.class);
+
+        //followers apply an entry only after all the entries before it are committed.
+        TestUtils.waitUntilTrue(() -> {
+            return "Patterns of Distributed Systems".equals(byzantium.getValue("title"))
+                    && "Patterns of Distributed Systems".equals(cyrene.getValue("title"));
+        }, "Waiting for the later write to be applied on followers", Duration.ofSeconds(5));
+        assertEquals("Martin", byzantium.getValue("author"));
+        assertEquals("Martin", cyrene.getValue("author"));
+    }
+}
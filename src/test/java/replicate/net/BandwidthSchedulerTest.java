@@ -0,0 +1,105 @@
+package replicate.net;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.common.MemoryAccountant;
+import replicate.common.RequestOrResponse;
+import replicate.common.TestUtils;
+import replicate.net.BandwidthScheduler.TrafficClass;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class BandwidthSchedulerTest {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    MemoryAccountant memoryAccountant = MemoryAccountant.unbounded();
+    List<RequestOrResponse> sent = new CopyOnWriteArrayList<>();
+    InetAddressAndPort peer = InetAddressAndPort.create("127.0.0.1", 9000);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sendsForegroundMessagesImmediatelyEvenOverTheBandwidth() throws IOException {
+        var scheduler = new BandwidthScheduler(1000, 0.2, this::send, executor, memoryAccountant);
+        for (int i = 0; i < 10; i++) {
+            scheduler.send(peer, message(i, 500), TrafficClass.FOREGROUND);
+        }
+        assertEquals(10, sent.size());
+        assertEquals(0, scheduler.getBackgroundMessagesDelayed());
+    }
+
+    @Test
+    public void queuesBackgroundMessagesTillTheBucketsAreRefilled() throws IOException {
+        var scheduler = new BandwidthScheduler(10_000, 0.2, this::send, executor, memoryAccountant);
+        scheduler.send(peer, message(1, 2000), TrafficClass.FOREGROUND);
+        //link is in debt, the first background message takes the background share.
+        scheduler.send(peer, message(2, 500), TrafficClass.BACKGROUND);
+        scheduler.send(peer, message(3, 500), TrafficClass.BACKGROUND);
+        scheduler.send(peer, message(4, 500), TrafficClass.BACKGROUND);
+        scheduler.send(peer, message(5, 100), TrafficClass.FOREGROUND);
+
+        assertEquals(List.of(1, 2, 5), sentIds());
+        assertEquals(2, scheduler.getQueuedBackgroundMessages(peer));
+        assertEquals(2, scheduler.getBackgroundMessagesDelayed());
+        assertEquals(2 * (500 + MemoryAccountant.ENTRY_OVERHEAD_BYTES), memoryAccountant.getUsedBytes(MemoryAccountant.Component.DELAYED_SENDS));
+
+        TestUtils.waitUntilTrue(() -> sent.size() == 5, "Waiting for background messages to be sent", Duration.ofSeconds(5));
+        assertEquals(List.of(1, 2, 5, 3, 4), sentIds());
+        assertEquals(0, scheduler.getQueuedBackgroundMessages(peer));
+        assertEquals(0, memoryAccountant.getUsedBytes(MemoryAccountant.Component.DELAYED_SENDS));
+    }
+
+    @Test
+    public void sendsAllTrafficImmediatelyWhenUnlimited() throws IOException {
+        var scheduler = new BandwidthScheduler(Long.MAX_VALUE, 0.2, this::send, executor, memoryAccountant);
+        for (int i = 0; i < 10; i++) {
+            scheduler.send(peer, message(i, 10_000), TrafficClass.BACKGROUND);
+        }
+        assertEquals(10, sent.size());
+        assertEquals(0, scheduler.getQueuedBackgroundMessages(peer));
+    }
+
+    @Test
+    public void keepsDrainingBackgroundMessagesAfterASendFails() throws IOException {
+        var scheduler = new BandwidthScheduler(10_000, 0.2, (address, message) -> {
+            if (message.getCorrelationId() == 3) {
+                throw new IllegalStateException("connection closed");
+            }
+            send(address, message);
+        }, executor, memoryAccountant);
+        scheduler.send(peer, message(1, 2000), TrafficClass.FOREGROUND);
+        for (int i = 2; i <= 5; i++) {
+            scheduler.send(peer, message(i, 500), TrafficClass.BACKGROUND);
+        }
+        TestUtils.waitUntilTrue(() -> sent.size() == 4, "Waiting for background messages to be sent", Duration.ofSeconds(5));
+        assertEquals(List.of(1, 2, 4, 5), sentIds());
+
+        scheduler.send(peer, message(6, 2000), TrafficClass.FOREGROUND);
+        scheduler.send(peer, message(7, 500), TrafficClass.BACKGROUND);
+        scheduler.send(peer, message(8, 500), TrafficClass.BACKGROUND);
+        TestUtils.waitUntilTrue(() -> sent.size() == 7, "Waiting for later background messages to be sent", Duration.ofSeconds(5));
+    }
+
+    private void send(InetAddressAndPort address, RequestOrResponse message) {
+        sent.add(message);
+    }
+
+    private List<Integer> sentIds() {
+        return sent.stream().map(RequestOrResponse::getCorrelationId).toList();
+    }
+
+    private RequestOrResponse message(int correlationId, int bodySize) {
+        byte[] body = new byte[bodySize];
+        return new RequestOrResponse(0, body, correlationId);
+    }
+}
@@ -0,0 +1,119 @@
+package replicate.net;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.common.TestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedDispatcherTest {
+    OrderedDispatcher dispatcher = new OrderedDispatcher("test", 4);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void executesTasksOfAConnectionInSubmissionOrder() throws InterruptedException {
+        int noOfConnections = 8;
+        int tasksPerConnection = 1000;
+        CountDownLatch completed = new CountDownLatch(noOfConnections * tasksPerConnection);
+        List<List<Integer>> executed = new ArrayList<>();
+        List<Executor> connections = new ArrayList<>();
+        for (int i = 0; i < noOfConnections; i++) {
+            executed.add(Collections.synchronizedList(new ArrayList<>()));
+            connections.add(dispatcher.newSerialExecutor());
+        }
+
+        for (int task = 0; task < tasksPerConnection; task++) {
+            for (int c = 0; c < noOfConnections; c++) {
+                int frameNo = task;
+                List<Integer> frames = executed.get(c);
+                connections.get(c).execute(() -> {
+                    frames.add(frameNo);
+                    completed.countDown();
+                });
+            }
+        }
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        for (List<Integer> frames : executed) {
+            for (int i = 0; i < tasksPerConnection; i++) {
+                assertEquals(Integer.valueOf(i), frames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void pausesTheConnectionWhileTooManyOfItsTasksAreQueued() throws InterruptedException {
+        AtomicInteger pauses = new AtomicInteger();
+        AtomicInteger resumes = new AtomicInteger();
+        Executor connection = dispatcher.newSerialExecutor(new OrderedDispatcher.FlowControl() {
+            @Override
+            public void pause() {
+                pauses.incrementAndGet();
+            }
+
+            @Override
+            public void resume() {
+                resumes.incrementAndGet();
+            }
+        });
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(OrderedDispatcher.maxQueuedTasks);
+        connection.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completed.countDown();
+        });
+        for (int i = 1; i < OrderedDispatcher.maxQueuedTasks; i++) {
+            connection.execute(completed::countDown);
+        }
+        assertEquals(1, pauses.get());
+        assertEquals(0, resumes.get());
+
+        blocked.countDown();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, resumes.get());
+    }
+
+    @Test
+    public void everyPauseIsResumedOnceTheQueuedTasksAreExecuted() throws InterruptedException {
+        AtomicInteger paused = new AtomicInteger();
+        Executor connection = dispatcher.newSerialExecutor(new OrderedDispatcher.FlowControl() {
+            @Override
+            public void pause() {
+                paused.incrementAndGet();
+            }
+
+            @Override
+            public void resume() {
+                paused.decrementAndGet();
+            }
+        });
+        //bursts of tasks around the pause threshold, executed while they are submitted.
+        for (int round = 0; round < 50; round++) {
+            CountDownLatch completed = new CountDownLatch(OrderedDispatcher.maxQueuedTasks);
+            for (int i = 0; i < OrderedDispatcher.maxQueuedTasks; i++) {
+                connection.execute(completed::countDown);
+            }
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            //the last task resumes the connection after it counted down.
+            TestUtils.waitUntilTrue(() -> paused.get() == 0, "connection is still paused", Duration.ofSeconds(1));
+        }
+    }
+}
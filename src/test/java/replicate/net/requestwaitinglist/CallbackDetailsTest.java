@@ -1,14 +1,16 @@
 package replicate.net.requestwaitinglist;
 
 import org.junit.Test;
+import replicate.common.RequestContext;
 import replicate.common.SystemClock;
 import replicate.vsr.CompletionCallback;
 
 import java.time.Duration;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class CallbackDetailsTest {
 
@@ -34,4 +36,41 @@ public class CallbackDetailsTest {
         assertFalse(cb.isExpired(Duration.ofMillis(timeoutMillis), clock.nanoTime()));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void expiresWithTheRequestDeadlineBeforeTimeout() {
+        TestClock clock = new TestClock(39433734125062l);
+        var context = RequestContext.withTimeout(clock, 100);
+        CallbackDetails cb = new CallbackDetails(new CompletionCallback(), clock.nanoTime()).withContext(Optional.of(context));
+
+        clock.time += TimeUnit.MILLISECONDS.toNanos(100);
+        assertTrue(cb.isExpired(clock.nanoTime(), Duration.ofMillis(900)));
+        assertTrue(cb.isAbandoned());
+    }
+
+    @Test
+    public void expiresOnceTheRequestIsCancelled() {
+        TestClock clock = new TestClock(39433734125062l);
+        var context = RequestContext.withTimeout(clock, 5000);
+        CallbackDetails cb = new CallbackDetails(new CompletionCallback(), clock.nanoTime()).withContext(Optional.of(context));
+        assertFalse(cb.isExpired(clock.nanoTime(), Duration.ofMillis(900)));
+
+        context.cancel();
+        assertTrue(cb.isExpired(clock.nanoTime(), Duration.ofMillis(900)));
+    }
+
+    @Test
+    public void invokesCallbackWithinTheRequestContext() {
+        TestClock clock = new TestClock(39433734125062l);
+        var context = RequestContext.withTimeout(clock, 5000);
+        CompletionCallback<String> callback = new CompletionCallback<>();
+        CallbackDetails cb = new CallbackDetails(callback, clock.nanoTime()).withContext(Optional.of(context));
+        //e.g. the next phase of a quorum round, composed on the response future.
+        AtomicReference<Optional<RequestContext>> contextInCallback = new AtomicReference<>();
+        callback.getFuture().thenRun(() -> contextInCallback.set(RequestContext.current()));
+
+        cb.onResponse("response", null);
+
+        assertSame(context, contextInCallback.get().get());
+        assertTrue(RequestContext.current().isEmpty());
+    }
+}
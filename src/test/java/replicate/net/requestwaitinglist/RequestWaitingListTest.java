@@ -0,0 +1,61 @@
+package replicate.net.requestwaitinglist;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.common.MessageId;
+import replicate.common.SystemClock;
+import replicate.common.TestUtils;
+import replicate.net.InetAddressAndPort;
+import replicate.vsr.CompletionCallback;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestWaitingListTest {
+    static final Duration FIXED_TIMEOUT = Duration.ofMillis(1000);
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    InetAddressAndPort peer = TestUtils.randomAddress();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void requestsToAFastPeerExpireBeforeTheFixedTimeout() throws Exception {
+        RttEstimator rttEstimator = new RttEstimator(FIXED_TIMEOUT, Duration.ofMillis(50), Duration.ofMillis(5000));
+        RequestWaitingList<Integer, String> requestWaitingList = new RequestWaitingList<>(new SystemClock(), FIXED_TIMEOUT, executor, rttEstimator);
+        rttEstimator.onResponse(peer, MessageId.Prepare, Duration.ofMillis(5).toNanos());
+
+        CompletionCallback<String> callback = new CompletionCallback<>();
+        long start = System.nanoTime();
+        requestWaitingList.add(1, callback, peer, MessageId.Prepare);
+        try {
+            callback.getFuture().get(FIXED_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            fail("Expected the request to expire");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Expired after " + elapsedMs + "ms", elapsedMs < FIXED_TIMEOUT.toMillis() / 2);
+        requestWaitingList.close();
+    }
+
+    @Test
+    public void expiresRequestsWithASubMillisecondFloor() throws Exception {
+        RttEstimator rttEstimator = new RttEstimator(Duration.ofMillis(10), Duration.ofNanos(1000), Duration.ofMillis(10));
+        RequestWaitingList<Integer, String> requestWaitingList = new RequestWaitingList<>(new SystemClock(), Duration.ofMillis(10), executor, rttEstimator);
+
+        CompletionCallback<String> callback = new CompletionCallback<>();
+        requestWaitingList.add(1, callback, peer, MessageId.Prepare);
+        TestUtils.waitUntilTrue(() -> callback.getFuture().isCompletedExceptionally(), "Waiting for the request to expire", Duration.ofSeconds(1));
+        requestWaitingList.close();
+    }
+}
@@ -0,0 +1,53 @@
+package replicate.net.requestwaitinglist;
+
+import org.junit.Test;
+import replicate.common.MessageId;
+import replicate.common.TestUtils;
+import replicate.net.InetAddressAndPort;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+    InetAddressAndPort peer = TestUtils.randomAddress();
+    RttEstimator estimator = new RttEstimator(Duration.ofMillis(1000), Duration.ofMillis(50), Duration.ofMillis(5000));
+
+    @Test
+    public void usesInitialTimeoutWithoutSamples() {
+        assertEquals(Duration.ofMillis(1000), estimator.timeoutFor(peer, MessageId.Prepare));
+    }
+
+    @Test
+    public void derivesTimeoutFromSmoothedRttAndVariance() {
+        estimator.onResponse(peer, MessageId.Prepare, Duration.ofMillis(100).toNanos());
+        //srtt = 100, rttvar = 50
+        assertEquals(Duration.ofMillis(300), estimator.timeoutFor(peer, MessageId.Prepare));
+
+        estimator.onResponse(peer, MessageId.Prepare, Duration.ofMillis(20).toNanos());
+        //rttvar = (3 * 50 + 80) / 4 = 57.5, srtt = (7 * 100 + 20) / 8 = 90
+        assertEquals(Duration.ofMillis(320), estimator.timeoutFor(peer, MessageId.Prepare));
+        assertEquals(Duration.ofMillis(90), estimator.smoothedRtt(peer, MessageId.Prepare));
+
+        //tracked separately for each message type.
+        assertEquals(Duration.ofMillis(1000), estimator.timeoutFor(peer, MessageId.ProposeRequest));
+    }
+
+    @Test
+    public void timeoutIsBoundedByFloorAndCeiling() {
+        estimator.onResponse(peer, MessageId.Prepare, Duration.ofMillis(1).toNanos());
+        assertEquals(Duration.ofMillis(50), estimator.timeoutFor(peer, MessageId.Prepare));
+
+        estimator.onResponse(peer, MessageId.ProposeRequest, Duration.ofMillis(4000).toNanos());
+        assertEquals(Duration.ofMillis(5000), estimator.timeoutFor(peer, MessageId.ProposeRequest));
+    }
+
+    @Test
+    public void timeoutsDoNotIncreaseTimeoutForDeadPeers() {
+        estimator.onResponse(peer, MessageId.Prepare, Duration.ofMillis(100).toNanos());
+        estimator.onTimeout(peer, MessageId.Prepare);
+        estimator.onTimeout(peer, MessageId.Prepare);
+        assertEquals(Duration.ofMillis(300), estimator.timeoutFor(peer, MessageId.Prepare));
+        assertEquals(2, estimator.timeouts(peer, MessageId.Prepare));
+    }
+}
@@ -9,6 +9,11 @@ public class TestClock extends SystemClock {
         this.time = time;
     }
 
+    //For tests in other packages, which can not set the time directly.
+    public void advance(long nanos) {
+        time += nanos;
+    }
+
     @Override
     public long nanoTime() {
         return time;
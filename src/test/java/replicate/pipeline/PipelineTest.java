@@ -0,0 +1,194 @@
+package replicate.pipeline;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.common.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private Pipeline<?, ?> pipeline;
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+        network.shutdownNow();
+    }
+
+    @Test
+    public void keepsTheOrderOfRequestsCompletingOutOfOrderInAnAsyncStage() throws Exception {
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer, Integer> pipeline = Pipeline.<Integer>builder("ordering", metrics)
+                .stage("sequence", request -> request)
+                //earlier requests take longer to replicate.
+                .asyncStage("replicate", request -> delayed(request, 50 - request * 5L))
+                .stage("apply", request -> {
+                    applied.add(request);
+                    return request;
+                })
+                .build();
+        this.pipeline = pipeline;
+
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(pipeline.submit(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), responses.get(i).get(2, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), applied);
+    }
+
+    @Test
+    public void overlapsTheStagesOfDifferentRequests() throws Exception {
+        Pipeline<Integer, Integer> pipeline = Pipeline.<Integer>builder("overlap", metrics)
+                .stage("persist", request -> sleep(request, 20))
+                .stage("apply", request -> sleep(request, 20))
+                .build();
+        this.pipeline = pipeline;
+
+        long start = System.nanoTime();
+        CompletableFuture<Integer> last = null;
+        for (int i = 0; i < 10; i++) {
+            last = pipeline.submit(i);
+        }
+        last.get(2, TimeUnit.SECONDS);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        //400ms if the two stages were run one after the other for each request.
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 350);
+    }
+
+    @Test
+    public void failedRequestsSkipTheLaterStages() throws Exception {
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer, Integer> pipeline = Pipeline.<Integer>builder("failures", metrics)
+                .stage("decode", request -> {
+                    if (request == 1) throw new IllegalArgumentException("can not decode " + request);
+                    return request;
+                })
+                .asyncStage("replicate", request -> request == 2 ?
+                        CompletableFuture.<Integer>failedFuture(new TimeoutException("no quorum")) : delayed(request, 1))
+                .stage("apply", request -> {
+                    applied.add(request);
+                    return request;
+                })
+                .build();
+        this.pipeline = pipeline;
+
+        var responses = List.of(pipeline.submit(0), pipeline.submit(1), pipeline.submit(2), pipeline.submit(3));
+        assertEquals(Integer.valueOf(3), responses.get(3).get(2, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(0), responses.get(0).get());
+        assertFailedWith(IllegalArgumentException.class, responses.get(1));
+        assertFailedWith(TimeoutException.class, responses.get(2));
+        assertEquals(List.of(0, 3), applied);
+
+        var snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.gauge("pipeline.failed.failures.decode"));
+        assertEquals(1, snapshot.gauge("pipeline.failed.failures.replicate"));
+        assertEquals(2, snapshot.gauge("pipeline.processed.failures.apply"));
+        assertEquals(2, snapshot.histogram("pipeline.serviceTime.failures.apply").count());
+    }
+
+    @Test
+    public void completingAnAsyncRequestDoesNotWaitForTheNextStage() throws Exception {
+        var release = new CountDownLatch(1);
+        List<CompletableFuture<Integer>> replications = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer, Integer> pipeline = Pipeline.<Integer>builder("handoff", metrics)
+                .withCapacity(1)
+                .asyncStage("replicate", request -> {
+                    var replication = new CompletableFuture<Integer>();
+                    replications.add(replication);
+                    return replication;
+                })
+                .stage("apply", request -> {
+                    await(release);
+                    return request;
+                })
+                .build();
+        this.pipeline = pipeline;
+
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(pipeline.submit(i));
+        }
+        while (replications.size() < 4) {
+            Thread.sleep(1);
+        }
+        //apply is blocked, and its queue is full after the first requests.
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            replications.get(i).complete(i);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+
+        release.countDown();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), responses.get(i).get(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void failsRequestsInFlightOnShutdown() throws Exception {
+        Pipeline<Integer, Integer> pipeline = Pipeline.<Integer>builder("shutdown", metrics)
+                //the first request is never replicated, and the second one waits for it.
+                .asyncStage("replicate", request -> request == 0 ? new CompletableFuture<Integer>() : CompletableFuture.completedFuture(request))
+                .stage("apply", request -> request)
+                .build();
+        this.pipeline = pipeline;
+
+        var responses = List.of(pipeline.submit(0), pipeline.submit(1));
+        while (pipeline.getStages().get(0).getProcessed() < 1) {
+            Thread.sleep(1);
+        }
+        pipeline.shutdown();
+
+        for (CompletableFuture<Integer> response : responses) {
+            try {
+                response.get(1, TimeUnit.SECONDS);
+                fail("expected failure");
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+            }
+        }
+        assertFailedWith(IllegalStateException.class, pipeline.submit(2));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertFailedWith(Class<? extends Throwable> exceptionClass, CompletableFuture<Integer> response) throws InterruptedException {
+        try {
+            response.get();
+            fail("expected failure");
+        } catch (ExecutionException e) {
+            assertEquals(exceptionClass, e.getCause().getClass());
+        }
+    }
+
+    private CompletableFuture<Integer> delayed(int value, long delayMs) {
+        var future = new CompletableFuture<Integer>();
+        network.schedule(() -> future.complete(value), delayMs, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private static Integer sleep(Integer request, long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return request;
+    }
+}
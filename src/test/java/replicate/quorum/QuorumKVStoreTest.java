@@ -28,7 +28,10 @@ public class QuorumKVStoreTest extends ClusterTest<QuorumKVStore> {
         //no. servers = no. of replicas.
         this.nodes = TestUtils.startCluster(Arrays.asList("athens",
                         "byzantium", "cyrene"),
-                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new QuorumKVStore(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
+                //messages are delayed by the tests for a second, and should be late, not lost.
+                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new QuorumKVStore(name,
+                        config.withRequestTimeoutBoundsMs(2000, config.getMaxRequestTimeoutMs()),
+                        clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
 
         athens = nodes.get("athens");
         byzantium = nodes.get("byzantium");
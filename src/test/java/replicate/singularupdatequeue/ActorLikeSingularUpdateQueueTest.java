@@ -0,0 +1,105 @@
+package replicate.singularupdatequeue;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.common.TestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ActorLikeSingularUpdateQueueTest {
+    private final ExecutorService dispatcher = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdownNow();
+    }
+
+    @Test
+    public void runsThousandsOfActorsOnAFewThreads() throws Exception {
+        int actorCount = 5_000;
+        int[] balances = new int[actorCount];
+        List<ActorLikeSingularUpdateQueue<Integer, Integer>> actors = new ArrayList<>();
+        for (int i = 0; i < actorCount; i++) {
+            int account = i;
+            actors.add(new ActorLikeSingularUpdateQueue<>(amount -> balances[account] += amount, dispatcher, 8, 100));
+        }
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for (int credit = 0; credit < 10; credit++) {
+            for (var actor : actors) {
+                responses.add(actor.submit(1));
+            }
+        }
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < actorCount; i++) {
+            assertEquals(10, actors.get(i).submit(0).get(1, TimeUnit.SECONDS).intValue());
+            assertEquals(11, actors.get(i).getStats().processed());
+        }
+    }
+
+    @Test
+    public void busyActorYieldsToOtherActorsAfterItsThroughput() throws Exception {
+        var singleThread = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            singleThread.execute(() -> await(blocked)); //so both the actors are queued before they run.
+            AtomicInteger busyHandled = new AtomicInteger();
+            var busy = new ActorLikeSingularUpdateQueue<Integer, Integer>(i -> busyHandled.incrementAndGet(), singleThread, 10, 10_000);
+            var quiet = new ActorLikeSingularUpdateQueue<Integer, Integer>(i -> busyHandled.get(), singleThread, 10, 10_000);
+            for (int i = 0; i < 1000; i++) {
+                busy.submit(i);
+            }
+            CompletableFuture<Integer> quietResponse = quiet.submit(0);
+            blocked.countDown();
+
+            assertEquals(10, quietResponse.get(1, TimeUnit.SECONDS).intValue()); //one activation of the busy actor before.
+            TestUtils.waitUntilTrue(() -> busy.getStats().processed() == 1000, "Waiting for the busy actor", Duration.ofSeconds(2));
+            var stats = busy.getStats();
+            assertEquals(1000, stats.processed());
+            assertEquals(100, stats.activations());
+            assertEquals(10.0, stats.processedPerActivation(), 0.01);
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rejectsRequestsWhenTheMailboxIsFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        var actor = new ActorLikeSingularUpdateQueue<Integer, Integer>(i -> {
+            await(blocked);
+            return i;
+        }, dispatcher, 16, 3);
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            responses.add(actor.submit(i));
+        }
+        //the first request is being handled, and three are waiting in the mailbox.
+        TestUtils.waitUntilTrue(() -> actor.getStats().rejected() >= 1, "Waiting for the mailbox to fill", Duration.ofSeconds(1));
+        blocked.countDown();
+        int rejected = 0;
+        for (CompletableFuture<Integer> response : responses) {
+            try {
+                response.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof MailboxFullException);
+                rejected++;
+            }
+        }
+        assertTrue("rejected " + rejected, rejected >= 2 && rejected <= 3);
+        assertEquals(rejected, actor.getStats().rejected());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package replicate.singularupdatequeue;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveBatcherTest {
+    private static final long MAX_WAIT = Duration.ofMillis(1).toNanos();
+    private static final long TARGET = Duration.ofMillis(10).toNanos();
+
+    @Test
+    public void growsAdditivelyOnFullBatchesAndHalvesAboveTheTarget() {
+        var controller = new AimdBatchController(1, 64, MAX_WAIT, TARGET);
+        assertEquals(1, controller.getBatchSize());
+        assertEquals(0, controller.getWaitNanos());
+
+        controller.onFlush(1, TARGET / 2); //full
+        assertEquals(5, controller.getBatchSize());
+        controller.onFlush(5, TARGET / 2);
+        assertEquals(9, controller.getBatchSize());
+        assertEquals(2 * MAX_WAIT / 16, controller.getWaitNanos());
+
+        controller.onFlush(9, TARGET * 2);
+        assertEquals(4, controller.getBatchSize());
+        assertEquals(MAX_WAIT / 16, controller.getWaitNanos());
+    }
+
+    @Test
+    public void waitTimeDropsWhenBatchesDoNotFill() {
+        var controller = new AimdBatchController(1, 64, MAX_WAIT, TARGET);
+        for (int i = 0; i < 20; i++) {
+            controller.onFlush(controller.getBatchSize(), TARGET / 2);
+        }
+        assertEquals(64, controller.getBatchSize());
+        assertEquals(MAX_WAIT, controller.getWaitNanos());
+
+        for (int i = 0; i < 30; i++) {
+            controller.onFlush(1, TARGET / 2);
+        }
+        assertEquals(64, controller.getBatchSize()); //kept for the next burst.
+        assertEquals(0, controller.getWaitNanos());
+    }
+
+    @Test
+    public void flushesEachItemWhenLoadIsLight() throws Exception {
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        var batcher = new AdaptiveBatcher<Integer>("light", batches::add, 16, new AimdBatchController(1, 64, MAX_WAIT, TARGET));
+        batcher.start();
+        try {
+            for (int i = 0; i < 50; i++) {
+                batcher.submit(i).get(1, TimeUnit.SECONDS);
+            }
+            assertEquals(50, batches.size());
+            assertTrue(batches.stream().allMatch(batch -> batch.size() == 1));
+            assertEquals(0, batcher.getController().getWaitNanos());
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Test
+    public void batchesUpUnderHeavyLoadKeepingTheOrder() throws Exception {
+        List<Integer> flushed = Collections.synchronizedList(new ArrayList<>());
+        var batcher = new AdaptiveBatcher<Integer>("heavy", batch -> {
+            flushed.addAll(batch);
+            sleep(1); //e.g. an fsync, the same for a batch of any size.
+        }, 1024, new AimdBatchController(1, 128, MAX_WAIT, TARGET));
+        batcher.start();
+        try {
+            int items = 2000;
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < items; i++) {
+                futures.add(batcher.submit(i));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+            assertEquals(items, flushed.size());
+            for (int i = 0; i < items; i++) {
+                assertEquals(i, flushed.get(i).intValue());
+            }
+            assertEquals(items, batcher.getFlushedItems());
+            assertTrue("batches of " + items + " items " + batcher.getFlushes(), batcher.getFlushes() < items / 4);
+            assertTrue(batcher.getController().getBatchSize() > 1);
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Test
+    public void failsTheItemsOfAFailedFlush() throws Exception {
+        var batcher = new AdaptiveBatcher<Integer>("failing", batch -> {
+            if (batch.contains(13)) {
+                throw new IllegalStateException("disk full");
+            }
+        }, 16, new AimdBatchController(1, 64, MAX_WAIT, TARGET));
+        batcher.start();
+        try {
+            batcher.submit(1).get(1, TimeUnit.SECONDS);
+            try {
+                batcher.submit(13).get(1, TimeUnit.SECONDS);
+                fail("flush should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            batcher.submit(2).get(1, TimeUnit.SECONDS);
+        } finally {
+            batcher.shutdown();
+        }
+        assertTrue(batcher.submit(3).isCompletedExceptionally());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void itemsSubmittedWhileTheBatcherStopsAreFlushedOrFailed() throws Exception {
+        var batcher = new AdaptiveBatcher<Integer>("stopping", batch -> {}, 16, new AimdBatchController(1, 64, MAX_WAIT, TARGET));
+        batcher.start();
+        List<CompletableFuture<Void>> flushed = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread submitter = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    flushed.add(batcher.submit(j));
+                }
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        while (flushed.size() < 100) {
+            Thread.sleep(1);
+        }
+        batcher.shutdown();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        for (CompletableFuture<Void> future : List.copyOf(flushed)) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+            }
+        }
+    }
+}
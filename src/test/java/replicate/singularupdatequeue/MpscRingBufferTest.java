@@ -0,0 +1,189 @@
+package replicate.singularupdatequeue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void drainsAllPublishedItemsInOneBatch() {
+        var buffer = new MpscRingBuffer<Integer>(5, WaitStrategy.busySpin());
+        assertEquals(8, buffer.capacity());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(8)); //full
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, buffer.drain(drained::add, 3));
+        assertEquals(5, buffer.drain(drained::add, 100));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7), drained);
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(8)); //slots are reused on the next lap.
+    }
+
+    @Test
+    public void itemsConsumedBeforeAFailedHandlerAreNotRedelivered() {
+        var buffer = new MpscRingBuffer<Integer>(4, WaitStrategy.busySpin());
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.offer(3);
+        try {
+            buffer.drain(i -> {
+                if (i == 2) throw new IllegalStateException();
+            }, 10);
+            fail("handler should have failed");
+        } catch (IllegalStateException e) {
+        }
+        List<Integer> drained = new ArrayList<>();
+        buffer.drain(drained::add, 10);
+        assertEquals(List.of(3), drained);
+    }
+
+    @Test
+    public void consumerCanPutToItsOwnFullBufferOnlyIntoTheSlotsItFreed() {
+        var buffer = new MpscRingBuffer<Integer>(2, WaitStrategy.busySpin());
+        buffer.put(1);
+        buffer.put(2);
+        List<Integer> drained = new ArrayList<>();
+        buffer.drain(i -> {
+            drained.add(i);
+            if (i == 1) {
+                buffer.put(3); //into the slot of 1.
+            }
+        }, 2);
+        assertEquals(List.of(1, 2), drained);
+        buffer.put(4);
+        try {
+            buffer.put(5);
+            fail("the consumer would wait forever for a free slot");
+        } catch (IllegalStateException e) {
+        }
+        buffer.drain(drained::add, 10);
+        assertEquals(List.of(1, 2, 3, 4), drained);
+    }
+
+    @Test
+    public void keepsTheOrderOfEachProducer() throws Exception {
+        //not busySpin, which needs a core for every spinning thread.
+        for (WaitStrategy waitStrategy : List.of(WaitStrategy.yielding(), WaitStrategy.parking(1, TimeUnit.MILLISECONDS))) {
+            assertConsumesAllInProducerOrder(waitStrategy);
+        }
+    }
+
+    private void assertConsumesAllInProducerOrder(WaitStrategy waitStrategy) throws Exception {
+        int producers = 4;
+        int itemsPerProducer = 5_000;
+        //small buffer, so producers also wait for free slots.
+        var buffer = new MpscRingBuffer<long[]>(64, waitStrategy);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            Thread thread = new Thread(() -> {
+                for (long i = 0; i < itemsPerProducer; i++) {
+                    buffer.put(new long[]{producer, i});
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long[] lastSeen = new long[]{-1, -1, -1, -1};
+        int[] consumed = new int[1];
+        int[] maxBatch = new int[1];
+        while (consumed[0] < producers * itemsPerProducer) {
+            int drained = buffer.drain(item -> {
+                assertEquals(lastSeen[(int) item[0]] + 1, item[1]);
+                lastSeen[(int) item[0]] = item[1];
+                consumed[0]++;
+            }, 1000, () -> true);
+            maxBatch[0] = Math.max(maxBatch[0], drained);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+        assertTrue("expected batches of more than one item", maxBatch[0] > 1);
+    }
+
+    @Test
+    public void updateQueueHandlesRequestsOnItsThread() throws Exception {
+        List<String> handledOn = new ArrayList<>();
+        var queue = new RingBufferSingularUpdateQueue<Integer, Integer>(i -> {
+            handledOn.add(Thread.currentThread().getName());
+            return i * 2;
+        }, 16, WaitStrategy.parking(), 8);
+        queue.setName("ring-buffer-queue");
+        queue.start();
+        try {
+            List<CompletableFuture<Integer>> responses = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                responses.add(queue.submit(i));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Integer.valueOf(i * 2), responses.get(i).get(1, TimeUnit.SECONDS));
+            }
+            assertTrue(handledOn.stream().allMatch("ring-buffer-queue"::equals));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void updateQueueFailsTheRequestsLeftInItOnShutdown() throws Exception {
+        var handling = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var queue = new RingBufferSingularUpdateQueue<Integer, Integer>(i -> {
+            handling.countDown();
+            awaitUninterruptibly(release);
+            return i;
+        }, 16, WaitStrategy.parking(), 8);
+        queue.start();
+        var handled = queue.submit(1);
+        handling.await();
+        var pending = queue.submit(2);
+        queue.shutdown();
+        release.countDown();
+
+        assertEquals(Integer.valueOf(1), handled.get(1, TimeUnit.SECONDS));
+        try {
+            pending.get(1, TimeUnit.SECONDS);
+            fail("request left in the queue should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(queue.submit(3).isCompletedExceptionally());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void drainClaimedWaitsForTheItemsClaimedButNotYetPublished() throws Exception {
+        var buffer = new MpscRingBuffer<Integer>(2, WaitStrategy.parking());
+        buffer.put(1);
+        buffer.put(2);
+        //claims a slot, and waits for the consumer to free it before publishing.
+        var producer = CompletableFuture.runAsync(() -> buffer.put(3));
+        while (buffer.size() < 3) {
+            Thread.onSpinWait();
+        }
+        List<Integer> drained = new ArrayList<>();
+        buffer.drainClaimed(drained::add);
+        assertEquals(List.of(1, 2, 3), drained);
+        assertEquals(0, buffer.size());
+        producer.get(1, TimeUnit.SECONDS);
+    }
+}
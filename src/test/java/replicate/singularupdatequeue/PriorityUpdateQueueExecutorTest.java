@@ -0,0 +1,101 @@
+package replicate.singularupdatequeue;
+
+import org.junit.After;
+import org.junit.Test;
+import replicate.singularupdatequeue.PriorityUpdateQueueExecutor.WorkClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityUpdateQueueExecutorTest {
+    PriorityUpdateQueueExecutor executor;
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void executesControlTasksBeforeQueuedClientRequests() throws Exception {
+        executor = new PriorityUpdateQueueExecutor("test");
+        CountDownLatch blocked = blockWorker();
+        List<String> executed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(WorkClass.CLIENT, () -> executed.add("client"));
+        }
+        executor.execute(WorkClass.CONTROL, () -> executed.add("heartbeat"));
+
+        blocked.countDown();
+        waitForQueuedTasks();
+
+        assertEquals("heartbeat", executed.get(0));
+        assertEquals(2, executor.getQueueTimeStats(WorkClass.CONTROL).getExecuted()); //including the task blocking the worker.
+        assertEquals(4, executor.getQueueTimeStats(WorkClass.CLIENT).getExecuted()); //including the task waiting for the queue to drain.
+    }
+
+    @Test
+    public void sharesQueueBetweenReplicationAndClientTasksByWeight() throws Exception {
+        executor = new PriorityUpdateQueueExecutor("test", 2, 1, 10000, 64);
+        CountDownLatch blocked = blockWorker();
+        List<String> executed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(WorkClass.CLIENT, () -> executed.add("C"));
+            executor.execute(WorkClass.REPLICATION, () -> executed.add("R"));
+        }
+
+        blocked.countDown();
+        waitForQueuedTasks();
+
+        assertEquals(Arrays.asList("R", "R", "C", "R", "C", "C"), executed);
+    }
+
+    @Test
+    public void executesTasksWaitingLongerThanMaxQueueTimeFirst() throws Exception {
+        executor = new PriorityUpdateQueueExecutor("test", 100, 1, 50, 64);
+        CountDownLatch blocked = blockWorker();
+        List<String> executed = new ArrayList<>();
+        executor.execute(WorkClass.CLIENT, () -> executed.add("C"));
+        Thread.sleep(100);
+        executor.execute(WorkClass.REPLICATION, () -> executed.add("R"));
+
+        blocked.countDown();
+        waitForQueuedTasks();
+
+        assertEquals(Arrays.asList("C", "R"), executed);
+    }
+
+    @Test
+    public void executesScheduledTasksOnUpdateQueue() throws Exception {
+        executor = new PriorityUpdateQueueExecutor("test");
+        var future = executor.schedule(WorkClass.CONTROL, () -> Thread.currentThread().getName(), 10, TimeUnit.MILLISECONDS);
+        assertEquals("update-queue-test", future.get());
+        assertTrue(future.isDone());
+    }
+
+    private CountDownLatch blockWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(WorkClass.CONTROL, () -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        return blocked;
+    }
+
+    //All the classes are empty once a task queued with the lowest priority completes.
+    private void waitForQueuedTasks() throws InterruptedException, ExecutionException {
+        executor.submit(WorkClass.CLIENT, () -> {}).get();
+    }
+}
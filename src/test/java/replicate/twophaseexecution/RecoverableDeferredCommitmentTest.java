@@ -2,6 +2,7 @@ package replicate.twophaseexecution;
 
 import org.junit.Test;
 import replicate.common.ClusterTest;
+import replicate.common.MessageId;
 import replicate.common.NetworkClient;
 import replicate.common.TestUtils;
 import replicate.twophaseexecution.messages.ExecuteCommandRequest;
@@ -58,4 +59,38 @@ public class RecoverableDeferredCommitmentTest extends ClusterTest<RecoverableDe
         assertEquals("Microservices", byzantium.getValue("title"));
         assertEquals("Microservices", cyrene.getValue("title"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void recoversTheIncompleteCommitBeforeItsOwnPromiseIsReceived() throws IOException {
+        super.nodes = TestUtils.startCluster( Arrays.asList("athens", "byzantium", "cyrene"),
+                (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new RecoverableDeferredCommitment(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
+        DeferredCommitment athens = nodes.get("athens");
+        DeferredCommitment byzantium = nodes.get("byzantium");
+        DeferredCommitment cyrene = nodes.get("cyrene");
+
+        //only athens accepts the first command.
+        athens.dropAfterNMessagesTo(byzantium, 1);
+        athens.dropAfterNMessagesTo(cyrene, 1);
+
+        NetworkClient client = new NetworkClient();
+        CompareAndSwap casCommand = new CompareAndSwap("title", Optional.empty(), "Microservices");
+        var firstResponse
+                = client.sendAndReceive(new ExecuteCommandRequest(casCommand.serialize()), athens.getClientConnectionAddress(), ExecuteCommandResponse.class);
+        assertFalse(firstResponse.isSuccess());
+
+        athens.reconnectTo(byzantium);
+        athens.reconnectTo(cyrene);
+        //the Promises of byzantium and cyrene, without any accepted command, form the quorum.
+        athens.addDelayForMessagesOfType(athens, MessageId.Promise);
+
+        casCommand = new CompareAndSwap("title", Optional.of("Microservices"), "Distributed Systems");
+        var secondResponse
+                = client.sendAndReceive(new ExecuteCommandRequest(casCommand.serialize()), athens.getClientConnectionAddress(), ExecuteCommandResponse.class);
+
+        assertFalse(secondResponse.isSuccess());
+        //athens knows the command it accepted, without waiting for its own Promise.
+        assertEquals("Microservices", athens.getValue("title"));
+        assertEquals("Microservices", byzantium.getValue("title"));
+        assertEquals("Microservices", cyrene.getValue("title"));
+    }
+}
@@ -2,8 +2,11 @@ package replicate.vsr;
 
 import org.junit.Test;
 import replicate.common.ClusterTest;
+import replicate.common.MemoryAccountant;
+import replicate.common.MessageId;
 import replicate.common.NetworkClient;
 import replicate.common.TestUtils;
+import replicate.common.Trace;
 import replicate.net.InetAddressAndPort;
 import replicate.twophaseexecution.messages.ExecuteCommandRequest;
 import replicate.twophaseexecution.messages.ExecuteCommandResponse;
@@ -14,9 +17,11 @@ import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ViewStampedReplicationTest extends ClusterTest<ViewStampedReplication> {
 
@@ -69,6 +74,90 @@ public class ViewStampedReplicationTest extends ClusterTest<ViewStampedReplicati
         }, "Waiting for new primary to be elected", Duration.ofSeconds(5));
     }
 
+    @Test
+    public void tracesStagesOfClientRequestOnPrimaryAndBackups() throws IOException {
+        super.nodes = TestUtils.startCluster(Arrays.asList("athens", "byzantium", "cyrene"),
+                        (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new ViewStampedReplication(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
+
+        var athens = nodes.get("athens");
+        var primary = getPrimaryNode(athens.getPrimaryAddress());
+
+        long traceId = 42;
+        var client = new NetworkClient().withTraceId(traceId);
+        var setValueCommand = new SetValueCommand("title", "Microservices");
+        var response
+                = client.sendAndReceive(new ExecuteCommandRequest(setValueCommand.serialize()), primary.getClientConnectionAddress(), ExecuteCommandResponse.class).getResult();
+        assertEquals(Optional.of("Microservices"), response.getResponse());
+
+        TestUtils.waitUntilTrue(() -> clientTrace(primary, traceId).isPresent(), "Waiting for the trace of the request", Duration.ofSeconds(2));
+        Trace trace = clientTrace(primary, traceId).get();
+        Set<Trace.Stage> stages = trace.getStageBreakdown().keySet();
+        assertEquals(Set.of(Trace.Stage.QUEUED, Trace.Stage.SERIALIZED, Trace.Stage.SENT, Trace.Stage.QUORUM, Trace.Stage.APPLIED, Trace.Stage.RESPONDED), stages);
+
+        for (ViewStampedReplication backup : getBackUpNodes(primary.getPeerConnectionAddress())) {
+            TestUtils.waitUntilTrue(() -> backup.getTracer().getTraces(traceId).stream().anyMatch(t -> t.getMessageId() == MessageId.Prepare),
+                    "Waiting for the trace of Prepare on " + backup.getName(), Duration.ofSeconds(2));
+        }
+        assertTrue(primary.getTracer().dump().contains(Long.toHexString(traceId)));
+    }
+
+    @Test
+    public void backupAppliesOpCommittedBeforeItsPrepareIsReceived() throws IOException {
+        super.nodes = TestUtils.startCluster(Arrays.asList("athens", "byzantium", "cyrene", "delphi", "ephesus"),
+                        (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new ViewStampedReplication(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
+
+        var athens = nodes.get("athens");
+        var primary = getPrimaryNode(athens.getPrimaryAddress());
+        var slowBackup = getBackUpNodes(primary.getPeerConnectionAddress()).get(0);
+        //the op is committed with the PrepareOKs of the other backups,
+        //and the Commit reaches the slow backup before the Prepare.
+        primary.addDelayForMessagesOfType(slowBackup, MessageId.Prepare);
+
+        var client = new NetworkClient();
+        var setValueCommand = new SetValueCommand("title", "Microservices");
+        var response
+                = client.sendAndReceive(new ExecuteCommandRequest(setValueCommand.serialize()), primary.getClientConnectionAddress(), ExecuteCommandResponse.class).getResult();
+        assertEquals(Optional.of("Microservices"), response.getResponse());
+
+        TestUtils.waitUntilTrue(() -> "Microservices".equals(slowBackup.kv.get("title")),
+                "Waiting for the slow backup to apply the op", Duration.ofSeconds(5));
+    }
+
+    @Test
+    public void accountsForTheMemoryOfTheLogReplacedOnViewChange() throws IOException {
+        super.nodes = TestUtils.startCluster(Arrays.asList("athens", "byzantium", "cyrene", "delphi", "ephesus"),
+                        (name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses) -> new ViewStampedReplication(name, config, clock, clientConnectionAddress, peerConnectionAddress, peerAddresses));
+
+        var athens = nodes.get("athens");
+        var primary = getPrimaryNode(athens.getPrimaryAddress());
+        var client = new NetworkClient();
+        byte[] firstCommand = new SetValueCommand("title", "Microservices").serialize();
+        client.sendAndReceive(new ExecuteCommandRequest(firstCommand), primary.getClientConnectionAddress(), ExecuteCommandResponse.class);
+
+        primary.shutdown();
+        List<ViewStampedReplication> backUpNodes = getBackUpNodes(primary.getPeerConnectionAddress());
+        //a slow view change can time out, and be followed by another one.
+        TestUtils.waitUntilTrue(() -> backUpNodes.stream().allMatch(n -> n.getStatus() == ViewStampedReplication.Status.Normal
+                        && n.getViewNumber() > 0 && n.getViewNumber() == backUpNodes.get(0).getViewNumber()),
+                "Waiting for the new view to be started", Duration.ofSeconds(10));
+
+        var newPrimary = getPrimaryNode(backUpNodes.get(0).getPrimaryAddress());
+        byte[] secondCommand = new SetValueCommand("author", "Martin").serialize();
+        var response = client.sendAndReceive(new ExecuteCommandRequest(secondCommand), newPrimary.getClientConnectionAddress(), ExecuteCommandResponse.class).getResult();
+        assertEquals(Optional.of("Martin"), response.getResponse());
+
+        //the entries of the log of the new view are accounted for, and the entries of the old log are released.
+        long expectedBytes = 2 * MemoryAccountant.ENTRY_OVERHEAD_BYTES + firstCommand.length + secondCommand.length;
+        for (ViewStampedReplication node : backUpNodes) {
+            TestUtils.waitUntilTrue(() -> node.getMemoryAccountant().getUsedBytes(MemoryAccountant.Component.CONSENSUS_LOG) == expectedBytes,
+                    "Waiting for the log of " + node.getName() + " to be accounted for", Duration.ofSeconds(2));
+        }
+    }
+
+    private static Optional<Trace> clientTrace(ViewStampedReplication replica, long traceId) {
+        return replica.getTracer().getTraces(traceId).stream().filter(t -> t.getKind() == Trace.Kind.CLIENT).findFirst();
+    }
+
     private List<ViewStampedReplication> getBackUpNodes(InetAddressAndPort primaryAddress) {
         return this.nodes.values().stream().filter(n -> !n.getPeerConnectionAddress().equals(primaryAddress)).collect(Collectors.toList());
     }
@@ -0,0 +1,58 @@
+package replicate.wal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntryOffsetsTest {
+
+    @Test
+    public void findsPositionsByIndexFromTheBaseOffset() {
+        EntryOffsets offsets = new EntryOffsets(100);
+        assertTrue(offsets.isEmpty());
+        for (long index = 101; index <= 200; index++) {
+            offsets.put(index, (index - 101) * 10);
+        }
+        assertFalse(offsets.isEmpty());
+        assertEquals(101, offsets.firstIndex());
+        assertEquals(200, offsets.lastIndex());
+        assertEquals(0, offsets.get(101));
+        assertEquals(990, offsets.get(200));
+        assertEquals(EntryOffsets.NO_POSITION, offsets.get(100));
+        assertEquals(EntryOffsets.NO_POSITION, offsets.get(201));
+    }
+
+    @Test
+    public void truncationDropsTheEntriesFromTheIndexOn() {
+        EntryOffsets offsets = new EntryOffsets(0);
+        for (long index = 1; index <= 10; index++) {
+            offsets.put(index, index * 10);
+        }
+        offsets.truncateFrom(6);
+        assertEquals(5, offsets.lastIndex());
+        assertEquals(EntryOffsets.NO_POSITION, offsets.get(6));
+        offsets.put(6, 600);
+        assertEquals(600, offsets.get(6));
+
+        offsets.truncateFrom(1);
+        assertTrue(offsets.isEmpty());
+    }
+
+    @Test
+    public void skipsIndexesWhichWereNeverAppended() {
+        EntryOffsets offsets = new EntryOffsets(0);
+        offsets.put(2, 0);
+        offsets.put(5, 20);
+        assertEquals(2, offsets.firstIndex());
+        assertEquals(5, offsets.nextIndex(3));
+        assertEquals(EntryOffsets.NO_POSITION, offsets.get(3));
+        //the gap before the last entry is dropped with it.
+        offsets.truncateFrom(5);
+        assertEquals(2, offsets.lastIndex());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIndexesBeforeTheBaseOffset() {
+        new EntryOffsets(100).put(99, 0);
+    }
+}
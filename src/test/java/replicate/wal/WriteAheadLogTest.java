@@ -0,0 +1,512 @@
+package replicate.wal;
+
+import org.junit.Test;
+import replicate.common.Config;
+import replicate.common.TestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    @Test
+    public void groupCommitSharesForcesAcrossConcurrentAppenders() throws Exception {
+        File walDir = TestUtils.tempDir("wal/groupcommit");
+        var config = new Config(walDir.getAbsolutePath()).withWalGroupCommit(1024 * 1024, Duration.ofMillis(2));
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        int appenders = 8;
+        int appendsEach = 50;
+        List<Long> indexes = appendConcurrently(wal, appenders, appendsEach);
+        int total = appenders * appendsEach;
+
+        Set<Long> expected = LongStream.rangeClosed(1, total).boxed().collect(Collectors.toSet());
+        assertEquals(expected, Set.copyOf(indexes));
+        assertEquals(total, wal.getLastLogIndex());
+        assertTrue("forces " + wal.getGroupCommits(), wal.getGroupCommits() < total);
+        assertTrue(wal.getFsyncLatency().getCount() < total);
+        wal.close();
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()));
+        List<WALEntry> entries = reopened.readAll();
+        assertEquals(total, entries.size());
+        for (int i = 0; i < total; i++) {
+            assertEquals(i + 1, entries.get(i).getEntryIndex().longValue());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void adaptiveGroupCommitSharesForcesAcrossConcurrentAppenders() throws Exception {
+        File walDir = TestUtils.tempDir("wal/adaptivegroupcommit");
+        //a target latency no fsync misses, so the batches grow while the appenders keep up the load.
+        var config = new Config(walDir.getAbsolutePath())
+                .withBatching(64, Duration.ofMillis(2), Duration.ofSeconds(1))
+                .withAdaptiveWalGroupCommit();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        int appenders = 8;
+        int appendsEach = 50;
+        List<Long> indexes = appendConcurrently(wal, appenders, appendsEach);
+        int total = appenders * appendsEach;
+
+        assertEquals(LongStream.rangeClosed(1, total).boxed().collect(Collectors.toSet()), Set.copyOf(indexes));
+        assertTrue("forces " + wal.getGroupCommits(), wal.getGroupCommits() < total);
+        wal.close();
+        assertEquals(total, WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath())).readAll().size());
+    }
+
+    @Test
+    public void groupCommitRollsSegments() {
+        File walDir = TestUtils.tempDir("wal/groupcommitroll");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(200L).withWalGroupCommit(1024, Duration.ZERO);
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, wal.writeEntry(new byte[50]).longValue());
+        }
+        assertTrue(wal.sortedSavedSegments.size() > 1);
+        List<WALEntry> entries = wal.readAll();
+        assertEquals(10, entries.size());
+        assertEquals(10, entries.get(9).getEntryIndex().longValue());
+        wal.close();
+    }
+
+    @Test
+    public void groupCommitForcesABatchOnceItHoldsMaxBatchBytes() throws Exception {
+        File walDir = TestUtils.tempDir("wal/groupcommitbytes");
+        int entrySize = new WALEntry(1L, new byte[100], EntryType.DATA, 0).logEntrySize();
+        //the wait would fail the test, if the batch were not forced on its size.
+        var config = new Config(walDir.getAbsolutePath()).withWalGroupCommit(3L * entrySize, Duration.ofSeconds(30));
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        List<Long> indexes = appendConcurrently(wal, 3, 1);
+        assertEquals(Set.of(1L, 2L, 3L), Set.copyOf(indexes));
+        wal.close();
+    }
+
+    @Test
+    public void appendAsyncEntriesCanBeReadBeforeTheyAreDurable() throws Exception {
+        File walDir = TestUtils.tempDir("wal/appendasync");
+        //the first batch waits for a minute to be forced, unless it fills up.
+        var config = new Config(walDir.getAbsolutePath()).withWalGroupCommit(1024 * 1024, Duration.ofMinutes(1));
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        WALAppend first = wal.appendAsync(new WALEntry("a".getBytes()));
+        WALAppend second = wal.appendAsync(new WALEntry("b".getBytes()));
+
+        assertEquals(1, first.index());
+        assertEquals(2, second.index());
+        assertFalse(second.durable().isDone());
+        assertEquals(2, wal.getLastLogIndex());
+        assertArrayEquals("b".getBytes(), wal.readAt(2L).getData());
+
+        wal.close(); //forces the pending batch.
+        assertEquals(2, second.durable().get(1, TimeUnit.SECONDS).longValue());
+        assertEquals(2, WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath())).readAll().size());
+    }
+
+    @Test
+    public void appendAsyncWithoutGroupCommitMode() throws Exception {
+        File walDir = TestUtils.tempDir("wal/appendasyncnogroup");
+        WriteAheadLog wal = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()));
+        wal.writeEntry("a".getBytes());
+        List<WALAppend> appends = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            appends.add(wal.appendAsync(new WALEntry(("entry" + i).getBytes())));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 2, appends.get(i).durable().get(1, TimeUnit.SECONDS).longValue());
+        }
+        assertEquals(12, wal.writeEntry("b".getBytes()).longValue());
+        wal.close();
+    }
+
+    @Test
+    public void mappedSegmentsArePreallocatedAndRecoveredOnOpen() {
+        File walDir = TestUtils.tempDir("wal/mmap");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(1024L).withMmapSegments();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i + 1, wal.writeEntry(("entry" + i).getBytes()).longValue());
+        }
+        assertFalse(wal.sortedSavedSegments.isEmpty());
+        assertEquals(1024, new File(wal.openSegment.getFileName()).length());
+        assertTrue(wal.openSegment.size() < 1024);
+        wal.close();
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(30, reopened.getLastLogIndex());
+        assertEquals(31, reopened.writeEntry("entry30".getBytes()).longValue());
+        List<WALEntry> entries = reopened.readAll();
+        assertEquals(31, entries.size());
+        assertArrayEquals("entry30".getBytes(), entries.get(30).getData());
+        reopened.close();
+
+        //without mmap, the zeroes after the entries are dropped.
+        WriteAheadLog unmapped = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()).withMaxLogSize(1024L));
+        assertEquals(31, unmapped.readAll().size());
+        assertEquals(32, unmapped.writeEntry("entry31".getBytes()).longValue());
+        unmapped.close();
+    }
+
+    @Test
+    public void deletedMappedSegmentsAreNotReadable() {
+        File walDir = TestUtils.tempDir("wal/mmapdelete");
+        WriteAheadLog wal = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()).withMaxLogSize(1024L).withMmapSegments());
+        for (int i = 0; i < 30; i++) {
+            wal.writeEntry(("entry" + i).getBytes());
+        }
+        WALSegment oldest = wal.sortedSavedSegments.get(0);
+        Long firstIndex = 1L;
+        assertArrayEquals("entry0".getBytes(), oldest.readAt(firstIndex).getData());
+
+        wal.removeAndDeleteSegment(oldest);
+        assertFalse(new File(oldest.getFileName()).exists());
+        try {
+            oldest.readAt(firstIndex);
+            fail("read a deleted segment");
+        } catch (IllegalStateException e) {
+            //the mapping is dropped.
+        }
+        wal.close();
+    }
+
+    @Test
+    public void truncatedEntriesOfAMappedSegmentAreNotRecovered() throws Exception {
+        File walDir = TestUtils.tempDir("wal/mmaptruncate");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(64 * 1024L).withMmapSegments();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 0; i < 10; i++) {
+            wal.writeEntry(("entry" + i).getBytes());
+        }
+        wal.truncate(6L);
+        assertEquals(5, wal.getLastLogIndex());
+        wal.close();
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(5, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mappedSegmentsRejectEntriesLargerThanASegment() {
+        File walDir = TestUtils.tempDir("wal/mmaplarge");
+        WriteAheadLog wal = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()).withMaxLogSize(256L).withMmapSegments());
+        wal.writeEntry(new byte[512]);
+    }
+
+    @Test
+    public void sealedSegmentsAreOpenedFromTheirIndexFiles() {
+        File walDir = TestUtils.tempDir("wal/sealed");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(64 * 1024L);
+        long start = System.currentTimeMillis();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 500; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        int sealedSegments = wal.sortedSavedSegments.size();
+        assertTrue(sealedSegments > 1);
+        wal.close();
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(sealedSegments, reopened.sortedSavedSegments.size());
+        assertFalse(reopened.openSegment.isSealed());
+        long previousLastIndex = 0;
+        for (WALSegment segment : reopened.sortedSavedSegments) {
+            assertTrue(segment.isSealed());
+            assertTrue(new File(walDir, WALSegment.createIndexFileName(segment.getBaseOffset())).exists());
+            long lastIndex = segment.getLastLogEntryIndex();
+            assertTrue(segment.getLastLogEntryTimestamp() >= start);
+            //every entry is found from the sparse index.
+            for (long index = previousLastIndex + 1; index <= lastIndex; index++) {
+                assertArrayEquals(entryData(index), segment.readAt(index).getData());
+            }
+            assertEquals(lastIndex - previousLastIndex, segment.readFrom(previousLastIndex + 1).size());
+            previousLastIndex = lastIndex;
+        }
+        List<WALEntry> entries = reopened.readAll();
+        assertEquals(500, entries.size());
+        assertEquals(501, reopened.writeEntry(entryData(501)).longValue());
+        reopened.close();
+    }
+
+    @Test
+    public void segmentsWithAnIncompleteIndexFileAreScanned() throws Exception {
+        File walDir = TestUtils.tempDir("wal/sealedcorrupt");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(8 * 1024L);
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 50; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        WALSegment first = wal.sortedSavedSegments.get(0);
+        long lastIndex = first.getLastLogEntryIndex();
+        File indexFile = new File(walDir, WALSegment.createIndexFileName(first.getBaseOffset()));
+        wal.close();
+        byte[] bytes = Files.readAllBytes(indexFile.toPath());
+        Files.write(indexFile.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        WALSegment rescanned = reopened.sortedSavedSegments.get(0);
+        assertFalse(rescanned.isSealed());
+        assertEquals(lastIndex, rescanned.getLastLogEntryIndex().longValue());
+        assertEquals(50, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void tornTailOfASegmentIsTruncatedOnOpen() throws Exception {
+        File walDir = TestUtils.tempDir("wal/torntail");
+        var config = new Config(walDir.getAbsolutePath());
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 10; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        File segmentFile = new File(wal.openSegment.getFileName());
+        wal.close();
+        //the last entry was only partly written before a crash.
+        byte[] bytes = Files.readAllBytes(segmentFile.toPath());
+        Files.write(segmentFile.toPath(), Arrays.copyOf(bytes, bytes.length - 100));
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(9, reopened.getLastLogIndex());
+        assertEquals(SegmentHeader.SIZE + 9 * (bytes.length - SegmentHeader.SIZE) / 10, segmentFile.length());
+        assertEquals(10, reopened.writeEntry(entryData(10)).longValue());
+        assertEquals(10, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void segmentIsTruncatedAtAnEntryNotMatchingItsCrc() throws Exception {
+        File walDir = TestUtils.tempDir("wal/crc");
+        var config = new Config(walDir.getAbsolutePath());
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 10; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        File segmentFile = new File(wal.openSegment.getFileName());
+        wal.close();
+        //without a checkpoint, every entry is checked.
+        Files.delete(new File(walDir, WALSegment.createCheckpointFileName(0L)).toPath());
+        byte[] bytes = Files.readAllBytes(segmentFile.toPath());
+        bytes[bytes.length - 10] ^= 1;
+        Files.write(segmentFile.toPath(), bytes);
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(9, reopened.getLastLogIndex());
+        assertEquals(9, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void onlyEntriesAfterTheCheckpointAreChecked() throws Exception {
+        File walDir = TestUtils.tempDir("wal/checkpoint");
+        var config = new Config(walDir.getAbsolutePath());
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 10; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        File segmentFile = new File(wal.openSegment.getFileName());
+        wal.close();
+        File checkpointFile = new File(walDir, WALSegment.createCheckpointFileName(0L));
+        assertEquals(segmentFile.length() - SegmentHeader.SIZE, SegmentCheckpoint.read(checkpointFile));
+        byte[] bytes = Files.readAllBytes(segmentFile.toPath());
+        //a change in the data of a forced entry is not noticed, as its crc is not checked.
+        bytes[bytes.length - 10] ^= 1;
+        //garbage after the checkpoint is.
+        byte[] withGarbage = Arrays.copyOf(bytes, bytes.length + 64);
+        Arrays.fill(withGarbage, bytes.length, withGarbage.length, (byte) 7);
+        Files.write(segmentFile.toPath(), withGarbage);
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(10, reopened.getLastLogIndex());
+        assertEquals(bytes.length, segmentFile.length());
+        assertEquals(11, reopened.writeEntry(entryData(11)).longValue());
+        reopened.close();
+    }
+
+    @Test
+    public void segmentOfAnUnknownFormatIsNotOpenedNorTruncated() throws Exception {
+        File walDir = TestUtils.tempDir("wal/unknownformat");
+        var config = new Config(walDir.getAbsolutePath());
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 10; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        File segmentFile = new File(wal.openSegment.getFileName());
+        wal.close();
+        //a segment written without the header, by an earlier version.
+        byte[] bytes = Files.readAllBytes(segmentFile.toPath());
+        byte[] withoutHeader = Arrays.copyOfRange(bytes, SegmentHeader.SIZE, bytes.length);
+        Files.write(segmentFile.toPath(), withoutHeader);
+
+        try {
+            WriteAheadLog.openWAL(config);
+            fail("a segment without the header should not be opened");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("unknown format"));
+        }
+        assertArrayEquals(withoutHeader, Files.readAllBytes(segmentFile.toPath()));
+    }
+
+    @Test
+    public void tornTailOfAMappedSegmentIsZeroed() throws Exception {
+        File walDir = TestUtils.tempDir("wal/mmaptorn");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(64 * 1024L).withMmapSegments();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 10; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        File segmentFile = new File(wal.openSegment.getFileName());
+        long end = wal.openSegment.size();
+        wal.close();
+        //the size of an entry was written, but not its data.
+        byte[] bytes = Files.readAllBytes(segmentFile.toPath());
+        bytes[SegmentHeader.SIZE + (int) end + 3] = 100;
+        Files.write(segmentFile.toPath(), bytes);
+
+        WriteAheadLog reopened = WriteAheadLog.openWAL(config);
+        assertEquals(10, reopened.getLastLogIndex());
+        assertEquals(end, reopened.openSegment.size());
+        reopened.close();
+        bytes = Files.readAllBytes(segmentFile.toPath());
+        assertEquals(0, bytes[SegmentHeader.SIZE + (int) end + 3]);
+    }
+
+    @Test
+    public void readFromReturnsEntriesAcrossSegmentsInOrder() {
+        File walDir = TestUtils.tempDir("wal/readfrom");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(8 * 1024L);
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 100; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        assertTrue(wal.sortedSavedSegments.size() > 2);
+        //from the base offset of a segment, which is the last entry of the segment before it.
+        long baseOffset = wal.sortedSavedSegments.get(1).getBaseOffset();
+        for (long startIndex : new long[]{1, baseOffset, baseOffset + 1, 100}) {
+            List<Long> indexes = wal.readFrom(startIndex).stream().map(WALEntry::getEntryIndex).collect(Collectors.toList());
+            assertEquals(LongStream.rangeClosed(startIndex, 100).boxed().collect(Collectors.toList()), indexes);
+        }
+        wal.close();
+    }
+
+    @Test
+    public void cursorStreamsEntriesThroughASmallBuffer() {
+        File walDir = TestUtils.tempDir("wal/cursor");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(8 * 1024L);
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 100; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        //smaller than an entry, so the buffer is grown to read it.
+        try (WALCursor cursor = wal.openCursor(40, 256)) {
+            long expectedIndex = 40;
+            while (cursor.hasNext()) {
+                WALEntryView entry = cursor.next();
+                assertEquals(expectedIndex, entry.getEntryIndex());
+                assertEquals(EntryType.DATA, entry.getEntryType());
+                assertArrayEquals(entryData(expectedIndex), entry.getData());
+                expectedIndex++;
+            }
+            assertEquals(101, expectedIndex);
+        }
+        wal.close();
+    }
+
+    @Test
+    public void cursorFollowsEntriesAppendedAfterItReachedTheEnd() {
+        File walDir = TestUtils.tempDir("wal/cursortail");
+        var config = new Config(walDir.getAbsolutePath()).withMaxLogSize(8 * 1024L).withMmapSegments();
+        WriteAheadLog wal = WriteAheadLog.openWAL(config);
+        for (int i = 1; i <= 5; i++) {
+            wal.writeEntry(entryData(i));
+        }
+        try (WALCursor cursor = wal.openCursor(1)) {
+            for (int i = 1; i <= 5; i++) {
+                assertEquals(i, cursor.next().getEntryIndex());
+            }
+            assertFalse(cursor.hasNext());
+            //enough entries for the log to roll to new segments.
+            for (int i = 6; i <= 50; i++) {
+                wal.writeEntry(entryData(i));
+            }
+            for (int i = 6; i <= 50; i++) {
+                assertTrue(cursor.hasNext());
+                WALEntry entry = cursor.next().toEntry();
+                assertEquals(i, entry.getEntryIndex().longValue());
+                assertArrayEquals(entryData(i), entry.getData());
+            }
+            assertFalse(cursor.hasNext());
+        }
+        wal.close();
+    }
+
+    private static byte[] entryData(long index) {
+        byte[] data = new byte[500];
+        Arrays.fill(data, (byte) index);
+        return data;
+    }
+
+    @Test
+    public void entriesQueuedWhileTheGroupCommitterStopsAreForcedOrFailed() throws Exception {
+        File walDir = TestUtils.tempDir("wal/groupcommitclose");
+        WriteAheadLog wal = WriteAheadLog.openWAL(new Config(walDir.getAbsolutePath()));
+        var committer = new GroupCommitter(wal, 1024, 0);
+        List<CompletableFuture<Long>> durables = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService appenders = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 4; i++) {
+                appenders.submit(() -> {
+                    for (long index = 1; index <= 10_000; index++) {
+                        durables.add(committer.awaitForce(new WALEntry(index, new byte[10], EntryType.DATA, 0)));
+                    }
+                });
+            }
+            while (durables.size() < 100) {
+                Thread.sleep(1);
+            }
+            committer.shutdown();
+        } finally {
+            appenders.shutdown();
+            appenders.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        for (CompletableFuture<Long> durable : List.copyOf(durables)) {
+            try {
+                durable.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+            }
+        }
+        wal.close();
+    }
+
+    private static List<Long> appendConcurrently(WriteAheadLog wal, int appenders, int appendsEach) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(appenders);
+        try {
+            List<Future<List<Long>>> results = new ArrayList<>();
+            for (int i = 0; i < appenders; i++) {
+                results.add(executor.submit(() -> {
+                    List<Long> indexes = new ArrayList<>();
+                    for (int j = 0; j < appendsEach; j++) {
+                        indexes.add(wal.writeEntry(new byte[100]));
+                    }
+                    return indexes;
+                }));
+            }
+            List<Long> indexes = new ArrayList<>();
+            for (Future<List<Long>> result : results) {
+                indexes.addAll(result.get(10, TimeUnit.SECONDS));
+            }
+            return indexes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}